@@ -15,5 +15,16 @@ public class DetectionAggregate {
   private List<LicencePlate> detections;
   private List<Reid> reids;
   private String serviceAddress;
+
+  /**
+   * Names of the services whose data is missing from this aggregate because they failed or
+   * did not answer in time. Empty for a complete aggregate.
+   */
+  private List<String> degraded;
+
+  /**
+   * Passed as the after parameter to get the next page of detections, null on the last page.
+   */
+  private String continuationToken;
 }
 
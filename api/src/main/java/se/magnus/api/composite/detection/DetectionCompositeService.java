@@ -2,12 +2,28 @@ package se.magnus.api.composite.detection;
 
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestParam;
 import io.swagger.v3.oas.annotations.responses.ApiResponses;
 import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.Operation;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 public interface DetectionCompositeService {
+    /**
+     * One page of the detections of a source, ordered by unixTime, with the reids of the source.
+     * If more detections may follow, the aggregate holds a continuationToken, which is passed as
+     * the after parameter to get the next page.
+     *
+     * Sample usage: "curl $HOST:$PORT/detection-composite/camera-001?from=1699614600000&limit=100".
+     *
+     * @param sourceId Id of the source
+     * @param from Lower bound of unixTime, inclusive, optional
+     * @param to Upper bound of unixTime, inclusive, optional
+     * @param limit Max number of detections, the default page size of lpr-service by default
+     * @param after Continuation token from the previous page, optional
+     * @return the aggregate, if detections are found
+     */
     @Operation(
     summary =
         "${api.detection-composite.get-detection-aggregate.description}",
@@ -26,6 +42,69 @@ public interface DetectionCompositeService {
     @GetMapping(
         value = "/detection-composite/{sourceId}",
         produces = "application/json")
-    Mono<DetectionAggregate> getDetectionAggregate(@PathVariable String sourceId);
-}
+    Mono<DetectionAggregate> getDetectionAggregate(
+        @PathVariable String sourceId,
+        @RequestParam(value = "from", required = false) Long from,
+        @RequestParam(value = "to", required = false) Long to,
+        @RequestParam(value = "limit", required = false) Integer limit,
+        @RequestParam(value = "after", required = false) String after);
+
+    /**
+     * Streaming variant of getDetectionAggregate, selected by the Accept header. Records are
+     * written as they arrive from lpr-service and reid-service, all detection pages included.
+     *
+     * With join=true, detections and reids of the same plate close in time are joined by the
+     * composite, and written as MATCH records as soon as both have arrived.
+     *
+     * Sample usage: "curl -H 'Accept: application/x-ndjson' $HOST:$PORT/detection-composite/camera-001?join=true".
+     *
+     * @param sourceId Id of the source
+     * @param join Join the detections with their reids, false by default
+     * @return detection and reid records, plus a DEGRADED record if reid data is missing
+     */
+    @GetMapping(
+        value = "/detection-composite/{sourceId}",
+        produces = {"application/x-ndjson", "text/event-stream"})
+    Flux<DetectionRecord> getDetectionStream(
+        @PathVariable String sourceId,
+        @RequestParam(value = "join", required = false, defaultValue = "false") boolean join);
+
+    /**
+     * Where else a vehicle was seen within the correlation window, by the LPR detections and
+     * reids of all cameras. Plates are matched after OCR normalization.
+     *
+     * Sample usage: "curl $HOST:$PORT/detection-composite/sightings?plate=ABC123".
+     *
+     * @param plate Plate number to look for
+     * @return the sightings of the plate, oldest first
+     */
+    @GetMapping(
+        value = "/detection-composite/sightings",
+        produces = "application/json")
+    Flux<Sighting> getSightings(@RequestParam(value = "plate", required = true) String plate);
+
+    /**
+     * Sample usage: "curl $HOST:$PORT/detection-composite/transitions?plate=ABC123".
+     *
+     * @param plate Plate number to look for
+     * @return the camera to camera transitions of the plate within the correlation window
+     */
+    @GetMapping(
+        value = "/detection-composite/transitions",
+        produces = "application/json")
+    Flux<Transition> getTransitions(@RequestParam(value = "plate", required = true) String plate);
 
+    /**
+     * Pushes camera to camera transitions as they are found, as server-sent events. A subscriber
+     * that reads too slowly loses its oldest undelivered transitions.
+     *
+     * Sample usage: "curl -N $HOST:$PORT/detection-composite/transitions/live?sourceId=camera-001".
+     *
+     * @param sourceId Only the transitions from or to this source, optional
+     * @return a never ending stream of transitions
+     */
+    @GetMapping(
+        value = "/detection-composite/transitions/live",
+        produces = "text/event-stream")
+    Flux<Transition> getLiveTransitions(@RequestParam(value = "sourceId", required = false) String sourceId);
+}
@@ -0,0 +1,53 @@
+package se.magnus.api.composite.detection;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import se.magnus.api.core.lpr.LicencePlate;
+import se.magnus.api.core.reid.Reid;
+
+/**
+ * One record of a streamed detection aggregate. Exactly one of detection, reid and degraded
+ * is set, according to the type, except for a MATCH that carries a detection together with
+ * the reid it was joined with.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class DetectionRecord {
+
+  public enum Type {
+    DETECTION,
+    REID,
+    MATCH,
+    DEGRADED
+  }
+
+  private Type type;
+  private String sourceId;
+  private LicencePlate detection;
+  private Reid reid;
+
+  /**
+   * Name of the service whose records are missing from the stream, for a DEGRADED record.
+   */
+  private String degraded;
+
+  public static DetectionRecord detection(String sourceId, LicencePlate detection) {
+    return new DetectionRecord(Type.DETECTION, sourceId, detection, null, null);
+  }
+
+  public static DetectionRecord reid(String sourceId, Reid reid) {
+    return new DetectionRecord(Type.REID, sourceId, null, reid, null);
+  }
+
+  public static DetectionRecord match(String sourceId, LicencePlate detection, Reid reid) {
+    return new DetectionRecord(Type.MATCH, sourceId, detection, reid, null);
+  }
+
+  public static DetectionRecord degraded(String sourceId, String service) {
+    return new DetectionRecord(Type.DEGRADED, sourceId, null, null, service);
+  }
+}
@@ -0,0 +1,29 @@
+package se.magnus.api.composite.detection;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * A vehicle seen by a camera, either an LPR detection or a reid.
+ *
+ * plate is the normalized plate number that sightings are correlated by, plateNum the plate
+ * number as read. id is the objectUuid of a detection or the reid of a reid.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class Sighting {
+
+  public enum Kind {
+    LPR,
+    REID
+  }
+
+  private String plate;
+  private String plateNum;
+  private String sourceId;
+  private long timestamp;
+  private Kind kind;
+  private String id;
+}
@@ -0,0 +1,18 @@
+package se.magnus.api.composite.detection;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * A vehicle seen by one camera and then by another, within the correlation window.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class Transition {
+  private String plate;
+  private Sighting from;
+  private Sighting to;
+  private long elapsed;
+}
@@ -2,22 +2,41 @@ package se.magnus.api.core.journey;
 
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import reactor.core.publisher.Mono;
 
 public interface JourneyService {
-    Mono<Journey> createJourney(Journey journey);
+
+  /**
+   * Sample usage, see below.
+   *
+   * curl -X POST $HOST:$PORT/journey \
+   *   -H "Content-Type: application/json" --data \
+   *   '{"reid":"reid-001","timestamp":1699614600000,"zoneId":"zone-1","event":"enter",...}'
+   *
+   * @param journey A JSON representation of one journey event
+   * @return the added journey event
+   */
+  @PostMapping(
+    value    = "/journey",
+    consumes = "application/json",
+    produces = "application/json")
+  Mono<Journey> createJourney(@RequestBody Journey journey);
 
   /**
    * Sample usage: "curl $HOST:$PORT/journey/reid-001".
    *
+   * The trajectory is assembled as the events arrive, so reading it is a single lookup.
+   * Only the most recent events are kept, eventCount counts all of them.
+   *
    * @param reid Id of the journey/reid
-   * @return the journey data, if found, else null
+   * @return the trajectory of the reid, if found, else a 404
    */
   @GetMapping(
     value = "/journey/{reid}",
     produces = "application/json")
-    Mono<Journey> getJourney(@PathVariable String reid);
+  Mono<Trajectory> getJourney(@PathVariable String reid);
 
   Mono<Void> deleteJourney(String reid);
 }
-
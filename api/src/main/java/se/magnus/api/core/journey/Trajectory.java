@@ -0,0 +1,21 @@
+package se.magnus.api.core.journey;
+
+import java.util.List;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * The journey events of one reid, ordered by timestamp.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class Trajectory {
+  private String reid;
+  private long firstSeen;
+  private long lastSeen;
+  private long eventCount;
+  private List<Journey> events;
+  private String serviceAddress;
+}
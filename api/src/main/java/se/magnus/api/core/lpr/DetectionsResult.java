@@ -0,0 +1,17 @@
+package se.magnus.api.core.lpr;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class DetectionsResult {
+  private String sourceId;
+  private int created;
+  private List<String> duplicates;
+  private String serviceAddress;
+}
@@ -4,21 +4,89 @@ import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestParam;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 public interface LprService {
 
   /**
-   * Sample usage: "curl $HOST:$PORT/lpr/detections/camera-001".
+   * Sample usage: "curl $HOST:$PORT/lpr/detections/camera-001?from=1699614600000&limit=100".
+   *
+   * Detections are returned ordered by unixTime, one page at a time. If more detections
+   * may follow, the response carries an X-Continuation-Token header whose value is passed
+   * as the after parameter to fetch the next page.
    *
    * @param sourceId Id of the camera/source
+   * @param from Lower bound of unixTime, inclusive, optional
+   * @param to Upper bound of unixTime, inclusive, optional
+   * @param limit Max number of detections to return, optional
+   * @param after Continuation token from the previous page, optional
    * @return the LPR detections, if found, else empty
    */
   @GetMapping(
     value = "/lpr/detections/{sourceId}",
     produces = "application/json")
-  Flux<LicencePlate> getLprs(@PathVariable String sourceId);
+  Flux<LicencePlate> getLprs(
+    @PathVariable String sourceId,
+    @RequestParam(value = "from", required = false) Long from,
+    @RequestParam(value = "to", required = false) Long to,
+    @RequestParam(value = "limit", required = false) Integer limit,
+    @RequestParam(value = "after", required = false) String after);
+
+  /**
+   * Sample usage: "curl -N $HOST:$PORT/lpr/detections/camera-001/live".
+   *
+   * Pushes every detection of the source that is stored after subscribing, as server-sent
+   * events. A subscriber that reads too slowly loses its oldest undelivered detections.
+   *
+   * @param sourceId Id of the camera/source
+   * @return a never ending stream of new LPR detections
+   */
+  @GetMapping(
+    value = "/lpr/detections/{sourceId}/live",
+    produces = "text/event-stream")
+  Flux<LicencePlate> getLiveLprs(@PathVariable String sourceId);
+
+  /**
+   * Sample usage: "curl $HOST:$PORT/lpr/search?plate=AB0123&maxDistance=1".
+   *
+   * Finds detections of plates that are similar to the given plate number, tolerating
+   * typical OCR confusions such as 0/O, 1/I and 8/B as well as dropped characters.
+   *
+   * @param plate Plate number to search for
+   * @param maxDistance Max number of edited characters, after OCR normalization, optional
+   * @param limit Max number of detections to return, optional
+   * @return the most recent detections of the matching plates, closest matches first
+   */
+  @GetMapping(
+    value = "/lpr/search",
+    produces = "application/json")
+  Flux<LicencePlate> searchLprs(
+    @RequestParam(value = "plate", required = true) String plate,
+    @RequestParam(value = "maxDistance", required = false) Integer maxDistance,
+    @RequestParam(value = "limit", required = false) Integer limit);
+
+  /**
+   * Sample usage: "curl $HOST:$PORT/lpr/stats/camera-001?from=1699614600000&granularity=hour".
+   *
+   * Serves the per-source rollups that are updated as detections are stored, so the cost
+   * depends on the number of buckets and not on the number of detections.
+   *
+   * @param sourceId Id of the camera/source
+   * @param from Lower bound of unixTime, inclusive, optional, defaults to a day before to
+   * @param to Upper bound of unixTime, inclusive, optional, defaults to now
+   * @param granularity minute, hour or day, optional, defaults to minute
+   * @return the buckets with detections, in time order
+   */
+  @GetMapping(
+    value = "/lpr/stats/{sourceId}",
+    produces = "application/json")
+  Flux<TrafficStats> getStats(
+    @PathVariable String sourceId,
+    @RequestParam(value = "from", required = false) Long from,
+    @RequestParam(value = "to", required = false) Long to,
+    @RequestParam(value = "granularity", required = false) String granularity);
 
   /**
    * Sample usage, see below.
@@ -35,5 +103,24 @@ public interface LprService {
     consumes = "application/json",
     produces = "application/json")
   Mono<LicencePlate> createLpr(@RequestBody LicencePlate body);
+
+  /**
+   * Sample usage, see below.
+   *
+   * curl -X POST $HOST:$PORT/lpr/detections \
+   *   -H "Content-Type: application/json" --data \
+   *   '{"sourceId":"camera-001","unixTime":1699614600000,"detections":[{"objectUuid":"uuid-001",...}]}'
+   *
+   * All plates of the frame are stored in one transaction. Plates whose objectUuid
+   * already exists are skipped and reported back instead of failing the whole frame.
+   *
+   * @param body A JSON representation of all licence plates detected in one frame
+   * @return the number of created plates and the objectUuids of skipped duplicates
+   */
+  @PostMapping(
+    value    = "/lpr/detections",
+    consumes = "application/json",
+    produces = "application/json")
+  Mono<DetectionsResult> createLprs(@RequestBody Detections body);
 }
 
@@ -0,0 +1,20 @@
+package se.magnus.api.core.lpr;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * The detections of a source within one minute, hour or day.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class TrafficStats {
+  private String sourceId;
+  private long bucketStart;
+  private long count;
+  private long distinctPlates;
+  private long firstSeen;
+  private long lastSeen;
+}
@@ -0,0 +1,20 @@
+package se.magnus.api.core.reid;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Outcome of a bulk upsert of reids. Reids that were sent again with the same content are
+ * counted as unchanged, reids that were invalid or rejected by the database as failed.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ReidBatchResult {
+  private long inserted;
+  private long updated;
+  private long unchanged;
+  private long failed;
+  private String serviceAddress;
+}
@@ -2,24 +2,56 @@ package se.magnus.api.core.reid;
 
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
 
 public interface ReidService {
 
   /**
-   * Sample usage: "curl $HOST:$PORT/reid/camera-001".
+   * Sample usage: "curl $HOST:$PORT/reid/camera-001?from=1699614600000&limit=100".
+   *
+   * Reids are returned ordered by timestamp, streamed from the database cursor as the client
+   * reads them. Ask for application/x-ndjson to get one reid per line.
    *
    * @param sourceId Id of the source
+   * @param from Lower bound of the timestamp, inclusive, optional
+   * @param to Upper bound of the timestamp, inclusive, optional
+   * @param limit Max number of reids to return, optional
    * @return the reid data, if found, else empty
    */
   @GetMapping(
     value = "/reid/{sourceId}",
-    produces = "application/json")
-  Flux<Reid> getReids(@PathVariable String sourceId);
+    produces = {"application/json", "application/x-ndjson"})
+  Flux<Reid> getReids(
+    @PathVariable String sourceId,
+    @RequestParam(value = "from", required = false) Long from,
+    @RequestParam(value = "to", required = false) Long to,
+    @RequestParam(value = "limit", required = false) Integer limit);
+
+  /**
+   * Sample usage: "curl -N $HOST:$PORT/reid/camera-001/live".
+   *
+   * Pushes every reid of the source that is inserted after subscribing, as server-sent events
+   * read from a Mongo change stream. The id of each event is a resume token. A client that
+   * reconnects with it in the Last-Event-ID header, as browsers do, first gets the reids it
+   * missed. A subscriber that reads too slowly loses its oldest undelivered reids.
+   *
+   * @param sourceId Id of the source
+   * @param lastEventId Id of the last event received before reconnecting, optional
+   * @return a never ending stream of new reids
+   */
+  @GetMapping(
+    value = "/reid/{sourceId}/live",
+    produces = "text/event-stream")
+  Flux<ServerSentEvent<Reid>> getLiveReids(
+    @PathVariable String sourceId,
+    @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId);
 
   /**
    * Sample usage: "curl -X POST $HOST:$PORT/reid".
@@ -31,6 +63,24 @@ public interface ReidService {
     value = "/reid",
     consumes = "application/json",
     produces = "application/json")
-  Mono<Reid> createReid(Reid body);
-}
+  Mono<Reid> createReid(@RequestBody Reid body);
 
+  /**
+   * Sample usage, see below.
+   *
+   * curl -X POST $HOST:$PORT/reid/batch \
+   *   -H "Content-Type: application/x-ndjson" --data-binary @reids.ndjson
+   *
+   * Upserts the reids keyed on reid and sourceId, with unordered bulk writes of a chunk of
+   * reids at a time, so sending a batch again after a partial failure is harmless. The body
+   * is read as it arrives, either as a JSON array or one reid per line.
+   *
+   * @param body The reids to store
+   * @return the number of inserted, updated, unchanged and failed reids
+   */
+  @PostMapping(
+    value = "/reid/batch",
+    consumes = {"application/json", "application/x-ndjson"},
+    produces = "application/json")
+  Mono<ReidBatchResult> createReidBatch(@RequestBody Flux<Reid> body);
+}
@@ -0,0 +1,42 @@
+package se.magnus.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import se.magnus.api.composite.detection.DetectionAggregate;
+import se.magnus.api.core.lpr.BoundingBox;
+import se.magnus.api.core.lpr.LicencePlate;
+import se.magnus.api.core.reid.Reid;
+
+/**
+ * Detections and reids shaped like the ones the cameras post.
+ */
+final class Fixtures {
+
+  static final String SOURCE_ID = "camera-001";
+  static final String SERVICE_ADDRESS = "lpr-service-5d8f7c9b4-x2k8p/10.1.2.3:8080";
+
+  private static final long T0 = 1699614600000L;
+
+  private Fixtures() {
+  }
+
+  static LicencePlate licencePlate(int i) {
+    return new LicencePlate(SOURCE_ID, "3f2b8c1e-7a4d-4e9b-9c61-" + String.format("%012d", i),
+      new BoundingBox(100 + i, 100, 200, 150), new BoundingBox(120 + i, 130, 80, 30),
+      "ABC" + (100 + i % 900), "2023-11-10T10:30:00.123Z", T0 + i * 40L, SERVICE_ADDRESS);
+  }
+
+  static Reid reid(int i) {
+    return new Reid("reid-" + i, SOURCE_ID, "ABC" + (100 + i % 900), T0 + i * 40L, "Location-1", "active", SERVICE_ADDRESS);
+  }
+
+  static DetectionAggregate aggregate(int size) {
+    List<LicencePlate> detections = new ArrayList<>(size);
+    List<Reid> reids = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      detections.add(licencePlate(i));
+      reids.add(reid(i));
+    }
+    return new DetectionAggregate(SOURCE_ID, detections, reids, SERVICE_ADDRESS, List.of(), null);
+  }
+}
@@ -0,0 +1,68 @@
+package se.magnus.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.mapstruct.factory.Mappers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.magnus.api.core.lpr.LicencePlate;
+import se.magnus.api.core.reid.Reid;
+import se.magnus.microservices.core.lpr.persistence.LicencePlateEntity;
+import se.magnus.microservices.core.lpr.services.LprMapper;
+import se.magnus.microservices.core.reid.persistence.ReidEntity;
+import se.magnus.microservices.core.reid.services.ReidMapper;
+
+/**
+ * The entity to API mappings done for every detection and reid that is stored or read.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class MapperBenchmark {
+
+  private final LprMapper lprMapper = Mappers.getMapper(LprMapper.class);
+  private final ReidMapper reidMapper = Mappers.getMapper(ReidMapper.class);
+
+  private LicencePlate licencePlate;
+  private LicencePlateEntity licencePlateEntity;
+  private Reid reid;
+  private ReidEntity reidEntity;
+
+  @Setup
+  public void setup() {
+    licencePlate = Fixtures.licencePlate(1);
+    licencePlateEntity = lprMapper.apiToEntity(licencePlate);
+    reid = Fixtures.reid(1);
+    reidEntity = reidMapper.apiToEntity(reid);
+  }
+
+  @Benchmark
+  public LicencePlateEntity lprApiToEntity() {
+    return lprMapper.apiToEntity(licencePlate);
+  }
+
+  @Benchmark
+  public LicencePlate lprEntityToApi() {
+    return lprMapper.entityToApi(licencePlateEntity);
+  }
+
+  @Benchmark
+  public ReidEntity reidApiToEntity() {
+    return reidMapper.apiToEntity(reid);
+  }
+
+  @Benchmark
+  public Reid reidEntityToApi() {
+    return reidMapper.entityToApi(reidEntity);
+  }
+}
@@ -0,0 +1,81 @@
+package se.magnus.benchmarks;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.magnus.microservices.core.lpr.services.PlateSearchIndex;
+
+/**
+ * The fuzzy plate lookup of GET /lpr/search, by the number of distinct plates in the index and
+ * the allowed edit distance. The queries are stored plates with one character misread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class PlateSearchIndexBenchmark {
+
+  // Without the OCR look-alikes, which the index normalizes into one another
+  private static final String LETTERS = "ACEFGHJKMNPRTUVWXY";
+  private static final String DIGITS = "0123456789";
+
+  @Param({"100000", "1000000"})
+  private int plates;
+
+  @Param({"1", "2"})
+  private int maxDistance;
+
+  private final PlateSearchIndex index = new PlateSearchIndex();
+  private final String[] queries = new String[1024];
+  private int next;
+
+  @Setup
+  public void setup() {
+    Random random = new Random(42);
+    String[] plateNums = new String[plates];
+    for (int i = 0; i < plates; i++) {
+      plateNums[i] = plate(random);
+      index.add(plateNums[i]);
+    }
+    for (int i = 0; i < queries.length; i++) {
+      char[] query = plateNums[random.nextInt(plates)].toCharArray();
+      int position = random.nextInt(query.length);
+      query[position] = position < 3 ? pick(random, LETTERS) : pick(random, DIGITS);
+      queries[i] = new String(query);
+    }
+  }
+
+  @Benchmark
+  public List<PlateSearchIndex.Match> search() {
+    next = (next + 1) & (queries.length - 1);
+    return index.search(queries[next], maxDistance);
+  }
+
+  private static String plate(Random random) {
+    StringBuilder plate = new StringBuilder(7);
+    for (int i = 0; i < 3; i++) {
+      plate.append(pick(random, LETTERS));
+    }
+    for (int i = 0; i < 4; i++) {
+      plate.append(pick(random, DIGITS));
+    }
+    return plate.toString();
+  }
+
+  private static char pick(Random random, String chars) {
+    return chars.charAt(random.nextInt(chars.length()));
+  }
+}
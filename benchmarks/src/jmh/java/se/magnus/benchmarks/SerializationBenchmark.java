@@ -0,0 +1,95 @@
+package se.magnus.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import se.magnus.api.composite.detection.DetectionAggregate;
+import se.magnus.api.core.lpr.LicencePlate;
+import se.magnus.api.core.reid.Reid;
+
+/**
+ * JSON encoding and decoding of the response bodies, with an ObjectMapper configured the way
+ * Spring Boot configures the one of the codecs. The aggregate is measured with as many
+ * detections and reids as given by aggregateSize.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class SerializationBenchmark {
+
+  private static final ObjectMapper MAPPER = new Jackson2ObjectMapperBuilder().build();
+
+  private LicencePlate licencePlate;
+  private Reid reid;
+  private byte[] licencePlateJson;
+  private byte[] reidJson;
+
+  @Setup
+  public void setup() throws IOException {
+    licencePlate = Fixtures.licencePlate(1);
+    reid = Fixtures.reid(1);
+    licencePlateJson = MAPPER.writeValueAsBytes(licencePlate);
+    reidJson = MAPPER.writeValueAsBytes(reid);
+  }
+
+  @Benchmark
+  public byte[] writeLicencePlate() throws IOException {
+    return MAPPER.writeValueAsBytes(licencePlate);
+  }
+
+  @Benchmark
+  public LicencePlate readLicencePlate() throws IOException {
+    return MAPPER.readValue(licencePlateJson, LicencePlate.class);
+  }
+
+  @Benchmark
+  public byte[] writeReid() throws IOException {
+    return MAPPER.writeValueAsBytes(reid);
+  }
+
+  @Benchmark
+  public Reid readReid() throws IOException {
+    return MAPPER.readValue(reidJson, Reid.class);
+  }
+
+  @Benchmark
+  public byte[] writeDetectionAggregate(Aggregate state) throws IOException {
+    return MAPPER.writeValueAsBytes(state.aggregate);
+  }
+
+  @Benchmark
+  public DetectionAggregate readDetectionAggregate(Aggregate state) throws IOException {
+    return MAPPER.readValue(state.json, DetectionAggregate.class);
+  }
+
+  @State(Scope.Benchmark)
+  public static class Aggregate {
+
+    @Param({"1", "50"})
+    public int aggregateSize;
+
+    private DetectionAggregate aggregate;
+    private byte[] json;
+
+    @Setup
+    public void setup() throws IOException {
+      aggregate = Fixtures.aggregate(aggregateSize);
+      json = MAPPER.writeValueAsBytes(aggregate);
+    }
+  }
+}
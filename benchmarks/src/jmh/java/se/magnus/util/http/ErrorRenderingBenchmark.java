@@ -0,0 +1,50 @@
+package se.magnus.util.http;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import se.magnus.api.exceptions.InvalidInputException;
+import se.magnus.api.exceptions.NotFoundException;
+
+/**
+ * An error response, from the exception handler to the JSON body. Lives in the package of the
+ * handler, as the handler is package private.
+ *
+ * The invalid input case also creates the exception, as its stack trace is filled in for
+ * every rejected request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class ErrorRenderingBenchmark {
+
+  private final GlobalControllerExceptionHandler handler = new GlobalControllerExceptionHandler();
+  private final ObjectMapper mapper = new Jackson2ObjectMapperBuilder().build();
+  private final MockServerHttpRequest request = MockServerHttpRequest.get("/lpr/detections/camera-001").build();
+  private final NotFoundException notFound = new NotFoundException("No detections found for sourceId: camera-001");
+
+  @Benchmark
+  public byte[] renderNotFound() throws IOException {
+    return mapper.writeValueAsBytes(handler.handleNotFoundExceptions(request, notFound));
+  }
+
+  @Benchmark
+  public byte[] renderInvalidInput() throws IOException {
+    InvalidInputException ex = new InvalidInputException("Invalid sourceId: " + request.getPath());
+    return mapper.writeValueAsBytes(handler.handleInvalidInputException(request, ex));
+  }
+}
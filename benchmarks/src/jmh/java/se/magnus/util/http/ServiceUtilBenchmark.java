@@ -0,0 +1,38 @@
+package se.magnus.util.http;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The service address added to every response. It is looked up once and then cached, the
+ * first call measures the lookup of the host name and address.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class ServiceUtilBenchmark {
+
+  private final ServiceUtil serviceUtil = new ServiceUtil("8080");
+
+  @Benchmark
+  public String getServiceAddress() {
+    return serviceUtil.getServiceAddress();
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public String getServiceAddressFirstCall() {
+    return new ServiceUtil("8080").getServiceAddress();
+  }
+}
@@ -0,0 +1,202 @@
+package se.magnus.loadgenerator;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Records the latencies of the requests per operation, in microseconds, and writes them out.
+ *
+ * Two latencies are recorded for every request. The latency runs from the time the request was
+ * due to be sent according to the arrival schedule, so a stalled service or a stalled generator
+ * shows up in it instead of silently postponing the requests that follow (coordinated
+ * omission). The service time runs from the time the request was actually sent. A large
+ * difference between the two means the requests queued, in the generator or in the service.
+ *
+ * Every second the interval histograms are appended to latency.hlog, and the completed
+ * requests and errors to throughput.csv. At the end summary.json holds the percentiles and
+ * throughput of the measured period, and one .hgrm file per operation its full percentile
+ * distribution in milliseconds.
+ */
+class LatencyReport {
+
+  private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+  private static final double MICROS_PER_MILLI = 1000.0;
+
+  private final Path out;
+  private final Map<Operation, Recording> recordings = new EnumMap<>(Operation.class);
+  private final HistogramLogWriter logWriter;
+  private final PrintWriter throughputWriter;
+  private final long startMillis;
+  private long intervals;
+
+  LatencyReport(Path out, Iterable<Operation> operations) throws IOException {
+    this.out = out;
+    Files.createDirectories(out);
+    for (Operation operation : operations) {
+      recordings.put(operation, new Recording());
+    }
+
+    startMillis = System.currentTimeMillis();
+    logWriter = new HistogramLogWriter(out.resolve("latency.hlog").toFile());
+    logWriter.outputLogFormatVersion();
+    logWriter.outputStartTime(startMillis);
+    logWriter.setBaseTime(startMillis);
+    logWriter.outputLegend();
+    throughputWriter = new PrintWriter(Files.newBufferedWriter(out.resolve("throughput.csv")));
+    throughputWriter.println("second,operation,completed,errors,p99Millis");
+  }
+
+  void recordSuccess(Operation operation, int status, long intendedNanos, long sentNanos) {
+    Recording recording = recordings.get(operation);
+    long now = System.nanoTime();
+    recording.latency.recordValue(TimeUnit.NANOSECONDS.toMicros(now - intendedNanos));
+    recording.serviceTime.recordValue(TimeUnit.NANOSECONDS.toMicros(now - sentNanos));
+    recording.count(status);
+  }
+
+  /**
+   * A request that failed, with a non 2xx status or 0 if no response was received. Its
+   * latency is not recorded, as a fast failure would improve the percentiles.
+   */
+  void recordError(Operation operation, int status) {
+    Recording recording = recordings.get(operation);
+    recording.count(status);
+    recording.intervalErrors.increment();
+  }
+
+  void recordDropped(Operation operation) {
+    recordings.get(operation).dropped.increment();
+  }
+
+  /**
+   * Called once a second by the reporter.
+   */
+  synchronized void endInterval() {
+    intervals++;
+    recordings.forEach((operation, recording) -> {
+      Histogram interval = recording.latency.getIntervalHistogram(recording.intervalLatency);
+      recording.intervalLatency = interval;
+      recording.totalLatency.add(interval);
+      recording.recycledServiceTime = recording.serviceTime.getIntervalHistogram(recording.recycledServiceTime);
+      recording.totalServiceTime.add(recording.recycledServiceTime);
+
+      interval.setTag(operation.settingName());
+      logWriter.outputIntervalHistogram(interval);
+      throughputWriter.printf("%d,%s,%d,%d,%.3f%n", intervals, operation.settingName(), interval.getTotalCount(),
+        recording.intervalErrors.sumThenReset(), interval.getValueAtPercentile(99) / MICROS_PER_MILLI);
+    });
+    throughputWriter.flush();
+  }
+
+  /**
+   * Writes the summary of the measured period, and prints it.
+   */
+  synchronized void finish(Settings settings, double measuredSeconds, PrintStream console) throws IOException {
+    endInterval();
+    logWriter.close();
+    throughputWriter.close();
+
+    Map<String, Object> summary = new LinkedHashMap<>();
+    summary.put("startTime", startMillis);
+    summary.put("targetRate", settings.rate());
+    summary.put("measuredSeconds", measuredSeconds);
+    Map<String, Object> operations = new LinkedHashMap<>();
+    summary.put("operations", operations);
+
+    console.printf("%nMeasured %.0f s at a target rate of %.0f requests/s, latencies in ms%n", measuredSeconds, settings.rate());
+    console.printf("%-40s %9s %9s %8s %8s %8s %8s %8s %8s %9s%n",
+      "request", "ok", "errors", "req/s", "p50", "p90", "p99", "p99.9", "p99.99", "max");
+
+    for (Map.Entry<Operation, Recording> entry : recordings.entrySet()) {
+      Operation operation = entry.getKey();
+      Recording recording = entry.getValue();
+      Histogram latency = recording.totalLatency;
+      long errors = recording.errors();
+
+      Map<String, Object> result = new LinkedHashMap<>();
+      result.put("request", operation.request());
+      result.put("completed", latency.getTotalCount());
+      result.put("errors", errors);
+      result.put("dropped", recording.dropped.sum());
+      result.put("statuses", recording.statuses());
+      result.put("throughput", latency.getTotalCount() / measuredSeconds);
+      result.put("latencyMillis", percentiles(latency));
+      result.put("serviceTimeMillis", percentiles(recording.totalServiceTime));
+      operations.put(operation.settingName(), result);
+
+      try (PrintStream hgrm = new PrintStream(Files.newOutputStream(out.resolve(operation.settingName() + ".hgrm")))) {
+        latency.outputPercentileDistribution(hgrm, MICROS_PER_MILLI);
+      }
+
+      console.printf("%-40s %9d %9d %8.1f %8.2f %8.2f %8.2f %8.2f %8.2f %9.2f%n",
+        operation.request(), latency.getTotalCount(), errors + recording.dropped.sum(),
+        latency.getTotalCount() / measuredSeconds,
+        millis(latency, 50), millis(latency, 90), millis(latency, 99), millis(latency, 99.9), millis(latency, 99.99),
+        latency.getMaxValue() / MICROS_PER_MILLI);
+    }
+
+    new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(out.resolve("summary.json").toFile(), summary);
+    console.printf("%nReports written to %s%n", out.toAbsolutePath());
+  }
+
+  private static Map<String, Double> percentiles(Histogram histogram) {
+    Map<String, Double> percentiles = new LinkedHashMap<>();
+    for (double percentile : PERCENTILES) {
+      percentiles.put("p" + (percentile % 1 == 0 ? String.valueOf((int) percentile) : String.valueOf(percentile)),
+        millis(histogram, percentile));
+    }
+    percentiles.put("max", histogram.getMaxValue() / MICROS_PER_MILLI);
+    return percentiles;
+  }
+
+  private static double millis(Histogram histogram, double percentile) {
+    return histogram.getValueAtPercentile(percentile) / MICROS_PER_MILLI;
+  }
+
+  private static class Recording {
+
+    private final Recorder latency = new Recorder(3);
+    private final Recorder serviceTime = new Recorder(3);
+    private final Histogram totalLatency = new Histogram(3);
+    private final Histogram totalServiceTime = new Histogram(3);
+    private final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+    private final LongAdder intervalErrors = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    // Handed back to the recorders, so no histogram is allocated per interval
+    private Histogram intervalLatency;
+    private Histogram recycledServiceTime;
+
+    void count(int status) {
+      statuses.computeIfAbsent(status, s -> new LongAdder()).increment();
+    }
+
+    long errors() {
+      return statuses.entrySet().stream()
+        .filter(entry -> entry.getKey() < 200 || entry.getKey() >= 300)
+        .mapToLong(entry -> entry.getValue().sum())
+        .sum();
+    }
+
+    Map<Integer, Long> statuses() {
+      Map<Integer, Long> counts = new TreeMap<>();
+      statuses.forEach((status, count) -> counts.put(status, count.sum()));
+      return counts;
+    }
+  }
+}
@@ -0,0 +1,199 @@
+package se.magnus.loadgenerator;
+
+import static org.springframework.http.MediaType.APPLICATION_JSON;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+import se.magnus.api.core.lpr.Detections;
+import se.magnus.api.core.lpr.LicencePlate;
+import se.magnus.api.core.reid.Reid;
+
+/**
+ * Drives the lpr-service, reid-service and detection-composite-service with an open workload
+ * and writes a latency report, see README.md.
+ *
+ * Requests arrive as a Poisson process at the given rate, whatever the response times are, the
+ * way independent cameras and clients send them. A closed loop of clients waiting for their
+ * previous response would instead slow down together with the services, and hide the latency
+ * it should measure.
+ *
+ * Before the run every camera gets a few detections and reids, so the reads find data from the
+ * start. The warmup is run at the full rate but not measured.
+ */
+public class LoadGenerator {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LoadGenerator.class);
+
+  private static final Duration DRAIN_TIMEOUT = Duration.ofSeconds(30);
+
+  private final Settings settings;
+  private final Traffic traffic;
+  private final WebClient lprClient;
+  private final WebClient reidClient;
+  private final WebClient compositeClient;
+  private final AtomicInteger inFlight = new AtomicInteger();
+
+  LoadGenerator(Settings settings) {
+    this.settings = settings;
+    this.traffic = new Traffic(settings);
+
+    ConnectionProvider connections = ConnectionProvider.builder("load-generator")
+      .maxConnections(settings.maxConnections())
+      // Never reject a request for want of a connection, the wait shows up in its latency
+      .pendingAcquireMaxCount(-1)
+      .build();
+    WebClient.Builder builder = WebClient.builder()
+      .clientConnector(new ReactorClientHttpConnector(HttpClient.create(connections)));
+    this.lprClient = builder.baseUrl("http://" + settings.host() + ":" + settings.lprPort()).build();
+    this.reidClient = builder.baseUrl("http://" + settings.host() + ":" + settings.reidPort()).build();
+    this.compositeClient = builder.baseUrl("http://" + settings.host() + ":" + settings.compositePort()).build();
+  }
+
+  public static void main(String[] args) throws Exception {
+    Settings settings;
+    try {
+      settings = Settings.parse(args);
+    } catch (IllegalArgumentException ex) {
+      System.err.println(ex.getMessage());
+      System.exit(2);
+      return;
+    }
+    new LoadGenerator(settings).run();
+    System.exit(0);
+  }
+
+  void run() throws Exception {
+    LOG.info("Seeds {} detections and reids for each of {} cameras", settings.seedPerCamera(), settings.cameras());
+    seed();
+
+    LatencyReport report = new LatencyReport(settings.out(), settings.mix().keySet());
+
+    LOG.info("Warms up for {} s at {} requests/s", settings.warmup().toSeconds(), settings.rate());
+    long start = System.nanoTime();
+    long measureStart = start + settings.warmup().toNanos();
+    long end = measureStart + settings.duration().toNanos();
+
+    ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "load-reporter");
+      thread.setDaemon(true);
+      return thread;
+    });
+    long firstInterval = measureStart - start + TimeUnit.SECONDS.toNanos(1);
+    reporter.scheduleAtFixedRate(report::endInterval, firstInterval, TimeUnit.SECONDS.toNanos(1), TimeUnit.NANOSECONDS);
+
+    boolean measuring = false;
+    long intended = start;
+    while (intended < end) {
+      if (!measuring && intended >= measureStart) {
+        LOG.info("Measures for {} s", settings.duration().toSeconds());
+        measuring = true;
+      }
+      waitUntil(intended);
+      send(traffic.nextOperation(), intended, measuring ? report : null);
+      intended += traffic.nextInterArrivalNanos(settings.rate());
+    }
+
+    drain();
+    reporter.shutdownNow();
+    report.finish(settings, settings.duration().toNanos() / 1e9, System.out);
+  }
+
+  /**
+   * Sends a request without waiting for its response, so a slow response does not hold up the
+   * requests due after it. Only the requests due in the measured period are recorded.
+   */
+  private void send(Operation operation, long intendedNanos, LatencyReport report) {
+    if (inFlight.get() >= settings.maxInFlight()) {
+      if (report != null) {
+        report.recordDropped(operation);
+      }
+      return;
+    }
+    inFlight.incrementAndGet();
+
+    String camera = traffic.nextCamera();
+    WebClient.RequestHeadersSpec<?> request = switch (operation) {
+      case POST_DETECTION -> lprClient.post().uri("/lpr/detection")
+        .contentType(APPLICATION_JSON).bodyValue(traffic.detection(camera));
+      case GET_DETECTIONS -> lprClient.get().uri("/lpr/detections/{sourceId}", camera);
+      case GET_REIDS -> reidClient.get().uri("/reid/{sourceId}", camera);
+      case GET_COMPOSITE -> compositeClient.get().uri("/detection-composite/{sourceId}", camera);
+    };
+
+    long sentNanos = System.nanoTime();
+    request.accept(APPLICATION_JSON)
+      // Reads the whole body, as a client would, before the response counts as complete
+      .exchangeToMono(response -> response.releaseBody().thenReturn(response.statusCode().value()))
+      .doFinally(signal -> inFlight.decrementAndGet())
+      .subscribe(
+        status -> {
+          if (report != null) {
+            if (status >= 200 && status < 300) {
+              report.recordSuccess(operation, status, intendedNanos, sentNanos);
+            } else {
+              report.recordError(operation, status);
+            }
+          }
+        },
+        ex -> {
+          LOG.debug("{} failed: {}", operation.request(), ex.toString());
+          if (report != null) {
+            report.recordError(operation, 0);
+          }
+        });
+  }
+
+  private void seed() {
+    long now = System.currentTimeMillis();
+    List<Mono<?>> requests = new ArrayList<>();
+    for (String camera : traffic.cameras()) {
+      List<LicencePlate> detections = new ArrayList<>();
+      List<Reid> reids = new ArrayList<>();
+      for (int i = 0; i < settings.seedPerCamera(); i++) {
+        detections.add(traffic.detection(null));
+        reids.add(traffic.reid(camera, now - i * 1000L));
+      }
+      if (!detections.isEmpty()) {
+        requests.add(lprClient.post().uri("/lpr/detections").contentType(APPLICATION_JSON)
+          .bodyValue(new Detections(camera, detections, now, null))
+          .retrieve().toBodilessEntity());
+        requests.add(reidClient.post().uri("/reid/batch").contentType(APPLICATION_JSON)
+          .bodyValue(reids)
+          .retrieve().toBodilessEntity());
+      }
+    }
+    // A few at a time, the seeding is not what is measured
+    Flux.fromIterable(requests).flatMap(request -> request, 8).blockLast(Duration.ofMinutes(5));
+  }
+
+  private void drain() {
+    long deadline = System.nanoTime() + DRAIN_TIMEOUT.toNanos();
+    while (inFlight.get() > 0 && System.nanoTime() < deadline) {
+      LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+    }
+    if (inFlight.get() > 0) {
+      LOG.warn("{} requests still in flight after {} s, they are left out", inFlight.get(), DRAIN_TIMEOUT.toSeconds());
+    }
+  }
+
+  private static void waitUntil(long nanoTime) {
+    long remaining;
+    while ((remaining = nanoTime - System.nanoTime()) > 0) {
+      LockSupport.parkNanos(remaining);
+    }
+  }
+}
@@ -0,0 +1,31 @@
+package se.magnus.loadgenerator;
+
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+import java.util.concurrent.CountDownLatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An in-memory server speaking the MongoDB wire protocol, to run the reid-service against
+ * without installing MongoDB. Its oplog is enabled, so the change stream of the live reids
+ * works as well. Everything is lost when it stops, and its timings are not those of MongoDB,
+ * so it is only meant for measuring the rest of the stack.
+ */
+public class MongoStandIn {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MongoStandIn.class);
+
+  public static void main(String[] args) throws InterruptedException {
+    int port = args.length > 0 ? Integer.parseInt(args[0]) : 27017;
+
+    MemoryBackend backend = new MemoryBackend();
+    backend.enableOplog();
+    MongoServer server = new MongoServer(backend);
+    server.bind("localhost", port);
+    Runtime.getRuntime().addShutdownHook(new Thread(server::shutdownNow));
+
+    LOG.info("MongoDB stand-in listens on localhost:{}, stop it with Ctrl-C", port);
+    new CountDownLatch(1).await();
+  }
+}
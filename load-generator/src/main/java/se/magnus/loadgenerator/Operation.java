@@ -0,0 +1,37 @@
+package se.magnus.loadgenerator;
+
+import java.util.Arrays;
+
+/**
+ * The requests the load is made of, named as in the mix setting.
+ */
+enum Operation {
+  POST_DETECTION("postDetection", "POST /lpr/detection"),
+  GET_DETECTIONS("getDetections", "GET /lpr/detections/{sourceId}"),
+  GET_REIDS("getReids", "GET /reid/{sourceId}"),
+  GET_COMPOSITE("getComposite", "GET /detection-composite/{sourceId}");
+
+  private final String settingName;
+  private final String request;
+
+  Operation(String settingName, String request) {
+    this.settingName = settingName;
+    this.request = request;
+  }
+
+  String settingName() {
+    return settingName;
+  }
+
+  String request() {
+    return request;
+  }
+
+  static Operation byName(String settingName) {
+    return Arrays.stream(values())
+      .filter(operation -> operation.settingName.equals(settingName))
+      .findFirst()
+      .orElseThrow(() -> new IllegalArgumentException("Unknown operation: " + settingName
+        + ", expected one of " + Arrays.stream(values()).map(Operation::settingName).toList()));
+  }
+}
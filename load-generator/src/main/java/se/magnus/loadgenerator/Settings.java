@@ -0,0 +1,111 @@
+package se.magnus.loadgenerator;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The settings of a run, given on the command line as --name=value. Durations take the units
+ * ms, s and m, as in "--duration=2m".
+ */
+record Settings(
+  String host,
+  int lprPort,
+  int reidPort,
+  int compositePort,
+  double rate,
+  Duration warmup,
+  Duration duration,
+  int cameras,
+  double cameraSkew,
+  int plates,
+  double plateSkew,
+  Map<Operation, Integer> mix,
+  int seedPerCamera,
+  int maxConnections,
+  int maxInFlight,
+  long randomSeed,
+  Path out) {
+
+  static final String DEFAULT_MIX = "postDetection=50,getDetections=20,getReids=15,getComposite=15";
+
+  private static final Set<String> KNOWN = Set.of("host", "lprPort", "reidPort", "compositePort", "rate", "warmup",
+    "duration", "cameras", "cameraSkew", "plates", "plateSkew", "mix", "seedPerCamera", "maxConnections",
+    "maxInFlight", "randomSeed", "out");
+
+  static Settings parse(String... args) {
+    Map<String, String> values = new HashMap<>();
+    for (String arg : args) {
+      if (!arg.startsWith("--") || !arg.contains("=")) {
+        throw new IllegalArgumentException("Expected --name=value, got: " + arg);
+      }
+      int split = arg.indexOf('=');
+      values.put(arg.substring(2, split), arg.substring(split + 1));
+    }
+
+    Settings settings = new Settings(
+      values.getOrDefault("host", "localhost"),
+      Integer.parseInt(values.getOrDefault("lprPort", "7004")),
+      Integer.parseInt(values.getOrDefault("reidPort", "7007")),
+      Integer.parseInt(values.getOrDefault("compositePort", "7006")),
+      Double.parseDouble(values.getOrDefault("rate", "200")),
+      duration(values.getOrDefault("warmup", "10s")),
+      duration(values.getOrDefault("duration", "60s")),
+      Integer.parseInt(values.getOrDefault("cameras", "50")),
+      Double.parseDouble(values.getOrDefault("cameraSkew", "0.8")),
+      Integer.parseInt(values.getOrDefault("plates", "5000")),
+      Double.parseDouble(values.getOrDefault("plateSkew", "1.1")),
+      mix(values.getOrDefault("mix", DEFAULT_MIX)),
+      Integer.parseInt(values.getOrDefault("seedPerCamera", "20")),
+      Integer.parseInt(values.getOrDefault("maxConnections", "500")),
+      Integer.parseInt(values.getOrDefault("maxInFlight", "10000")),
+      Long.parseLong(values.getOrDefault("randomSeed", "42")),
+      Path.of(values.getOrDefault("out", "build/reports/load")));
+
+    values.keySet().removeAll(KNOWN);
+    if (!values.isEmpty()) {
+      throw new IllegalArgumentException("Unknown settings: " + values.keySet());
+    }
+    if (settings.rate <= 0 || settings.cameras <= 0 || settings.plates <= 0) {
+      throw new IllegalArgumentException("rate, cameras and plates must be positive");
+    }
+    return settings;
+  }
+
+  static Duration duration(String value) {
+    if (value.endsWith("ms")) {
+      return Duration.ofMillis(Long.parseLong(value.substring(0, value.length() - 2)));
+    } else if (value.endsWith("s")) {
+      return Duration.ofSeconds(Long.parseLong(value.substring(0, value.length() - 1)));
+    } else if (value.endsWith("m")) {
+      return Duration.ofMinutes(Long.parseLong(value.substring(0, value.length() - 1)));
+    }
+    throw new IllegalArgumentException("Expected a duration in ms, s or m, got: " + value);
+  }
+
+  /**
+   * The relative weights of the operations, as in "postDetection=50,getReids=10". Operations
+   * that are left out are not run.
+   */
+  static Map<Operation, Integer> mix(String value) {
+    Map<Operation, Integer> mix = new EnumMap<>(Operation.class);
+    for (String part : value.split(",")) {
+      String[] nameAndWeight = part.trim().split("=");
+      if (nameAndWeight.length != 2) {
+        throw new IllegalArgumentException("Expected operation=weight, got: " + part);
+      }
+      int weight = Integer.parseInt(nameAndWeight[1]);
+      if (weight < 0) {
+        throw new IllegalArgumentException("Negative weight for " + nameAndWeight[0]);
+      }
+      mix.put(Operation.byName(nameAndWeight[0]), weight);
+    }
+    if (mix.values().stream().mapToInt(Integer::intValue).sum() == 0) {
+      throw new IllegalArgumentException("The mix has no operation with a weight: " + value);
+    }
+    return mix;
+  }
+}
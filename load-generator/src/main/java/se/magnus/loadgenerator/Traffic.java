@@ -0,0 +1,125 @@
+package se.magnus.loadgenerator;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import se.magnus.api.core.lpr.BoundingBox;
+import se.magnus.api.core.lpr.LicencePlate;
+import se.magnus.api.core.reid.Reid;
+
+/**
+ * Generates what the cameras see. Cameras and plates are both drawn from a Zipf distribution:
+ * a few cameras at busy junctions see most of the traffic, and a few plates, the commuters, are
+ * seen over and over while most are seen only a couple of times. The plates are a mix of the
+ * common formats, so the plate normalization and search see realistic input.
+ *
+ * Not thread safe, only the dispatcher draws from it.
+ */
+class Traffic {
+
+  private static final String LETTERS = "ABCDEFGHJKLMNPRSTUVWXYZ";
+  private static final String[] LOCATIONS = {"North gate", "South gate", "Ring road", "Harbour", "Centre"};
+
+  private final SplittableRandom random;
+  private final List<String> cameras;
+  private final List<String> plates;
+  private final Zipf cameraDistribution;
+  private final Zipf plateDistribution;
+  private final Operation[] operations;
+  private final int[] cumulativeWeights;
+
+  Traffic(Settings settings) {
+    random = new SplittableRandom(settings.randomSeed());
+
+    cameras = new ArrayList<>(settings.cameras());
+    for (int i = 1; i <= settings.cameras(); i++) {
+      cameras.add(String.format("camera-%03d", i));
+    }
+    plates = new ArrayList<>(settings.plates());
+    for (int i = 0; i < settings.plates(); i++) {
+      plates.add(plate());
+    }
+    cameraDistribution = new Zipf(settings.cameras(), settings.cameraSkew());
+    plateDistribution = new Zipf(settings.plates(), settings.plateSkew());
+
+    Map<Operation, Integer> mix = settings.mix();
+    operations = mix.keySet().toArray(new Operation[0]);
+    cumulativeWeights = new int[operations.length];
+    int sum = 0;
+    for (int i = 0; i < operations.length; i++) {
+      sum += mix.get(operations[i]);
+      cumulativeWeights[i] = sum;
+    }
+  }
+
+  List<String> cameras() {
+    return cameras;
+  }
+
+  Operation nextOperation() {
+    int draw = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+    for (int i = 0; i < operations.length; i++) {
+      if (draw < cumulativeWeights[i]) {
+        return operations[i];
+      }
+    }
+    throw new IllegalStateException("No operation for draw " + draw);
+  }
+
+  String nextCamera() {
+    return cameras.get(cameraDistribution.next(random));
+  }
+
+  /**
+   * Exponentially distributed, so the arrivals at the given rate form a Poisson process.
+   */
+  long nextInterArrivalNanos(double ratePerSecond) {
+    return (long) (-Math.log(1 - random.nextDouble()) / ratePerSecond * 1_000_000_000L);
+  }
+
+  LicencePlate detection(String sourceId) {
+    Instant now = Instant.now();
+    int x = 80 + random.nextInt(400);
+    int y = 60 + random.nextInt(200);
+    int width = 160 + random.nextInt(120);
+    return new LicencePlate(sourceId, UUID.randomUUID().toString(),
+      new BoundingBox(x, y, width, width * 3 / 4),
+      new BoundingBox(x + width / 4, y + width / 2, width / 3, width / 10),
+      plates.get(plateDistribution.next(random)), now.toString(), now.toEpochMilli(), null);
+  }
+
+  Reid reid(String sourceId, long timestamp) {
+    return new Reid("reid-" + UUID.randomUUID(), sourceId, plates.get(plateDistribution.next(random)), timestamp,
+      LOCATIONS[random.nextInt(LOCATIONS.length)], "active", null);
+  }
+
+  private String plate() {
+    return switch (random.nextInt(3)) {
+      // ABC123
+      case 0 -> letters(3) + digits(3);
+      // AB12CDE
+      case 1 -> letters(2) + digits(2) + letters(3);
+      // 123ABC
+      default -> digits(3) + letters(3);
+    };
+  }
+
+  private String letters(int count) {
+    StringBuilder sb = new StringBuilder(count);
+    for (int i = 0; i < count; i++) {
+      sb.append(LETTERS.charAt(random.nextInt(LETTERS.length())));
+    }
+    return sb.toString();
+  }
+
+  private String digits(int count) {
+    StringBuilder sb = new StringBuilder(count);
+    for (int i = 0; i < count; i++) {
+      sb.append((char) ('0' + random.nextInt(10)));
+    }
+    return sb.toString();
+  }
+}
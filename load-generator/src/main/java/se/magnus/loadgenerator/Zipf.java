@@ -0,0 +1,32 @@
+package se.magnus.loadgenerator;
+
+import java.util.Arrays;
+import java.util.random.RandomGenerator;
+
+/**
+ * Draws ranks from 0 to n - 1 with a probability proportional to 1 / (rank + 1)^skew, so a few
+ * low ranks are drawn most of the time. A skew of 0 draws all ranks equally often.
+ */
+class Zipf {
+
+  private final double[] cumulative;
+
+  Zipf(int n, double skew) {
+    cumulative = new double[n];
+    double sum = 0;
+    for (int rank = 0; rank < n; rank++) {
+      sum += 1 / Math.pow(rank + 1, skew);
+      cumulative[rank] = sum;
+    }
+    for (int rank = 0; rank < n; rank++) {
+      cumulative[rank] /= sum;
+    }
+  }
+
+  int next(RandomGenerator random) {
+    int index = Arrays.binarySearch(cumulative, random.nextDouble());
+    // Not found gives -(insertion point) - 1, the first rank whose cumulative probability is larger
+    int rank = index >= 0 ? index : -index - 1;
+    return Math.min(rank, cumulative.length - 1);
+  }
+}
@@ -0,0 +1,96 @@
+package se.magnus.loadgenerator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import org.junit.jupiter.api.Test;
+import se.magnus.api.core.lpr.LicencePlate;
+
+class TrafficTests {
+
+  private static final int DRAWS = 100_000;
+
+  @Test
+  void zipfDrawsLowRanksMostOften() {
+    Zipf zipf = new Zipf(100, 1.1);
+    SplittableRandom random = new SplittableRandom(1);
+    int[] counts = new int[100];
+    for (int i = 0; i < DRAWS; i++) {
+      counts[zipf.next(random)]++;
+    }
+
+    assertTrue(counts[0] > counts[1] && counts[1] > counts[9] && counts[9] > counts[99]);
+    // The top 10 of 100 ranks take more than half of the draws
+    int top10 = 0;
+    for (int rank = 0; rank < 10; rank++) {
+      top10 += counts[rank];
+    }
+    assertTrue(top10 > DRAWS / 2, "top 10 drew " + top10);
+  }
+
+  @Test
+  void zipfWithoutSkewIsUniform() {
+    Zipf zipf = new Zipf(10, 0);
+    SplittableRandom random = new SplittableRandom(1);
+    int[] counts = new int[10];
+    for (int i = 0; i < DRAWS; i++) {
+      counts[zipf.next(random)]++;
+    }
+
+    for (int count : counts) {
+      assertEquals(DRAWS / 10, count, DRAWS / 100);
+    }
+  }
+
+  @Test
+  void followsTheMix() {
+    Traffic traffic = new Traffic(Settings.parse("--mix=postDetection=3,getReids=1"));
+    Map<Operation, Integer> counts = new HashMap<>();
+    for (int i = 0; i < DRAWS; i++) {
+      counts.merge(traffic.nextOperation(), 1, Integer::sum);
+    }
+
+    assertEquals(2, counts.size());
+    assertEquals(0.75, counts.get(Operation.POST_DETECTION) / (double) DRAWS, 0.01);
+  }
+
+  @Test
+  void arrivesAtTheRate() {
+    Traffic traffic = new Traffic(Settings.parse());
+    long total = 0;
+    for (int i = 0; i < DRAWS; i++) {
+      total += traffic.nextInterArrivalNanos(500);
+    }
+
+    assertEquals(2_000_000, total / DRAWS, 50_000);
+  }
+
+  @Test
+  void generatesRealisticDetections() {
+    Traffic traffic = new Traffic(Settings.parse("--cameras=5"));
+
+    assertEquals("camera-005", traffic.cameras().get(4));
+    for (int i = 0; i < 100; i++) {
+      String camera = traffic.nextCamera();
+      LicencePlate plate = traffic.detection(camera);
+      assertEquals(camera, plate.getSourceId());
+      assertTrue(plate.getPlateNum().matches("[A-Z]{3}[0-9]{3}|[A-Z]{2}[0-9]{2}[A-Z]{3}|[0-9]{3}[A-Z]{3}"), plate.getPlateNum());
+      assertNotNull(plate.getObjectUuid());
+      assertTrue(plate.getPlateBbox().getX() > plate.getVehicleBbox().getX());
+    }
+  }
+
+  @Test
+  void parsesSettings() {
+    Settings settings = Settings.parse("--rate=1000", "--duration=2m", "--warmup=500ms");
+
+    assertEquals(1000, settings.rate());
+    assertEquals(120, settings.duration().toSeconds());
+    assertEquals(500, settings.warmup().toMillis());
+    assertEquals(4, settings.mix().size());
+    assertThrows(IllegalArgumentException.class, () -> Settings.parse("--rat=1000"));
+    assertThrows(IllegalArgumentException.class, () -> Settings.parse("--mix=deleteAll=1"));
+  }
+}
@@ -1,22 +1,29 @@
 package se.magnus.microservices.composite.detection;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import io.swagger.v3.oas.models.ExternalDocumentation;
 import io.swagger.v3.oas.models.OpenAPI;
 import io.swagger.v3.oas.models.info.Contact;
 import io.swagger.v3.oas.models.info.Info;
 import io.swagger.v3.oas.models.info.License;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.web.client.RestTemplate;
+import reactor.core.scheduler.Scheduler;
+import se.magnus.util.metrics.SchedulerMetrics;
 
 @SpringBootApplication
 @ComponentScan("se.magnus")
 public class DetectionCompositeServiceApplication {
 
+  private static final Logger LOG = LoggerFactory.getLogger(DetectionCompositeServiceApplication.class);
+
     @Value("${api.common.version}") String apiVersion;
     @Value("${api.common.title}") String apiTitle;
     @Value("${api.common.description}") String apiDescription;
@@ -48,6 +55,19 @@ public class DetectionCompositeServiceApplication {
         .url(apiExternalDocUrl));
   }
 
+  /**
+   * Reports its busy threads and queued tasks as composite.publish.scheduler.*, see SchedulerMetrics.
+   */
+  @Bean
+  public Scheduler publishEventScheduler(
+    @Value("${app.threadPoolSize:10}") Integer threadPoolSize,
+    @Value("${app.taskQueueSize:100}") Integer taskQueueSize,
+    MeterRegistry registry) {
+
+    LOG.info("Creates a publishEventScheduler with thread pool size = {}", threadPoolSize);
+    return SchedulerMetrics.newTimedBoundedElastic(registry, "composite.publish", threadPoolSize, taskQueueSize, "publish-pool");
+  }
+
   @Bean
   RestTemplate restTemplate() {
     return new RestTemplate();
@@ -0,0 +1,222 @@
+package se.magnus.microservices.composite.detection.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.BufferOverflowStrategy;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+import reactor.core.publisher.Sinks.EmitResult;
+import se.magnus.api.composite.detection.Sighting;
+import se.magnus.api.composite.detection.Transition;
+import se.magnus.util.plate.PlateNormalizer;
+
+/**
+ * Correlates the LPR detections and reids of all cameras by plate, over a sliding time window.
+ *
+ * Sightings are kept in a hash index keyed by normalized plate number, each plate with its
+ * sightings in timestamp order. When a plate is seen, the sightings right before and after it are
+ * looked up in the index, and for each of them that is from another camera a transition between
+ * the two cameras is emitted to the live subscribers and kept for queries. A sighting that arrives
+ * between two others replaces the transition between them, a live subscriber that already got
+ * that transition keeps it.
+ *
+ * The window follows event time, it ends at the newest timestamp seen. Sightings are evicted
+ * oldest timestamp first from a heap, together with the transitions starting or ending at them, as
+ * soon as they are older than the window, whenever they arrived. Sightings that arrive older than
+ * the window are dropped. So memory is bounded by the sightings within the window, and never
+ * exceeds maxSightings; at that cap the oldest sighting is evicted first. The index is
+ * synchronized, an update is a hash lookup, a short list insert and a heap insert.
+ *
+ * Transitions are emitted to the live subscribers after the lock is released, so a slow
+ * subscriber does not hold up the index. The lpr and reid consumers run on different threads, and
+ * the one that finds the sink busy spins until the other's emit is done, as a sink must be
+ * signalled serially. Live transitions of different plates may therefore arrive in another order
+ * than they were found.
+ */
+@Component
+public class CorrelationEngine {
+
+  private static final Logger LOG = LoggerFactory.getLogger(CorrelationEngine.class);
+
+  private final long windowMillis;
+  private final int maxSightings;
+  private final int liveBufferSize;
+
+  private final Map<String, PlateSightings> plates = new HashMap<>();
+  private final PriorityQueue<Sighting> byTimestamp = new PriorityQueue<>(Comparator.comparingLong(Sighting::getTimestamp));
+  private long watermark = Long.MIN_VALUE;
+
+  // Direct best effort, the per subscriber buffers decide what to drop
+  private final Sinks.Many<Transition> live = Sinks.many().multicast().directBestEffort();
+
+  private final Counter transitions;
+  private final Counter late;
+  private final Counter liveDropped;
+
+  @Autowired
+  public CorrelationEngine(
+    @Value("${app.correlation.window:30m}") Duration window,
+    @Value("${app.correlation.maxSightings:1000000}") int maxSightings,
+    @Value("${app.correlation.liveBufferSize:256}") int liveBufferSize,
+    MeterRegistry registry
+  ) {
+    LOG.info("Creates a correlation engine with a window of {} and at most {} sightings", window, maxSightings);
+
+    this.windowMillis = window.toMillis();
+    this.maxSightings = maxSightings;
+    this.liveBufferSize = liveBufferSize;
+
+    this.transitions = Counter.builder("correlation.transitions")
+      .description("Camera to camera transitions found").register(registry);
+    this.late = Counter.builder("correlation.late")
+      .description("Sightings dropped for arriving older than the window").register(registry);
+    this.liveDropped = Counter.builder("correlation.live.dropped")
+      .description("Transitions dropped for live subscribers that did not keep up").register(registry);
+    Gauge.builder("correlation.sightings", this, CorrelationEngine::size)
+      .description("Sightings within the window").register(registry);
+    Gauge.builder("correlation.plates", this, CorrelationEngine::plateCount)
+      .description("Distinct plates within the window").register(registry);
+  }
+
+  /**
+   * Adds a sighting to the index.
+   *
+   * @return the transitions into and out of it, empty if there are none
+   */
+  public List<Transition> add(Sighting sighting) {
+    List<Transition> found;
+    synchronized (this) {
+      found = index(sighting);
+    }
+    for (Transition transition : found) {
+      emit(transition);
+    }
+    transitions.increment(found.size());
+    return found;
+  }
+
+  /**
+   * Find the sightings of a plate within the window, oldest first, tolerating OCR confusions.
+   */
+  public synchronized List<Sighting> findSightings(String plateNum) {
+    PlateSightings entry = plates.get(PlateNormalizer.normalize(plateNum));
+    return entry == null ? List.of() : new ArrayList<>(entry.sightings);
+  }
+
+  /**
+   * Find the transitions of a plate within the window, in the order they were found.
+   */
+  public synchronized List<Transition> findTransitions(String plateNum) {
+    PlateSightings entry = plates.get(PlateNormalizer.normalize(plateNum));
+    return entry == null ? List.of() : new ArrayList<>(entry.transitions);
+  }
+
+  /**
+   * Transitions as they are found. A subscriber that falls behind loses its oldest undelivered transitions.
+   */
+  public Flux<Transition> liveTransitions() {
+    return live.asFlux()
+      .onBackpressureBuffer(liveBufferSize, transition -> liveDropped.increment(), BufferOverflowStrategy.DROP_OLDEST);
+  }
+
+  public synchronized int size() {
+    return byTimestamp.size();
+  }
+
+  private synchronized int plateCount() {
+    return plates.size();
+  }
+
+  private List<Transition> index(Sighting sighting) {
+    if (sighting.getPlateNum() == null || sighting.getSourceId() == null) {
+      return List.of();
+    }
+    String plate = PlateNormalizer.normalize(sighting.getPlateNum());
+    if (plate.isEmpty()) {
+      return List.of();
+    }
+    sighting.setPlate(plate);
+
+    watermark = Math.max(watermark, sighting.getTimestamp());
+    long windowStart = watermark - windowMillis;
+    if (sighting.getTimestamp() < windowStart) {
+      late.increment();
+      return List.of();
+    }
+    while (!byTimestamp.isEmpty() && (byTimestamp.peek().getTimestamp() < windowStart || byTimestamp.size() >= maxSightings)) {
+      evict(byTimestamp.poll());
+    }
+
+    PlateSightings entry = plates.computeIfAbsent(plate, key -> new PlateSightings());
+    List<Sighting> sightings = entry.sightings;
+    int index = sightings.size();
+    while (index > 0 && sightings.get(index - 1).getTimestamp() > sighting.getTimestamp()) {
+      index--;
+    }
+    for (int i = index - 1; i >= 0 && sightings.get(i).getTimestamp() == sighting.getTimestamp(); i--) {
+      if (sightings.get(i).equals(sighting)) {
+        return List.of(); // Redelivered
+      }
+    }
+    Sighting previous = index > 0 ? sightings.get(index - 1) : null;
+    Sighting next = index < sightings.size() ? sightings.get(index) : null;
+    sightings.add(index, sighting);
+    byTimestamp.add(sighting);
+
+    // Inserted in the middle, previous and next are no longer neighbours
+    if (previous != null && next != null) {
+      entry.transitions.removeIf(t -> t.getFrom() == previous && t.getTo() == next);
+    }
+    List<Transition> found = new ArrayList<>(2);
+    if (previous != null && !previous.getSourceId().equals(sighting.getSourceId())) {
+      found.add(transition(entry, previous, sighting));
+    }
+    if (next != null && !next.getSourceId().equals(sighting.getSourceId())) {
+      found.add(transition(entry, sighting, next));
+    }
+    return found;
+  }
+
+  private Transition transition(PlateSightings entry, Sighting from, Sighting to) {
+    Transition transition = new Transition(to.getPlate(), from, to, to.getTimestamp() - from.getTimestamp());
+    entry.transitions.add(transition);
+    LOG.debug("Plate {} went from {} to {} in {} ms", to.getPlate(), from.getSourceId(), to.getSourceId(), transition.getElapsed());
+    return transition;
+  }
+
+  /**
+   * Emits outside the lock, spinning only while the other consumer thread is emitting.
+   */
+  private void emit(Transition transition) {
+    while (live.tryEmitNext(transition) == EmitResult.FAIL_NON_SERIALIZED) {
+      Thread.onSpinWait();
+    }
+  }
+
+  private void evict(Sighting sighting) {
+    PlateSightings entry = plates.get(sighting.getPlate());
+    entry.sightings.removeIf(s -> s == sighting);
+    entry.transitions.removeIf(t -> t.getFrom() == sighting || t.getTo() == sighting);
+    if (entry.sightings.isEmpty()) {
+      plates.remove(sighting.getPlate());
+    }
+  }
+
+  private static class PlateSightings {
+    private final List<Sighting> sightings = new ArrayList<>(4);
+    private final List<Transition> transitions = new ArrayList<>(2);
+  }
+}
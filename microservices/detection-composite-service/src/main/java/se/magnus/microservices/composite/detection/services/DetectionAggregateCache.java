@@ -0,0 +1,176 @@
+package se.magnus.microservices.composite.detection.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import se.magnus.api.composite.detection.DetectionAggregate;
+
+/**
+ * Short lived cache of detection aggregates per sourceId.
+ *
+ * An aggregate is served as is for the ttl. For another staleWhileRevalidate it is still
+ * served, while a refresh runs in the background. Concurrent requests for a sourceId that is
+ * not in the cache share one downstream fetch, as do concurrent background refreshes.
+ * Failed fetches and degraded aggregates are not cached, so the next request retries the
+ * failing service.
+ */
+@Component
+public class DetectionAggregateCache {
+
+  private static final Logger LOG = LoggerFactory.getLogger(DetectionAggregateCache.class);
+
+  private final boolean enabled;
+  private final long ttlMillis;
+  private final long staleMillis;
+  private final int maxEntries;
+  private final LongSupplier clock;
+
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+  private final Map<String, Mono<DetectionAggregate>> inFlight = new ConcurrentHashMap<>();
+
+  private final Counter hits;
+  private final Counter staleHits;
+  private final Counter misses;
+  private final Counter coalesced;
+
+  @Autowired
+  public DetectionAggregateCache(
+    @Value("${app.aggregate-cache.enabled:true}") boolean enabled,
+    @Value("${app.aggregate-cache.ttl:1s}") Duration ttl,
+    @Value("${app.aggregate-cache.staleWhileRevalidate:5s}") Duration staleWhileRevalidate,
+    @Value("${app.aggregate-cache.maxEntries:10000}") int maxEntries,
+    MeterRegistry registry
+  ) {
+    this(enabled, ttl, staleWhileRevalidate, maxEntries, registry, System::currentTimeMillis);
+  }
+
+  public DetectionAggregateCache(boolean enabled, Duration ttl, Duration staleWhileRevalidate, int maxEntries,
+    MeterRegistry registry, LongSupplier clock) {
+
+    LOG.info("Creates an aggregate cache with ttl = {}, stale-while-revalidate = {} and max entries = {}, enabled = {}",
+      ttl, staleWhileRevalidate, maxEntries, enabled);
+
+    this.enabled = enabled;
+    this.ttlMillis = ttl.toMillis();
+    this.staleMillis = staleWhileRevalidate.toMillis();
+    this.maxEntries = maxEntries;
+    this.clock = clock;
+
+    this.hits = Counter.builder("composite.cache.requests").tag("result", "hit")
+      .description("Aggregate requests answered with a fresh cached aggregate").register(registry);
+    this.staleHits = Counter.builder("composite.cache.requests").tag("result", "stale")
+      .description("Aggregate requests answered with a stale cached aggregate while it is refreshed").register(registry);
+    this.misses = Counter.builder("composite.cache.requests").tag("result", "miss")
+      .description("Aggregate requests that had to wait for a downstream fetch").register(registry);
+    this.coalesced = Counter.builder("composite.cache.coalesced")
+      .description("Downstream fetches saved by joining a fetch already in flight").register(registry);
+    Gauge.builder("composite.cache.hit.ratio", this, DetectionAggregateCache::hitRatio)
+      .description("Share of aggregate requests answered from the cache").register(registry);
+    Gauge.builder("composite.cache.entries", entries, Map::size)
+      .description("Aggregates held in the cache").register(registry);
+  }
+
+  /**
+   * Returns the cached aggregate for the sourceId, or the result of the loader if there is no
+   * usable one.
+   */
+  public Mono<DetectionAggregate> get(String sourceId, Function<String, Mono<DetectionAggregate>> loader) {
+    if (!enabled) {
+      return loader.apply(sourceId);
+    }
+
+    return Mono.defer(() -> {
+      long now = clock.getAsLong();
+      Entry entry = entries.get(sourceId);
+
+      if (entry != null && now < entry.freshUntil) {
+        hits.increment();
+        return Mono.just(entry.value);
+      }
+
+      if (entry != null && now < entry.staleUntil) {
+        staleHits.increment();
+        fetch(sourceId, loader).subscribe(
+          value -> { },
+          ex -> LOG.debug("Background refresh of sourceId: {} failed: {}", sourceId, ex.getMessage()));
+        return Mono.just(entry.value);
+      }
+
+      misses.increment();
+      return fetch(sourceId, loader);
+    });
+  }
+
+  public void evict(String sourceId) {
+    entries.remove(sourceId);
+  }
+
+  private Mono<DetectionAggregate> fetch(String sourceId, Function<String, Mono<DetectionAggregate>> loader) {
+    Mono<DetectionAggregate> existing = inFlight.get(sourceId);
+    if (existing != null) {
+      coalesced.increment();
+      return existing;
+    }
+
+    // The in flight entry is only removed by the fetch that put it there, when it terminates,
+    // so removing by key can not drop a later fetch
+    Mono<DetectionAggregate> fetch = Mono.defer(() -> loader.apply(sourceId))
+      .doOnNext(value -> put(sourceId, value))
+      .doFinally(signal -> inFlight.remove(sourceId))
+      .cache();
+
+    existing = inFlight.putIfAbsent(sourceId, fetch);
+    if (existing != null) {
+      coalesced.increment();
+      return existing;
+    }
+    return fetch;
+  }
+
+  private void put(String sourceId, DetectionAggregate value) {
+    if (value.getDegraded() != null && !value.getDegraded().isEmpty()) {
+      return;
+    }
+
+    long now = clock.getAsLong();
+    if (entries.size() >= maxEntries && !entries.containsKey(sourceId)) {
+      entries.values().removeIf(entry -> entry.staleUntil <= now);
+      if (entries.size() >= maxEntries) {
+        entries.entrySet().stream()
+          .min(Comparator.comparingLong(e -> e.getValue().staleUntil))
+          .ifPresent(e -> entries.remove(e.getKey(), e.getValue()));
+      }
+    }
+    entries.put(sourceId, new Entry(value, now + ttlMillis, now + ttlMillis + staleMillis));
+  }
+
+  private double hitRatio() {
+    double served = hits.count() + staleHits.count();
+    double total = served + misses.count();
+    return total == 0 ? 0 : served / total;
+  }
+
+  private static class Entry {
+    private final DetectionAggregate value;
+    private final long freshUntil;
+    private final long staleUntil;
+
+    Entry(DetectionAggregate value, long freshUntil, long staleUntil) {
+      this.value = value;
+      this.freshUntil = freshUntil;
+      this.staleUntil = staleUntil;
+    }
+  }
+}
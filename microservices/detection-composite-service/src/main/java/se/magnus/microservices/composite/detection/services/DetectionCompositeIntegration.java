@@ -1,38 +1,37 @@
 package se.magnus.microservices.composite.detection.services;
 
 import static java.util.logging.Level.FINE;
-import static reactor.core.publisher.Flux.empty;
 import static se.magnus.api.event.Event.Type.CREATE;
-import static se.magnus.api.event.Event.Type.DELETE;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import java.io.IOException;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.boot.actuate.health.Health;
-import org.springframework.cloud.stream.function.StreamBridge;
-import org.springframework.http.HttpStatus;
-import org.springframework.messaging.Message;
-import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.stereotype.Component;
 import org.springframework.web.reactive.function.client.WebClient;
-import org.springframework.web.reactive.function.client.WebClientResponseException;
+import org.springframework.web.reactive.function.client.WebClientException;
+import org.springframework.web.util.UriComponentsBuilder;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-import reactor.core.scheduler.Scheduler;
-import se.magnus.api.core.product.Product;
-import se.magnus.api.core.product.ProductService;
-import se.magnus.api.core.recommendation.Recommendation;
-import se.magnus.api.core.recommendation.RecommendationService;
-import se.magnus.api.core.review.Review;
-import se.magnus.api.core.review.ReviewService;
+import se.magnus.api.core.lpr.Detections;
+import se.magnus.api.core.lpr.DetectionsResult;
+import se.magnus.api.core.lpr.LicencePlate;
+import se.magnus.api.core.lpr.LprService;
+import se.magnus.api.core.lpr.TrafficStats;
+import se.magnus.api.core.reid.Reid;
+import se.magnus.api.core.reid.ReidBatchResult;
+import se.magnus.api.core.reid.ReidService;
 import se.magnus.api.event.Event;
 import se.magnus.api.exceptions.InvalidInputException;
 import se.magnus.api.exceptions.NotFoundException;
-import se.magnus.util.http.HttpErrorInfo;
+import se.magnus.util.metrics.CallTimer;
 
 
 @Component
@@ -40,77 +39,234 @@ public class DetectionCompositeIntegration implements LprService, ReidService {
 
   private static final Logger LOG = LoggerFactory.getLogger(DetectionCompositeIntegration.class);
 
+  /**
+   * Key of an AtomicReference of String in the subscriber context of getLprs, which is set to
+   * the continuation token of the page, or to null on the last page.
+   */
+  public static final String CONTINUATION_TOKEN = "lpr.continuationToken";
+
+  private static final String CONTINUATION_TOKEN_HEADER = "X-Continuation-Token";
+
   private final WebClient webClient;
   ObjectMapper mapper;
 
+  private final String lprServiceUrl;
   private final String lprDetectionsUrl;
   private final String lprDetectionUrl;
   private final String reidServiceUrl;
+  private final int lprStreamPageSize;
 
-  private final StreamBridge streamBridge;
-
-  private final Scheduler publishEventScheduler;
+  private final EventPublisher eventPublisher;
+  private final CallTimer lprCalls;
+  private final CallTimer reidCalls;
 
+  /**
+   * The calls are timed as composite.downstream.calls, tagged with the service and operation.
+   * The http.client.requests metrics of the WebClient are tagged with the full URL, including
+   * the sourceId, so they are only useful until the number of URIs hits the cap on the tag.
+   * The live streams are not timed, a subscription lasts as long as the client listens.
+   * The calls are also reported as composite.lpr.* and composite.reid.* server timing stages,
+   * next to the stages the services report themselves, so the gap between the two is the time
+   * spent on the network and in the codecs.
+   */
   @Autowired
   public DetectionCompositeIntegration(
       WebClient.Builder webClient,
       ObjectMapper objectMapper,
-      StreamBridge streamBridge,
-      @Qualifier("publishEventScheduler") Scheduler publishEventScheduler,
+      EventPublisher eventPublisher,
+      MeterRegistry registry,
       @Value("${app.lpr-service.host}") String lprServiceHost,
       @Value("${app.lpr-service.port}") int lprServicePort,
+      @Value("${app.lpr-service.streamPageSize:500}") int lprStreamPageSize,
       @Value("${app.reid-service.host}") String reidServiceHost,
       @Value("${app.reid-service.port}") int reidServicePort
     ) {
 
     this.webClient = webClient.build();
-    this.streamBridge = streamBridge;
-    this.publishEventScheduler = publishEventScheduler;
+    this.eventPublisher = eventPublisher;
     this.mapper = objectMapper;
+    this.lprStreamPageSize = lprStreamPageSize;
+    this.lprCalls = downstreamCalls(registry, "lpr");
+    this.reidCalls = downstreamCalls(registry, "reid");
 
-    lprDetectionsUrl = "http://" + lprServiceHost + ":" + lprServicePort + "/lpr/detections/";
-    lprDetectionUrl = "http://" + lprServiceHost + ":" + lprServicePort + "/lpr/detection";
+    lprServiceUrl = "http://" + lprServiceHost + ":" + lprServicePort;
+    lprDetectionsUrl = lprServiceUrl + "/lpr/detections/";
+    lprDetectionUrl = lprServiceUrl + "/lpr/detection";
     reidServiceUrl = "http://" + reidServiceHost + ":" + reidServicePort + "/reid/";
   }
 
   @Override
-  public Flux<LicencePlate> getLprs(String sourceId) {
-    String url = lprDetectionsUrl + sourceId;
+  public Flux<LicencePlate> getLprs(String sourceId, Long from, Long to, Integer limit, String after) {
+    String url = UriComponentsBuilder.fromHttpUrl(lprDetectionsUrl + sourceId)
+      .queryParamIfPresent("from", Optional.ofNullable(from))
+      .queryParamIfPresent("to", Optional.ofNullable(to))
+      .queryParamIfPresent("limit", Optional.ofNullable(limit))
+      .queryParamIfPresent("after", Optional.ofNullable(after))
+      .toUriString();
+    LOG.debug("Will call LPR getLprs API on URL: {}", url);
+
+    // Timed until the response headers, the body of the page is read as it is consumed
+    return Flux.deferContextual(ctx -> lprCalls.time("getLprs", webClient.get().uri(url)
+      .retrieve().toEntityFlux(LicencePlate.class))
+      .flatMapMany(entity -> {
+        ctx.<AtomicReference<String>>getOrEmpty(CONTINUATION_TOKEN)
+          .ifPresent(token -> token.set(entity.getHeaders().getFirst(CONTINUATION_TOKEN_HEADER)));
+        return entity.getBody();
+      }))
+      .log(LOG.getName(), FINE)
+      .onErrorMap(WebClientException.class, ex -> handleWebClientException(ex));
+  }
+
+  /**
+   * All LPR detections of a source, fetched page by page following the continuation tokens of
+   * lpr-service. The next page is requested once the previous one is consumed, so memory use
+   * is bounded by the page size.
+   */
+  public Flux<LicencePlate> getAllLprs(String sourceId) {
+    return getLprPages(sourceId, null);
+  }
+
+  private Flux<LicencePlate> getLprPages(String sourceId, String after) {
+    String url = UriComponentsBuilder.fromHttpUrl(lprDetectionsUrl + sourceId)
+      .queryParam("limit", lprStreamPageSize)
+      .queryParamIfPresent("after", Optional.ofNullable(after))
+      .toUriString();
     LOG.debug("Will call LPR getLprs API on URL: {}", url);
-    
+
+    // Timed until the response headers, the body of the page is read as it is consumed
+    return lprCalls.time("getLprsPage", webClient.get().uri(url)
+      .retrieve().toEntityFlux(LicencePlate.class)
+      .onErrorMap(WebClientException.class, ex -> handleWebClientException(ex)))
+      .flatMapMany(entity -> {
+        String next = entity.getHeaders().getFirst(CONTINUATION_TOKEN_HEADER);
+        Flux<LicencePlate> page = entity.getBody();
+        return next == null ? page : page.concatWith(Flux.defer(() -> getLprPages(sourceId, next)));
+      });
+  }
+
+  @Override
+  public Flux<LicencePlate> getLiveLprs(String sourceId) {
+    String url = lprDetectionsUrl + sourceId + "/live";
+    LOG.debug("Will call LPR getLiveLprs API on URL: {}", url);
+
     return webClient.get().uri(url)
+      .accept(MediaType.TEXT_EVENT_STREAM)
       .retrieve().bodyToFlux(LicencePlate.class)
-      .log(LOG.getName(), Level.FINE)
       .onErrorMap(WebClientException.class, ex -> handleWebClientException(ex));
   }
 
+  @Override
+  public Flux<LicencePlate> searchLprs(String plate, Integer maxDistance, Integer limit) {
+    String url = UriComponentsBuilder.fromHttpUrl(lprServiceUrl + "/lpr/search")
+      .queryParam("plate", plate)
+      .queryParamIfPresent("maxDistance", Optional.ofNullable(maxDistance))
+      .queryParamIfPresent("limit", Optional.ofNullable(limit))
+      .toUriString();
+    LOG.debug("Will call LPR searchLprs API on URL: {}", url);
+
+    return lprCalls.time("searchLprs", webClient.get().uri(url)
+      .retrieve().bodyToFlux(LicencePlate.class)
+      .log(LOG.getName(), FINE)
+      .onErrorMap(WebClientException.class, ex -> handleWebClientException(ex)));
+  }
+
+  @Override
+  public Flux<TrafficStats> getStats(String sourceId, Long from, Long to, String granularity) {
+    String url = UriComponentsBuilder.fromHttpUrl(lprServiceUrl + "/lpr/stats/" + sourceId)
+      .queryParamIfPresent("from", Optional.ofNullable(from))
+      .queryParamIfPresent("to", Optional.ofNullable(to))
+      .queryParamIfPresent("granularity", Optional.ofNullable(granularity))
+      .toUriString();
+    LOG.debug("Will call LPR getStats API on URL: {}", url);
+
+    return lprCalls.time("getStats", webClient.get().uri(url)
+      .retrieve().bodyToFlux(TrafficStats.class)
+      .log(LOG.getName(), FINE)
+      .onErrorMap(WebClientException.class, ex -> handleWebClientException(ex)));
+  }
+
   @Override
   public Mono<LicencePlate> createLpr(LicencePlate body) {
-    LOG.debug("Will call LPR createLpr API on URL: {}", lprDetectionUrl);
-    
-    return Mono.fromCallable(() -> {
-      sendMessage("lpr-out-0", new Event(CREATE, body.getByObjectUuid(), body));
-      return body;
-    }).subscribeOn(publishEventScheduler);
+    LOG.debug("Will publish a create event for LPR detection: {}", body.getObjectUuid());
+
+    return eventPublisher.publish("lpr-out-0", body.getSourceId(), new Event(CREATE, body.getObjectUuid(), body))
+      .thenReturn(body);
   }
 
   @Override
+  public Mono<DetectionsResult> createLprs(Detections body) {
+    String url = lprServiceUrl + "/lpr/detections";
+    LOG.debug("Will call LPR createLprs API on URL: {}", url);
+
+    return lprCalls.time("createLprs", webClient.post().uri(url)
+      .bodyValue(body)
+      .retrieve().bodyToMono(DetectionsResult.class)
+      .log(LOG.getName(), FINE)
+      .onErrorMap(WebClientException.class, ex -> handleWebClientException(ex)));
+  }
+
   public Flux<Reid> getReids(String sourceId) {
-    String url = reidServiceUrl + sourceId;
+    return getReids(sourceId, null, null, null);
+  }
+
+  @Override
+  public Flux<Reid> getReids(String sourceId, Long from, Long to, Integer limit) {
+    String url = UriComponentsBuilder.fromHttpUrl(reidServiceUrl + sourceId)
+      .queryParamIfPresent("from", Optional.ofNullable(from))
+      .queryParamIfPresent("to", Optional.ofNullable(to))
+      .queryParamIfPresent("limit", Optional.ofNullable(limit))
+      .toUriString();
     LOG.debug("Will call Reid getReids API on URL: {}", url);
-    
-    return webClient.get().uri(url)
+
+    return reidCalls.time("getReids", webClient.get().uri(url)
       .retrieve().bodyToFlux(Reid.class)
-      .log(LOG.getName(), Level.FINE)
-      .onErrorMap(WebClientException.class, ex -> handleWebClientException(ex));
+      .log(LOG.getName(), FINE)
+      .onErrorMap(WebClientException.class, ex -> handleWebClientException(ex)));
   }
 
   @Override
   public Mono<Reid> createReid(Reid body) {
-    return Mono.fromCallable(() -> {
-      sendMessage("reid-out-0", new Event(CREATE, body.getByObjectUuid(), body));
-      return body;
-    }).subscribeOn(publishEventScheduler);
+    LOG.debug("Will publish a create event for reid: {}", body.getReid());
+
+    return eventPublisher.publish("reid-out-0", body.getSourceId(), new Event(CREATE, body.getReid(), body))
+      .thenReturn(body);
+  }
+
+  @Override
+  public Flux<ServerSentEvent<Reid>> getLiveReids(String sourceId, String lastEventId) {
+    String url = reidServiceUrl + sourceId + "/live";
+    LOG.debug("Will call Reid getLiveReids API on URL: {}", url);
+
+    return webClient.get().uri(url)
+      .accept(MediaType.TEXT_EVENT_STREAM)
+      .headers(headers -> {
+        if (lastEventId != null) {
+          headers.set("Last-Event-ID", lastEventId);
+        }
+      })
+      .retrieve().bodyToFlux(new ParameterizedTypeReference<ServerSentEvent<Reid>>() { })
+      .onErrorMap(WebClientException.class, ex -> handleWebClientException(ex));
+  }
+
+  /**
+   * Streams the reids to reid-service as newline delimited JSON, without collecting them.
+   */
+  @Override
+  public Mono<ReidBatchResult> createReidBatch(Flux<Reid> body) {
+    String url = reidServiceUrl + "batch";
+    LOG.debug("Will call Reid createReidBatch API on URL: {}", url);
+
+    return reidCalls.time("createReidBatch", webClient.post().uri(url)
+      .contentType(MediaType.APPLICATION_NDJSON)
+      .body(body, Reid.class)
+      .retrieve().bodyToMono(ReidBatchResult.class)
+      .log(LOG.getName(), FINE)
+      .onErrorMap(WebClientException.class, ex -> handleWebClientException(ex)));
+  }
+
+  private static CallTimer downstreamCalls(MeterRegistry registry, String service) {
+    return new CallTimer(registry, "composite.downstream.calls", "Calls from the composite to the core services",
+      "operation", "service", service).reportStages("composite." + service);
   }
 
   private RuntimeException handleWebClientException(WebClientException ex) {
@@ -124,4 +280,3 @@ public class DetectionCompositeIntegration implements LprService, ReidService {
     return ex;
   }
 }
-
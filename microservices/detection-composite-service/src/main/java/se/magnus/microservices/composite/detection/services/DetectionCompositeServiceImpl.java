@@ -1,56 +1,191 @@
 package se.magnus.microservices.composite.detection.services;
 
+import static org.springframework.http.HttpStatus.GATEWAY_TIMEOUT;
+import static se.magnus.microservices.composite.detection.services.DetectionCompositeIntegration.CONTINUATION_TOKEN;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
 import java.util.List;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
 import se.magnus.api.composite.detection.DetectionAggregate;
 import se.magnus.api.composite.detection.DetectionCompositeService;
+import se.magnus.api.composite.detection.DetectionRecord;
+import se.magnus.api.composite.detection.Sighting;
+import se.magnus.api.composite.detection.Transition;
 import se.magnus.api.core.lpr.LicencePlate;
 import se.magnus.api.core.reid.Reid;
+import se.magnus.api.exceptions.InvalidInputException;
 import se.magnus.api.exceptions.NotFoundException;
 import se.magnus.util.http.ServiceUtil;
+import se.magnus.util.metrics.CallTimer;
+import se.magnus.util.plate.PlateNormalizer;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 @RestController
 public class DetectionCompositeServiceImpl implements DetectionCompositeService {
 
   private static final Logger LOG = LoggerFactory.getLogger(DetectionCompositeServiceImpl.class);
 
+  private static final String REID = "reid";
+
   private final ServiceUtil serviceUtil;
   private final DetectionCompositeIntegration integration;
+  private final DetectionAggregateCache cache;
+  private final CorrelationEngine correlationEngine;
+  private final CallTimer serviceCalls;
+  private final Duration lprTimeout;
+  private final Duration reidTimeout;
+  private final Duration joinMaxTimeDifference;
 
   @Autowired
   public DetectionCompositeServiceImpl(
-    ServiceUtil serviceUtil, 
-    DetectionCompositeIntegration integration) {
-    
+    ServiceUtil serviceUtil,
+    DetectionCompositeIntegration integration,
+    DetectionAggregateCache cache,
+    CorrelationEngine correlationEngine,
+    MeterRegistry registry,
+    @Value("${app.lpr-service.timeout:2s}") Duration lprTimeout,
+    @Value("${app.reid-service.timeout:500ms}") Duration reidTimeout,
+    @Value("${app.join.maxTimeDifference:10s}") Duration joinMaxTimeDifference) {
+
     this.serviceUtil = serviceUtil;
     this.integration = integration;
+    this.cache = cache;
+    this.correlationEngine = correlationEngine;
+    this.serviceCalls = new CallTimer(registry, "composite.service.calls", "Calls of the detection composite service methods", "method");
+    this.lprTimeout = lprTimeout;
+    this.reidTimeout = reidTimeout;
+    this.joinMaxTimeDifference = joinMaxTimeDifference;
+  }
+
+  /**
+   * Only the first page of the default size is cached, the one that is polled for a source.
+   */
+  @Override
+  public Mono<DetectionAggregate> getDetectionAggregate(String sourceId, Long from, Long to, Integer limit, String after) {
+    LOG.debug("getDetectionAggregate: getting detection aggregate for sourceId={}, from={}, to={}, limit={}", sourceId, from, to, limit);
+
+    boolean firstPage = from == null && to == null && limit == null && after == null;
+    return serviceCalls.time("getDetectionAggregate", firstPage
+      ? cache.get(sourceId, id -> createDetectionAggregate(id, null, null, null, null))
+      : createDetectionAggregate(sourceId, from, to, limit, after));
+  }
+
+  /**
+   * Merges the detections and reids of a source as they arrive, without collecting them.
+   * The timeouts bound the wait for the first record of each service, not the gaps between
+   * records, as those also depend on how fast the client reads. Request demand is passed on to
+   * both downstream streams, so a slow reader slows down the reading from lpr-service and
+   * reid-service.
+   * Only the detections are paged through, the reid API returns everything in one response.
+   * A join keeps the records of each side that are not matched yet until the other side
+   * completes, see DetectionJoin.
+   */
+  @Override
+  public Flux<DetectionRecord> getDetectionStream(String sourceId, boolean join) {
+    LOG.debug("getDetectionStream: streaming detections for sourceId={}, join={}", sourceId, join);
+
+    Flux<DetectionRecord> detections = integration.getAllLprs(sourceId)
+      .timeout(Mono.delay(lprTimeout), plate -> Mono.never())
+      .onErrorMap(TimeoutException.class, ex -> new ResponseStatusException(GATEWAY_TIMEOUT,
+        "LPR service did not answer within " + lprTimeout.toMillis() + " ms"))
+      .map(plate -> DetectionRecord.detection(sourceId, plate));
+
+    Flux<DetectionRecord> reids = integration.getReids(sourceId)
+      .timeout(Mono.delay(reidTimeout), reid -> Mono.never())
+      .map(reid -> DetectionRecord.reid(sourceId, reid))
+      .onErrorResume(ex -> {
+        LOG.warn("Failed to stream reid data for sourceId: {}, continuing without reid data: {}", sourceId, ex.toString());
+        return Mono.just(DetectionRecord.degraded(sourceId, REID));
+      });
+
+    return serviceCalls.time("getDetectionStream", join
+      ? DetectionJoin.join(sourceId, detections, reids, joinMaxTimeDifference)
+      : Flux.merge(detections, reids));
   }
 
   @Override
-  public Mono<DetectionAggregate> getDetectionAggregate(String sourceId) {
-    LOG.debug("getDetectionAggregate: getting detection aggregate for sourceId={}", sourceId);
+  public Flux<Sighting> getSightings(String plate) {
+    LOG.debug("getSightings: getting the sightings of plate={}", plate);
+    validatePlate(plate);
+
+    return serviceCalls.time("getSightings", Flux.defer(() -> Flux.fromIterable(correlationEngine.findSightings(plate))));
+  }
 
-    // Get detections from LPR service
-    Flux<LicencePlate> detections = integration.getLprs(sourceId);
+  @Override
+  public Flux<Transition> getTransitions(String plate) {
+    LOG.debug("getTransitions: getting the transitions of plate={}", plate);
+    validatePlate(plate);
 
-    if (detections == null || detections.isEmpty()) {
-      throw new NotFoundException("No detections found for sourceId: " + sourceId);
+    return serviceCalls.time("getTransitions", Flux.defer(() -> Flux.fromIterable(correlationEngine.findTransitions(plate))));
+  }
+
+  @Override
+  public Flux<Transition> getLiveTransitions(String sourceId) {
+    LOG.debug("getLiveTransitions: new live subscriber for sourceId={}", sourceId);
+
+    Flux<Transition> transitions = correlationEngine.liveTransitions();
+    return sourceId == null ? transitions : transitions.filter(transition ->
+      sourceId.equals(transition.getFrom().getSourceId()) || sourceId.equals(transition.getTo().getSourceId()));
+  }
+
+  private void validatePlate(String plate) {
+    if (plate == null || PlateNormalizer.normalize(plate).isEmpty()) {
+      throw new InvalidInputException("Invalid plate: " + plate);
     }
-    
-    // Try to get reid data - optional
-    Flux<Reid> reids = null;
-    try {
-      reids = integration.getReids(sourceId);
-    } catch (Exception ex) {
-      LOG.warn("Failed to get reid data for sourceId: {}, continuing without reid data", sourceId);
+  }
+
+  /**
+   * Calls lpr-service and reid-service in parallel, reading one page of the detections, so the
+   * aggregate stays bounded by the page size of lpr-service however many detections a source
+   * has. The continuation token of the page is passed on in the aggregate. The detections are
+   * required, so a failure or timeout of lpr-service fails the request. Reid data is optional,
+   * a failure or timeout of reid-service yields an aggregate without reids, marked as degraded.
+   * Timed apart from getDetectionAggregate, which is mostly answered from the cache.
+   */
+  private Mono<DetectionAggregate> createDetectionAggregate(String sourceId, Long from, Long to, Integer limit, String after) {
+    LOG.debug("createDetectionAggregate: fetching detections for sourceId={}", sourceId);
+
+    // Set by getLprs from the response headers, the cache calls this once per fetch
+    AtomicReference<String> continuationToken = new AtomicReference<>();
+    Mono<List<LicencePlate>> detections = integration.getLprs(sourceId, from, to, limit, after).collectList()
+      .contextWrite(ctx -> ctx.put(CONTINUATION_TOKEN, continuationToken))
+      .timeout(lprTimeout)
+      .onErrorMap(TimeoutException.class, ex -> new ResponseStatusException(GATEWAY_TIMEOUT,
+        "LPR service did not answer within " + lprTimeout.toMillis() + " ms"))
+      .flatMap(plates -> plates.isEmpty()
+        ? Mono.error(new NotFoundException("No detections found for sourceId: " + sourceId))
+        : Mono.just(plates));
+
+    Mono<ReidResult> reids = integration.getReids(sourceId).collectList()
+      .timeout(reidTimeout)
+      .map(list -> new ReidResult(list, false))
+      .onErrorResume(ex -> {
+        LOG.warn("Failed to get reid data for sourceId: {}, continuing without reid data: {}", sourceId, ex.toString());
+        return Mono.just(new ReidResult(List.of(), true));
+      });
+
+    // Zip subscribes to both at once, and cancels the reid call if the detections fail
+    return serviceCalls.time("createDetectionAggregate", Mono.zip(detections, reids)
+      .map(tuple -> new DetectionAggregate(sourceId, tuple.getT1(), tuple.getT2().reids, serviceUtil.getServiceAddress(),
+        tuple.getT2().degraded ? List.of(REID) : List.of(), continuationToken.get())));
+  }
+
+  private static class ReidResult {
+    private final List<Reid> reids;
+    private final boolean degraded;
+
+    ReidResult(List<Reid> reids, boolean degraded) {
+      this.reids = reids;
+      this.degraded = degraded;
     }
-    
-    // Create and return the aggregate
-    return new DetectionAggregate(sourceId, detections, reids, serviceUtil.getServiceAddress());
   }
 }
-
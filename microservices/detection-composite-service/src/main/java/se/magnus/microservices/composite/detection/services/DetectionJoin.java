@@ -0,0 +1,155 @@
+package se.magnus.microservices.composite.detection.services;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import se.magnus.api.composite.detection.DetectionRecord;
+import se.magnus.api.core.lpr.LicencePlate;
+import se.magnus.api.core.reid.Reid;
+import se.magnus.util.plate.PlateNormalizer;
+
+/**
+ * Symmetric hash join of the detection and reid records of a source, on normalized plate
+ * number and time proximity.
+ *
+ * Both sides are read at once. Each record is looked up in the hash table of the other side
+ * and then added to its own, so a MATCH is emitted as soon as the second record of a pair
+ * arrives, whichever side it is on. A detection and a reid match when their plate numbers
+ * normalize to the same key and their timestamps are at most maxTimeDifference apart; a
+ * detection matching several reids is emitted once per reid.
+ *
+ * When one side completes, the records of the other side that found no match are emitted on
+ * their own and its hash table is dropped, later records of that side are only looked up. So
+ * memory is bounded by the records read before the other side completes.
+ */
+public final class DetectionJoin {
+
+  // Markers appended to each side, compared by identity
+  private static final DetectionRecord END_OF_DETECTIONS = new DetectionRecord();
+  private static final DetectionRecord END_OF_REIDS = new DetectionRecord();
+
+  private final String sourceId;
+  private final long maxTimeDifference;
+
+  private final Map<String, List<Held<LicencePlate>>> detections = new LinkedHashMap<>();
+  private final Map<String, List<Held<Reid>>> reids = new LinkedHashMap<>();
+  private boolean detectionsDone;
+  private boolean reidsDone;
+
+  private DetectionJoin(String sourceId, long maxTimeDifference) {
+    this.sourceId = sourceId;
+    this.maxTimeDifference = maxTimeDifference;
+  }
+
+  /**
+   * Joins the DETECTION records with the REID records, DEGRADED records are passed on as is.
+   * The join state is created per subscription, and demand is passed on to both sides.
+   */
+  public static Flux<DetectionRecord> join(
+    String sourceId,
+    Flux<DetectionRecord> detections,
+    Flux<DetectionRecord> reids,
+    Duration maxTimeDifference) {
+
+    return Flux.defer(() -> {
+      DetectionJoin join = new DetectionJoin(sourceId, maxTimeDifference.toMillis());
+      return Flux.merge(
+          detections.concatWith(Mono.just(END_OF_DETECTIONS)),
+          reids.concatWith(Mono.just(END_OF_REIDS)))
+        .concatMapIterable(join::accept);
+    });
+  }
+
+  private List<DetectionRecord> accept(DetectionRecord record) {
+    if (record == END_OF_DETECTIONS) {
+      detectionsDone = true;
+      return flushUnmatched(reids, held -> DetectionRecord.reid(sourceId, held));
+    }
+    if (record == END_OF_REIDS) {
+      reidsDone = true;
+      return flushUnmatched(detections, held -> DetectionRecord.detection(sourceId, held));
+    }
+    return switch (record.getType()) {
+      case DETECTION -> acceptDetection(record.getDetection());
+      case REID -> acceptReid(record.getReid());
+      default -> List.of(record);
+    };
+  }
+
+  private List<DetectionRecord> acceptDetection(LicencePlate detection) {
+    String key = key(detection.getPlateNum());
+    List<DetectionRecord> out = new ArrayList<>(1);
+    if (key != null) {
+      for (Held<Reid> reid : reids.getOrDefault(key, List.of())) {
+        if (Math.abs(detection.getUnixTime() - reid.value.getTimestamp()) <= maxTimeDifference) {
+          reid.matched = true;
+          out.add(DetectionRecord.match(sourceId, detection, reid.value));
+        }
+      }
+    }
+    if (key != null && !reidsDone) {
+      detections.computeIfAbsent(key, k -> new ArrayList<>(1)).add(new Held<>(detection, !out.isEmpty()));
+    } else if (out.isEmpty()) {
+      out.add(DetectionRecord.detection(sourceId, detection));
+    }
+    return out;
+  }
+
+  private List<DetectionRecord> acceptReid(Reid reid) {
+    String key = key(reid.getPlateNumber());
+    List<DetectionRecord> out = new ArrayList<>(1);
+    if (key != null) {
+      for (Held<LicencePlate> detection : detections.getOrDefault(key, List.of())) {
+        if (Math.abs(detection.value.getUnixTime() - reid.getTimestamp()) <= maxTimeDifference) {
+          detection.matched = true;
+          out.add(DetectionRecord.match(sourceId, detection.value, reid));
+        }
+      }
+    }
+    if (key != null && !detectionsDone) {
+      reids.computeIfAbsent(key, k -> new ArrayList<>(1)).add(new Held<>(reid, !out.isEmpty()));
+    } else if (out.isEmpty()) {
+      out.add(DetectionRecord.reid(sourceId, reid));
+    }
+    return out;
+  }
+
+  private static <T> List<DetectionRecord> flushUnmatched(
+    Map<String, List<Held<T>>> table,
+    Function<T, DetectionRecord> toRecord) {
+
+    List<DetectionRecord> out = new ArrayList<>();
+    for (List<Held<T>> entries : table.values()) {
+      for (Held<T> held : entries) {
+        if (!held.matched) {
+          out.add(toRecord.apply(held.value));
+        }
+      }
+    }
+    table.clear();
+    return out;
+  }
+
+  private static String key(String plateNum) {
+    if (plateNum == null) {
+      return null;
+    }
+    String key = PlateNormalizer.normalize(plateNum);
+    return key.isEmpty() ? null : key;
+  }
+
+  private static class Held<T> {
+    private final T value;
+    private boolean matched;
+
+    Held(T value, boolean matched) {
+      this.value = value;
+      this.matched = matched;
+    }
+  }
+}
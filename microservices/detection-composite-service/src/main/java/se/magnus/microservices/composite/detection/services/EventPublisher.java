@@ -0,0 +1,283 @@
+package se.magnus.microservices.composite.detection.services;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiPredicate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.stream.function.StreamBridge;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.stereotype.Component;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Scheduler;
+import reactor.util.retry.Retry;
+import se.magnus.api.event.Event;
+import se.magnus.util.metrics.CallTimer;
+
+/**
+ * Publishes events in order per partition key, from bounded buffers.
+ *
+ * Events are spread over a fixed number of lanes by partition key, the sourceId. Each lane has
+ * its own buffer and at most one drain running on the publishEventScheduler at a time. A drain
+ * takes up to drainSize events at a time from the buffer and hands them to the binder one by one,
+ * so events with the same partition key keep their order and an event never waits for others to
+ * arrive. The partition key is also the Kafka message key, so the events of a source go to the
+ * same partition of the topic and keep their order there too.
+ *
+ * The publisher does not group events into messages itself, each event is one send and one Kafka
+ * record, so the consumers see the same records as before. A send only appends the record to the
+ * producer's buffer; the producer groups the records of a partition into requests of up to
+ * batch.size bytes, waiting at most linger.ms for a batch to fill, as set in the binder's
+ * producerProperties. EventPublisherBinderBenchmark measures the sends through the binder.
+ *
+ * A caller gets its Mono completed once the binder has accepted the event. A send that fails is
+ * tried again, up to sendAttempts times in all, with a backoff that starts at sendBackoff and
+ * doubles with each attempt, before the caller gets an EventPublishException and the event is counted as composite.events.failed. While the buffer
+ * of its lane is full the caller polls it again with a backoff from 1 to 50 ms, for at most
+ * bufferTimeout, and then gets an EventBufferFullException.
+ *
+ * The time to buffer an event is timed as composite.events.publish, tagged with the binding, and
+ * the time to hand the events of a drain pass to the binder as composite.events.send. The sends
+ * are timed per pass rather than per event, to keep the drain cheap. composite.events.buffered
+ * tells how full the buffers are.
+ */
+@Component
+public class EventPublisher implements DisposableBean {
+
+  private static final Logger LOG = LoggerFactory.getLogger(EventPublisher.class);
+
+  private final BiPredicate<String, Message<?>> sender;
+  private final Scheduler scheduler;
+  private final int drainSize;
+  private final int sendAttempts;
+  private final Duration sendBackoff;
+  private final Duration bufferTimeout;
+  private final Lane[] lanes;
+  private final CallTimer publishCalls;
+  private final Timer sendTime;
+  private final DistributionSummary sendSize;
+  private final MeterRegistry registry;
+  private volatile boolean stopped;
+
+  @Autowired
+  public EventPublisher(
+    StreamBridge streamBridge,
+    @Qualifier("publishEventScheduler") Scheduler publishEventScheduler,
+    @Value("${app.publisher.bufferSize:8192}") int bufferSize,
+    @Value("${app.publisher.drainSize:500}") int drainSize,
+    @Value("${app.publisher.lanes:4}") int lanes,
+    @Value("${app.publisher.bufferTimeout:5s}") Duration bufferTimeout,
+    @Value("${app.publisher.sendAttempts:3}") int sendAttempts,
+    @Value("${app.publisher.sendBackoff:20ms}") Duration sendBackoff,
+    MeterRegistry registry
+  ) {
+    this(streamBridge::send, publishEventScheduler, bufferSize, drainSize, lanes, bufferTimeout, sendAttempts, sendBackoff,
+      registry);
+  }
+
+  /**
+   * @param sender sends a message to a binding, false or an exception if it was not accepted
+   */
+  public EventPublisher(BiPredicate<String, Message<?>> sender, Scheduler scheduler, int bufferSize, int drainSize,
+    int lanes, Duration bufferTimeout, int sendAttempts, Duration sendBackoff, MeterRegistry registry) {
+
+    LOG.info("Creates an event publisher with buffer size = {}, drain size = {} and {} lanes", bufferSize, drainSize, lanes);
+
+    this.sender = sender;
+    this.scheduler = scheduler;
+    this.drainSize = drainSize;
+    this.sendAttempts = Math.max(1, sendAttempts);
+    this.sendBackoff = sendBackoff;
+    this.bufferTimeout = bufferTimeout;
+    this.registry = registry;
+    this.lanes = new Lane[lanes];
+    for (int i = 0; i < lanes; i++) {
+      this.lanes[i] = new Lane(Math.max(1, bufferSize / lanes));
+    }
+
+    this.publishCalls = new CallTimer(registry, "composite.events.publish",
+      "Time to buffer an event, including the waits for room in a full buffer", "binding");
+    this.sendTime = Timer.builder("composite.events.send")
+      .description("Time to hand the events of a drain pass to the binder").publishPercentileHistogram().register(registry);
+    this.sendSize = DistributionSummary.builder("composite.events.send.size")
+      .description("Events handed to the binder per drain pass").register(registry);
+    Gauge.builder("composite.events.buffered", this.lanes, l -> Arrays.stream(l).mapToInt(lane -> lane.queue.size()).sum())
+      .description("Events waiting in the buffers to be sent").register(registry);
+    Gauge.builder("composite.events.buffer.capacity", this.lanes,
+        l -> Arrays.stream(l).mapToInt(lane -> lane.queue.size() + lane.queue.remainingCapacity()).sum())
+      .description("Events the buffers can hold").register(registry);
+  }
+
+  /**
+   * Buffers the event for publishing to the binding, the Mono completes once it is sent.
+   *
+   * @param partitionKey the key that events must keep their order for
+   */
+  public Mono<Void> publish(String bindingName, String partitionKey, Event<?, ?> event) {
+    String key = partitionKey == null ? "" : partitionKey;
+    Pending pending = new Pending(bindingName, key, event);
+    Lane lane = lanes[Math.floorMod(key.hashCode(), lanes.length)];
+
+    return publishCalls.time(bindingName, Mono.defer(() -> lane.offer(pending))
+      .retryWhen(Retry.backoff(Long.MAX_VALUE, Duration.ofMillis(1))
+        .maxBackoff(Duration.ofMillis(50))
+        .filter(EventBufferFullException.class::isInstance))
+      .timeout(bufferTimeout)
+      .onErrorMap(TimeoutException.class,
+        ex -> new EventBufferFullException("Event buffer full for " + bufferTimeout.toMillis() + " ms")))
+      .then(pending.sent.asMono());
+  }
+
+  /**
+   * Stops accepting events and waits for the buffered ones to be sent.
+   */
+  @Override
+  public void destroy() {
+    stopped = true;
+    long deadline = System.currentTimeMillis() + 10_000;
+    for (Lane lane : lanes) {
+      while (!lane.isIdle() && System.currentTimeMillis() < deadline) {
+        LockSupport.parkNanos(1_000_000);
+      }
+    }
+  }
+
+  private void send(List<Pending> drained) {
+    LOG.debug("Sending {} drained events", drained.size());
+    sendSize.record(drained.size());
+    sendTime.record(() -> {
+      for (Pending pending : drained) {
+        Message<?> message = MessageBuilder.withPayload(pending.event)
+          .setHeader(KafkaHeaders.KEY, pending.partitionKey.getBytes(UTF_8))
+          .build();
+        RuntimeException failure = null;
+        for (int attempt = 1; attempt <= sendAttempts; attempt++) {
+          try {
+            if (sender.test(pending.bindingName, message)) {
+              failure = null;
+              break;
+            }
+            failure = new EventPublishException("The binder did not accept the event");
+          } catch (RuntimeException ex) {
+            failure = ex;
+          }
+          if (attempt < sendAttempts) {
+            LockSupport.parkNanos(sendBackoff.toNanos() << (attempt - 1));
+          }
+        }
+        if (failure == null) {
+          pending.sent.tryEmitEmpty();
+        } else {
+          LOG.warn("Failed to send a {} event to {} in {} attempts: {}",
+            pending.event.getEventType(), pending.bindingName, sendAttempts, failure.toString());
+          failed(pending.bindingName).increment();
+          pending.sent.tryEmitError(failure instanceof EventPublishException
+            ? failure : new EventPublishException("Failed to send the event: " + failure, failure));
+        }
+      }
+    });
+  }
+
+  private Counter failed(String bindingName) {
+    return Counter.builder("composite.events.failed").tag("binding", bindingName)
+      .description("Events that could not be sent, their callers got an error").register(registry);
+  }
+
+  private class Lane implements Runnable {
+
+    private final BlockingQueue<Pending> queue;
+    private final AtomicInteger wip = new AtomicInteger();
+
+    Lane(int capacity) {
+      this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    Mono<Void> offer(Pending pending) {
+      if (stopped) {
+        return Mono.error(new IllegalStateException("Event publisher is stopped"));
+      }
+      if (!queue.offer(pending)) {
+        return Mono.error(new EventBufferFullException("Event buffer full"));
+      }
+      if (wip.getAndIncrement() == 0) {
+        scheduler.schedule(this);
+      }
+      return Mono.empty();
+    }
+
+    boolean isIdle() {
+      return wip.get() == 0 && queue.isEmpty();
+    }
+
+    /**
+     * Drains the queue until no offer happened since the last check, the work in progress
+     * counter makes sure only one drain runs at a time and no offer is left behind.
+     */
+    @Override
+    public void run() {
+      List<Pending> drained = new ArrayList<>(drainSize);
+      int missed = wip.get();
+      do {
+        while (queue.drainTo(drained, drainSize) > 0) {
+          send(drained);
+          drained.clear();
+        }
+        missed = wip.addAndGet(-missed);
+      } while (missed != 0);
+    }
+  }
+
+  private static class Pending {
+    private final String bindingName;
+    private final String partitionKey;
+    private final Event<?, ?> event;
+    private final Sinks.Empty<Void> sent = Sinks.empty();
+
+    Pending(String bindingName, String partitionKey, Event<?, ?> event) {
+      this.bindingName = bindingName;
+      this.partitionKey = partitionKey;
+      this.event = event;
+    }
+  }
+
+  @ResponseStatus(SERVICE_UNAVAILABLE)
+  public static class EventPublishException extends RuntimeException {
+    public EventPublishException(String message) {
+      super(message);
+    }
+
+    public EventPublishException(String message, Throwable cause) {
+      super(message, cause);
+    }
+  }
+
+  @ResponseStatus(SERVICE_UNAVAILABLE)
+  public static class EventBufferFullException extends RuntimeException {
+    public EventBufferFullException(String message) {
+      super(message);
+    }
+  }
+}
@@ -0,0 +1,49 @@
+package se.magnus.microservices.composite.detection.services;
+
+import static se.magnus.api.composite.detection.Sighting.Kind.LPR;
+import static se.magnus.api.composite.detection.Sighting.Kind.REID;
+
+import java.util.function.Consumer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import se.magnus.api.composite.detection.Sighting;
+import se.magnus.api.core.lpr.LicencePlate;
+import se.magnus.api.core.reid.Reid;
+import se.magnus.api.event.Event;
+
+/**
+ * Feeds the correlation engine from the lpr and reid topics, read with a consumer group of
+ * its own, next to the groups of lpr-service and reid-service. Only CREATE events are used,
+ * a deleted sighting stays in the window until it ages out.
+ */
+@Configuration
+public class SightingProcessorConfig {
+
+  private final CorrelationEngine engine;
+
+  @Autowired
+  public SightingProcessorConfig(CorrelationEngine engine) {
+    this.engine = engine;
+  }
+
+  @Bean
+  public Consumer<Event<String, LicencePlate>> lprSightings() {
+    return event -> {
+      LicencePlate plate = event.getData();
+      if (event.getEventType() == Event.Type.CREATE && plate != null) {
+        engine.add(new Sighting(null, plate.getPlateNum(), plate.getSourceId(), plate.getUnixTime(), LPR, plate.getObjectUuid()));
+      }
+    };
+  }
+
+  @Bean
+  public Consumer<Event<String, Reid>> reidSightings() {
+    return event -> {
+      Reid reid = event.getData();
+      if (event.getEventType() == Event.Type.CREATE && reid != null) {
+        engine.add(new Sighting(null, reid.getPlateNumber(), reid.getSourceId(), reid.getTimestamp(), REID, reid.getReid()));
+      }
+    };
+  }
+}
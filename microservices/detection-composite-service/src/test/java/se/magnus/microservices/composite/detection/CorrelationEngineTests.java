@@ -0,0 +1,217 @@
+package se.magnus.microservices.composite.detection;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static se.magnus.api.composite.detection.Sighting.Kind.LPR;
+import static se.magnus.api.composite.detection.Sighting.Kind.REID;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.test.StepVerifier;
+import se.magnus.api.composite.detection.Sighting;
+import se.magnus.api.composite.detection.Transition;
+import se.magnus.microservices.composite.detection.services.CorrelationEngine;
+
+class CorrelationEngineTests {
+
+  private static final long T0 = 1699614600000L;
+  private static final long MINUTE = 60_000L;
+
+  private SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  private CorrelationEngine engine;
+
+  @BeforeEach
+  void setUp() {
+    engine = new CorrelationEngine(Duration.ofMinutes(30), 100, 16, registry);
+  }
+
+  @Test
+  void emitsTransitionBetweenCameras() {
+    assertTrue(engine.add(lpr("ABC123", "camera-001", T0)).isEmpty());
+    Transition transition = single(engine.add(reid("ABC123", "camera-002", T0 + 2 * MINUTE)));
+
+    assertEquals("camera-001", transition.getFrom().getSourceId());
+    assertEquals("camera-002", transition.getTo().getSourceId());
+    assertEquals(2 * MINUTE, transition.getElapsed());
+    assertEquals(1, engine.findTransitions("ABC123").size());
+    assertEquals(2, engine.findSightings("ABC123").size());
+    assertEquals(1.0, registry.counter("correlation.transitions").count());
+  }
+
+  @Test
+  void sameCameraIsNoTransition() {
+    engine.add(lpr("ABC123", "camera-001", T0));
+    assertTrue(engine.add(lpr("ABC123", "camera-001", T0 + MINUTE)).isEmpty());
+    assertTrue(engine.add(reid("XYZ789", "camera-002", T0 + 2 * MINUTE)).isEmpty());
+
+    assertTrue(engine.findTransitions("ABC123").isEmpty());
+  }
+
+  @Test
+  void matchesOcrConfusions() {
+    engine.add(lpr("ABC 120", "camera-001", T0));
+    single(engine.add(lpr("A8C-12O", "camera-002", T0 + MINUTE)));
+
+    assertEquals(2, engine.findSightings("abc120").size());
+  }
+
+  @Test
+  void outOfOrderSightingIsInsertedByTimestamp() {
+    engine.add(lpr("ABC123", "camera-001", T0));
+    engine.add(lpr("ABC123", "camera-003", T0 + 10 * MINUTE));
+    List<Transition> found = engine.add(lpr("ABC123", "camera-002", T0 + 5 * MINUTE));
+
+    assertEquals(List.of("camera-001>camera-002", "camera-002>camera-003"), path(found));
+    List<Sighting> sightings = engine.findSightings("ABC123");
+    assertEquals(List.of("camera-001", "camera-002", "camera-003"),
+      sightings.stream().map(Sighting::getSourceId).toList());
+    // camera-001>camera-003 is replaced
+    assertEquals(List.of("camera-001>camera-002", "camera-002>camera-003"), path(engine.findTransitions("ABC123")));
+    assertEquals(3.0, registry.counter("correlation.transitions").count());
+  }
+
+  @Test
+  void outOfOrderSightingFromTheSameCameraSplitsOneTransition() {
+    engine.add(lpr("ABC123", "camera-001", T0));
+    engine.add(lpr("ABC123", "camera-002", T0 + 10 * MINUTE));
+    List<Transition> found = engine.add(reid("ABC123", "camera-002", T0 + 5 * MINUTE));
+
+    assertEquals(List.of("camera-001>camera-002"), path(found));
+    assertEquals(5 * MINUTE, found.get(0).getElapsed());
+    assertEquals(1, engine.findTransitions("ABC123").size());
+  }
+
+  @Test
+  void ignoresRedeliveredSighting() {
+    engine.add(lpr("ABC123", "camera-001", T0));
+    engine.add(lpr("ABC123", "camera-002", T0 + MINUTE));
+    assertTrue(engine.add(lpr("ABC123", "camera-002", T0 + MINUTE)).isEmpty());
+
+    assertEquals(2, engine.size());
+    assertEquals(1, engine.findTransitions("ABC123").size());
+  }
+
+  @Test
+  void evictsSightingsOutsideTheWindow() {
+    engine.add(lpr("ABC123", "camera-001", T0));
+    engine.add(lpr("ABC123", "camera-002", T0 + MINUTE));
+    engine.add(lpr("XYZ789", "camera-001", T0 + 40 * MINUTE));
+
+    assertTrue(engine.findSightings("ABC123").isEmpty());
+    assertTrue(engine.findTransitions("ABC123").isEmpty());
+    assertEquals(1, engine.size());
+
+    // Older than the window, dropped
+    assertTrue(engine.add(lpr("ABC123", "camera-003", T0 + 2 * MINUTE)).isEmpty());
+    assertEquals(1.0, registry.counter("correlation.late").count());
+    assertEquals(1, engine.size());
+  }
+
+  @Test
+  void evictsLateArrivalsByTimestamp() {
+    engine.add(lpr("ABC123", "camera-001", T0 + 20 * MINUTE));
+    // Arrives after ABC123 but is older, within the window until T0 + 30 minutes
+    engine.add(lpr("XYZ789", "camera-001", T0));
+    engine.add(lpr("KLM456", "camera-002", T0 + 35 * MINUTE));
+
+    assertTrue(engine.findSightings("XYZ789").isEmpty());
+    assertEquals(1, engine.findSightings("ABC123").size());
+    assertEquals(2, engine.size());
+  }
+
+  @Test
+  void boundsSightingsInMemory() {
+    for (int i = 0; i < 250; i++) {
+      engine.add(lpr("PLT" + i, "camera-001", T0 + i));
+    }
+
+    assertEquals(100, engine.size());
+    assertTrue(engine.findSightings("PLT0").isEmpty());
+    assertEquals(1, engine.findSightings("PLT249").size());
+    assertEquals(100.0, registry.get("correlation.plates").gauge().value());
+  }
+
+  @Test
+  void pushesLiveTransitions() {
+    StepVerifier.create(engine.liveTransitions().take(1))
+      .then(() -> {
+        engine.add(lpr("ABC123", "camera-001", T0));
+        engine.add(reid("ABC123", "camera-002", T0 + MINUTE));
+      })
+      .assertNext(transition -> assertEquals("camera-002", transition.getTo().getSourceId()))
+      .verifyComplete();
+  }
+
+  @Test
+  void pushesLiveTransitionsFromConcurrentConsumers() throws InterruptedException {
+    int plates = 2000;
+    CorrelationEngine large = new CorrelationEngine(Duration.ofMinutes(30), 10 * plates, 4 * plates, registry);
+    List<Transition> received = new CopyOnWriteArrayList<>();
+    large.liveTransitions().subscribe(received::add);
+
+    // Like the lpr and reid consumers, two threads add sightings at the same time
+    Thread lprs = new Thread(() -> IntStream.range(0, plates).forEach(i -> large.add(lpr("PLT" + i, "camera-001", T0 + i))));
+    Thread reids = new Thread(() -> IntStream.range(0, plates).forEach(i -> large.add(reid("PLT" + i, "camera-002", T0 + MINUTE + i))));
+    lprs.start();
+    reids.start();
+    lprs.join();
+    reids.join();
+
+    assertEquals(plates, received.size());
+  }
+
+  @Test
+  void slowLiveSubscriberDoesNotHoldTheIndex() throws InterruptedException {
+    CountDownLatch delivered = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    engine.liveTransitions().subscribe(transition -> {
+      delivered.countDown();
+      awaitUninterruptibly(release);
+    });
+
+    engine.add(lpr("ABC123", "camera-001", T0));
+    Thread consumer = new Thread(() -> engine.add(reid("ABC123", "camera-002", T0 + MINUTE)));
+    consumer.start();
+    assertTrue(delivered.await(5, TimeUnit.SECONDS));
+
+    // The consumer thread is stuck in the subscriber, the index is not
+    assertEquals(2, engine.findSightings("ABC123").size());
+    assertTrue(engine.add(lpr("XYZ789", "camera-003", T0 + 2 * MINUTE)).isEmpty());
+    assertEquals(3, engine.size());
+
+    release.countDown();
+    consumer.join(5000);
+    assertFalse(consumer.isAlive());
+  }
+
+  private static Transition single(List<Transition> found) {
+    assertEquals(1, found.size());
+    return found.get(0);
+  }
+
+  private static List<String> path(List<Transition> transitions) {
+    return transitions.stream().map(t -> t.getFrom().getSourceId() + ">" + t.getTo().getSourceId()).toList();
+  }
+
+  private static void awaitUninterruptibly(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private Sighting lpr(String plateNum, String sourceId, long timestamp) {
+    return new Sighting(null, plateNum, sourceId, timestamp, LPR, "uuid-" + sourceId + "-" + timestamp);
+  }
+
+  private Sighting reid(String plateNum, String sourceId, long timestamp) {
+    return new Sighting(null, plateNum, sourceId, timestamp, REID, "reid-" + sourceId + "-" + timestamp);
+  }
+}
@@ -0,0 +1,102 @@
+package se.magnus.microservices.composite.detection;
+
+import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
+import static org.springframework.http.HttpStatus.OK;
+import static org.springframework.http.HttpStatus.UNPROCESSABLE_ENTITY;
+import static org.springframework.http.MediaType.APPLICATION_JSON;
+import static se.magnus.api.event.Event.Type.CREATE;
+import static se.magnus.api.event.Event.Type.DELETE;
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.cloud.stream.binder.test.InputDestination;
+import org.springframework.cloud.stream.binder.test.TestChannelBinderConfiguration;
+import org.springframework.context.annotation.Import;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import se.magnus.api.core.lpr.BoundingBox;
+import se.magnus.api.core.lpr.LicencePlate;
+import se.magnus.api.core.reid.Reid;
+import se.magnus.api.event.Event;
+import se.magnus.microservices.composite.detection.services.CorrelationEngine;
+
+@SpringBootTest(webEnvironment = RANDOM_PORT)
+@Import(TestChannelBinderConfiguration.class)
+class CorrelationMessagingTests {
+
+  private static final long T0 = 1699614600000L;
+
+  @Autowired
+  private WebTestClient client;
+
+  @Autowired
+  private InputDestination input;
+
+  @Autowired
+  private CorrelationEngine engine;
+
+  @Test
+  void correlatesLprAndReidEvents() {
+    int before = engine.size();
+    sendLpr("uuid-101", "camera-001", "KLM456", T0);
+    sendReid("reid-101", "camera-002", "KLM456", T0 + 90_000);
+    input.send(MessageBuilder.withPayload(new Event(DELETE, "uuid-102", null)).build(), "lpr");
+    await(() -> engine.size() == before + 2);
+
+    client.get()
+      .uri("/detection-composite/transitions?plate=klm-456")
+      .accept(APPLICATION_JSON)
+      .exchange()
+      .expectStatus().isEqualTo(OK)
+      .expectBody()
+      .jsonPath("$.length()").isEqualTo(1)
+      .jsonPath("$[0].from.sourceId").isEqualTo("camera-001")
+      .jsonPath("$[0].from.kind").isEqualTo("LPR")
+      .jsonPath("$[0].to.sourceId").isEqualTo("camera-002")
+      .jsonPath("$[0].to.kind").isEqualTo("REID")
+      .jsonPath("$[0].elapsed").isEqualTo(90_000);
+
+    client.get()
+      .uri("/detection-composite/sightings?plate=KLM456")
+      .accept(APPLICATION_JSON)
+      .exchange()
+      .expectStatus().isEqualTo(OK)
+      .expectBody()
+      .jsonPath("$.length()").isEqualTo(2)
+      .jsonPath("$[0].plateNum").isEqualTo("KLM456");
+  }
+
+  @Test
+  void rejectsEmptyPlate() {
+    client.get()
+      .uri("/detection-composite/sightings?plate=--")
+      .accept(APPLICATION_JSON)
+      .exchange()
+      .expectStatus().isEqualTo(UNPROCESSABLE_ENTITY);
+  }
+
+  private void sendLpr(String objectUuid, String sourceId, String plateNum, long unixTime) {
+    LicencePlate plate = new LicencePlate(sourceId, objectUuid,
+      new BoundingBox(100, 100, 200, 150), new BoundingBox(120, 130, 80, 30),
+      plateNum, "2025-11-10T10:30:00Z", unixTime, null);
+    input.send(MessageBuilder.withPayload(new Event(CREATE, objectUuid, plate)).build(), "lpr");
+  }
+
+  private void sendReid(String reidId, String sourceId, String plateNumber, long timestamp) {
+    Reid reid = new Reid(reidId, sourceId, plateNumber, timestamp, "Location-1", "active", null);
+    input.send(MessageBuilder.withPayload(new Event(CREATE, reidId, reid)).build(), "reid");
+  }
+
+  private void await(BooleanSupplier condition) {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!condition.getAsBoolean()) {
+      if (System.currentTimeMillis() > deadline) {
+        throw new AssertionError("Events not processed within 5 s");
+      }
+      LockSupport.parkNanos(20_000_000);
+    }
+  }
+}
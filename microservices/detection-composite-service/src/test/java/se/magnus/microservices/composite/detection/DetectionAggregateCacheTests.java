@@ -0,0 +1,108 @@
+package se.magnus.microservices.composite.detection;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import se.magnus.api.composite.detection.DetectionAggregate;
+import se.magnus.api.exceptions.NotFoundException;
+import se.magnus.microservices.composite.detection.services.DetectionAggregateCache;
+
+class DetectionAggregateCacheTests {
+
+  private static final String SOURCE_ID = "camera-001";
+
+  private AtomicLong now = new AtomicLong(1699614600000L);
+  private AtomicInteger fetches = new AtomicInteger();
+  private SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  private DetectionAggregateCache cache;
+
+  @BeforeEach
+  void setUp() {
+    cache = new DetectionAggregateCache(true, Duration.ofSeconds(1), Duration.ofSeconds(5), 2, registry, now::get);
+  }
+
+  @Test
+  void servesFreshAggregate() {
+    assertEquals("1", cache.get(SOURCE_ID, this::load).block().getServiceAddress());
+    now.addAndGet(999);
+    assertEquals("1", cache.get(SOURCE_ID, this::load).block().getServiceAddress());
+
+    assertEquals(1, fetches.get());
+    assertEquals(1.0, registry.counter("composite.cache.requests", "result", "hit").count());
+    assertEquals(1.0, registry.counter("composite.cache.requests", "result", "miss").count());
+    assertEquals(0.5, registry.get("composite.cache.hit.ratio").gauge().value());
+  }
+
+  @Test
+  void servesStaleAggregateWhileRevalidating() {
+    cache.get(SOURCE_ID, this::load).block();
+
+    now.addAndGet(2000);
+    assertEquals("1", cache.get(SOURCE_ID, this::load).block().getServiceAddress());
+    assertEquals(2, fetches.get());
+    assertEquals("2", cache.get(SOURCE_ID, this::load).block().getServiceAddress());
+
+    // Past stale-while-revalidate the caller waits for a new aggregate
+    now.addAndGet(6000);
+    assertEquals("3", cache.get(SOURCE_ID, this::load).block().getServiceAddress());
+    assertEquals(1.0, registry.counter("composite.cache.requests", "result", "stale").count());
+  }
+
+  @Test
+  void coalescesConcurrentRequests() {
+    Sinks.One<DetectionAggregate> downstream = Sinks.one();
+    AtomicInteger calls = new AtomicInteger();
+
+    List<Mono<DetectionAggregate>> requests = List.of(
+      cache.get(SOURCE_ID, id -> { calls.incrementAndGet(); return downstream.asMono(); }),
+      cache.get(SOURCE_ID, id -> { calls.incrementAndGet(); return downstream.asMono(); }),
+      cache.get(SOURCE_ID, id -> { calls.incrementAndGet(); return downstream.asMono(); }));
+    List<DetectionAggregate> results = new java.util.ArrayList<>();
+    requests.forEach(request -> request.subscribe(results::add));
+
+    downstream.tryEmitValue(aggregate("1"));
+
+    assertEquals(1, calls.get());
+    assertEquals(3, results.size());
+    assertEquals(2.0, registry.counter("composite.cache.coalesced").count());
+  }
+
+  @Test
+  void doesNotCacheErrors() {
+    Mono<DetectionAggregate> failing = cache.get(SOURCE_ID, id -> Mono.error(new NotFoundException("NOT FOUND")));
+    assertThrows(NotFoundException.class, failing::block);
+
+    assertEquals("1", cache.get(SOURCE_ID, this::load).block().getServiceAddress());
+  }
+
+  @Test
+  void boundsEntries() {
+    cache.get("camera-001", this::load).block();
+    now.incrementAndGet();
+    cache.get("camera-002", this::load).block();
+    now.incrementAndGet();
+    cache.get("camera-003", this::load).block();
+
+    assertEquals(2.0, registry.get("composite.cache.entries").gauge().value());
+
+    // The oldest entry is the one evicted
+    cache.get("camera-001", this::load).block();
+    assertEquals(4, fetches.get());
+  }
+
+  private Mono<DetectionAggregate> load(String sourceId) {
+    return Mono.fromCallable(() -> aggregate(String.valueOf(fetches.incrementAndGet())));
+  }
+
+  private DetectionAggregate aggregate(String serviceAddress) {
+    return new DetectionAggregate(SOURCE_ID, List.of(), List.of(), serviceAddress, List.of(), null);
+  }
+}
@@ -0,0 +1,242 @@
+package se.magnus.microservices.composite.detection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
+import static org.springframework.http.HttpStatus.GATEWAY_TIMEOUT;
+import static org.springframework.http.HttpStatus.OK;
+import static org.springframework.http.MediaType.APPLICATION_JSON;
+import static org.springframework.http.MediaType.APPLICATION_NDJSON;
+
+import io.netty.handler.codec.http.QueryStringDecoder;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.List;
+import java.util.function.BiFunction;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.cloud.stream.binder.test.TestChannelBinderConfiguration;
+import org.springframework.context.annotation.Import;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+import se.magnus.api.composite.detection.DetectionRecord;
+
+/**
+ * Runs the composite against local stub servers for lpr-service and reid-service that answer
+ * after a configurable delay per sourceId.
+ */
+@SpringBootTest(webEnvironment = RANDOM_PORT, properties = {
+  "app.aggregate-cache.enabled=false",
+  "app.lpr-service.timeout=2s",
+  "app.reid-service.timeout=1s"})
+@Import(TestChannelBinderConfiguration.class)
+class DetectionCompositeFanOutTests {
+
+  private static final String PAGED_SOURCE_ID = "camera-paged";
+
+  private static final Map<String, Duration> LPR_DELAYS = new ConcurrentHashMap<>();
+  private static final Map<String, Duration> REID_DELAYS = new ConcurrentHashMap<>();
+  private static final Map<String, String> REQUEST_IDS = new ConcurrentHashMap<>();
+  private static final Map<String, Map<String, List<String>>> LPR_QUERIES = new ConcurrentHashMap<>();
+
+  private static DisposableServer lprStub;
+  private static DisposableServer reidStub;
+
+  @Autowired
+  private WebTestClient client;
+
+  @BeforeAll
+  static void startStubs() {
+    lprStub = stub("/lpr/detections/{sourceId}", "lpr", LPR_DELAYS, (sourceId, after) ->
+      "[{\"sourceId\":\"" + sourceId + "\",\"objectUuid\":\"" + (after == null ? "uuid-001" : "uuid-002")
+        + "\",\"plateNum\":\"ABC123\",\"unixTime\":1699614600000}]");
+    reidStub = stub("/reid/{sourceId}", "reid", REID_DELAYS, (sourceId, after) ->
+      "[{\"reid\":\"reid-001\",\"sourceId\":\"" + sourceId + "\",\"plateNumber\":\"ABC123\",\"timestamp\":1699614600000}]");
+  }
+
+  @AfterAll
+  static void stopStubs() {
+    lprStub.disposeNow();
+    reidStub.disposeNow();
+  }
+
+  @DynamicPropertySource
+  static void stubProperties(DynamicPropertyRegistry registry) {
+    registry.add("app.lpr-service.port", () -> lprStub.port());
+    registry.add("app.reid-service.port", () -> reidStub.port());
+  }
+
+  @Test
+  void callsServicesInParallel() {
+    LPR_DELAYS.put("camera-parallel", Duration.ofMillis(600));
+    REID_DELAYS.put("camera-parallel", Duration.ofMillis(600));
+
+    long elapsed = timed(() -> getAndVerify("camera-parallel", OK)
+      .jsonPath("$.detections.length()").isEqualTo(1)
+      .jsonPath("$.reids.length()").isEqualTo(1)
+      .jsonPath("$.degraded.length()").isEqualTo(0));
+
+    // Bounded by the slower of the two calls, not by their sum
+    assertTrue(elapsed >= 600 && elapsed < 1100, "elapsed: " + elapsed);
+  }
+
+  @Test
+  void slowReidYieldsPartialAggregate() {
+    LPR_DELAYS.put("camera-slow-reid", Duration.ofMillis(100));
+    REID_DELAYS.put("camera-slow-reid", Duration.ofSeconds(5));
+
+    long elapsed = timed(() -> getAndVerify("camera-slow-reid", OK)
+      .jsonPath("$.detections.length()").isEqualTo(1)
+      .jsonPath("$.reids.length()").isEqualTo(0)
+      .jsonPath("$.degraded[0]").isEqualTo("reid"));
+
+    assertTrue(elapsed >= 1000 && elapsed < 1500, "elapsed: " + elapsed);
+  }
+
+  @Test
+  void slowLprFailsWithinDeadline() {
+    LPR_DELAYS.put("camera-slow-lpr", Duration.ofSeconds(5));
+    REID_DELAYS.put("camera-slow-lpr", Duration.ZERO);
+
+    long elapsed = timed(() -> getAndVerify("camera-slow-lpr", GATEWAY_TIMEOUT));
+
+    assertTrue(elapsed >= 2000 && elapsed < 2500, "elapsed: " + elapsed);
+  }
+
+  @Test
+  void streamsAllPages() {
+    LPR_DELAYS.put(PAGED_SOURCE_ID, Duration.ZERO);
+    REID_DELAYS.put(PAGED_SOURCE_ID, Duration.ofSeconds(5));
+
+    List<DetectionRecord> records = client.get()
+      .uri("/detection-composite/" + PAGED_SOURCE_ID)
+      .accept(APPLICATION_NDJSON)
+      .exchange()
+      .expectStatus().isEqualTo(OK)
+      .expectHeader().contentTypeCompatibleWith(APPLICATION_NDJSON)
+      .returnResult(DetectionRecord.class)
+      .getResponseBody()
+      .collectList()
+      .block(Duration.ofSeconds(10));
+
+    // Both detection pages arrive before the reid timeout, which ends the stream
+    assertEquals(3, records.size());
+    assertEquals("uuid-001", records.get(0).getDetection().getObjectUuid());
+    assertEquals("uuid-002", records.get(1).getDetection().getObjectUuid());
+    assertEquals(DetectionRecord.Type.DEGRADED, records.get(2).getType());
+    assertEquals("reid", records.get(2).getDegraded());
+  }
+
+  @Test
+  void aggregatesOnePageAtATime() {
+    String sourceId = PAGED_SOURCE_ID + "-aggregate";
+    LPR_DELAYS.put(sourceId, Duration.ZERO);
+    REID_DELAYS.put(sourceId, Duration.ZERO);
+
+    getAndVerify(sourceId + "?from=1699614000000&limit=1", OK)
+      .jsonPath("$.detections.length()").isEqualTo(1)
+      .jsonPath("$.detections[0].objectUuid").isEqualTo("uuid-001")
+      .jsonPath("$.reids.length()").isEqualTo(1)
+      .jsonPath("$.continuationToken").isEqualTo("page-2");
+    assertEquals(Map.of("from", List.of("1699614000000"), "limit", List.of("1")), LPR_QUERIES.get(sourceId));
+
+    getAndVerify(sourceId + "?from=1699614000000&limit=1&after=page-2", OK)
+      .jsonPath("$.detections.length()").isEqualTo(1)
+      .jsonPath("$.detections[0].objectUuid").isEqualTo("uuid-002")
+      .jsonPath("$.continuationToken").doesNotExist();
+  }
+
+  @Test
+  void mergesStageTimingsOfTheServices() {
+    LPR_DELAYS.put("camera-timing", Duration.ofMillis(200));
+    REID_DELAYS.put("camera-timing", Duration.ZERO);
+
+    HttpHeaders headers = client.get()
+      .uri("/detection-composite/camera-timing")
+      .header("X-Request-ID", "request-timing")
+      .accept(APPLICATION_JSON)
+      .exchange()
+      .expectStatus().isEqualTo(OK)
+      .expectHeader().valueEquals("X-Request-ID", "request-timing")
+      .returnResult(String.class).getResponseHeaders();
+
+    assertEquals("request-timing", REQUEST_IDS.get("lpr/camera-timing"));
+    assertEquals("request-timing", REQUEST_IDS.get("reid/camera-timing"));
+
+    Map<String, Double> stages = stages(headers.getFirst("Server-Timing"));
+    assertTrue(stages.keySet().containsAll(List.of("composite", "composite.lpr.getLprs", "composite.reid.getReids",
+      "lpr", "lpr.db.findPageBySourceId", "reid")), "stages: " + stages);
+    assertTrue(stages.get("composite.lpr.getLprs") >= 200, "Includes the delay of the stub: " + stages);
+    assertTrue(stages.get("composite") >= stages.get("composite.lpr.getLprs"), "stages: " + stages);
+  }
+
+  private static Map<String, Double> stages(String serverTiming) {
+    Map<String, Double> stages = new HashMap<>();
+    for (String entry : serverTiming.split(", ")) {
+      String[] params = entry.split(";");
+      stages.put(params[0], Double.parseDouble(params[1].substring("dur=".length())));
+    }
+    return stages;
+  }
+
+  private WebTestClient.BodyContentSpec getAndVerify(String sourceId, HttpStatus expectedStatus) {
+    return client.mutate().responseTimeout(Duration.ofSeconds(10)).build()
+      .get()
+      .uri("/detection-composite/" + sourceId)
+      .accept(APPLICATION_JSON)
+      .exchange()
+      .expectStatus().isEqualTo(expectedStatus)
+      .expectBody();
+  }
+
+  private long timed(Runnable call) {
+    // Warm up connections and codecs so that the measurement only covers the fan-out
+    client.get().uri("/actuator/health").exchange().expectStatus().isOk();
+
+    long start = System.nanoTime();
+    call.run();
+    return (System.nanoTime() - start) / 1_000_000;
+  }
+
+  /**
+   * Records the request ids it is passed, and answers with stage timings of its own like the
+   * real service would.
+   */
+  private static DisposableServer stub(String path, String service, Map<String, Duration> delays,
+    BiFunction<String, String, String> body) {
+
+    return HttpServer.create()
+      .port(0)
+      .route(routes -> routes.get(path, (request, response) -> {
+        String sourceId = request.param("sourceId");
+        String requestId = request.requestHeaders().get("X-Request-ID");
+        if (requestId != null) {
+          REQUEST_IDS.put(service + "/" + sourceId, requestId);
+        }
+        Map<String, List<String>> query = new QueryStringDecoder(request.uri()).parameters();
+        if (service.equals("lpr")) {
+          LPR_QUERIES.put(sourceId, query);
+        }
+        List<String> after = query.get("after");
+        if (sourceId.startsWith(PAGED_SOURCE_ID) && after == null) {
+          response.header("X-Continuation-Token", "page-2");
+        }
+        return response.header("Content-Type", "application/json")
+          .header("Server-Timing", service + ";dur=1.5, " + service + ".db.findPageBySourceId;dur=1.0")
+          .sendString(Mono.just(body.apply(sourceId, after == null ? null : after.get(0)))
+            .delayElement(delays.getOrDefault(sourceId, Duration.ZERO)));
+      }))
+      .bindNow();
+  }
+}
@@ -1,10 +1,14 @@
 package se.magnus.microservices.composite.detection;
 
 import static java.util.Collections.singletonList;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.when;
 import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
 import static org.springframework.http.HttpStatus.*;
+import static org.springframework.http.MediaType.ALL;
 import static org.springframework.http.MediaType.APPLICATION_JSON;
+import static org.springframework.http.MediaType.TEXT_EVENT_STREAM;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -12,6 +16,8 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.cloud.stream.binder.test.TestChannelBinderConfiguration;
+import org.springframework.context.annotation.Import;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.http.HttpStatus;
 import org.springframework.test.web.reactive.server.WebTestClient;
@@ -24,6 +30,7 @@ import se.magnus.api.exceptions.NotFoundException;
 import se.magnus.microservices.composite.detection.services.DetectionCompositeIntegration;
 
 @SpringBootTest(webEnvironment = RANDOM_PORT)
+@Import(TestChannelBinderConfiguration.class)
 class DetectionCompositeServiceApplicationTests {
 
   private static final String SOURCE_ID_OK = "camera-001";
@@ -51,20 +58,21 @@ class DetectionCompositeServiceApplicationTests {
       "2025-11-10T10:30:00Z",
       1699614600000L,
       "mock-service-address"));
-    when(integration.getLprs(SOURCE_ID_OK)).thenReturn(Flux.fromIterable(plates));
+    when(integration.getLprs(SOURCE_ID_OK, null, null, null, null)).thenReturn(Flux.fromIterable(plates));
+    when(integration.getAllLprs(SOURCE_ID_OK)).thenReturn(Flux.fromIterable(plates));
 
     List<Reid> reids = singletonList(
       new Reid("reid-001", SOURCE_ID_OK, "ABC123", 1699614600000L, "Location-1", "active", "mock-address"));
     when(integration.getReids(SOURCE_ID_OK)).thenReturn(Flux.fromIterable(reids));
 
     // Setup mock for not found case
-    when(integration.getLprs(SOURCE_ID_NOT_FOUND))
+    when(integration.getLprs(SOURCE_ID_NOT_FOUND, null, null, null, null))
       .thenReturn(Flux.error(new NotFoundException("NOT FOUND: " + SOURCE_ID_NOT_FOUND)));
     when(integration.getReids(SOURCE_ID_NOT_FOUND))
       .thenReturn(Flux.empty());
 
     // Setup mock for invalid input case
-    when(integration.getLprs(SOURCE_ID_INVALID))
+    when(integration.getLprs(SOURCE_ID_INVALID, null, null, null, null))
       .thenReturn(Flux.error(new InvalidInputException("INVALID: " + SOURCE_ID_INVALID)));
     when(integration.getReids(SOURCE_ID_INVALID))
       .thenReturn(Flux.empty());
@@ -84,6 +92,18 @@ class DetectionCompositeServiceApplicationTests {
       .jsonPath("$.serviceAddress").exists();
   }
 
+  @Test
+  void getDetectionAggregatePage() {
+    when(integration.getLprs(SOURCE_ID_OK, 1699614000000L, 1699617600000L, 10, "token-1"))
+      .thenReturn(Flux.just(new LicencePlate(SOURCE_ID_OK, "uuid-011", null, null, "DEF456",
+        "2025-11-10T10:40:00Z", 1699615200000L, "mock-service-address")));
+
+    getAndVerifyDetectionAggregate(SOURCE_ID_OK + "?from=1699614000000&to=1699617600000&limit=10&after=token-1", OK)
+      .jsonPath("$.detections.length()").isEqualTo(1)
+      .jsonPath("$.detections[0].objectUuid").isEqualTo("uuid-011")
+      .jsonPath("$.reids.length()").isEqualTo(1);
+  }
+
   @Test
   void getDetectionAggregateWithoutReid() {
     String sourceId = "camera-002";
@@ -93,7 +113,7 @@ class DetectionCompositeServiceApplicationTests {
         new BoundingBox(100, 100, 200, 150),
         new BoundingBox(120, 130, 80, 30),
         "XYZ789", "2025-11-10T11:00:00Z", 1699616400000L, "mock-service-address"));
-    when(integration.getLprs(sourceId)).thenReturn(Flux.fromIterable(plates));
+    when(integration.getLprs(sourceId, null, null, null, null)).thenReturn(Flux.fromIterable(plates));
     when(integration.getReids(sourceId)).thenReturn(Flux.error(new NotFoundException("No reid found")));
 
     getAndVerifyDetectionAggregate(sourceId, OK)
@@ -121,7 +141,7 @@ class DetectionCompositeServiceApplicationTests {
   void getDetectionAggregateEmptyList() {
     String sourceId = "empty-camera";
     
-    when(integration.getLprs(sourceId)).thenReturn(Flux.empty());
+    when(integration.getLprs(sourceId, null, null, null, null)).thenReturn(Flux.empty());
     when(integration.getReids(sourceId)).thenReturn(Flux.empty());
 
     getAndVerifyDetectionAggregate(sourceId, NOT_FOUND)
@@ -129,6 +149,48 @@ class DetectionCompositeServiceApplicationTests {
       .jsonPath("$.message").isEqualTo("No detections found for sourceId: " + sourceId);
   }
 
+  @Test
+  void getDetectionStream() {
+    client.get()
+      .uri("/detection-composite/" + SOURCE_ID_OK)
+      .accept(TEXT_EVENT_STREAM)
+      .exchange()
+      .expectStatus().isEqualTo(OK)
+      .expectHeader().contentTypeCompatibleWith(TEXT_EVENT_STREAM)
+      .expectBody(String.class)
+      .value(body -> {
+        assertTrue(body.contains("\"type\":\"DETECTION\""));
+        assertTrue(body.contains("\"plateNum\":\"ABC123\""));
+        assertTrue(body.contains("\"type\":\"REID\""));
+      });
+
+    // Clients accepting anything keep getting the aggregate
+    client.get()
+      .uri("/detection-composite/" + SOURCE_ID_OK)
+      .accept(ALL)
+      .exchange()
+      .expectStatus().isEqualTo(OK)
+      .expectHeader().contentType(APPLICATION_JSON)
+      .expectBody()
+      .jsonPath("$.detections.length()").isEqualTo(1);
+  }
+
+  @Test
+  void getJoinedDetectionStream() {
+    client.get()
+      .uri("/detection-composite/" + SOURCE_ID_OK + "?join=true")
+      .accept(TEXT_EVENT_STREAM)
+      .exchange()
+      .expectStatus().isEqualTo(OK)
+      .expectBody(String.class)
+      .value(body -> {
+        assertTrue(body.contains("\"type\":\"MATCH\""));
+        assertTrue(body.contains("\"plateNum\":\"ABC123\""));
+        assertTrue(body.contains("\"reid\":\"reid-001\""));
+        assertFalse(body.contains("\"type\":\"DETECTION\""));
+      });
+  }
+
   private WebTestClient.BodyContentSpec getAndVerifyDetectionAggregate(String sourceId, HttpStatus expectedStatus) {
     return client.get()
       .uri("/detection-composite/" + sourceId)
@@ -0,0 +1,104 @@
+package se.magnus.microservices.composite.detection;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static se.magnus.api.composite.detection.DetectionRecord.Type.DEGRADED;
+import static se.magnus.api.composite.detection.DetectionRecord.Type.DETECTION;
+import static se.magnus.api.composite.detection.DetectionRecord.Type.MATCH;
+import static se.magnus.api.composite.detection.DetectionRecord.Type.REID;
+
+import java.time.Duration;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+import reactor.test.StepVerifier;
+import se.magnus.api.composite.detection.DetectionRecord;
+import se.magnus.api.core.lpr.BoundingBox;
+import se.magnus.api.core.lpr.LicencePlate;
+import se.magnus.api.core.reid.Reid;
+import se.magnus.microservices.composite.detection.services.DetectionJoin;
+
+class DetectionJoinTests {
+
+  private static final String SOURCE_ID = "camera-001";
+  private static final long T0 = 1699614600000L;
+  private static final Duration MAX_TIME_DIFFERENCE = Duration.ofSeconds(10);
+
+  @Test
+  void emitsMatchesBeforeEitherSideCompletes() {
+    Sinks.Many<DetectionRecord> detections = Sinks.many().unicast().onBackpressureBuffer();
+    Sinks.Many<DetectionRecord> reids = Sinks.many().unicast().onBackpressureBuffer();
+
+    StepVerifier.create(DetectionJoin.join(SOURCE_ID, detections.asFlux(), reids.asFlux(), MAX_TIME_DIFFERENCE))
+      .then(() -> detections.tryEmitNext(detection("uuid-001", "ABC123", T0)))
+      .then(() -> reids.tryEmitNext(reid("reid-001", "ABC123", T0 + 2000)))
+      .assertNext(record -> {
+        assertEquals(MATCH, record.getType());
+        assertEquals("uuid-001", record.getDetection().getObjectUuid());
+        assertEquals("reid-001", record.getReid().getReid());
+      })
+      // A reid arriving first is matched by the detection that follows
+      .then(() -> reids.tryEmitNext(reid("reid-002", "XYZ789", T0)))
+      .then(() -> detections.tryEmitNext(detection("uuid-002", "XYZ789", T0 + 1000)))
+      .assertNext(record -> assertEquals("reid-002", record.getReid().getReid()))
+      .then(() -> detections.tryEmitComplete())
+      .then(() -> reids.tryEmitComplete())
+      .verifyComplete();
+  }
+
+  @Test
+  void matchesNormalizedPlatesCloseInTime() {
+    List<DetectionRecord> records = join(
+      List.of(
+        detection("uuid-001", "ABC-120", T0),
+        detection("uuid-002", "DEF456", T0),
+        detection("uuid-003", "GHI789", T0)),
+      List.of(
+        reid("reid-001", "A8C12O", T0 + 5000),
+        reid("reid-002", "DEF456", T0 + 60_000),
+        reid("reid-003", "JKL012", T0)));
+
+    assertEquals(List.of(DETECTION, DETECTION, REID, REID, MATCH),
+      records.stream().map(DetectionRecord::getType).sorted().toList());
+    DetectionRecord match = records.stream().filter(r -> r.getType() == MATCH).findFirst().orElseThrow();
+    assertEquals("uuid-001", match.getDetection().getObjectUuid());
+    assertEquals("reid-001", match.getReid().getReid());
+    assertEquals(SOURCE_ID, match.getSourceId());
+  }
+
+  @Test
+  void emitsDetectionOncePerMatchingReid() {
+    List<DetectionRecord> records = join(
+      List.of(detection("uuid-001", "ABC123", T0)),
+      List.of(reid("reid-001", "ABC123", T0 - 3000), reid("reid-002", "ABC123", T0 + 3000)));
+
+    assertEquals(2, records.size());
+    assertTrue(records.stream().allMatch(r -> r.getType() == MATCH));
+  }
+
+  @Test
+  void passesDegradedRecordOn() {
+    List<DetectionRecord> records = DetectionJoin.join(SOURCE_ID,
+        Flux.just(DetectionRecord.detection(SOURCE_ID, new LicencePlate(SOURCE_ID, "uuid-001", null, null, "ABC123", null, T0, null))),
+        Flux.just(DetectionRecord.degraded(SOURCE_ID, "reid")),
+        MAX_TIME_DIFFERENCE)
+      .collectList().block();
+
+    assertEquals(List.of(DETECTION, DEGRADED), records.stream().map(DetectionRecord::getType).sorted().toList());
+  }
+
+  private List<DetectionRecord> join(List<DetectionRecord> detections, List<DetectionRecord> reids) {
+    return DetectionJoin.join(SOURCE_ID, Flux.fromIterable(detections), Flux.fromIterable(reids), MAX_TIME_DIFFERENCE)
+      .collectList().block();
+  }
+
+  private DetectionRecord detection(String objectUuid, String plateNum, long unixTime) {
+    return DetectionRecord.detection(SOURCE_ID, new LicencePlate(SOURCE_ID, objectUuid,
+      new BoundingBox(100, 100, 200, 150), new BoundingBox(120, 130, 80, 30),
+      plateNum, "2025-11-10T10:30:00Z", unixTime, null));
+  }
+
+  private DetectionRecord reid(String reidId, String plateNumber, long timestamp) {
+    return DetectionRecord.reid(SOURCE_ID, new Reid(reidId, SOURCE_ID, plateNumber, timestamp, "Location-1", "active", null));
+  }
+}
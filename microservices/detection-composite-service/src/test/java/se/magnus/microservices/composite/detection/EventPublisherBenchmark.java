@@ -0,0 +1,52 @@
+package se.magnus.microservices.composite.detection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static se.magnus.api.event.Event.Type.CREATE;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import se.magnus.api.event.Event;
+import se.magnus.microservices.composite.detection.services.EventPublisher;
+
+/**
+ * Measures how many events per second the EventPublisher hands to a sender that accepts
+ * everything at once, spread over 100 partition keys.
+ *
+ * Excluded from the regular test task, run with
+ * "./gradlew :microservices:detection-composite-service:benchmark".
+ * The number of events can be set with the system property benchmark.events.
+ */
+@Tag("benchmark")
+class EventPublisherBenchmark {
+
+  private static final int EVENTS = Integer.getInteger("benchmark.events", 200_000);
+
+  @Test
+  void throughput() {
+    Scheduler scheduler = Schedulers.newBoundedElastic(10, 100, "publish-benchmark");
+    AtomicInteger sent = new AtomicInteger();
+    EventPublisher publisher = new EventPublisher((binding, message) -> sent.incrementAndGet() > 0,
+      scheduler, 8192, 500, 4, Duration.ofSeconds(5), 3, Duration.ZERO, new SimpleMeterRegistry());
+
+    try {
+      long start = System.nanoTime();
+      Flux.range(0, EVENTS)
+        .flatMap(i -> publisher.publish("lpr-out-0", "camera-" + (i % 100), new Event<>(CREATE, "uuid-" + i, i)), 64)
+        .blockLast(Duration.ofMinutes(5));
+      publisher.destroy();
+      long elapsed = System.nanoTime() - start;
+
+      assertEquals(EVENTS, sent.get());
+      System.out.printf("%nPublished %d events in %d ms, %.0f events/s%n",
+        EVENTS, elapsed / 1_000_000, EVENTS / (elapsed / 1e9));
+    } finally {
+      scheduler.dispose();
+    }
+  }
+}
@@ -0,0 +1,88 @@
+package se.magnus.microservices.composite.detection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.NONE;
+import static se.magnus.api.event.Event.Type.CREATE;
+
+import java.time.Duration;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.cloud.stream.binder.test.OutputDestination;
+import org.springframework.cloud.stream.binder.test.TestChannelBinderConfiguration;
+import org.springframework.context.annotation.Import;
+import org.springframework.messaging.Message;
+import reactor.core.publisher.Flux;
+import se.magnus.api.core.lpr.BoundingBox;
+import se.magnus.api.core.lpr.LicencePlate;
+import se.magnus.api.event.Event;
+import se.magnus.microservices.composite.detection.services.EventPublisher;
+
+/**
+ * Measures how many events per second the EventPublisher sends through StreamBridge to the
+ * lpr-out-0 binding, including the Smile encoding of the binding, spread over 100 partition keys.
+ *
+ * The test binder stands in for Kafka, so this is the cost on the side of the service for each
+ * send. With Kafka a send appends the record to the producer's buffer, and the producer groups
+ * the records into requests as set by linger.ms and batch.size.
+ *
+ * Excluded from the regular test task, run with
+ * "./gradlew :microservices:detection-composite-service:benchmark".
+ * The number of events can be set with the system property benchmark.events.
+ */
+@Tag("benchmark")
+@SpringBootTest(webEnvironment = NONE, properties = {
+  "logging.level.se.magnus=INFO",
+  // Keeps the sent events away from the correlation consumer of the lpr destination
+  "spring.cloud.stream.bindings.lpr-out-0.destination=lpr-benchmark"})
+@Import(TestChannelBinderConfiguration.class)
+class EventPublisherBinderBenchmark {
+
+  private static final int EVENTS = Integer.getInteger("benchmark.events", 200_000);
+
+  @Autowired
+  private EventPublisher publisher;
+
+  @Autowired
+  private OutputDestination output;
+
+  @Test
+  void throughput() {
+    // Warms up the binding and its converter
+    publish(EVENTS / 10);
+    assertEquals(EVENTS / 10, receiveAll());
+
+    long start = System.nanoTime();
+    publish(EVENTS);
+    long elapsed = System.nanoTime() - start;
+
+    assertEquals(EVENTS, receiveAll());
+    System.out.printf("%nPublished %d events through the binder in %d ms, %.0f events/s%n",
+      EVENTS, elapsed / 1_000_000, EVENTS / (elapsed / 1e9));
+  }
+
+  private void publish(int events) {
+    Flux.range(0, events)
+      .flatMap(i -> publisher.publish("lpr-out-0", "camera-" + (i % 100), event(i)), 64)
+      .blockLast(Duration.ofMinutes(5));
+  }
+
+  private int receiveAll() {
+    int received = 0;
+    Message<byte[]> message;
+    while ((message = output.receive(0, "lpr-benchmark")) != null) {
+      assertEquals("application/x-jackson-smile", String.valueOf(message.getHeaders().get("contentType")));
+      received++;
+    }
+    return received;
+  }
+
+  private static Event<String, LicencePlate> event(int i) {
+    String sourceId = "camera-" + (i % 100);
+    LicencePlate plate = new LicencePlate(sourceId, "uuid-" + i,
+      new BoundingBox(100, 100, 200, 150), new BoundingBox(120, 130, 80, 30),
+      "ABC" + (i % 1000), "2025-11-10T10:30:00Z", 1699614600000L + i, null);
+    return new Event<>(CREATE, "uuid-" + i, plate);
+  }
+}
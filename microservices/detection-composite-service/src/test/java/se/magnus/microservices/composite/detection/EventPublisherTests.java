@@ -0,0 +1,158 @@
+package se.magnus.microservices.composite.detection;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.*;
+import static se.magnus.api.event.Event.Type.CREATE;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.Message;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import se.magnus.api.event.Event;
+import se.magnus.microservices.composite.detection.services.EventPublisher;
+import se.magnus.microservices.composite.detection.services.EventPublisher.EventBufferFullException;
+
+class EventPublisherTests {
+
+  private Scheduler scheduler = Schedulers.newBoundedElastic(10, 100, "publish-test");
+  private SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+  @AfterEach
+  void tearDown() {
+    scheduler.dispose();
+  }
+
+  @Test
+  void keepsOrderPerPartitionKey() throws InterruptedException {
+    int sources = 20;
+    int eventsPerSource = 500;
+    Map<String, List<Integer>> received = new ConcurrentHashMap<>();
+    CountDownLatch done = new CountDownLatch(sources * eventsPerSource);
+
+    EventPublisher publisher = new EventPublisher((binding, message) -> {
+      received.computeIfAbsent(partitionKey(message), k -> new ArrayList<>()).add((Integer) data(message));
+      done.countDown();
+      return true;
+    }, scheduler, 1024, 64, 4, Duration.ofSeconds(5), 3, Duration.ZERO, registry);
+
+    // Each source is published from its own thread, different sources interleave
+    Flux.range(0, sources)
+      .parallel(sources).runOn(Schedulers.parallel())
+      .flatMap(source -> Flux.range(0, eventsPerSource)
+        .concatMap(i -> publisher.publish("lpr-out-0", "camera-" + source, new Event<>(CREATE, "uuid-" + i, i))))
+      .sequential()
+      .blockLast(Duration.ofSeconds(10));
+
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertEquals(sources, received.size());
+    for (List<Integer> events : received.values()) {
+      for (int i = 0; i < eventsPerSource; i++) {
+        assertEquals(i, events.get(i));
+      }
+    }
+  }
+
+  @Test
+  void pushesBackWhenBufferIsFull() throws InterruptedException {
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger sent = new AtomicInteger();
+
+    EventPublisher publisher = new EventPublisher((binding, message) -> {
+      awaitUninterruptibly(release);
+      sent.incrementAndGet();
+      return true;
+    }, scheduler, 2, 1, 1, Duration.ofMillis(200), 3, Duration.ZERO, registry);
+
+    // The first event is taken by the blocked sender, the next two fill the buffer
+    Mono<Void> first = publisher.publish("lpr-out-0", "camera-001", event(1)).cache();
+    first.subscribe();
+    Thread.sleep(50);
+    publisher.publish("lpr-out-0", "camera-001", event(2)).subscribe();
+    publisher.publish("lpr-out-0", "camera-001", event(3)).subscribe();
+    Thread.sleep(50);
+
+    long start = System.nanoTime();
+    assertThrows(EventBufferFullException.class, () -> publisher.publish("lpr-out-0", "camera-001", event(4)).block());
+    assertTrue(System.nanoTime() - start >= Duration.ofMillis(200).toNanos());
+    assertEquals(2, registry.get("composite.events.buffered").gauge().value());
+    assertEquals(1, registry.get("composite.events.publish").tag("binding", "lpr-out-0").tag("outcome", "ERROR").timer().count());
+
+    assertThrows(IllegalStateException.class, () -> first.block(Duration.ofMillis(10)), "Not sent yet");
+
+    release.countDown();
+    first.block(Duration.ofSeconds(5));
+    publisher.publish("lpr-out-0", "camera-001", event(5)).block(Duration.ofSeconds(5));
+    publisher.destroy();
+    assertEquals(4, sent.get());
+    assertEquals(4, registry.get("composite.events.send.size").summary().totalAmount());
+  }
+
+  @Test
+  void failsCallerWhenSendFails() {
+    AtomicInteger attempts = new AtomicInteger();
+    EventPublisher publisher = new EventPublisher((binding, message) -> {
+      int attempt = attempts.incrementAndGet();
+      if (attempt == 1) {
+        throw new IllegalStateException("Broker down");
+      }
+      return attempt == 2 || data(message).equals(1);
+    }, scheduler, 16, 1, 1, Duration.ofSeconds(5), 2, Duration.ZERO, registry);
+
+    // Sent in the second attempt
+    publisher.publish("lpr-out-0", "camera-001", event(1)).block(Duration.ofSeconds(5));
+    assertThrows(EventPublisher.EventPublishException.class,
+      () -> publisher.publish("lpr-out-0", "camera-001", event(2)).block(Duration.ofSeconds(5)));
+
+    assertEquals(4, attempts.get());
+    assertEquals(1, registry.get("composite.events.failed").tag("binding", "lpr-out-0").counter().count());
+  }
+
+  @Test
+  void backsOffBetweenSendAttempts() {
+    List<Long> attempts = new ArrayList<>();
+    EventPublisher publisher = new EventPublisher((binding, message) -> {
+      attempts.add(System.nanoTime());
+      return attempts.size() == 3;
+    }, scheduler, 16, 1, 1, Duration.ofSeconds(5), 3, Duration.ofMillis(50), registry);
+
+    publisher.publish("lpr-out-0", "camera-001", event(1)).block(Duration.ofSeconds(5));
+
+    // The backoff doubles with each attempt
+    assertEquals(3, attempts.size());
+    assertTrue(attempts.get(1) - attempts.get(0) >= Duration.ofMillis(50).toNanos());
+    assertTrue(attempts.get(2) - attempts.get(1) >= Duration.ofMillis(100).toNanos());
+  }
+
+  private Event<String, Integer> event(int i) {
+    return new Event<>(CREATE, "uuid-" + i, i);
+  }
+
+  private static String partitionKey(Message<?> message) {
+    return new String((byte[]) message.getHeaders().get(KafkaHeaders.KEY), UTF_8);
+  }
+
+  private static Object data(Message<?> message) {
+    return ((Event<?, ?>) message.getPayload()).getData();
+  }
+
+  private static void awaitUninterruptibly(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
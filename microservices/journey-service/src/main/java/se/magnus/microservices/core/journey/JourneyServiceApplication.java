@@ -0,0 +1,14 @@
+package se.magnus.microservices.core.journey;
+
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.annotation.ComponentScan;
+
+@SpringBootApplication
+@ComponentScan("se.magnus")
+public class JourneyServiceApplication {
+
+  public static void main(String[] args) {
+    SpringApplication.run(JourneyServiceApplication.class, args);
+  }
+}
@@ -0,0 +1,42 @@
+package se.magnus.microservices.core.journey.persistence;
+
+import java.util.List;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * The trajectory of one reid, one document per reid with its steps in timestamp order.
+ *
+ * The document is only written with the update operators of JourneyServiceImpl, never
+ * replaced as a whole, so it carries no version.
+ */
+@Document(collection = "trajectories")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class TrajectoryEntity {
+
+  @Id
+  private String reid;
+
+  private long firstSeen;
+  private long lastSeen;
+  private long eventCount;
+  private List<TrajectoryStep> steps;
+
+  @Data
+  @NoArgsConstructor
+  @AllArgsConstructor
+  public static class TrajectoryStep {
+    private long timestamp;
+    private String uuid;
+    private String sourceId;
+    private String zoneName;
+    private String zoneId;
+    private String event;
+    private String hwId;
+  }
+}
@@ -0,0 +1,6 @@
+package se.magnus.microservices.core.journey.persistence;
+
+import org.springframework.data.repository.reactive.ReactiveCrudRepository;
+
+public interface TrajectoryRepository extends ReactiveCrudRepository<TrajectoryEntity, String> {
+}
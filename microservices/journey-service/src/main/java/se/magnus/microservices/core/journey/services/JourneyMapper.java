@@ -0,0 +1,21 @@
+package se.magnus.microservices.core.journey.services;
+
+import org.mapstruct.Mapper;
+import org.mapstruct.Mapping;
+import se.magnus.api.core.journey.Journey;
+import se.magnus.api.core.journey.Trajectory;
+import se.magnus.microservices.core.journey.persistence.TrajectoryEntity;
+import se.magnus.microservices.core.journey.persistence.TrajectoryEntity.TrajectoryStep;
+
+@Mapper(componentModel = "spring")
+public interface JourneyMapper {
+
+  TrajectoryStep apiToStep(Journey api);
+
+  @Mapping(target = "reid", ignore = true)
+  Journey stepToApi(TrajectoryStep step);
+
+  @Mapping(target = "events", source = "steps")
+  @Mapping(target = "serviceAddress", ignore = true)
+  Trajectory entityToApi(TrajectoryEntity entity);
+}
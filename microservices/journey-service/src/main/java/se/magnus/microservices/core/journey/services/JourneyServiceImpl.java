@@ -0,0 +1,238 @@
+package se.magnus.microservices.core.journey.services;
+
+import static java.util.logging.Level.FINE;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.PushOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import se.magnus.api.core.journey.Journey;
+import se.magnus.api.core.journey.JourneyService;
+import se.magnus.api.core.journey.Trajectory;
+import se.magnus.api.exceptions.InvalidInputException;
+import se.magnus.api.exceptions.NotFoundException;
+import se.magnus.microservices.core.journey.persistence.TrajectoryEntity;
+import se.magnus.microservices.core.journey.persistence.TrajectoryRepository;
+import se.magnus.util.http.ServiceUtil;
+
+/**
+ * Assembles the trajectory of every reid as its journey events arrive.
+ *
+ * An event is appended to the trajectory document of its reid with a single update, without
+ * reading the document first. Events that arrive in timestamp order, by far the most, are
+ * pushed to the end of the steps, filtered on lastSeen being older than the event. An event
+ * older than the trajectory fails that filter and is inserted at its place with a sorted push
+ * instead, unless the same step is stored already, so redelivered events are skipped. Only
+ * the last maxEvents steps are kept, which bounds the size of the document and of the sort.
+ */
+@RestController
+public class JourneyServiceImpl implements JourneyService {
+
+  private static final Logger LOG = LoggerFactory.getLogger(JourneyServiceImpl.class);
+
+  private static final String COLLECTION = "trajectories";
+  private static final int DUPLICATE_KEY_ERROR = 11000;
+  private static final int LATE_EVENT_CONCURRENCY = 16;
+
+  private final ServiceUtil serviceUtil;
+  private final TrajectoryRepository repository;
+  private final JourneyMapper mapper;
+  private final ReactiveMongoTemplate mongoTemplate;
+  private final int maxEvents;
+
+  @Autowired
+  public JourneyServiceImpl(
+    ServiceUtil serviceUtil,
+    TrajectoryRepository repository,
+    JourneyMapper mapper,
+    ReactiveMongoTemplate mongoTemplate,
+    @Value("${app.trajectory.maxEvents:1000}") int maxEvents
+  ) {
+    this.serviceUtil = serviceUtil;
+    this.repository = repository;
+    this.mapper = mapper;
+    this.mongoTemplate = mongoTemplate;
+    this.maxEvents = maxEvents;
+  }
+
+  @Override
+  public Mono<Journey> createJourney(Journey body) {
+    if (body.getReid() == null || body.getReid().isEmpty()) {
+      throw new InvalidInputException("Invalid reid: " + body.getReid());
+    }
+
+    return appendJourneys(List.of(body))
+      .thenReturn(body);
+  }
+
+  @Override
+  public Mono<Trajectory> getJourney(String reid) {
+    LOG.debug("/journey return the trajectory for reid={}", reid);
+
+    if (reid == null || reid.isEmpty()) {
+      throw new InvalidInputException("Invalid reid: " + reid);
+    }
+
+    return repository.findById(reid)
+      .switchIfEmpty(Mono.error(new NotFoundException("No journey found for reid: " + reid)))
+      .log(LOG.getName(), FINE)
+      .map(this::toApi);
+  }
+
+  @Override
+  public Mono<Void> deleteJourney(String reid) {
+    return deleteJourneys(List.of(reid)).then();
+  }
+
+  /**
+   * Deletes the trajectories of the given reids with a single deleteMany.
+   *
+   * @return the number of deleted trajectories
+   */
+  public Mono<Long> deleteJourneys(Collection<String> reids) {
+    return mongoTemplate.remove(query(where("_id").in(reids)), TrajectoryEntity.class)
+      .map(result -> result.getDeletedCount())
+      .doOnNext(count -> LOG.debug("deleteJourneys: deleted {} trajectories", count));
+  }
+
+  /**
+   * Appends a batch of journey events to the trajectories of their reids. The in order events
+   * of all reids are written with one unordered bulkWrite, one upsert per reid, and only the
+   * reids whose trajectory already reaches past their events take a second round trip.
+   *
+   * @return the number of appended events, not counting skipped duplicates
+   */
+  public Mono<Integer> appendJourneys(List<Journey> journeys) {
+    Map<String, List<Document>> stepsByReid = new LinkedHashMap<>();
+    Set<List<Object>> seen = new HashSet<>();
+    for (Journey journey : journeys) {
+      if (journey.getReid() == null) {
+        LOG.warn("appendJourneys: skipped a journey event without reid");
+        continue;
+      }
+      Document step = toStep(journey);
+      if (seen.add(stepIdentity(journey.getReid(), step))) {
+        stepsByReid.computeIfAbsent(journey.getReid(), reid -> new ArrayList<>()).add(step);
+      }
+    }
+    if (stepsByReid.isEmpty()) {
+      return Mono.just(0);
+    }
+    stepsByReid.values().forEach(steps -> steps.sort(Comparator.comparingLong(step -> step.getLong("timestamp"))));
+
+    List<String> reids = new ArrayList<>(stepsByReid.keySet());
+    List<UpdateOneModel<Document>> appends = reids.stream()
+      .map(reid -> appendInOrder(reid, stepsByReid.get(reid)))
+      .collect(Collectors.toList());
+
+    return mongoTemplate.getCollection(COLLECTION)
+      .flatMap(collection -> Mono.from(collection.bulkWrite(appends, new BulkWriteOptions().ordered(false)))
+        .thenReturn(List.<String>of())
+        .onErrorResume(MongoBulkWriteException.class, ex -> {
+          // The upsert of a reid whose trajectory is newer than the events fails on the _id
+          if (ex.getWriteErrors().stream().allMatch(error -> error.getCode() == DUPLICATE_KEY_ERROR)) {
+            return Mono.just(ex.getWriteErrors().stream().map(error -> reids.get(error.getIndex())).collect(Collectors.toList()));
+          }
+          return Mono.error(ex);
+        })
+        .flatMap(late -> {
+          int inOrder = stepsByReid.values().stream().mapToInt(List::size).sum()
+            - late.stream().mapToInt(reid -> stepsByReid.get(reid).size()).sum();
+          return insertLate(collection, late, stepsByReid).map(count -> inOrder + count);
+        }))
+      .doOnNext(count -> LOG.debug("appendJourneys: appended {} of {} journey events", count, journeys.size()));
+  }
+
+  /**
+   * Pushes the steps to the end of the trajectory if it has none as new as the first of them,
+   * or creates it. Fails on the _id if the trajectory exists but does not match.
+   */
+  private UpdateOneModel<Document> appendInOrder(String reid, List<Document> steps) {
+    return new UpdateOneModel<>(
+      Filters.and(Filters.eq("_id", reid), Filters.lt("lastSeen", steps.get(0).getLong("timestamp"))),
+      appendSteps(steps, new PushOptions().slice(-maxEvents)),
+      new UpdateOptions().upsert(true));
+  }
+
+  /**
+   * Inserts the steps one by one at their place in the trajectory, skipping the ones already stored.
+   */
+  private Mono<Integer> insertLate(MongoCollection<Document> collection, List<String> reids, Map<String, List<Document>> stepsByReid) {
+    if (reids.isEmpty()) {
+      return Mono.just(0);
+    }
+    LOG.debug("appendJourneys: inserting late journey events for {} reids", reids.size());
+
+    PushOptions sorted = new PushOptions().sortDocument(new Document("timestamp", 1)).slice(-maxEvents);
+    return Flux.fromIterable(reids)
+      .flatMap(reid -> Flux.fromIterable(stepsByReid.get(reid))
+        .concatMap(step -> Mono.from(collection.updateOne(
+          Filters.and(Filters.eq("_id", reid), Filters.not(Filters.elemMatch("steps", sameStep(step)))),
+          appendSteps(List.of(step), sorted)))),
+        LATE_EVENT_CONCURRENCY)
+      .map(result -> (int) result.getModifiedCount())
+      .reduce(0, Integer::sum);
+  }
+
+  private Bson appendSteps(List<Document> steps, PushOptions options) {
+    return Updates.combine(
+      Updates.pushEach("steps", steps, options),
+      Updates.min("firstSeen", steps.get(0).getLong("timestamp")),
+      Updates.max("lastSeen", steps.get(steps.size() - 1).getLong("timestamp")),
+      Updates.inc("eventCount", steps.size()));
+  }
+
+  private Bson sameStep(Document step) {
+    return Filters.and(
+      Filters.eq("timestamp", step.getLong("timestamp")),
+      Filters.eq("uuid", step.getString("uuid")),
+      Filters.eq("zoneId", step.getString("zoneId")),
+      Filters.eq("event", step.getString("event")));
+  }
+
+  private List<Object> stepIdentity(String reid, Document step) {
+    return Arrays.asList(reid, step.getLong("timestamp"), step.getString("uuid"), step.getString("zoneId"), step.getString("event"));
+  }
+
+  private Document toStep(Journey journey) {
+    Document step = new Document();
+    mongoTemplate.getConverter().write(mapper.apiToStep(journey), step);
+    step.remove("_class");
+    return step;
+  }
+
+  private Trajectory toApi(TrajectoryEntity entity) {
+    Trajectory trajectory = mapper.entityToApi(entity);
+    if (trajectory.getEvents() != null) {
+      trajectory.getEvents().forEach(event -> event.setReid(trajectory.getReid()));
+    }
+    trajectory.setServiceAddress(serviceUtil.getServiceAddress());
+    return trajectory;
+  }
+}
@@ -0,0 +1,70 @@
+package se.magnus.microservices.core.journey.services;
+
+import static se.magnus.api.event.Event.Type.CREATE;
+import static se.magnus.api.event.Event.Type.DELETE;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.stream.config.ListenerContainerCustomizer;
+import org.springframework.cloud.stream.function.StreamBridge;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.kafka.listener.AbstractMessageListenerContainer;
+import se.magnus.api.core.journey.Journey;
+import se.magnus.api.event.Event;
+import se.magnus.util.messaging.EventBatchProcessor;
+
+/**
+ * Consumes the journey events.
+ *
+ * A run of CREATE events, carrying a journey event, is appended to the trajectories with one bulk
+ * write; a run of DELETE events, keyed by reid, removes their trajectories with a single
+ * deleteMany. Batching and failed events are handled by EventBatchProcessor.
+ */
+@Configuration
+public class MessageProcessorConfig {
+
+  private final JourneyServiceImpl journeyService;
+  private final int maxAttempts;
+  private final Duration minBackoff;
+
+  @Autowired
+  public MessageProcessorConfig(
+    JourneyServiceImpl journeyService,
+    @Value("${app.messaging.retry.maxAttempts:3}") int maxAttempts,
+    @Value("${app.messaging.retry.minBackoff:100ms}") Duration minBackoff
+  ) {
+    this.journeyService = journeyService;
+    this.maxAttempts = maxAttempts;
+    this.minBackoff = minBackoff;
+  }
+
+  // The stream bridge is missing in test slices without Spring Cloud Stream, e.g. @DataMongoTest
+  @Bean
+  public EventBatchProcessor<String, Journey> eventBatchProcessor(ObjectProvider<StreamBridge> streamBridge,
+    MeterRegistry registry) {
+
+    return new EventBatchProcessor<String, Journey>(
+      maxAttempts, minBackoff, (binding, message) -> streamBridge.getObject().send(binding, message), registry)
+      .on(CREATE, run -> journeyService.appendJourneys(run.stream().map(Event::getData).collect(Collectors.toList())))
+      .on(DELETE, run -> journeyService.deleteJourneys(run.stream().map(Event::getKey).collect(Collectors.toList())));
+  }
+
+  @Bean
+  public Consumer<List<Event<String, Journey>>> messageProcessor(EventBatchProcessor<String, Journey> processor) {
+    return processor::process;
+  }
+
+  @Bean
+  public ListenerContainerCustomizer<AbstractMessageListenerContainer<?, ?>> messageProcessorContainer(
+    EventBatchProcessor<String, Journey> processor) {
+
+    return (container, destination, group) -> container.setCommonErrorHandler(processor.errorHandler());
+  }
+}
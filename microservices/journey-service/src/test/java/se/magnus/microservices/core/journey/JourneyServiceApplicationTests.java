@@ -0,0 +1,172 @@
+package se.magnus.microservices.core.journey;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
+import static org.springframework.http.HttpStatus.*;
+import static org.springframework.http.MediaType.APPLICATION_JSON;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.cloud.stream.binder.test.TestChannelBinderConfiguration;
+import org.springframework.context.annotation.Import;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import se.magnus.api.core.journey.Journey;
+import se.magnus.microservices.core.journey.persistence.TrajectoryRepository;
+import se.magnus.microservices.core.journey.services.JourneyServiceImpl;
+
+@SpringBootTest(webEnvironment = RANDOM_PORT, properties = "app.trajectory.maxEvents=5")
+@Import(TestChannelBinderConfiguration.class)
+class JourneyServiceApplicationTests extends MongoDbTestBase {
+
+  private static final long START = 1699614600000L;
+
+  @Autowired
+  private WebTestClient client;
+
+  @Autowired
+  private TrajectoryRepository repository;
+
+  @Autowired
+  private JourneyServiceImpl service;
+
+  @BeforeEach
+  void setupDb() {
+    repository.deleteAll().block();
+  }
+
+  @Test
+  void assemblesTrajectory() {
+    postAndVerifyJourney(journey("reid-001", START, "zone-1", "enter"), OK);
+    postAndVerifyJourney(journey("reid-001", START + 1000, "zone-1", "exit"), OK);
+    postAndVerifyJourney(journey("reid-001", START + 2000, "zone-2", "enter"), OK);
+    postAndVerifyJourney(journey("reid-002", START + 500, "zone-3", "enter"), OK);
+
+    getAndVerifyJourney("reid-001", OK)
+      .jsonPath("$.reid").isEqualTo("reid-001")
+      .jsonPath("$.firstSeen").isEqualTo(START)
+      .jsonPath("$.lastSeen").isEqualTo(START + 2000)
+      .jsonPath("$.eventCount").isEqualTo(3)
+      .jsonPath("$.events.length()").isEqualTo(3)
+      .jsonPath("$.events[0].reid").isEqualTo("reid-001")
+      .jsonPath("$.events[1].event").isEqualTo("exit")
+      .jsonPath("$.events[2].zoneId").isEqualTo("zone-2");
+
+    getAndVerifyJourney("reid-002", OK)
+      .jsonPath("$.events.length()").isEqualTo(1);
+  }
+
+  @Test
+  void insertsLateEventsInOrder() {
+    postAndVerifyJourney(journey("reid-001", START + 2000, "zone-2", "enter"), OK);
+    postAndVerifyJourney(journey("reid-001", START, "zone-1", "enter"), OK);
+    postAndVerifyJourney(journey("reid-001", START + 1000, "zone-1", "exit"), OK);
+
+    getAndVerifyJourney("reid-001", OK)
+      .jsonPath("$.firstSeen").isEqualTo(START)
+      .jsonPath("$.lastSeen").isEqualTo(START + 2000)
+      .jsonPath("$.events[0].timestamp").isEqualTo(START)
+      .jsonPath("$.events[1].timestamp").isEqualTo(START + 1000)
+      .jsonPath("$.events[2].timestamp").isEqualTo(START + 2000);
+  }
+
+  @Test
+  void skipsDuplicateEvents() {
+    Journey first = journey("reid-001", START, "zone-1", "enter");
+    Journey second = journey("reid-001", START + 1000, "zone-1", "exit");
+
+    assertEquals(2, service.appendJourneys(List.of(first, second, first)).block());
+    assertEquals(0, service.appendJourneys(List.of(first, second)).block());
+    assertEquals(1, service.appendJourneys(List.of(second, journey("reid-001", START + 1000, "zone-2", "enter"))).block());
+
+    getAndVerifyJourney("reid-001", OK)
+      .jsonPath("$.eventCount").isEqualTo(3)
+      .jsonPath("$.events.length()").isEqualTo(3);
+  }
+
+  @Test
+  void keepsTheLastEvents() {
+    List<Journey> journeys = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      journeys.add(journey("reid-001", START + i * 1000, "zone-" + i, "enter"));
+    }
+    service.appendJourneys(journeys.subList(0, 4)).block();
+    service.appendJourneys(journeys.subList(4, 8)).block();
+
+    getAndVerifyJourney("reid-001", OK)
+      .jsonPath("$.firstSeen").isEqualTo(START)
+      .jsonPath("$.eventCount").isEqualTo(8)
+      .jsonPath("$.events.length()").isEqualTo(5)
+      .jsonPath("$.events[0].zoneId").isEqualTo("zone-3")
+      .jsonPath("$.events[4].zoneId").isEqualTo("zone-7");
+  }
+
+  @Test
+  void appendsBatchesOfManyReids() {
+    List<Journey> journeys = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      journeys.add(journey("reid-" + (i % 10), START + i * 1000, "zone-" + i, "enter"));
+    }
+    assertEquals(50, service.appendJourneys(journeys).block());
+    assertEquals(10, repository.count().block());
+
+    // One late event per reid, the rest in order
+    List<Journey> next = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      next.add(journey("reid-" + i, START + i * 1000 + 1, "zone-late", "enter"));
+      next.add(journey("reid-" + i, START + 100_000 + i, "zone-next", "enter"));
+    }
+    assertEquals(20, service.appendJourneys(next.subList(0, 10)).block() + service.appendJourneys(next.subList(10, 20)).block());
+
+    getAndVerifyJourney("reid-3", OK)
+      .jsonPath("$.eventCount").isEqualTo(7);
+  }
+
+  @Test
+  void deleteJourney() {
+    postAndVerifyJourney(journey("reid-001", START, "zone-1", "enter"), OK);
+    service.deleteJourney("reid-001").block();
+    getAndVerifyJourney("reid-001", NOT_FOUND);
+  }
+
+  @Test
+  void getJourneyNotFound() {
+    getAndVerifyJourney("reid-404", NOT_FOUND)
+      .jsonPath("$.path").isEqualTo("/journey/reid-404")
+      .jsonPath("$.message").isEqualTo("No journey found for reid: reid-404");
+  }
+
+  @Test
+  void createJourneyInvalidReid() {
+    postAndVerifyJourney(journey("", START, "zone-1", "enter"), UNPROCESSABLE_ENTITY)
+      .jsonPath("$.message").isEqualTo("Invalid reid: ");
+  }
+
+  private WebTestClient.BodyContentSpec getAndVerifyJourney(String reid, HttpStatus expectedStatus) {
+    return client.get()
+      .uri("/journey/" + reid)
+      .accept(APPLICATION_JSON)
+      .exchange()
+      .expectStatus().isEqualTo(expectedStatus)
+      .expectHeader().contentType(APPLICATION_JSON)
+      .expectBody();
+  }
+
+  private WebTestClient.BodyContentSpec postAndVerifyJourney(Journey journey, HttpStatus expectedStatus) {
+    return client.post()
+      .uri("/journey")
+      .bodyValue(journey)
+      .accept(APPLICATION_JSON)
+      .exchange()
+      .expectStatus().isEqualTo(expectedStatus)
+      .expectBody();
+  }
+
+  private Journey journey(String reid, long timestamp, String zoneId, String event) {
+    return new Journey(reid, timestamp, "uuid-" + timestamp, "camera-001", "Zone " + zoneId, zoneId, event, "hw-001");
+  }
+}
@@ -0,0 +1,47 @@
+package se.magnus.microservices.core.journey;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.mapstruct.factory.Mappers;
+import se.magnus.api.core.journey.Journey;
+import se.magnus.api.core.journey.Trajectory;
+import se.magnus.microservices.core.journey.persistence.TrajectoryEntity;
+import se.magnus.microservices.core.journey.persistence.TrajectoryEntity.TrajectoryStep;
+import se.magnus.microservices.core.journey.services.JourneyMapper;
+
+class MapperTests {
+
+  private JourneyMapper mapper = Mappers.getMapper(JourneyMapper.class);
+
+  @Test
+  void mapperTests() {
+
+    assertNotNull(mapper);
+
+    Journey api = new Journey("reid-001", 1699614600000L, "uuid-001", "camera-001", "Gate", "zone-1", "enter", "hw-001");
+
+    TrajectoryStep step = mapper.apiToStep(api);
+
+    assertEquals(api.getTimestamp(), step.getTimestamp());
+    assertEquals(api.getUuid(), step.getUuid());
+    assertEquals(api.getSourceId(), step.getSourceId());
+    assertEquals(api.getZoneName(), step.getZoneName());
+    assertEquals(api.getZoneId(), step.getZoneId());
+    assertEquals(api.getEvent(), step.getEvent());
+    assertEquals(api.getHwId(), step.getHwId());
+
+    TrajectoryEntity entity = new TrajectoryEntity("reid-001", 1699614600000L, 1699614600000L, 1, List.of(step));
+    Trajectory trajectory = mapper.entityToApi(entity);
+
+    assertEquals(entity.getReid(), trajectory.getReid());
+    assertEquals(entity.getFirstSeen(), trajectory.getFirstSeen());
+    assertEquals(entity.getLastSeen(), trajectory.getLastSeen());
+    assertEquals(entity.getEventCount(), trajectory.getEventCount());
+    assertEquals(1, trajectory.getEvents().size());
+    assertEquals(api.getZoneId(), trajectory.getEvents().get(0).getZoneId());
+    assertEquals(api.getEvent(), trajectory.getEvents().get(0).getEvent());
+    assertNull(trajectory.getServiceAddress());
+  }
+}
@@ -0,0 +1,102 @@
+package se.magnus.microservices.core.journey;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static se.magnus.api.event.Event.Type.CREATE;
+import static se.magnus.api.event.Event.Type.DELETE;
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.cloud.stream.binder.test.InputDestination;
+import org.springframework.cloud.stream.binder.test.TestChannelBinderConfiguration;
+import org.springframework.context.annotation.Import;
+import org.springframework.messaging.support.MessageBuilder;
+import se.magnus.api.core.journey.Journey;
+import se.magnus.api.event.Event;
+import se.magnus.microservices.core.journey.persistence.TrajectoryEntity;
+import se.magnus.microservices.core.journey.persistence.TrajectoryRepository;
+
+@SpringBootTest(properties = "app.messaging.batchSize=3")
+@Import(TestChannelBinderConfiguration.class)
+class MessagingTests extends MongoDbTestBase {
+
+  private static final long START = 1699614600000L;
+
+  @Autowired
+  private InputDestination input;
+
+  @Autowired
+  private TrajectoryRepository repository;
+
+  @BeforeEach
+  void setupDb() {
+    repository.deleteAll().block();
+  }
+
+  @Test
+  void appendJourneysInBatches() {
+    for (int i = 0; i < 7; i++) {
+      sendCreateEvent("reid-00" + (i % 2), START + i * 1000, "zone-" + i);
+    }
+
+    await(() -> eventCount("reid-000") == 4 && eventCount("reid-001") == 3);
+    TrajectoryEntity trajectory = repository.findById("reid-000").block();
+    assertEquals(START, trajectory.getFirstSeen());
+    assertEquals(START + 6000, trajectory.getLastSeen());
+    assertEquals("zone-4", trajectory.getSteps().get(2).getZoneId());
+  }
+
+  @Test
+  void skipsRedeliveredEvents() {
+    sendCreateEvent("reid-001", START, "zone-1");
+    sendCreateEvent("reid-001", START + 1000, "zone-2");
+    await(() -> eventCount("reid-001") == 2);
+
+    sendCreateEvent("reid-001", START, "zone-1");
+    sendCreateEvent("reid-001", START + 2000, "zone-3");
+    await(() -> eventCount("reid-001") == 3);
+    assertEquals(3, repository.findById("reid-001").block().getSteps().size());
+  }
+
+  @Test
+  void deleteJourneysInOrder() {
+    sendCreateEvent("reid-001", START, "zone-1");
+    sendCreateEvent("reid-002", START, "zone-1");
+    sendDeleteEvent("reid-001");
+    sendCreateEvent("reid-003", START, "zone-1");
+    sendDeleteEvent("reid-003");
+
+    await(() -> repository.count().block() == 1 && eventCount("reid-002") == 1);
+  }
+
+  private long eventCount(String reid) {
+    TrajectoryEntity trajectory = repository.findById(reid).block();
+    return trajectory == null ? 0 : trajectory.getEventCount();
+  }
+
+  private void sendCreateEvent(String reid, long timestamp, String zoneId) {
+    Journey journey = new Journey(reid, timestamp, "uuid-" + timestamp, "camera-001", "Zone", zoneId, "enter", "hw-001");
+    send(new Event(CREATE, reid, journey));
+  }
+
+  private void sendDeleteEvent(String reid) {
+    send(new Event(DELETE, reid, null));
+  }
+
+  private void send(Event event) {
+    input.send(MessageBuilder.withPayload(event).build(), "journey");
+  }
+
+  private void await(BooleanSupplier condition) {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!condition.getAsBoolean()) {
+      if (System.currentTimeMillis() > deadline) {
+        throw new AssertionError("Events not processed within 5 s");
+      }
+      LockSupport.parkNanos(20_000_000);
+    }
+  }
+}
@@ -9,9 +9,11 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.web.filter.reactive.ServerWebExchangeContextFilter;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import reactor.core.scheduler.Scheduler;
-import reactor.core.scheduler.Schedulers;
+import se.magnus.util.metrics.SchedulerMetrics;
 
 @SpringBootApplication
 @ComponentScan("se.magnus")
@@ -31,10 +33,22 @@ public class LprServiceApplication {
     this.taskQueueSize = taskQueueSize;
   }
 
+  /**
+   * Reports its busy threads and queued tasks as lpr.jdbc.scheduler.*, see SchedulerMetrics.
+   */
   @Bean
-  public Scheduler jdbcScheduler() {
+  public Scheduler jdbcScheduler(MeterRegistry registry) {
     LOG.info("Creates a jdbcScheduler with thread pool size = {}", threadPoolSize);
-    return Schedulers.newBoundedElastic(threadPoolSize, taskQueueSize, "jdbc-pool");
+    return SchedulerMetrics.newTimedBoundedElastic(registry, "lpr.jdbc", threadPoolSize, taskQueueSize, "jdbc-pool");
+  }
+
+  /**
+   * Exposes the current exchange in the Reactor context, used to set paging headers
+   * from the service implementation.
+   */
+  @Bean
+  public ServerWebExchangeContextFilter serverWebExchangeContextFilter() {
+    return new ServerWebExchangeContextFilter();
   }
 
   public static void main(String[] args) {
@@ -0,0 +1,67 @@
+package se.magnus.microservices.core.lpr.persistence;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.stereotype.Component;
+
+@Component
+@Profile("!partitioned")
+public class JpaLicencePlateBulkStore implements LicencePlateBulkStore {
+
+  private static final int OBJECT_UUID_PAGE_SIZE = 10_000;
+
+  private final LicencePlateRepository repository;
+
+  @Autowired
+  public JpaLicencePlateBulkStore(LicencePlateRepository repository) {
+    this.repository = repository;
+  }
+
+  @Override
+  public List<String> findExistingObjectUuids(Collection<LicencePlateEntity> candidates) {
+    List<String> objectUuids = candidates.stream().map(LicencePlateEntity::getObjectUuid).filter(Objects::nonNull).toList();
+    return objectUuids.isEmpty() ? List.of() : repository.findExistingObjectUuids(objectUuids);
+  }
+
+  @Override
+  public void saveAll(List<LicencePlateEntity> entities) {
+    repository.saveAll(entities);
+  }
+
+  @Override
+  public List<LicencePlateEntity> deleteByObjectUuidIn(Collection<String> objectUuids) {
+    List<LicencePlateEntity> entities = repository.findByObjectUuidIn(objectUuids);
+    repository.deleteAllInBatch(entities);
+    return entities;
+  }
+
+  @Override
+  public List<LicencePlateEntity> findNewestByPlateNums(List<String> plateNums, int limit) {
+    return repository.findByPlateNumIn(plateNums, PageRequest.of(0, limit, Sort.by("unixTime", "id").descending()));
+  }
+
+  @Override
+  public List<String> findDistinctPlateNums() {
+    return repository.findDistinctPlateNums();
+  }
+
+  /**
+   * Pages through the table in id order, so the whole table is never held in memory.
+   */
+  @Override
+  public void forEachObjectUuid(Consumer<String> consumer) {
+    long afterId = 0;
+    List<LicencePlateRepository.ObjectUuidRow> rows;
+    do {
+      rows = repository.findObjectUuidsAfterId(afterId, PageRequest.of(0, OBJECT_UUID_PAGE_SIZE));
+      rows.forEach(row -> consumer.accept(row.getObjectUuid()));
+      afterId = rows.isEmpty() ? afterId : rows.get(rows.size() - 1).getId();
+    } while (!rows.isEmpty());
+  }
+}
@@ -0,0 +1,59 @@
+package se.magnus.microservices.core.lpr.persistence;
+
+import java.util.List;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+
+@Component
+@Profile("!r2dbc & !partitioned")
+public class JpaLicencePlateStore implements LicencePlateStore {
+
+  private final Scheduler jdbcScheduler;
+  private final LicencePlateRepository repository;
+  private final TrafficStatsStore statsStore;
+  private final TransactionTemplate transactionTemplate;
+
+  @Autowired
+  public JpaLicencePlateStore(@Qualifier("jdbcScheduler") Scheduler jdbcScheduler, LicencePlateRepository repository,
+    TrafficStatsStore statsStore, PlatformTransactionManager transactionManager) {
+
+    this.jdbcScheduler = jdbcScheduler;
+    this.repository = repository;
+    this.statsStore = statsStore;
+    this.transactionTemplate = new TransactionTemplate(transactionManager);
+  }
+
+  /**
+   * Flushes the insert before the stats are written, so a duplicate fails before it is counted.
+   */
+  @Override
+  public Mono<LicencePlateEntity> save(LicencePlateEntity entity) {
+    return Mono.fromCallable(() -> transactionTemplate.execute(status -> {
+      LicencePlateEntity saved = repository.saveAndFlush(entity);
+      statsStore.record(List.of(saved));
+      return saved;
+    }))
+      .subscribeOn(jdbcScheduler);
+  }
+
+  @Override
+  public Mono<Boolean> exists(LicencePlateEntity entity) {
+    return Mono.fromCallable(() -> repository.existsByObjectUuid(entity.getObjectUuid()))
+      .subscribeOn(jdbcScheduler);
+  }
+
+  @Override
+  public Flux<LicencePlateEntity> findPageBySourceId(String sourceId, long afterTime, long afterId, long endTime, int limit) {
+    return Mono.fromCallable(() -> repository.findPageBySourceId(sourceId, afterTime, afterId, endTime, PageRequest.of(0, limit)))
+      .flatMapMany(Flux::fromIterable)
+      .subscribeOn(jdbcScheduler);
+  }
+}
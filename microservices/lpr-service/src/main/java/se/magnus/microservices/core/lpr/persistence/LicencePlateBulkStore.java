@@ -0,0 +1,77 @@
+package se.magnus.microservices.core.lpr.persistence;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Blocking persistence used by the batch inserts and deletes, the plate search and the
+ * startup loads, always called on the jdbcScheduler.
+ *
+ * The default implementation uses the JPA repository, the partitioned profile selects an
+ * implementation on top of daily tables.
+ */
+public interface LicencePlateBulkStore {
+
+  /**
+   * Plate numbers per query of findByPlateNumIn, longer lists are read in chunks
+   */
+  int PLATE_NUMS_PER_QUERY = 500;
+
+  /**
+   * Find which of the candidates' object UUIDs are already stored
+   */
+  List<String> findExistingObjectUuids(Collection<LicencePlateEntity> candidates);
+
+  /**
+   * Insert the licence plates in one transaction, fails with a DataIntegrityViolationException on a duplicate object UUID
+   */
+  void saveAll(List<LicencePlateEntity> entities);
+
+  /**
+   * Delete the licence plates having any of the given object UUIDs, returns the deleted ones
+   */
+  List<LicencePlateEntity> deleteByObjectUuidIn(Collection<String> objectUuids);
+
+  /**
+   * Find the newest licence plates having any of the given plate numbers, newest first.
+   *
+   * A fuzzy search can match thousands of plate numbers, so they are read PLATE_NUMS_PER_QUERY
+   * at a time, each query limited to the page, and the newest of all are kept.
+   */
+  default List<LicencePlateEntity> findByPlateNumIn(Collection<String> plateNums, int limit) {
+    List<String> all = new ArrayList<>(plateNums);
+    if (all.size() <= PLATE_NUMS_PER_QUERY) {
+      return findNewestByPlateNums(all, limit);
+    }
+
+    Comparator<LicencePlateEntity> newestFirst = Comparator.comparingLong(LicencePlateEntity::getUnixTime)
+      .thenComparing(LicencePlateEntity::getId).reversed();
+    List<LicencePlateEntity> newest = new ArrayList<>();
+    for (int from = 0; from < all.size(); from += PLATE_NUMS_PER_QUERY) {
+      newest.addAll(findNewestByPlateNums(all.subList(from, Math.min(from + PLATE_NUMS_PER_QUERY, all.size())), limit));
+      newest.sort(newestFirst);
+      if (newest.size() > limit) {
+        newest.subList(limit, newest.size()).clear();
+      }
+    }
+    return newest;
+  }
+
+  /**
+   * Find the newest licence plates having any of at most PLATE_NUMS_PER_QUERY plate numbers, newest first
+   */
+  List<LicencePlateEntity> findNewestByPlateNums(List<String> plateNums, int limit);
+
+  /**
+   * Find all distinct plate numbers, used to build the search index at startup
+   */
+  List<String> findDistinctPlateNums();
+
+  /**
+   * Pass every stored object UUID to the consumer, used to build the object UUID filter at startup
+   */
+  void forEachObjectUuid(Consumer<String> consumer);
+}
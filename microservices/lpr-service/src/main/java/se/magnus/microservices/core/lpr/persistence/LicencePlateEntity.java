@@ -10,6 +10,7 @@ import jakarta.persistence.GeneratedValue;
 import jakarta.persistence.GenerationType;
 import jakarta.persistence.Id;
 import jakarta.persistence.Index;
+import jakarta.persistence.SequenceGenerator;
 import jakarta.persistence.Table;
 import jakarta.persistence.Version;
 import lombok.AllArgsConstructor;
@@ -20,7 +21,7 @@ import lombok.NoArgsConstructor;
 @Table(
   name = "licence_plates",
   indexes = {
-    @Index(name = "idx_source_id", columnList = "sourceId"),
+    @Index(name = "idx_source_id_unix_time_id", columnList = "sourceId, unixTime, id"),
     @Index(name = "idx_object_uuid", columnList = "objectUuid", unique = true),
     @Index(name = "idx_plate_num", columnList = "plateNum"),
     @Index(name = "idx_unix_time", columnList = "unixTime")
@@ -31,8 +32,12 @@ import lombok.NoArgsConstructor;
 @AllArgsConstructor
 public class LicencePlateEntity {
 
+  // A pooled sequence instead of IDENTITY, since IDENTITY forces Hibernate to insert
+  // every row immediately to learn its id and thereby disables JDBC batching.
+  // The allocation size should match hibernate.jdbc.batch_size.
   @Id
-  @GeneratedValue(strategy = GenerationType.IDENTITY)
+  @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "licence_plate_seq")
+  @SequenceGenerator(name = "licence_plate_seq", sequenceName = "licence_plate_seq", allocationSize = 50)
   private Long id;
 
   private String sourceId;
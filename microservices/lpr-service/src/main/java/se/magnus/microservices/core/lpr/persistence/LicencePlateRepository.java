@@ -1,8 +1,12 @@
 package se.magnus.microservices.core.lpr.persistence;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 @Repository
@@ -18,16 +22,48 @@ public interface LicencePlateRepository extends JpaRepository<LicencePlateEntity
    */
   Optional<LicencePlateEntity> findByObjectUuid(String objectUuid);
 
+  /**
+   * Find the licence plates having any of the given object UUIDs
+   */
+  List<LicencePlateEntity> findByObjectUuidIn(Collection<String> objectUuids);
+
   /**
    * Find all licence plates by plate number
    */
   List<LicencePlateEntity> findByPlateNum(String plateNum);
 
+  /**
+   * Find a page of licence plates having any of the given plate numbers
+   */
+  List<LicencePlateEntity> findByPlateNumIn(Collection<String> plateNums, Pageable pageable);
+
+  /**
+   * Find all distinct plate numbers, used to build the search index at startup
+   */
+  @Query("SELECT DISTINCT l.plateNum FROM LicencePlateEntity l WHERE l.plateNum IS NOT NULL")
+  List<String> findDistinctPlateNums();
+
   /**
    * Find all licence plates by source ID within a time range
    */
   List<LicencePlateEntity> findBySourceIdAndUnixTimeBetween(String sourceId, long startTime, long endTime);
 
+  /**
+   * Find the next page of licence plates by source ID, ordered by (unixTime, id) and
+   * starting right after the given keyset position. Served by idx_source_id_unix_time_id
+   * as a range scan, so the cost of a page does not depend on how deep it is.
+   */
+  @Query("SELECT l FROM LicencePlateEntity l WHERE l.sourceId = :sourceId"
+    + " AND l.unixTime >= :afterTime AND l.unixTime <= :endTime"
+    + " AND (l.unixTime > :afterTime OR l.id > :afterId)"
+    + " ORDER BY l.unixTime ASC, l.id ASC")
+  List<LicencePlateEntity> findPageBySourceId(
+    @Param("sourceId") String sourceId,
+    @Param("afterTime") long afterTime,
+    @Param("afterId") long afterId,
+    @Param("endTime") long endTime,
+    Pageable pageable);
+
   /**
    * Find all licence plates within a time range
    */
@@ -42,5 +78,23 @@ public interface LicencePlateRepository extends JpaRepository<LicencePlateEntity
    * Check if a licence plate exists by object UUID
    */
   boolean existsByObjectUuid(String objectUuid);
+
+  /**
+   * Find which of the given object UUIDs already exist, in a single query
+   */
+  @Query("SELECT l.objectUuid FROM LicencePlateEntity l WHERE l.objectUuid IN :objectUuids")
+  List<String> findExistingObjectUuids(@Param("objectUuids") Collection<String> objectUuids);
+
+  /**
+   * Find the next page of object UUIDs in id order, used to build the object UUID filter at startup
+   */
+  @Query("SELECT l.id AS id, l.objectUuid AS objectUuid FROM LicencePlateEntity l WHERE l.id > :afterId ORDER BY l.id ASC")
+  List<ObjectUuidRow> findObjectUuidsAfterId(@Param("afterId") long afterId, Pageable pageable);
+
+  interface ObjectUuidRow {
+    Long getId();
+
+    String getObjectUuid();
+  }
 }
 
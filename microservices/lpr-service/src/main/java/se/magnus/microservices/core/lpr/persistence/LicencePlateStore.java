@@ -0,0 +1,30 @@
+package se.magnus.microservices.core.lpr.persistence;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Reactive persistence used by the single-plate create and the paged read endpoints.
+ *
+ * The default implementation runs the blocking JPA repository on the jdbcScheduler,
+ * the r2dbc profile selects a non-blocking implementation on top of R2DBC, and the
+ * partitioned profile one on top of daily tables.
+ */
+public interface LicencePlateStore {
+
+  /**
+   * Insert a new licence plate and add it to the traffic stats in one transaction, fails with a
+   * DataIntegrityViolationException on a duplicate object UUID
+   */
+  Mono<LicencePlateEntity> save(LicencePlateEntity entity);
+
+  /**
+   * Check if the object UUID of a licence plate is already stored
+   */
+  Mono<Boolean> exists(LicencePlateEntity entity);
+
+  /**
+   * Find a page of licence plates by source ID, see LicencePlateRepository.findPageBySourceId
+   */
+  Flux<LicencePlateEntity> findPageBySourceId(String sourceId, long afterTime, long afterId, long endTime, int limit);
+}
@@ -0,0 +1,468 @@
+package se.magnus.microservices.core.lpr.persistence;
+
+import static java.time.format.DateTimeFormatter.BASIC_ISO_DATE;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import se.magnus.api.exceptions.InvalidInputException;
+import se.magnus.microservices.core.lpr.persistence.LicencePlateEntity.BoundingBoxEmbeddable;
+
+/**
+ * Stores licence plates in one table per UTC day of their unixTime, selected with the
+ * partitioned profile.
+ *
+ * A day's table, licence_plates_yyyymmdd, is created on the first insert for that day, with
+ * the columns and indexes of licence_plates. Queries for a time range only read the tables of
+ * the days in that range, and the indexes of a table only cover one day of detections.
+ * Retention drops the tables of the days older than app.partitioning.retention as a whole,
+ * and detections of those days are rejected rather than stored in a table about to be dropped.
+ * The tables are only used under the read lock of partitionLock and dropped under its write
+ * lock, and are created in a transaction of their own, since DDL commits the current one.
+ *
+ * The unique constraint on the object UUID only covers the table of one day. Across days,
+ * findExistingObjectUuids probes every table, which is what createLpr and createLprs check a
+ * detection against when the object UUID filter may have seen it before. Two detections with
+ * the same object UUID inserted at the same time into different days are therefore both kept.
+ * Ids still come from the licence_plate_seq sequence of the JPA entity, so they are unique
+ * across all tables. Like the r2dbc profile, the SQL is written for H2.
+ */
+@Component
+@Profile("partitioned")
+public class PartitionedLicencePlateStore implements LicencePlateStore, LicencePlateBulkStore, DisposableBean {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PartitionedLicencePlateStore.class);
+
+  static final String TABLE_PREFIX = "licence_plates_";
+  private static final long DAY_MILLIS = Duration.ofDays(1).toMillis();
+
+  private static final String COLUMNS = "id, version, source_id, object_uuid, plate_num, ntp_time, unix_time, "
+    + "vehicle_bbox_x, vehicle_bbox_y, vehicle_bbox_width, vehicle_bbox_height, "
+    + "plate_bbox_x, plate_bbox_y, plate_bbox_width, plate_bbox_height";
+
+  private static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS %1$s ("
+    + "id BIGINT NOT NULL PRIMARY KEY, version INT NOT NULL, "
+    + "source_id VARCHAR(255), object_uuid VARCHAR(255), plate_num VARCHAR(255), ntp_time VARCHAR(255), "
+    + "unix_time BIGINT NOT NULL, "
+    + "vehicle_bbox_x INT, vehicle_bbox_y INT, vehicle_bbox_width INT, vehicle_bbox_height INT, "
+    + "plate_bbox_x INT, plate_bbox_y INT, plate_bbox_width INT, plate_bbox_height INT, "
+    + "CONSTRAINT uk_%1$s_object_uuid UNIQUE (object_uuid))";
+
+  // No index on unix_time alone, the table itself is the time bucket
+  private static final String[] CREATE_INDEXES = {
+    "CREATE INDEX IF NOT EXISTS idx_%1$s_source_id_unix_time_id ON %1$s (source_id, unix_time, id)",
+    "CREATE INDEX IF NOT EXISTS idx_%1$s_plate_num ON %1$s (plate_num)"
+  };
+
+  private static final String INSERT = "INSERT INTO %s (" + COLUMNS + ") VALUES ("
+    + ":id, 0, :sourceId, :objectUuid, :plateNum, :ntpTime, :unixTime, "
+    + ":vehicleX, :vehicleY, :vehicleWidth, :vehicleHeight, "
+    + ":plateX, :plateY, :plateWidth, :plateHeight)";
+
+  private static final String SELECT_PAGE = "SELECT " + COLUMNS + " FROM %s"
+    + " WHERE source_id = :sourceId AND unix_time >= :afterTime AND unix_time <= :endTime"
+    + " AND (unix_time > :afterTime OR id > :afterId)"
+    + " ORDER BY unix_time ASC, id ASC LIMIT :limit";
+
+  private static final String NEXT_IDS = "SELECT NEXT VALUE FOR licence_plate_seq FROM SYSTEM_RANGE(1, ?)";
+
+  private final JdbcTemplate jdbc;
+  private final NamedParameterJdbcTemplate namedJdbc;
+  private final TrafficStatsStore statsStore;
+  private final TransactionTemplate transactionTemplate;
+  private final TransactionTemplate ddlTemplate;
+  private final Scheduler jdbcScheduler;
+  private final long retentionMillis;
+  private final LongSupplier clock;
+
+  // Epoch day to table name, in time order
+  private final NavigableMap<Long, String> partitions = new ConcurrentSkipListMap<>();
+  private final ReentrantReadWriteLock partitionLock = new ReentrantReadWriteLock();
+  private final Disposable retentionTask;
+
+  @Autowired
+  public PartitionedLicencePlateStore(
+    JdbcTemplate jdbc,
+    TrafficStatsStore statsStore,
+    PlatformTransactionManager transactionManager,
+    @Qualifier("jdbcScheduler") Scheduler jdbcScheduler,
+    @Value("${app.partitioning.retention:30d}") Duration retention,
+    @Value("${app.partitioning.retentionCheckInterval:1h}") Duration retentionCheckInterval,
+    MeterRegistry registry
+  ) {
+    this(jdbc, statsStore, transactionManager, jdbcScheduler, retention, retentionCheckInterval, registry, System::currentTimeMillis);
+  }
+
+  public PartitionedLicencePlateStore(JdbcTemplate jdbc, TrafficStatsStore statsStore, PlatformTransactionManager transactionManager,
+    Scheduler jdbcScheduler, Duration retention, Duration retentionCheckInterval, MeterRegistry registry, LongSupplier clock) {
+
+    LOG.info("Creates a partitioned licence plate store with daily tables, retention = {}", retention);
+
+    this.jdbc = jdbc;
+    this.namedJdbc = new NamedParameterJdbcTemplate(jdbc);
+    this.statsStore = statsStore;
+    this.transactionTemplate = new TransactionTemplate(transactionManager);
+    this.ddlTemplate = new TransactionTemplate(transactionManager);
+    this.ddlTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    this.jdbcScheduler = jdbcScheduler;
+    this.retentionMillis = retention.toMillis();
+    this.clock = clock;
+
+    loadPartitions();
+    Gauge.builder("lpr.partitions", partitions, Map::size)
+      .description("Daily licence plate tables").register(registry);
+
+    long interval = retentionCheckInterval.toMillis();
+    this.retentionTask = jdbcScheduler.schedulePeriodically(this::runRetention, interval, interval, MILLISECONDS);
+  }
+
+  @Override
+  public void destroy() {
+    retentionTask.dispose();
+  }
+
+  @Override
+  public Mono<LicencePlateEntity> save(LicencePlateEntity entity) {
+    return Mono.fromCallable(() -> {
+      transactionTemplate.executeWithoutResult(status -> {
+        saveAll(List.of(entity));
+        statsStore.record(List.of(entity));
+      });
+      return entity;
+    }).subscribeOn(jdbcScheduler);
+  }
+
+  @Override
+  public Mono<Boolean> exists(LicencePlateEntity entity) {
+    return Mono.fromCallable(() -> !findExistingObjectUuids(List.of(entity)).isEmpty())
+      .subscribeOn(jdbcScheduler);
+  }
+
+  /**
+   * Reads the tables of the days in the range in time order, until the page is full.
+   */
+  @Override
+  public Flux<LicencePlateEntity> findPageBySourceId(String sourceId, long afterTime, long afterId, long endTime, int limit) {
+    return Mono.fromCallable(() -> withPartitions(() -> {
+      List<LicencePlateEntity> page = new ArrayList<>(limit);
+      for (String table : partitionsBetween(afterTime, endTime).values()) {
+        page.addAll(namedJdbc.query(SELECT_PAGE.formatted(table), new MapSqlParameterSource()
+          .addValue("sourceId", sourceId)
+          .addValue("afterTime", afterTime)
+          .addValue("afterId", afterId)
+          .addValue("endTime", endTime)
+          .addValue("limit", limit - page.size()),
+          (rs, rowNum) -> toEntity(rs)));
+        if (page.size() >= limit) {
+          break;
+        }
+      }
+      return page;
+    }))
+      .flatMapMany(Flux::fromIterable)
+      .subscribeOn(jdbcScheduler);
+  }
+
+  /**
+   * Probes every table, the unique constraint of a table only covers its own day.
+   */
+  @Override
+  public List<String> findExistingObjectUuids(Collection<LicencePlateEntity> candidates) {
+    Set<String> objectUuids = candidates.stream()
+      .map(LicencePlateEntity::getObjectUuid)
+      .filter(objectUuid -> objectUuid != null)
+      .collect(Collectors.toSet());
+    if (objectUuids.isEmpty()) {
+      return List.of();
+    }
+
+    MapSqlParameterSource parameters = new MapSqlParameterSource("objectUuids", objectUuids);
+    return withPartitions(() -> {
+      List<String> existing = new ArrayList<>();
+      for (String table : partitions.values()) {
+        existing.addAll(namedJdbc.queryForList("SELECT object_uuid FROM " + table + " WHERE object_uuid IN (:objectUuids)",
+          parameters, String.class));
+      }
+      return existing;
+    });
+  }
+
+  /**
+   * Fails with an InvalidInputException if a detection is older than the retention period.
+   */
+  @Override
+  public void saveAll(List<LicencePlateEntity> entities) {
+    if (entities.isEmpty()) {
+      return;
+    }
+
+    Map<Long, List<LicencePlateEntity>> entitiesByDay = entities.stream()
+      .collect(Collectors.groupingBy(entity -> day(entity.getUnixTime())));
+    withPartitions(() -> {
+      long firstKeptDay = firstKeptDay();
+      entities.stream().filter(entity -> day(entity.getUnixTime()) < firstKeptDay).findFirst().ifPresent(entity -> {
+        throw new InvalidInputException("Detection older than the retention period, Object UUID: " + entity.getObjectUuid()
+          + ", unixTime: " + entity.getUnixTime());
+      });
+      entitiesByDay.keySet().forEach(this::createPartition);
+
+      transactionTemplate.executeWithoutResult(status -> {
+        List<Long> ids = jdbc.queryForList(NEXT_IDS, Long.class, entities.size());
+        for (int i = 0; i < entities.size(); i++) {
+          entities.get(i).setId(ids.get(i));
+          entities.get(i).setVersion(0);
+        }
+
+        entitiesByDay.forEach((day, dayEntities) -> namedJdbc.batchUpdate(INSERT.formatted(partitions.get(day)),
+          dayEntities.stream().map(PartitionedLicencePlateStore::toParameters).toArray(SqlParameterSource[]::new)));
+      });
+      return null;
+    });
+  }
+
+  /**
+   * Probes every table, a delete event only carries the object UUID.
+   */
+  @Override
+  public List<LicencePlateEntity> deleteByObjectUuidIn(Collection<String> objectUuids) {
+    if (objectUuids.isEmpty()) {
+      return List.of();
+    }
+
+    MapSqlParameterSource parameters = new MapSqlParameterSource("objectUuids", objectUuids);
+    return withPartitions(() -> transactionTemplate.execute(status -> {
+      List<LicencePlateEntity> deleted = new ArrayList<>();
+      for (String table : partitions.values()) {
+        List<LicencePlateEntity> entities = namedJdbc.query("SELECT " + COLUMNS + " FROM " + table + " WHERE object_uuid IN (:objectUuids)",
+          parameters, (rs, rowNum) -> toEntity(rs));
+        if (!entities.isEmpty()) {
+          namedJdbc.update("DELETE FROM " + table + " WHERE object_uuid IN (:objectUuids)", parameters);
+          deleted.addAll(entities);
+        }
+      }
+      return deleted;
+    }));
+  }
+
+  /**
+   * Reads the tables from the newest day backwards, until the limit is reached.
+   */
+  @Override
+  public List<LicencePlateEntity> findNewestByPlateNums(List<String> plateNums, int limit) {
+    return withPartitions(() -> {
+      List<LicencePlateEntity> entities = new ArrayList<>(limit);
+      for (String table : partitions.descendingMap().values()) {
+        entities.addAll(namedJdbc.query("SELECT " + COLUMNS + " FROM " + table
+          + " WHERE plate_num IN (:plateNums) ORDER BY unix_time DESC, id DESC LIMIT :limit",
+          new MapSqlParameterSource("plateNums", plateNums).addValue("limit", limit - entities.size()),
+          (rs, rowNum) -> toEntity(rs)));
+        if (entities.size() >= limit) {
+          break;
+        }
+      }
+      return entities;
+    });
+  }
+
+  @Override
+  public List<String> findDistinctPlateNums() {
+    return withPartitions(() -> {
+      Set<String> plateNums = new HashSet<>();
+      for (String table : partitions.values()) {
+        plateNums.addAll(jdbc.queryForList("SELECT DISTINCT plate_num FROM " + table + " WHERE plate_num IS NOT NULL", String.class));
+      }
+      return new ArrayList<>(plateNums);
+    });
+  }
+
+  @Override
+  public void forEachObjectUuid(Consumer<String> consumer) {
+    withPartitions(() -> {
+      for (String table : partitions.values()) {
+        jdbc.query("SELECT object_uuid FROM " + table, rs -> {
+          consumer.accept(rs.getString(1));
+        });
+      }
+      return null;
+    });
+  }
+
+  /**
+   * Drops the tables of the days that lie completely before the retention period.
+   *
+   * @return the number of dropped tables
+   */
+  public int dropExpiredPartitions() {
+    Lock lock = partitionLock.writeLock();
+    lock.lock();
+    try {
+      long firstKeptDay = firstKeptDay();
+      int dropped = 0;
+      for (Map.Entry<Long, String> partition : partitions.headMap(firstKeptDay, false).entrySet()) {
+        ddlTemplate.executeWithoutResult(status -> jdbc.execute("DROP TABLE IF EXISTS " + partition.getValue()));
+        partitions.remove(partition.getKey());
+        dropped++;
+        LOG.info("Dropped expired partition {}", partition.getValue());
+      }
+      return dropped;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public List<String> getPartitions() {
+    return new ArrayList<>(partitions.values());
+  }
+
+  private void runRetention() {
+    try {
+      dropExpiredPartitions();
+    } catch (RuntimeException ex) {
+      LOG.warn("Failed to drop expired partitions: {}", ex.toString());
+    }
+  }
+
+  /**
+   * Runs the action under the read lock, so that no table is dropped meanwhile.
+   */
+  private <T> T withPartitions(Supplier<T> action) {
+    Lock lock = partitionLock.readLock();
+    lock.lock();
+    try {
+      return action.get();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private long firstKeptDay() {
+    return day(clock.getAsLong() - retentionMillis);
+  }
+
+  private NavigableMap<Long, String> partitionsBetween(long startTime, long endTime) {
+    return startTime > endTime ? new ConcurrentSkipListMap<>() : partitions.subMap(day(startTime), true, day(endTime), true);
+  }
+
+  // Called under the read lock, concurrent calls for the same day only run the idempotent DDL twice
+  private void createPartition(long day) {
+    partitions.computeIfAbsent(day, d -> {
+      String table = TABLE_PREFIX + LocalDate.ofEpochDay(d).format(BASIC_ISO_DATE);
+      ddlTemplate.executeWithoutResult(status -> {
+        jdbc.execute(CREATE_TABLE.formatted(table));
+        for (String createIndex : CREATE_INDEXES) {
+          jdbc.execute(createIndex.formatted(table));
+        }
+      });
+      LOG.info("Created partition {}", table);
+      return table;
+    });
+  }
+
+  /**
+   * Picks up the tables created before this instance started.
+   */
+  private void loadPartitions() {
+    jdbc.execute((ConnectionCallback<Void>) connection -> {
+      DatabaseMetaData metaData = connection.getMetaData();
+      try (ResultSet tables = metaData.getTables(null, null, "%", new String[] {"TABLE"})) {
+        while (tables.next()) {
+          String table = tables.getString("TABLE_NAME").toLowerCase();
+          if (table.matches(TABLE_PREFIX + "\\d{8}")) {
+            partitions.put(LocalDate.parse(table.substring(TABLE_PREFIX.length()), BASIC_ISO_DATE).toEpochDay(), table);
+          }
+        }
+      }
+      return null;
+    });
+    LOG.info("Found {} existing partitions", partitions.size());
+  }
+
+  private static long day(long unixTime) {
+    return Math.floorDiv(unixTime, DAY_MILLIS);
+  }
+
+  private static SqlParameterSource toParameters(LicencePlateEntity entity) {
+    MapSqlParameterSource parameters = new MapSqlParameterSource()
+      .addValue("id", entity.getId())
+      .addValue("sourceId", entity.getSourceId())
+      .addValue("objectUuid", entity.getObjectUuid())
+      .addValue("plateNum", entity.getPlateNum())
+      .addValue("ntpTime", entity.getNtpTime())
+      .addValue("unixTime", entity.getUnixTime());
+    addBoundingBox(parameters, "vehicle", entity.getVehicleBbox());
+    addBoundingBox(parameters, "plate", entity.getPlateBbox());
+    return parameters;
+  }
+
+  private static void addBoundingBox(MapSqlParameterSource parameters, String prefix, BoundingBoxEmbeddable bbox) {
+    parameters
+      .addValue(prefix + "X", bbox != null ? bbox.getX() : null)
+      .addValue(prefix + "Y", bbox != null ? bbox.getY() : null)
+      .addValue(prefix + "Width", bbox != null ? bbox.getWidth() : null)
+      .addValue(prefix + "Height", bbox != null ? bbox.getHeight() : null);
+  }
+
+  private static LicencePlateEntity toEntity(ResultSet rs) throws SQLException {
+    return new LicencePlateEntity(
+      rs.getLong("id"),
+      rs.getString("source_id"),
+      rs.getString("object_uuid"),
+      toBoundingBox(rs, "vehicle"),
+      toBoundingBox(rs, "plate"),
+      rs.getString("plate_num"),
+      rs.getString("ntp_time"),
+      rs.getLong("unix_time"),
+      rs.getInt("version"));
+  }
+
+  private static BoundingBoxEmbeddable toBoundingBox(ResultSet rs, String prefix) throws SQLException {
+    int x = rs.getInt(prefix + "_bbox_x");
+    if (rs.wasNull()) {
+      return null;
+    }
+    return new BoundingBoxEmbeddable(
+      x,
+      rs.getInt(prefix + "_bbox_y"),
+      rs.getInt(prefix + "_bbox_width"),
+      rs.getInt(prefix + "_bbox_height"));
+  }
+}
@@ -0,0 +1,74 @@
+package se.magnus.microservices.core.lpr.persistence;
+
+import static io.r2dbc.spi.ConnectionFactoryOptions.PASSWORD;
+import static io.r2dbc.spi.ConnectionFactoryOptions.USER;
+
+import io.r2dbc.pool.ConnectionPool;
+import io.r2dbc.pool.ConnectionPoolConfiguration;
+import io.r2dbc.spi.ConnectionFactories;
+import io.r2dbc.spi.ConnectionFactoryOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import org.springframework.r2dbc.connection.R2dbcTransactionManager;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.transaction.reactive.TransactionalOperator;
+
+/**
+ * Sets up the R2DBC connection pool used by R2dbcLicencePlateStore.
+ *
+ * Spring Boot's R2DBC auto-configuration is not used, since a ConnectionFactory bean makes
+ * the DataSource auto-configuration back off, and JPA is still needed for the schema and the
+ * remaining endpoints. The pool is therefore kept private to this class.
+ *
+ * The JDBC pool is not replaced, only createLpr and getLprs go through R2DBC. createLpr stores
+ * a detection and its traffic stats in one R2DBC transaction, while the batch endpoint, the
+ * search index rebuild and the stats reads still use JDBC. The R2DBC transaction manager is
+ * not a bean either, only the TransactionalOperator built on it, so the JDBC transaction
+ * manager stays the only PlatformTransactionManager.
+ */
+@Configuration
+@Profile("r2dbc")
+public class R2dbcConfiguration implements DisposableBean {
+
+  private static final Logger LOG = LoggerFactory.getLogger(R2dbcConfiguration.class);
+
+  private final ConnectionPool connectionPool;
+
+  public R2dbcConfiguration(
+    @Value("${app.r2dbc.url}") String url,
+    @Value("${app.r2dbc.poolSize:10}") int poolSize,
+    @Value("${spring.datasource.username}") String username,
+    @Value("${spring.datasource.password:}") String password
+  ) {
+    LOG.info("Creates a R2DBC connection pool with size = {} for url = {}", poolSize, url);
+
+    ConnectionFactoryOptions options = ConnectionFactoryOptions.parse(url).mutate()
+      .option(USER, username)
+      .option(PASSWORD, password)
+      .build();
+    this.connectionPool = new ConnectionPool(ConnectionPoolConfiguration.builder(ConnectionFactories.get(options))
+      .initialSize(poolSize)
+      .maxSize(poolSize)
+      .build());
+  }
+
+  @Bean
+  public DatabaseClient r2dbcDatabaseClient() {
+    return DatabaseClient.create(connectionPool);
+  }
+
+  @Bean
+  public TransactionalOperator r2dbcTransactionalOperator() {
+    return TransactionalOperator.create(new R2dbcTransactionManager(connectionPool));
+  }
+
+  @Override
+  public void destroy() {
+    connectionPool.dispose();
+  }
+}
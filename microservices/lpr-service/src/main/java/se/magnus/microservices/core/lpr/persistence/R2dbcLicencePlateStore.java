@@ -0,0 +1,145 @@
+package se.magnus.microservices.core.lpr.persistence;
+
+import io.r2dbc.spi.Row;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import se.magnus.microservices.core.lpr.persistence.LicencePlateEntity.BoundingBoxEmbeddable;
+
+/**
+ * Non-blocking access to the licence_plates table, selected with the r2dbc profile.
+ *
+ * The schema, including the licence_plate_seq sequence, is still owned by the JPA entity.
+ * Every insert takes a value of its own from the sequence, which never overlaps with the
+ * id blocks Hibernate's pooled optimizer allocates from the same sequence. A detection and its
+ * traffic stats are stored in one reactive transaction, without a JDBC connection.
+ */
+@Component
+@Profile("r2dbc")
+public class R2dbcLicencePlateStore implements LicencePlateStore {
+
+  private static final String COLUMNS = "id, version, source_id, object_uuid, plate_num, ntp_time, unix_time, "
+    + "vehicle_bbox_x, vehicle_bbox_y, vehicle_bbox_width, vehicle_bbox_height, "
+    + "plate_bbox_x, plate_bbox_y, plate_bbox_width, plate_bbox_height";
+
+  private static final String INSERT = "INSERT INTO licence_plates (" + COLUMNS + ") VALUES ("
+    + ":id, 0, :sourceId, :objectUuid, :plateNum, :ntpTime, :unixTime, "
+    + ":vehicleX, :vehicleY, :vehicleWidth, :vehicleHeight, "
+    + ":plateX, :plateY, :plateWidth, :plateHeight)";
+
+  private static final String SELECT_PAGE = "SELECT " + COLUMNS + " FROM licence_plates"
+    + " WHERE source_id = :sourceId AND unix_time >= :afterTime AND unix_time <= :endTime"
+    + " AND (unix_time > :afterTime OR id > :afterId)"
+    + " ORDER BY unix_time ASC, id ASC LIMIT :limit";
+
+  private static final String EXISTS = "SELECT COUNT(*) FROM licence_plates WHERE object_uuid = :objectUuid";
+
+  private final DatabaseClient client;
+  private final R2dbcTrafficStatsStore statsStore;
+  private final TransactionalOperator transactionalOperator;
+
+  @Autowired
+  public R2dbcLicencePlateStore(DatabaseClient client, R2dbcTrafficStatsStore statsStore,
+    TransactionalOperator r2dbcTransactionalOperator) {
+
+    this.client = client;
+    this.statsStore = statsStore;
+    this.transactionalOperator = r2dbcTransactionalOperator;
+  }
+
+  @Override
+  public Mono<LicencePlateEntity> save(LicencePlateEntity entity) {
+    return client.sql("SELECT NEXT VALUE FOR licence_plate_seq")
+      .map(row -> row.get(0, Long.class))
+      .one()
+      .flatMap(id -> {
+        DatabaseClient.GenericExecuteSpec spec = client.sql(INSERT)
+          .bind("id", id)
+          .bind("unixTime", entity.getUnixTime());
+        spec = bindNullable(spec, "sourceId", entity.getSourceId(), String.class);
+        spec = bindNullable(spec, "objectUuid", entity.getObjectUuid(), String.class);
+        spec = bindNullable(spec, "plateNum", entity.getPlateNum(), String.class);
+        spec = bindNullable(spec, "ntpTime", entity.getNtpTime(), String.class);
+        spec = bindBoundingBox(spec, "vehicle", entity.getVehicleBbox());
+        spec = bindBoundingBox(spec, "plate", entity.getPlateBbox());
+
+        return spec.fetch().rowsUpdated().thenReturn(id);
+      })
+      .map(id -> {
+        entity.setId(id);
+        entity.setVersion(0);
+        return entity;
+      })
+      .flatMap(saved -> statsStore.record(saved).thenReturn(saved))
+      .as(transactionalOperator::transactional);
+  }
+
+  @Override
+  public Mono<Boolean> exists(LicencePlateEntity entity) {
+    return client.sql(EXISTS)
+      .bind("objectUuid", entity.getObjectUuid())
+      .map(row -> row.get(0, Long.class))
+      .one()
+      .map(count -> count > 0);
+  }
+
+  @Override
+  public Flux<LicencePlateEntity> findPageBySourceId(String sourceId, long afterTime, long afterId, long endTime, int limit) {
+    return client.sql(SELECT_PAGE)
+      .bind("sourceId", sourceId)
+      .bind("afterTime", afterTime)
+      .bind("afterId", afterId)
+      .bind("endTime", endTime)
+      .bind("limit", limit)
+      .map((row, metadata) -> toEntity(row))
+      .all();
+  }
+
+  private static LicencePlateEntity toEntity(Row row) {
+    return new LicencePlateEntity(
+      row.get("id", Long.class),
+      row.get("source_id", String.class),
+      row.get("object_uuid", String.class),
+      toBoundingBox(row, "vehicle"),
+      toBoundingBox(row, "plate"),
+      row.get("plate_num", String.class),
+      row.get("ntp_time", String.class),
+      row.get("unix_time", Long.class),
+      row.get("version", Integer.class));
+  }
+
+  private static BoundingBoxEmbeddable toBoundingBox(Row row, String prefix) {
+    Integer x = row.get(prefix + "_bbox_x", Integer.class);
+    if (x == null) {
+      return null;
+    }
+    return new BoundingBoxEmbeddable(
+      x,
+      row.get(prefix + "_bbox_y", Integer.class),
+      row.get(prefix + "_bbox_width", Integer.class),
+      row.get(prefix + "_bbox_height", Integer.class));
+  }
+
+  private static DatabaseClient.GenericExecuteSpec bindBoundingBox(DatabaseClient.GenericExecuteSpec spec, String prefix, BoundingBoxEmbeddable bbox) {
+    if (bbox == null) {
+      return spec
+        .bindNull(prefix + "X", Integer.class)
+        .bindNull(prefix + "Y", Integer.class)
+        .bindNull(prefix + "Width", Integer.class)
+        .bindNull(prefix + "Height", Integer.class);
+    }
+    return spec
+      .bind(prefix + "X", bbox.getX())
+      .bind(prefix + "Y", bbox.getY())
+      .bind(prefix + "Width", bbox.getWidth())
+      .bind(prefix + "Height", bbox.getHeight());
+  }
+
+  private static <T> DatabaseClient.GenericExecuteSpec bindNullable(DatabaseClient.GenericExecuteSpec spec, String name, T value, Class<T> type) {
+    return value != null ? spec.bind(name, value) : spec.bindNull(name, type);
+  }
+}
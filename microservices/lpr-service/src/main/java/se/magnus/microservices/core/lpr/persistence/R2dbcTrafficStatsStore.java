@@ -0,0 +1,109 @@
+package se.magnus.microservices.core.lpr.persistence;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import se.magnus.microservices.core.lpr.persistence.TrafficStatsStore.Granularity;
+
+/**
+ * Writes the traffic stats of a single detection through R2DBC, selected with the r2dbc profile.
+ *
+ * Uses the tables and the update scheme of TrafficStatsStore, which still creates the tables
+ * and serves the reads and the batches. The bucket rows are updated before their plates are
+ * counted and in the same order as there, so R2DBC and JDBC writers of a bucket still count its
+ * plates one after the other and do not deadlock. Joins the caller's reactive transaction.
+ */
+@Component
+@Profile("r2dbc")
+public class R2dbcTrafficStatsStore {
+
+  private static final String INSERT_PLATE = "INSERT INTO lpr_stats_plates (source_id, granularity, bucket_start, plate_num)"
+    + " SELECT CAST(:sourceId AS VARCHAR(255)), CAST(:granularity AS VARCHAR(8)), CAST(:bucketStart AS BIGINT),"
+    + " CAST(:plateNum AS VARCHAR(255))"
+    + " WHERE NOT EXISTS (SELECT 1 FROM lpr_stats_plates"
+    + " WHERE source_id = :sourceId AND granularity = :granularity AND bucket_start = :bucketStart AND plate_num = :plateNum)";
+
+  private static final String UPDATE_STATS = "UPDATE lpr_stats SET detections = detections + 1,"
+    + " first_seen = LEAST(first_seen, :unixTime), last_seen = GREATEST(last_seen, :unixTime)"
+    + " WHERE source_id = :sourceId AND granularity = :granularity AND bucket_start = :bucketStart";
+
+  private static final String INSERT_STATS = "INSERT INTO lpr_stats"
+    + " (source_id, granularity, bucket_start, detections, distinct_plates, first_seen, last_seen)"
+    + " VALUES (:sourceId, :granularity, :bucketStart, 1, 0, :unixTime, :unixTime)";
+
+  private static final String UPDATE_DISTINCT_PLATES = "UPDATE lpr_stats SET distinct_plates = distinct_plates + 1"
+    + " WHERE source_id = :sourceId AND granularity = :granularity AND bucket_start = :bucketStart";
+
+  // The lock order of TrafficStatsStore, for the buckets of one source
+  private static final List<Granularity> GRANULARITY_ORDER = Arrays.stream(Granularity.values())
+    .sorted(Comparator.comparing(Granularity::name))
+    .toList();
+
+  private final DatabaseClient client;
+
+  @Autowired
+  public R2dbcTrafficStatsStore(DatabaseClient client) {
+    this.client = client;
+  }
+
+  /**
+   * Adds the detection to the buckets it falls in, in the caller's transaction.
+   */
+  public Mono<Void> record(LicencePlateEntity entity) {
+    if (entity.getSourceId() == null) {
+      return Mono.empty();
+    }
+
+    Mono<Void> stats = Flux.fromIterable(GRANULARITY_ORDER)
+      .concatMap(granularity -> upsertStats(entity, granularity))
+      .then();
+    if (entity.getPlateNum() == null) {
+      return stats;
+    }
+    return stats.thenMany(Flux.fromIterable(GRANULARITY_ORDER)
+      .concatMap(granularity -> countPlate(entity, granularity)))
+      .then();
+  }
+
+  private Mono<Void> upsertStats(LicencePlateEntity entity, Granularity granularity) {
+    // Only the first detection of a bucket inserts its row
+    return updateStats(entity, granularity)
+      .flatMap(updated -> updated > 0 ? Mono.<Void>empty() : bucket(client.sql(INSERT_STATS), entity, granularity)
+        .bind("unixTime", entity.getUnixTime())
+        .fetch().rowsUpdated()
+        .then()
+        // A concurrent transaction inserted the row first, the insert waited for it to commit
+        .onErrorResume(DataIntegrityViolationException.class, ex -> updateStats(entity, granularity).then()));
+  }
+
+  private Mono<Long> updateStats(LicencePlateEntity entity, Granularity granularity) {
+    return bucket(client.sql(UPDATE_STATS), entity, granularity)
+      .bind("unixTime", entity.getUnixTime())
+      .fetch().rowsUpdated();
+  }
+
+  private Mono<Void> countPlate(LicencePlateEntity entity, Granularity granularity) {
+    return bucket(client.sql(INSERT_PLATE), entity, granularity)
+      .bind("plateNum", entity.getPlateNum())
+      .fetch().rowsUpdated()
+      .flatMap(inserted -> inserted > 0
+        ? bucket(client.sql(UPDATE_DISTINCT_PLATES), entity, granularity).fetch().rowsUpdated().then()
+        : Mono.<Void>empty());
+  }
+
+  private static DatabaseClient.GenericExecuteSpec bucket(DatabaseClient.GenericExecuteSpec spec, LicencePlateEntity entity,
+    Granularity granularity) {
+
+    return spec
+      .bind("sourceId", entity.getSourceId())
+      .bind("granularity", granularity.name())
+      .bind("bucketStart", granularity.bucketStart(entity.getUnixTime()));
+  }
+}
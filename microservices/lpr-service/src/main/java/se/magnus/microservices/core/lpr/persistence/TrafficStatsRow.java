@@ -0,0 +1,17 @@
+package se.magnus.microservices.core.lpr.persistence;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class TrafficStatsRow {
+  private String sourceId;
+  private long bucketStart;
+  private long count;
+  private long distinctPlates;
+  private long firstSeen;
+  private long lastSeen;
+}
@@ -0,0 +1,255 @@
+package se.magnus.microservices.core.lpr.persistence;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Per-source rollups of the stored detections, per minute, hour and day.
+ *
+ * Every bucket holds the number of detections, the number of distinct plates and the first
+ * and last unixTime seen. The buckets are updated as detections are stored, so reading the
+ * stats of a time range costs one row per bucket, however many detections it covers.
+ *
+ * Distinct plates can not be summed from smaller buckets, so every granularity keeps the set
+ * of plates it has counted in lpr_stats_plates, and a plate only adds to the bucket the first
+ * time it is inserted there. A transaction updates its bucket rows before it counts their
+ * plates, which locks them, so concurrent transactions count the plates of a bucket one after
+ * the other. The plate sets are only needed while a bucket still receives detections, so
+ * prunePlates drops them once their bucket has closed. A detection arriving later than that
+ * counts its plate as distinct again.
+ *
+ * The stats count detections as stored, deletes are not subtracted. The tables are created
+ * here rather than by Hibernate, since they are only written with batched upserts.
+ */
+@Component
+public class TrafficStatsStore {
+
+  private static final Logger LOG = LoggerFactory.getLogger(TrafficStatsStore.class);
+
+  public enum Granularity {
+    MINUTE(60_000L),
+    HOUR(3_600_000L),
+    DAY(86_400_000L);
+
+    private final long millis;
+
+    Granularity(long millis) {
+      this.millis = millis;
+    }
+
+    public long getMillis() {
+      return millis;
+    }
+
+    public long bucketStart(long unixTime) {
+      return Math.floorDiv(unixTime, millis) * millis;
+    }
+
+    /**
+     * Parses minute, hour or day, ignoring case, returns null for anything else.
+     */
+    public static Granularity parse(String value) {
+      for (Granularity granularity : values()) {
+        if (granularity.name().equalsIgnoreCase(value)) {
+          return granularity;
+        }
+      }
+      return null;
+    }
+  }
+
+  private static final String CREATE_STATS = "CREATE TABLE IF NOT EXISTS lpr_stats ("
+    + "source_id VARCHAR(255) NOT NULL, granularity VARCHAR(8) NOT NULL, bucket_start BIGINT NOT NULL, "
+    + "detections BIGINT NOT NULL, distinct_plates BIGINT NOT NULL, first_seen BIGINT NOT NULL, last_seen BIGINT NOT NULL, "
+    + "PRIMARY KEY (source_id, granularity, bucket_start))";
+
+  private static final String CREATE_PLATES = "CREATE TABLE IF NOT EXISTS lpr_stats_plates ("
+    + "source_id VARCHAR(255) NOT NULL, granularity VARCHAR(8) NOT NULL, bucket_start BIGINT NOT NULL, "
+    + "plate_num VARCHAR(255) NOT NULL, "
+    + "PRIMARY KEY (source_id, granularity, bucket_start, plate_num))";
+
+  // Inserts nothing if the plate is already counted, the update count tells which ones are new
+  private static final String INSERT_PLATE = "INSERT INTO lpr_stats_plates (source_id, granularity, bucket_start, plate_num)"
+    + " SELECT CAST(? AS VARCHAR(255)), CAST(? AS VARCHAR(8)), CAST(? AS BIGINT), CAST(? AS VARCHAR(255))"
+    + " WHERE NOT EXISTS (SELECT 1 FROM lpr_stats_plates"
+    + " WHERE source_id = ? AND granularity = ? AND bucket_start = ? AND plate_num = ?)";
+
+  private static final String UPDATE_STATS = "UPDATE lpr_stats SET detections = detections + ?,"
+    + " first_seen = LEAST(first_seen, ?), last_seen = GREATEST(last_seen, ?)"
+    + " WHERE source_id = ? AND granularity = ? AND bucket_start = ?";
+
+  private static final String INSERT_STATS = "INSERT INTO lpr_stats"
+    + " (source_id, granularity, bucket_start, detections, distinct_plates, first_seen, last_seen)"
+    + " VALUES (?, ?, ?, ?, 0, ?, ?)";
+
+  private static final String UPDATE_DISTINCT_PLATES = "UPDATE lpr_stats SET distinct_plates = distinct_plates + ?"
+    + " WHERE source_id = ? AND granularity = ? AND bucket_start = ?";
+
+  private static final String SELECT_STATS = "SELECT source_id, bucket_start, detections, distinct_plates, first_seen, last_seen"
+    + " FROM lpr_stats WHERE source_id = ? AND granularity = ? AND bucket_start BETWEEN ? AND ?"
+    + " ORDER BY bucket_start ASC";
+
+  private static final String DELETE_PLATES = "DELETE FROM lpr_stats_plates WHERE granularity = ? AND bucket_start <= ?";
+
+  // Rows are always locked in this order, so concurrent batches do not deadlock
+  private static final Comparator<BucketKey> KEY_ORDER = Comparator.comparing(BucketKey::sourceId)
+    .thenComparing(BucketKey::granularity)
+    .thenComparingLong(BucketKey::bucketStart);
+
+  private final JdbcTemplate jdbc;
+  private final TransactionTemplate transactionTemplate;
+
+  @Autowired
+  public TrafficStatsStore(JdbcTemplate jdbc, PlatformTransactionManager transactionManager) {
+    this.jdbc = jdbc;
+    this.transactionTemplate = new TransactionTemplate(transactionManager);
+
+    jdbc.execute(CREATE_STATS);
+    jdbc.execute(CREATE_PLATES);
+  }
+
+  /**
+   * Adds the detections to the buckets they fall in, in one transaction, or in the caller's
+   * transaction if there is one.
+   */
+  public void record(Collection<LicencePlateEntity> entities) {
+    Map<BucketKey, Bucket> buckets = new TreeMap<>(KEY_ORDER);
+    for (LicencePlateEntity entity : entities) {
+      if (entity.getSourceId() == null) {
+        continue;
+      }
+      for (Granularity granularity : Granularity.values()) {
+        BucketKey key = new BucketKey(entity.getSourceId(), granularity.name(), granularity.bucketStart(entity.getUnixTime()));
+        buckets.computeIfAbsent(key, k -> new Bucket()).add(entity.getUnixTime(), entity.getPlateNum());
+      }
+    }
+    if (buckets.isEmpty()) {
+      return;
+    }
+
+    transactionTemplate.executeWithoutResult(status -> {
+      upsertStats(buckets);
+      countNewPlates(buckets);
+      addNewPlates(buckets);
+    });
+    LOG.debug("Recorded {} detections in {} stats buckets", entities.size(), buckets.size());
+  }
+
+  /**
+   * Find the buckets of a source that start within the time range, in time order
+   */
+  public List<TrafficStatsRow> findStats(String sourceId, Granularity granularity, long startTime, long endTime) {
+    return jdbc.query(SELECT_STATS,
+      (rs, rowNum) -> new TrafficStatsRow(rs.getString("source_id"), rs.getLong("bucket_start"), rs.getLong("detections"),
+        rs.getLong("distinct_plates"), rs.getLong("first_seen"), rs.getLong("last_seen")),
+      sourceId, granularity.name(), granularity.bucketStart(startTime), endTime);
+  }
+
+  /**
+   * Drops the plate sets of the buckets that ended before the horizon, returns the number of
+   * plates dropped.
+   */
+  public int prunePlates(long horizon) {
+    int deleted = 0;
+    for (Granularity granularity : Granularity.values()) {
+      deleted += jdbc.update(DELETE_PLATES, granularity.name(), horizon - granularity.getMillis());
+    }
+    LOG.debug("Pruned {} plates of closed stats buckets", deleted);
+    return deleted;
+  }
+
+  private void countNewPlates(Map<BucketKey, Bucket> buckets) {
+    List<Object[]> args = new ArrayList<>();
+    List<Bucket> owners = new ArrayList<>();
+    buckets.forEach((key, bucket) -> bucket.plates.stream().sorted().forEach(plate -> {
+      args.add(new Object[] {
+        key.sourceId(), key.granularity(), key.bucketStart(), plate,
+        key.sourceId(), key.granularity(), key.bucketStart(), plate});
+      owners.add(bucket);
+    }));
+    if (args.isEmpty()) {
+      return;
+    }
+
+    int[] inserted = jdbc.batchUpdate(INSERT_PLATE, args);
+    for (int i = 0; i < inserted.length; i++) {
+      if (inserted[i] > 0) {
+        owners.get(i).newPlates++;
+      }
+    }
+  }
+
+  private void upsertStats(Map<BucketKey, Bucket> buckets) {
+    List<Map.Entry<BucketKey, Bucket>> entries = new ArrayList<>(buckets.entrySet());
+    int[] updated = jdbc.batchUpdate(UPDATE_STATS, entries.stream()
+      .map(e -> updateArgs(e.getKey(), e.getValue()))
+      .toList());
+
+    // Only the first detections of a bucket insert its row, so these are few and go one at a time
+    for (int i = 0; i < updated.length; i++) {
+      if (updated[i] == 0) {
+        BucketKey key = entries.get(i).getKey();
+        Bucket bucket = entries.get(i).getValue();
+        try {
+          jdbc.update(INSERT_STATS, key.sourceId(), key.granularity(), key.bucketStart(),
+            bucket.count, bucket.firstSeen, bucket.lastSeen);
+        } catch (DuplicateKeyException ex) {
+          // A concurrent transaction inserted the row first, the insert waited for it to commit
+          jdbc.update(UPDATE_STATS, updateArgs(key, bucket));
+        }
+      }
+    }
+  }
+
+  private void addNewPlates(Map<BucketKey, Bucket> buckets) {
+    List<Object[]> args = new ArrayList<>();
+    buckets.forEach((key, bucket) -> {
+      if (bucket.newPlates > 0) {
+        args.add(new Object[] {bucket.newPlates, key.sourceId(), key.granularity(), key.bucketStart()});
+      }
+    });
+    if (!args.isEmpty()) {
+      jdbc.batchUpdate(UPDATE_DISTINCT_PLATES, args);
+    }
+  }
+
+  private static Object[] updateArgs(BucketKey key, Bucket bucket) {
+    return new Object[] {
+      bucket.count, bucket.firstSeen, bucket.lastSeen,
+      key.sourceId(), key.granularity(), key.bucketStart()};
+  }
+
+  private record BucketKey(String sourceId, String granularity, long bucketStart) {
+  }
+
+  private static class Bucket {
+    private long count;
+    private long newPlates;
+    private long firstSeen = Long.MAX_VALUE;
+    private long lastSeen = Long.MIN_VALUE;
+    private final Set<String> plates = new HashSet<>();
+
+    void add(long unixTime, String plateNum) {
+      count++;
+      firstSeen = Math.min(firstSeen, unixTime);
+      lastSeen = Math.max(lastSeen, unixTime);
+      if (plateNum != null) {
+        plates.add(plateNum);
+      }
+    }
+  }
+}
@@ -0,0 +1,48 @@
+package se.magnus.microservices.core.lpr.services;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.Base64;
+import se.magnus.api.exceptions.InvalidInputException;
+
+/**
+ * Opaque keyset cursor for paging through the detections of a source.
+ *
+ * The token encodes the (unixTime, id) of the last returned row so the next page can
+ * continue with an index range scan instead of skipping over an OFFSET of rows.
+ */
+final class ContinuationToken {
+
+  private final long unixTime;
+  private final long id;
+
+  ContinuationToken(long unixTime, long id) {
+    this.unixTime = unixTime;
+    this.id = id;
+  }
+
+  long getUnixTime() {
+    return unixTime;
+  }
+
+  long getId() {
+    return id;
+  }
+
+  String encode() {
+    return Base64.getUrlEncoder().withoutPadding().encodeToString((unixTime + ":" + id).getBytes(UTF_8));
+  }
+
+  static ContinuationToken decode(String token) {
+    try {
+      String decoded = new String(Base64.getUrlDecoder().decode(token), UTF_8);
+      int separator = decoded.indexOf(':');
+      return new ContinuationToken(
+        Long.parseLong(decoded.substring(0, separator)),
+        Long.parseLong(decoded.substring(separator + 1)));
+
+    } catch (IllegalArgumentException | IndexOutOfBoundsException ex) {
+      throw new InvalidInputException("Invalid continuation token: " + token);
+    }
+  }
+}
@@ -0,0 +1,262 @@
+package se.magnus.microservices.core.lpr.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import se.magnus.microservices.core.lpr.persistence.LicencePlateEntity;
+import se.magnus.microservices.core.lpr.persistence.LicencePlateEntity.BoundingBoxEmbeddable;
+
+/**
+ * Write-through cache of the most recent detections per source.
+ *
+ * Each source gets a fixed size ring buffer, holding timestamps, ids and bounding boxes in
+ * primitive arrays. A buffer tracks the unixTime from which on it is known to hold every
+ * detection of its source. Reads starting at or after that time are answered from the buffer,
+ * all other reads go to the database. Evicting an entry, by size or by age, moves that time
+ * past the evicted entry.
+ *
+ * Completeness relies on every insert for a source passing through this instance, and on
+ * detections stored before the instance started having a unixTime before its start time.
+ */
+@Component
+public class DetectionCache {
+
+  private static final Logger LOG = LoggerFactory.getLogger(DetectionCache.class);
+
+  private final boolean enabled;
+  private final int capacity;
+  private final long maxAgeMillis;
+  private final LongSupplier clock;
+  private final long startTime;
+
+  private final Map<String, RingBuffer> buffers = new ConcurrentHashMap<>();
+  private final Counter hits;
+  private final Counter misses;
+
+  @Autowired
+  public DetectionCache(
+    @Value("${app.cache.enabled:true}") boolean enabled,
+    @Value("${app.cache.capacityPerSource:1024}") int capacity,
+    @Value("${app.cache.maxAge:10m}") Duration maxAge,
+    MeterRegistry registry
+  ) {
+    this(enabled, capacity, maxAge, registry, System::currentTimeMillis);
+  }
+
+  public DetectionCache(boolean enabled, int capacity, Duration maxAge, MeterRegistry registry, LongSupplier clock) {
+    LOG.info("Creates a detection cache with capacity = {} per source and max age = {}, enabled = {}", capacity, maxAge, enabled);
+
+    this.enabled = enabled;
+    this.capacity = capacity;
+    this.maxAgeMillis = maxAge.toMillis();
+    this.clock = clock;
+    this.startTime = clock.getAsLong();
+
+    this.hits = Counter.builder("lpr.cache.requests").tag("result", "hit")
+      .description("Detection reads answered from the cache").register(registry);
+    this.misses = Counter.builder("lpr.cache.requests").tag("result", "miss")
+      .description("Detection reads not covered by the cache").register(registry);
+    Gauge.builder("lpr.cache.entries", buffers, b -> b.values().stream().mapToInt(RingBuffer::size).sum())
+      .description("Detections held in the cache").register(registry);
+    Gauge.builder("lpr.cache.sources", buffers, Map::size)
+      .description("Sources with a cache buffer").register(registry);
+  }
+
+  public void add(LicencePlateEntity entity) {
+    if (!enabled || entity.getSourceId() == null) {
+      return;
+    }
+    buffers.computeIfAbsent(entity.getSourceId(), sourceId -> new RingBuffer(capacity, startTime))
+      .add(entity, clock.getAsLong() - maxAgeMillis);
+  }
+
+  /**
+   * Forgets what the cache holds for a source, after detections of it were deleted. Until the
+   * buffer fills again, only windows starting after now are served from the cache.
+   */
+  public void invalidate(String sourceId) {
+    if (enabled) {
+      buffers.put(sourceId, new RingBuffer(capacity, clock.getAsLong()));
+    }
+  }
+
+  /**
+   * Same contract as LicencePlateStore.findPageBySourceId, but returns null if the cache
+   * does not hold every detection of the requested window.
+   */
+  public List<LicencePlateEntity> findPageBySourceId(String sourceId, long afterTime, long afterId, long endTime, int limit) {
+    if (!enabled) {
+      return null;
+    }
+
+    RingBuffer buffer = buffers.get(sourceId);
+    List<LicencePlateEntity> page;
+    if (buffer != null) {
+      page = buffer.findPage(sourceId, afterTime, afterId, endTime, limit, clock.getAsLong() - maxAgeMillis);
+    } else {
+      // Nothing stored for this source since start
+      page = afterTime >= startTime ? List.of() : null;
+    }
+
+    if (page != null) {
+      hits.increment();
+    } else {
+      misses.increment();
+    }
+    return page;
+  }
+
+  private static class RingBuffer {
+
+    private static final int BBOX_INTS = 8;
+    private static final byte HAS_VEHICLE_BBOX = 1;
+    private static final byte HAS_PLATE_BBOX = 2;
+
+    private final long[] ids;
+    private final long[] unixTimes;
+    private final int[] versions;
+    private final int[] bboxes;
+    private final byte[] flags;
+    private final String[] objectUuids;
+    private final String[] plateNums;
+    private final String[] ntpTimes;
+
+    private int head;
+    private int size;
+    private long coveredFrom;
+
+    RingBuffer(int capacity, long coveredFrom) {
+      this.ids = new long[capacity];
+      this.unixTimes = new long[capacity];
+      this.versions = new int[capacity];
+      this.bboxes = new int[capacity * BBOX_INTS];
+      this.flags = new byte[capacity];
+      this.objectUuids = new String[capacity];
+      this.plateNums = new String[capacity];
+      this.ntpTimes = new String[capacity];
+      this.coveredFrom = coveredFrom;
+    }
+
+    synchronized int size() {
+      return size;
+    }
+
+    synchronized void add(LicencePlateEntity entity, long cutoff) {
+      evictOlderThan(cutoff);
+      if (size == ids.length) {
+        evictHead();
+      }
+
+      int slot = (head + size) % ids.length;
+      ids[slot] = entity.getId();
+      unixTimes[slot] = entity.getUnixTime();
+      versions[slot] = entity.getVersion();
+      objectUuids[slot] = entity.getObjectUuid();
+      plateNums[slot] = entity.getPlateNum();
+      ntpTimes[slot] = entity.getNtpTime();
+      flags[slot] = 0;
+      if (entity.getVehicleBbox() != null) {
+        flags[slot] |= HAS_VEHICLE_BBOX;
+        writeBbox(slot * BBOX_INTS, entity.getVehicleBbox());
+      }
+      if (entity.getPlateBbox() != null) {
+        flags[slot] |= HAS_PLATE_BBOX;
+        writeBbox(slot * BBOX_INTS + 4, entity.getPlateBbox());
+      }
+      size++;
+    }
+
+    synchronized List<LicencePlateEntity> findPage(String sourceId, long afterTime, long afterId, long endTime, int limit, long cutoff) {
+      evictOlderThan(cutoff);
+      if (afterTime < coveredFrom) {
+        return null;
+      }
+
+      // Collect the matching slots, then order them by (unixTime, id) like the database does
+      int[] matches = new int[size];
+      int count = 0;
+      for (int i = 0; i < size; i++) {
+        int slot = (head + i) % ids.length;
+        long unixTime = unixTimes[slot];
+        if (unixTime <= endTime && (unixTime > afterTime || (unixTime == afterTime && ids[slot] > afterId))) {
+          matches[count++] = slot;
+        }
+      }
+      sortByTimeAndId(matches, count);
+
+      List<LicencePlateEntity> page = new ArrayList<>(Math.min(count, limit));
+      for (int i = 0; i < count && i < limit; i++) {
+        page.add(toEntity(sourceId, matches[i]));
+      }
+      return page;
+    }
+
+    /**
+     * Insertion sort, since detections mostly arrive in time order this is close to linear.
+     */
+    private void sortByTimeAndId(int[] slots, int count) {
+      for (int i = 1; i < count; i++) {
+        int slot = slots[i];
+        int j = i - 1;
+        while (j >= 0 && (unixTimes[slots[j]] > unixTimes[slot]
+            || (unixTimes[slots[j]] == unixTimes[slot] && ids[slots[j]] > ids[slot]))) {
+          slots[j + 1] = slots[j];
+          j--;
+        }
+        slots[j + 1] = slot;
+      }
+    }
+
+    private void evictOlderThan(long cutoff) {
+      while (size > 0 && unixTimes[head] < cutoff) {
+        evictHead();
+      }
+      // Entries older than the cutoff may also be evicted later on, out of insertion order
+      coveredFrom = Math.max(coveredFrom, cutoff);
+    }
+
+    private void evictHead() {
+      coveredFrom = Math.max(coveredFrom, unixTimes[head] + 1);
+      objectUuids[head] = null;
+      plateNums[head] = null;
+      ntpTimes[head] = null;
+      head = (head + 1) % ids.length;
+      size--;
+    }
+
+    private void writeBbox(int offset, BoundingBoxEmbeddable bbox) {
+      bboxes[offset] = bbox.getX();
+      bboxes[offset + 1] = bbox.getY();
+      bboxes[offset + 2] = bbox.getWidth();
+      bboxes[offset + 3] = bbox.getHeight();
+    }
+
+    private BoundingBoxEmbeddable readBbox(int offset) {
+      return new BoundingBoxEmbeddable(bboxes[offset], bboxes[offset + 1], bboxes[offset + 2], bboxes[offset + 3]);
+    }
+
+    private LicencePlateEntity toEntity(String sourceId, int slot) {
+      return new LicencePlateEntity(
+        ids[slot],
+        sourceId,
+        objectUuids[slot],
+        (flags[slot] & HAS_VEHICLE_BBOX) != 0 ? readBbox(slot * BBOX_INTS) : null,
+        (flags[slot] & HAS_PLATE_BBOX) != 0 ? readBbox(slot * BBOX_INTS + 4) : null,
+        plateNums[slot],
+        ntpTimes[slot],
+        unixTimes[slot],
+        versions[slot]);
+    }
+  }
+}
@@ -0,0 +1,91 @@
+package se.magnus.microservices.core.lpr.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.BufferOverflowStrategy;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+import se.magnus.api.core.lpr.LicencePlate;
+
+/**
+ * In-process fan-out of newly persisted detections to live subscribers.
+ *
+ * Each source with subscribers has its own multicast sink, so publishing only touches the
+ * subscribers of that source and sources without subscribers cost nothing. Every subscriber
+ * reads through its own bounded buffer. When a subscriber falls behind, its oldest buffered
+ * detections are dropped, without slowing down the inserts or the other subscribers.
+ */
+@Component
+public class LiveDetections {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LiveDetections.class);
+
+  private final int bufferSize;
+  private final Map<String, Channel> channels = new ConcurrentHashMap<>();
+  private final Counter dropped;
+
+  @Autowired
+  public LiveDetections(
+    @Value("${app.live.bufferSize:256}") int bufferSize,
+    MeterRegistry registry
+  ) {
+    LOG.info("Creates live detections with buffer size = {} per subscriber", bufferSize);
+
+    this.bufferSize = bufferSize;
+    this.dropped = Counter.builder("lpr.live.dropped")
+      .description("Detections dropped for live subscribers that did not keep up").register(registry);
+    Gauge.builder("lpr.live.subscribers", channels, c -> c.values().stream().mapToInt(Channel::subscribers).sum())
+      .description("Live detection subscribers").register(registry);
+  }
+
+  public Flux<LicencePlate> subscribe(String sourceId) {
+    return Flux.defer(() -> {
+      // Registering in compute keeps a concurrent release from removing the channel in between
+      Channel channel = channels.compute(sourceId, (id, c) -> (c != null ? c : new Channel()).acquire());
+      return channel.sink.asFlux()
+        .onBackpressureBuffer(bufferSize, plate -> dropped.increment(), BufferOverflowStrategy.DROP_OLDEST)
+        .doFinally(signal -> channels.computeIfPresent(sourceId, (id, c) -> c.release() == 0 ? null : c));
+    });
+  }
+
+  public void publish(LicencePlate plate) {
+    Channel channel = channels.get(plate.getSourceId());
+    if (channel != null) {
+      channel.emit(plate);
+    }
+  }
+
+  private static class Channel {
+
+    // Direct best effort, the per subscriber buffers decide what to drop
+    private final Sinks.Many<LicencePlate> sink = Sinks.many().multicast().directBestEffort();
+    private volatile int subscribers;
+
+    // Only called from within compute on the channel map
+    Channel acquire() {
+      subscribers++;
+      return this;
+    }
+
+    int release() {
+      return --subscribers;
+    }
+
+    int subscribers() {
+      return subscribers;
+    }
+
+    // Inserts run on several threads, but a sink must be signalled serially
+    synchronized void emit(LicencePlate plate) {
+      sink.tryEmitNext(plate);
+    }
+  }
+}
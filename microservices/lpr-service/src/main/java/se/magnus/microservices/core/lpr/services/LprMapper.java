@@ -4,8 +4,10 @@ import org.mapstruct.Mapper;
 import org.mapstruct.Mapping;
 import se.magnus.api.core.lpr.BoundingBox;
 import se.magnus.api.core.lpr.LicencePlate;
+import se.magnus.api.core.lpr.TrafficStats;
 import se.magnus.microservices.core.lpr.persistence.LicencePlateEntity;
 import se.magnus.microservices.core.lpr.persistence.LicencePlateEntity.BoundingBoxEmbeddable;
+import se.magnus.microservices.core.lpr.persistence.TrafficStatsRow;
 
 @Mapper(componentModel = "spring")
 public interface LprMapper {
@@ -17,6 +19,8 @@ public interface LprMapper {
   @Mapping(target = "serviceAddress", ignore = true)
   LicencePlate entityToApi(LicencePlateEntity entity);
 
+  TrafficStats rowToApi(TrafficStatsRow row);
+
   // Helper methods for BoundingBox conversion
   default BoundingBoxEmbeddable map(BoundingBox boundingBox) {
     if (boundingBox == null) {
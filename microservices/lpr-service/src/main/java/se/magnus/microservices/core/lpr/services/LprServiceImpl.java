@@ -1,87 +1,473 @@
 package se.magnus.microservices.core.lpr.services;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.logging.Level.FINE;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.NavigableMap;
+import java.util.Set;
 import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.filter.reactive.ServerWebExchangeContextFilter;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Scheduler;
+import reactor.util.context.ContextView;
+import se.magnus.api.core.lpr.Detections;
+import se.magnus.api.core.lpr.DetectionsResult;
 import se.magnus.api.core.lpr.LicencePlate;
 import se.magnus.api.core.lpr.LprService;
+import se.magnus.api.core.lpr.TrafficStats;
 import se.magnus.api.exceptions.InvalidInputException;
+import se.magnus.microservices.core.lpr.persistence.LicencePlateBulkStore;
 import se.magnus.microservices.core.lpr.persistence.LicencePlateEntity;
-import se.magnus.microservices.core.lpr.persistence.LicencePlateRepository;
+import se.magnus.microservices.core.lpr.persistence.LicencePlateStore;
+import se.magnus.microservices.core.lpr.persistence.TrafficStatsStore;
+import se.magnus.microservices.core.lpr.persistence.TrafficStatsStore.Granularity;
 import se.magnus.util.http.ServiceUtil;
+import se.magnus.util.metrics.CallTimer;
+import se.magnus.util.plate.PlateNormalizer;
 
 @RestController
 public class LprServiceImpl implements LprService {
 
   private static final Logger LOG = LoggerFactory.getLogger(LprServiceImpl.class);
 
+  static final String CONTINUATION_TOKEN_HEADER = "X-Continuation-Token";
+
   private final Scheduler jdbcScheduler;
   private final ServiceUtil serviceUtil;
-  private final LicencePlateRepository repository;
+  private final LicencePlateBulkStore bulkStore;
+  private final LicencePlateStore store;
+  private final TrafficStatsStore statsStore;
+  private final TransactionTemplate transactionTemplate;
   private final LprMapper mapper;
+  private final PlateSearchIndex searchIndex;
+  private final DetectionCache cache;
+  private final LiveDetections liveDetections;
+  private final ObjectUuidFilter objectUuidFilter;
+  private final CallTimer serviceCalls;
+  private final CallTimer repositoryCalls;
+  private final int defaultPageSize;
+  private final int maxPageSize;
+  private final int maxSearchDistance;
+  private final Duration searchRebuildInterval;
+  private final int maxStatsBuckets;
+  private final Duration statsLateness;
+  private final Duration statsPruneInterval;
 
   @Autowired
-  public LprServiceImpl(@Qualifier("jdbcScheduler") Scheduler jdbcScheduler, ServiceUtil serviceUtil, LicencePlateRepository repository, LprMapper mapper) {
+  public LprServiceImpl(
+    @Qualifier("jdbcScheduler") Scheduler jdbcScheduler,
+    ServiceUtil serviceUtil,
+    LicencePlateBulkStore bulkStore,
+    LicencePlateStore store,
+    TrafficStatsStore statsStore,
+    PlatformTransactionManager transactionManager,
+    LprMapper mapper,
+    PlateSearchIndex searchIndex,
+    DetectionCache cache,
+    LiveDetections liveDetections,
+    ObjectUuidFilter objectUuidFilter,
+    MeterRegistry registry,
+    @Value("${app.defaultPageSize:100}") int defaultPageSize,
+    @Value("${app.maxPageSize:1000}") int maxPageSize,
+    @Value("${app.maxSearchDistance:2}") int maxSearchDistance,
+    @Value("${app.search.rebuildInterval:6h}") Duration searchRebuildInterval,
+    @Value("${app.stats.maxBuckets:44640}") int maxStatsBuckets,
+    @Value("${app.stats.lateness:1h}") Duration statsLateness,
+    @Value("${app.stats.pruneInterval:10m}") Duration statsPruneInterval
+  ) {
     this.jdbcScheduler = jdbcScheduler;
     this.serviceUtil = serviceUtil;
-    this.repository = repository;
+    this.bulkStore = bulkStore;
+    this.store = store;
+    this.statsStore = statsStore;
+    this.transactionTemplate = new TransactionTemplate(transactionManager);
     this.mapper = mapper;
+    this.searchIndex = searchIndex;
+    this.cache = cache;
+    this.liveDetections = liveDetections;
+    this.objectUuidFilter = objectUuidFilter;
+    this.serviceCalls = new CallTimer(registry, "lpr.service.calls", "Calls of the lpr service methods", "method")
+      .reportStages("lpr");
+    this.repositoryCalls = new CallTimer(registry, "lpr.repository.calls", "Calls of the lpr stores", "operation")
+      .reportStages("lpr.db");
+    this.defaultPageSize = defaultPageSize;
+    this.maxPageSize = maxPageSize;
+    this.maxSearchDistance = maxSearchDistance;
+    this.searchRebuildInterval = searchRebuildInterval;
+    this.maxStatsBuckets = maxStatsBuckets;
+    this.statsLateness = statsLateness;
+    this.statsPruneInterval = statsPruneInterval;
+  }
+
+  /**
+   * Fills the search index with the plates stored before this instance started, and rebuilds it
+   * every app.search.rebuildInterval to drop the plates of deleted and expired detections.
+   * Runs in the background, plates created meanwhile are added on insert as usual.
+   */
+  @EventListener(ApplicationReadyEvent.class)
+  public void loadSearchIndex() {
+    jdbcScheduler.schedulePeriodically(() -> {
+      try {
+        searchIndex.rebuild(() -> repositoryCalls.record("findDistinctPlateNums", bulkStore::findDistinctPlateNums));
+      } catch (RuntimeException ex) {
+        LOG.warn("Failed to load the plate search index: {}", ex.toString());
+      }
+    }, 0, searchRebuildInterval.toMillis(), MILLISECONDS);
+  }
+
+  /**
+   * Drops the plate sets of the stats buckets that ended more than app.stats.lateness ago,
+   * every app.stats.pruneInterval, so they do not grow with every plate ever counted.
+   */
+  @EventListener(ApplicationReadyEvent.class)
+  public void pruneStatsPlates() {
+    jdbcScheduler.schedulePeriodically(() -> {
+      try {
+        repositoryCalls.record("prunePlates", () -> statsStore.prunePlates(System.currentTimeMillis() - statsLateness.toMillis()));
+      } catch (RuntimeException ex) {
+        LOG.warn("Failed to prune the stats plates: {}", ex.toString());
+      }
+    }, statsPruneInterval.toMillis(), statsPruneInterval.toMillis(), MILLISECONDS);
   }
 
+  /**
+   * Fills the object UUID filter with the detections stored before this instance started.
+   * Runs in the background, until it is done every insert is checked against the database.
+   */
+  @EventListener(ApplicationReadyEvent.class)
+  public void loadObjectUuidFilter() {
+    Mono.fromRunnable(() -> {
+      repositoryCalls.record("forEachObjectUuid", () -> bulkStore.forEachObjectUuid(objectUuidFilter::add));
+      objectUuidFilter.setLoaded();
+      LOG.info("Loaded the object UUID filter");
+    })
+      .subscribeOn(jdbcScheduler)
+      .subscribe(
+        null,
+        ex -> LOG.warn("Failed to load the object UUID filter: {}", ex.toString()));
+  }
+
+  /**
+   * Stores a detection. Only an object UUID the filter may have seen is looked up first, so
+   * a retried detection is rejected without a failing insert. Any other insert goes straight
+   * to the database, where the unique index still rejects a duplicate the filter missed.
+   */
   @Override
   public Mono<LicencePlate> createLpr(LicencePlate body) {
-    return Mono.fromCallable(() -> internalCreateLpr(body))
-      .subscribeOn(jdbcScheduler);
+    LicencePlateEntity entity = mapper.apiToEntity(body);
+    Mono<Boolean> stored = body.getObjectUuid() != null && objectUuidFilter.mightContain(body.getObjectUuid())
+      ? repositoryCalls.time("exists", store.exists(entity))
+        .doOnNext(exists -> {
+          if (!exists) {
+            objectUuidFilter.recordFalsePositive();
+          }
+        })
+      : Mono.just(false);
+
+    return serviceCalls.time("createLpr", stored
+      .flatMap(exists -> exists
+        ? Mono.error(new DataIntegrityViolationException("Object UUID exists: " + body.getObjectUuid()))
+        : repositoryCalls.time("save", store.save(entity)))
+      .doOnNext(e -> {
+        LOG.debug("createLpr: created a lpr entity: {}/{}", body.getSourceId(), body.getObjectUuid());
+        objectUuidFilter.add(e.getObjectUuid());
+        searchIndex.add(e.getPlateNum());
+        cache.add(e);
+        liveDetections.publish(toApi(e));
+      })
+      .onErrorMap(
+        DataIntegrityViolationException.class,
+        ex -> new InvalidInputException("Duplicate key, Source Id: " + body.getSourceId() + ", Object UUID:" + body.getObjectUuid()))
+      .map(mapper::entityToApi));
+  }
+
+  @Override
+  public Mono<DetectionsResult> createLprs(Detections body) {
+    if (body.getSourceId() == null || body.getSourceId().isEmpty()) {
+      throw new InvalidInputException("Invalid sourceId: " + body.getSourceId());
+    }
+
+    return serviceCalls.time("createLprs", Mono.fromCallable(() -> internalCreateLprs(body))
+      .subscribeOn(jdbcScheduler));
   }
 
   @Override
-  public Flux<LicencePlate> getLprs(String sourceId) {
-    LOG.debug("/lpr/detections return the found LPR detections for sourceId={}", sourceId);
+  public Flux<LicencePlate> getLprs(String sourceId, Long from, Long to, Integer limit, String after) {
+    LOG.debug("/lpr/detections return the found LPR detections for sourceId={}, from={}, to={}, limit={}", sourceId, from, to, limit);
+
+    if (sourceId == null || sourceId.isEmpty()) {
+      throw new InvalidInputException("Invalid sourceId: " + sourceId);
+    }
+    if (limit != null && limit < 1) {
+      throw new InvalidInputException("Invalid limit: " + limit);
+    }
+    if (from != null && to != null && from > to) {
+      throw new InvalidInputException("Invalid time window, from: " + from + ", to: " + to);
+    }
+
+    int pageSize = limit == null ? defaultPageSize : Math.min(limit, maxPageSize);
+    ContinuationToken start = startOfPage(from, after);
+    long endTime = to != null ? to : Long.MAX_VALUE;
 
+    // One extra row beyond the page size tells if a continuation token is needed
+    return serviceCalls.time("getLprs", Flux.deferContextual(ctx -> findPage(sourceId, start, endTime, pageSize + 1)
+      .doOnNext(entities -> {
+        LOG.debug("Found {} detections for sourceId: {}", Math.min(entities.size(), pageSize), sourceId);
+        if (entities.size() > pageSize) {
+          LicencePlateEntity last = entities.get(pageSize - 1);
+          setContinuationToken(ctx, new ContinuationToken(last.getUnixTime(), last.getId()));
+        }
+      })
+      .flatMapMany(entities -> Flux.fromIterable(entities.size() > pageSize ? entities.subList(0, pageSize) : entities)))
+      .map(this::toApi)
+      .log(LOG.getName(), FINE));
+  }
+
+  @Override
+  public Flux<LicencePlate> getLiveLprs(String sourceId) {
     if (sourceId == null || sourceId.isEmpty()) {
       throw new InvalidInputException("Invalid sourceId: " + sourceId);
     }
 
-    return Mono.fromCallable(() -> internalGetLprs(sourceId))
+    LOG.debug("getLiveLprs: new live subscriber for sourceId: {}", sourceId);
+    return liveDetections.subscribe(sourceId);
+  }
+
+  @Override
+  public Flux<LicencePlate> searchLprs(String plate, Integer maxDistance, Integer limit) {
+    LOG.debug("/lpr/search return the detections of plates similar to plate={}, maxDistance={}", plate, maxDistance);
+
+    if (plate == null || PlateNormalizer.normalize(plate).isEmpty()) {
+      throw new InvalidInputException("Invalid plate: " + plate);
+    }
+    if (maxDistance != null && (maxDistance < 0 || maxDistance > maxSearchDistance)) {
+      throw new InvalidInputException("Invalid maxDistance: " + maxDistance);
+    }
+    if (limit != null && limit < 1) {
+      throw new InvalidInputException("Invalid limit: " + limit);
+    }
+
+    int pageSize = limit == null ? defaultPageSize : Math.min(limit, maxPageSize);
+    NavigableMap<Integer, List<String>> tiers = PlateSearchIndex.plateNumsByDistance(
+      searchIndex.search(plate, maxDistance == null ? 1 : maxDistance));
+    if (tiers.isEmpty()) {
+      return Flux.empty();
+    }
+
+    // One read per distance, closest first, so that newer detections of farther plates do not
+    // take the page from closer ones. The store splits a long list of plates into several queries.
+    return serviceCalls.time("searchLprs", Mono.fromCallable(() -> {
+        List<LicencePlateEntity> page = new ArrayList<>();
+        for (List<String> plateNums : tiers.values()) {
+          if (page.size() >= pageSize) {
+            break;
+          }
+          page.addAll(repositoryCalls.record("findByPlateNumIn",
+            () -> bulkStore.findByPlateNumIn(plateNums, pageSize - page.size())));
+        }
+        return page;
+      })
       .flatMapMany(Flux::fromIterable)
+      .map(this::toApi)
       .log(LOG.getName(), FINE)
-      .subscribeOn(jdbcScheduler);
+      .subscribeOn(jdbcScheduler));
   }
 
-  private LicencePlate internalCreateLpr(LicencePlate body) {
-    try {
-      LicencePlateEntity entity = mapper.apiToEntity(body);
-      LicencePlateEntity newEntity = repository.save(entity);
+  @Override
+  public Flux<TrafficStats> getStats(String sourceId, Long from, Long to, String granularity) {
+    LOG.debug("/lpr/stats return the stats for sourceId={}, from={}, to={}, granularity={}", sourceId, from, to, granularity);
+
+    if (sourceId == null || sourceId.isEmpty()) {
+      throw new InvalidInputException("Invalid sourceId: " + sourceId);
+    }
+    Granularity bucketSize = granularity == null ? Granularity.MINUTE : Granularity.parse(granularity);
+    if (bucketSize == null) {
+      throw new InvalidInputException("Invalid granularity: " + granularity);
+    }
+    long endTime = to != null ? to : System.currentTimeMillis();
+    long startTime = from != null ? from : endTime - Granularity.DAY.getMillis();
+    if (startTime > endTime) {
+      throw new InvalidInputException("Invalid time window, from: " + startTime + ", to: " + endTime);
+    }
+    if ((endTime - startTime) / bucketSize.getMillis() >= maxStatsBuckets) {
+      throw new InvalidInputException("Time window too long, at most " + maxStatsBuckets + " buckets of a " + granularity);
+    }
+
+    return serviceCalls.time("getStats", Mono.fromCallable(() -> repositoryCalls.record("findStats",
+        () -> statsStore.findStats(sourceId, bucketSize, startTime, endTime)))
+      .flatMapMany(Flux::fromIterable)
+      .map(mapper::rowToApi)
+      .log(LOG.getName(), FINE)
+      .subscribeOn(jdbcScheduler));
+  }
 
-      LOG.debug("createLpr: created a lpr entity: {}/{}", body.getSourceId(), body.getObjectUuid());
-      return mapper.entityToApi(newEntity);
+  private DetectionsResult internalCreateLprs(Detections body) {
+    try {
+      return persistFrame(body, false);
 
     } catch (DataIntegrityViolationException dive) {
-      throw new InvalidInputException("Duplicate key, Source Id: " + body.getSourceId() + ", Object UUID:" + body.getObjectUuid());
+      // A concurrent request stored one of the plates after our duplicate check, retry once
+      // so that the check picks up the conflicting row and reports it as a duplicate instead
+      LOG.debug("createLprs: conflicting insert for sourceId: {}, will retry once", body.getSourceId());
+      try {
+        return persistFrame(body, true);
+      } catch (DataIntegrityViolationException dive2) {
+        throw new InvalidInputException("Duplicate key, Source Id: " + body.getSourceId());
+      }
     }
   }
 
-  private List<LicencePlate> internalGetLprs(String sourceId) {
+  private DetectionsResult persistFrame(Detections body, boolean checkAll) {
+    List<LicencePlate> plates = body.getDetections() != null ? body.getDetections() : List.of();
+    List<LicencePlateEntity> entities = plates.stream().map(plate -> toFrameEntity(plate, body)).collect(Collectors.toList());
+
+    List<String> duplicates = persist(entities, checkAll);
+
+    LOG.debug("createLprs: created {} lpr entities for sourceId: {}, skipped {} duplicates", entities.size() - duplicates.size(), body.getSourceId(), duplicates.size());
+    return new DetectionsResult(body.getSourceId(), entities.size() - duplicates.size(), duplicates, serviceUtil.getServiceAddress());
+  }
+
+  /**
+   * Stores the detections of a batch of create events, which may span several sources, in one
+   * JDBC batch. Detections that already exist are skipped, so a redelivered event is harmless.
+   *
+   * @return the number of created detections
+   */
+  public Mono<Integer> createLprs(List<LicencePlate> plates) {
+    return serviceCalls.time("createLprsFromEvents", Mono.fromCallable(() -> {
+      List<LicencePlateEntity> entities = plates.stream().map(mapper::apiToEntity).collect(Collectors.toList());
+      List<String> duplicates;
+      try {
+        duplicates = persist(entities, false);
+      } catch (DataIntegrityViolationException dive) {
+        LOG.debug("createLprs: conflicting insert in event batch, will retry once");
+        entities = plates.stream().map(mapper::apiToEntity).collect(Collectors.toList());
+        duplicates = persist(entities, true);
+      }
+      LOG.debug("createLprs: created {} lpr entities from events, skipped {} duplicates", entities.size() - duplicates.size(), duplicates.size());
+      return entities.size() - duplicates.size();
+    }).subscribeOn(jdbcScheduler));
+  }
+
+  /**
+   * Deletes the detections with the given object UUIDs in one statement.
+   *
+   * @return the number of deleted detections
+   */
+  public Mono<Integer> deleteLprs(Collection<String> objectUuids) {
+    return serviceCalls.time("deleteLprs", Mono.fromCallable(() -> {
+      List<LicencePlateEntity> entities = repositoryCalls.record("deleteByObjectUuidIn", () -> bulkStore.deleteByObjectUuidIn(objectUuids));
+      entities.stream().map(LicencePlateEntity::getSourceId).distinct().forEach(cache::invalidate);
+      LOG.debug("deleteLprs: deleted {} lpr entities", entities.size());
+      return entities.size();
+    }).subscribeOn(jdbcScheduler));
+  }
 
-    List<LicencePlateEntity> entities = repository.findBySourceId(sourceId);
-    List<LicencePlate> plates = entities.stream()
-      .map(mapper::entityToApi)
+  /**
+   * Saves the entities that do not exist yet, in one transaction sent as JDBC batches, and
+   * returns the object UUIDs of the skipped ones. Only the object UUIDs the filter may have
+   * seen are looked up, unless checkAll is set after an insert failed on the unique index.
+   */
+  private List<String> persist(List<LicencePlateEntity> candidates, boolean checkAll) {
+    List<LicencePlateEntity> checked = candidates.stream()
+      .filter(candidate -> candidate.getObjectUuid() != null)
+      .filter(candidate -> checkAll || objectUuidFilter.mightContain(candidate.getObjectUuid()))
       .collect(Collectors.toList());
-    plates.forEach(e -> e.setServiceAddress(serviceUtil.getServiceAddress()));
+    Set<String> seen = checked.isEmpty()
+      ? new HashSet<>()
+      : new HashSet<>(repositoryCalls.record("findExistingObjectUuids", () -> bulkStore.findExistingObjectUuids(checked)));
+    if (!checkAll) {
+      checked.stream().filter(candidate -> !seen.contains(candidate.getObjectUuid())).forEach(candidate -> objectUuidFilter.recordFalsePositive());
+    }
+
+    List<LicencePlateEntity> entities = new ArrayList<>(candidates.size());
+    List<String> duplicates = new ArrayList<>();
+    for (LicencePlateEntity candidate : candidates) {
+      if (candidate.getObjectUuid() != null && !seen.add(candidate.getObjectUuid())) {
+        duplicates.add(candidate.getObjectUuid());
+        continue;
+      }
+      entities.add(candidate);
+    }
+
+    // The stats are updated in the same transaction, so a failed insert leaves both unchanged
+    transactionTemplate.executeWithoutResult(status -> {
+      repositoryCalls.record("saveAll", () -> bulkStore.saveAll(entities));
+      repositoryCalls.record("recordStats", () -> statsStore.record(entities));
+    });
+    entities.forEach(e -> {
+      objectUuidFilter.add(e.getObjectUuid());
+      searchIndex.add(e.getPlateNum());
+      cache.add(e);
+      liveDetections.publish(toApi(e));
+    });
+    return duplicates;
+  }
+
+  private LicencePlateEntity toFrameEntity(LicencePlate plate, Detections frame) {
+    LicencePlateEntity entity = mapper.apiToEntity(plate);
+    if (entity.getSourceId() == null) {
+      entity.setSourceId(frame.getSourceId());
+    }
+    if (entity.getNtpTime() == null) {
+      entity.setNtpTime(frame.getNtpTime());
+    }
+    if (entity.getUnixTime() == 0) {
+      entity.setUnixTime(frame.getUnixTime());
+    }
+    return entity;
+  }
+
+  /**
+   * Serves the page from the cache of recent detections if it covers the window, else from the store.
+   */
+  private Mono<List<LicencePlateEntity>> findPage(String sourceId, ContinuationToken start, long endTime, int limit) {
+    return Mono.defer(() -> {
+      List<LicencePlateEntity> cached = cache.findPageBySourceId(sourceId, start.getUnixTime(), start.getId(), endTime, limit);
+      return cached != null
+        ? Mono.just(cached)
+        : repositoryCalls.time("findPageBySourceId",
+          store.findPageBySourceId(sourceId, start.getUnixTime(), start.getId(), endTime, limit).collectList());
+    });
+  }
+
+  private ContinuationToken startOfPage(Long from, String after) {
+    long fromTime = from != null ? from : Long.MIN_VALUE;
+    if (after == null || after.isEmpty()) {
+      return new ContinuationToken(fromTime, Long.MIN_VALUE);
+    }
+
+    ContinuationToken token = ContinuationToken.decode(after);
+    return token.getUnixTime() < fromTime ? new ContinuationToken(fromTime, Long.MIN_VALUE) : token;
+  }
+
+  private void setContinuationToken(ContextView ctx, ContinuationToken token) {
+    ServerWebExchangeContextFilter.getExchange(ctx)
+      .ifPresent(exchange -> exchange.getResponse().getHeaders().set(CONTINUATION_TOKEN_HEADER, token.encode()));
+  }
 
-    LOG.debug("Found {} detections for sourceId: {}", plates.size(), sourceId);
-    
-    return plates;
+  private LicencePlate toApi(LicencePlateEntity entity) {
+    LicencePlate plate = mapper.entityToApi(entity);
+    plate.setServiceAddress(serviceUtil.getServiceAddress());
+    return plate;
   }
 }
 
@@ -0,0 +1,69 @@
+package se.magnus.microservices.core.lpr.services;
+
+import static se.magnus.api.event.Event.Type.CREATE;
+import static se.magnus.api.event.Event.Type.DELETE;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.stream.config.ListenerContainerCustomizer;
+import org.springframework.cloud.stream.function.StreamBridge;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.kafka.listener.AbstractMessageListenerContainer;
+import se.magnus.api.core.lpr.LicencePlate;
+import se.magnus.api.event.Event;
+import se.magnus.util.messaging.EventBatchProcessor;
+
+/**
+ * Consumes the LPR events published by the composite.
+ *
+ * CREATE events carry the detection, DELETE events the object UUID of the detection as key. Runs of
+ * them are stored with a single bulk write, see EventBatchProcessor.
+ */
+@Configuration
+public class MessageProcessorConfig {
+
+  private final LprServiceImpl lprService;
+  private final int maxAttempts;
+  private final Duration minBackoff;
+
+  @Autowired
+  public MessageProcessorConfig(
+    LprServiceImpl lprService,
+    @Value("${app.messaging.retry.maxAttempts:3}") int maxAttempts,
+    @Value("${app.messaging.retry.minBackoff:100ms}") Duration minBackoff
+  ) {
+    this.lprService = lprService;
+    this.maxAttempts = maxAttempts;
+    this.minBackoff = minBackoff;
+  }
+
+  // The stream bridge is missing in test slices without Spring Cloud Stream, e.g. @DataJpaTest
+  @Bean
+  public EventBatchProcessor<String, LicencePlate> eventBatchProcessor(ObjectProvider<StreamBridge> streamBridge,
+    MeterRegistry registry) {
+
+    return new EventBatchProcessor<String, LicencePlate>(
+      maxAttempts, minBackoff, (binding, message) -> streamBridge.getObject().send(binding, message), registry)
+      .on(CREATE, run -> lprService.createLprs(run.stream().map(Event::getData).collect(Collectors.toList())))
+      .on(DELETE, run -> lprService.deleteLprs(run.stream().map(Event::getKey).collect(Collectors.toList())));
+  }
+
+  @Bean
+  public Consumer<List<Event<String, LicencePlate>>> messageProcessor(EventBatchProcessor<String, LicencePlate> processor) {
+    return processor::process;
+  }
+
+  @Bean
+  public ListenerContainerCustomizer<AbstractMessageListenerContainer<?, ?>> messageProcessorContainer(
+    EventBatchProcessor<String, LicencePlate> processor) {
+
+    return (container, destination, group) -> container.setCommonErrorHandler(processor.errorHandler());
+  }
+}
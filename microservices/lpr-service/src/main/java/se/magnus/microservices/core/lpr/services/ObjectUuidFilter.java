@@ -0,0 +1,177 @@
+package se.magnus.microservices.core.lpr.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bloom filter over the object UUIDs of all stored detections.
+ *
+ * An object UUID the filter does not contain is certainly new, so its insert can skip the
+ * duplicate check against the database. An object UUID it contains is only possibly stored,
+ * and must be checked. The filter is sized for expectedInsertions at the configured
+ * falsePositiveRate; beyond that the rate goes up, which the lpr.dedup.false.positive.ratio
+ * metric shows.
+ *
+ * Until the object UUIDs stored before this instance started are loaded, every object UUID
+ * is reported as possibly stored. Deleted detections stay in the filter, they only cost a
+ * database check if they are created again. Detections stored by other instances are not
+ * in the filter, their inserts fail on the unique index instead.
+ */
+@Component
+public class ObjectUuidFilter {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ObjectUuidFilter.class);
+
+  private final boolean enabled;
+  private final long bitCount;
+  private final int hashCount;
+  private final AtomicLongArray bits;
+  private final AtomicLong bitsSet = new AtomicLong();
+  private volatile boolean loaded;
+
+  private final Counter definitelyNew;
+  private final Counter possiblyStored;
+  private final Counter falsePositives;
+
+  @Autowired
+  public ObjectUuidFilter(
+    @Value("${app.dedup.enabled:true}") boolean enabled,
+    @Value("${app.dedup.expectedInsertions:1000000}") long expectedInsertions,
+    @Value("${app.dedup.falsePositiveRate:0.01}") double falsePositiveRate,
+    MeterRegistry registry
+  ) {
+    this.enabled = enabled;
+
+    // Optimal sizing, m = -n ln p / (ln 2)^2 bits and k = m / n ln 2 hash functions
+    long m = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+    this.bitCount = enabled ? Math.max(64, (m + 63) / 64 * 64) : 64;
+    this.hashCount = Math.max(1, (int) Math.round((double) m / expectedInsertions * Math.log(2)));
+    this.bits = new AtomicLongArray((int) (bitCount / 64));
+
+    LOG.info("Creates an object UUID filter for {} insertions at a false positive rate of {}, using {} KB and {} hash functions, enabled = {}",
+      expectedInsertions, falsePositiveRate, getMemoryBytes() / 1024, hashCount, enabled);
+
+    this.definitelyNew = Counter.builder("lpr.dedup.checks").tag("result", "new")
+      .description("Object UUIDs found to be new by the filter, without a database check").register(registry);
+    this.possiblyStored = Counter.builder("lpr.dedup.checks").tag("result", "possibly-stored")
+      .description("Object UUIDs the filter may have seen, checked against the database").register(registry);
+    this.falsePositives = Counter.builder("lpr.dedup.false.positives")
+      .description("Object UUIDs reported as possibly stored, that the database did not hold").register(registry);
+    Gauge.builder("lpr.dedup.false.positive.ratio", this, ObjectUuidFilter::falsePositiveRatio)
+      .description("Share of new object UUIDs that still needed a database check").register(registry);
+    Gauge.builder("lpr.dedup.expected.false.positive.ratio", this, ObjectUuidFilter::expectedFalsePositiveRatio)
+      .description("False positive rate expected from the share of bits set").register(registry);
+    Gauge.builder("lpr.dedup.memory", this, ObjectUuidFilter::getMemoryBytes)
+      .description("Memory used by the filter bits").baseUnit("bytes").register(registry);
+  }
+
+  public void add(String objectUuid) {
+    if (!enabled || objectUuid == null) {
+      return;
+    }
+    long hash = hash(objectUuid);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    for (int i = 1; i <= hashCount; i++) {
+      setBit(index(h1 + i * h2));
+    }
+  }
+
+  /**
+   * Returns false if the object UUID is certainly not stored, true if it may be stored.
+   */
+  public boolean mightContain(String objectUuid) {
+    if (!enabled || !loaded || objectUuid == null) {
+      return true;
+    }
+    long hash = hash(objectUuid);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    for (int i = 1; i <= hashCount; i++) {
+      if (!getBit(index(h1 + i * h2))) {
+        definitelyNew.increment();
+        return false;
+      }
+    }
+    possiblyStored.increment();
+    return true;
+  }
+
+  /**
+   * Records that the database did not hold an object UUID the filter reported as possibly stored.
+   */
+  public void recordFalsePositive() {
+    if (enabled && loaded) {
+      falsePositives.increment();
+    }
+  }
+
+  /**
+   * Marks the object UUIDs stored before this instance started as added, so the filter starts
+   * answering with certainly not stored.
+   */
+  public void setLoaded() {
+    loaded = true;
+  }
+
+  public long getMemoryBytes() {
+    return bitCount / 8;
+  }
+
+  private double falsePositiveRatio() {
+    double fp = falsePositives.count();
+    double total = fp + definitelyNew.count();
+    return total == 0 ? 0 : fp / total;
+  }
+
+  private double expectedFalsePositiveRatio() {
+    return Math.pow((double) bitsSet.get() / bitCount, hashCount);
+  }
+
+  private long index(int combinedHash) {
+    return Math.floorMod((long) combinedHash, bitCount);
+  }
+
+  private boolean getBit(long index) {
+    return (bits.get((int) (index >>> 6)) & (1L << index)) != 0;
+  }
+
+  private void setBit(long index) {
+    int word = (int) (index >>> 6);
+    long mask = 1L << index;
+    long current;
+    do {
+      current = bits.get(word);
+      if ((current & mask) != 0) {
+        return;
+      }
+    } while (!bits.compareAndSet(word, current, current | mask));
+    bitsSet.incrementAndGet();
+  }
+
+  /**
+   * 64-bit FNV-1a over the characters, followed by the murmur3 finalizer to spread the bits,
+   * split in two 32-bit hashes for double hashing.
+   */
+  static long hash(String value) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < value.length(); i++) {
+      h ^= value.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
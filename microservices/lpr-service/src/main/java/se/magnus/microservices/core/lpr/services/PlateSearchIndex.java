@@ -0,0 +1,504 @@
+package se.magnus.microservices.core.lpr.services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import se.magnus.util.plate.PlateNormalizer;
+
+/**
+ * In-memory fuzzy index over all plate numbers seen by the service.
+ *
+ * Plate numbers are normalized to a reduced alphabet where characters that OCR commonly
+ * confuses (0/O/Q/D, 1/I/L, 8/B, 5/S, 2/Z) collapse into one, so such confusions cost nothing.
+ * Dropped, extra and other misread characters are handled by a deletion neighbourhood index
+ * over the normalized plates, as in SymSpell: every plate is indexed under itself and under
+ * each string one deletion away from it. Two plates within edit distance 1 always share one of
+ * those, so a search for maxDistance 1 is 1 + length hash lookups. Larger distances first
+ * expand the query by maxDistance - 1 edits over the normalized alphabet, a few hundred
+ * variants for distance 2, and look up each of them the same way. The candidates found are
+ * checked with the Levenshtein distance.
+ *
+ * With a million distinct plates a search takes a few microseconds up to distance 1 and below a
+ * millisecond at distance 2, where it is bound by the cache misses of a few thousand lookups.
+ * Distance 3 expands to some hundred thousand variants and takes around 100 ms, which is why
+ * app.maxSearchDistance defaults to 2.
+ *
+ * The index holds each distinct normalized plate once, so its size follows the number of
+ * distinct plates and not the number of stored detections. Strings are indexed by a 64-bit
+ * code, exact up to 11 characters and hashed beyond, which costs about 8 table entries per
+ * plate. A hash collision only adds a candidate that the distance check drops.
+ *
+ * Searches take no lock. Plates are added by one writer at a time, which writes an entry fully
+ * before it publishes it with a release store, and which copies the arrays into a new table
+ * when they fill up, so a search sees either the old or the new state of a slot. The index
+ * cannot drop entries, so the plates of deleted detections stay until the index is rebuilt,
+ * see rebuild. Until then they only widen the detection query of a search, which finds no rows
+ * for them.
+ */
+@Component
+public class PlateSearchIndex {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PlateSearchIndex.class);
+
+  // The normalized alphabet, OCR look-alikes are folded into their digit
+  private static final char[] ALPHABET = "0123456789ACEFGHJKMNPRTUVWXY".toCharArray();
+
+  // Codes of strings this long or shorter are exact, 37^12 does not fit in a long
+  private static final int MAX_EXACT_LENGTH = 11;
+
+  private final Object writeLock = new Object();
+  private volatile Table table = new Table(1024, 1024, 8192);
+  private Map<String, Entry> keys = new HashMap<>();
+  private List<String> addedDuringRebuild;
+
+  /**
+   * A plate number found by a search and its edit distance to the query, after normalization.
+   */
+  public static class Match {
+    private final String plateNum;
+    private final int distance;
+
+    Match(String plateNum, int distance) {
+      this.plateNum = plateNum;
+      this.distance = distance;
+    }
+
+    public String getPlateNum() {
+      return plateNum;
+    }
+
+    public int getDistance() {
+      return distance;
+    }
+  }
+
+  /**
+   * A distinct normalized plate and the plate numbers normalized to it.
+   */
+  private static class Entry {
+    private final String key;
+    private volatile String[] plateNums;
+
+    Entry(String key, String plateNum) {
+      this.key = key;
+      this.plateNums = new String[] {plateNum};
+    }
+
+    // Copy on write, a search reads the array it got without a lock
+    void addPlateNum(String plateNum) {
+      String[] current = plateNums;
+      for (String existing : current) {
+        if (existing.equals(plateNum)) {
+          return;
+        }
+      }
+      String[] updated = Arrays.copyOf(current, current.length + 1);
+      updated[current.length] = plateNum;
+      plateNums = updated;
+    }
+  }
+
+  /**
+   * An open addressing hash table from the code of a string to the entries indexed under it,
+   * as chains of postings. Only the writer modifies it. A slot is published by storing its code
+   * and a posting by storing the new chain head, both with release semantics, after everything
+   * they point to is written.
+   */
+  private static class Table {
+    private final AtomicLongArray codes;
+    private final AtomicIntegerArray heads;
+    private final int[] postingEntries;
+    private final int[] postingNext;
+    private final AtomicReferenceArray<Entry> entries;
+    private int usedSlots;
+    private int postings;
+    private volatile int size;
+
+    Table(int slots, int entryCapacity, int postingCapacity) {
+      this.codes = new AtomicLongArray(slots);
+      this.heads = new AtomicIntegerArray(slots);
+      this.entries = new AtomicReferenceArray<>(entryCapacity);
+      this.postingEntries = new int[postingCapacity];
+      this.postingNext = new int[postingCapacity];
+    }
+
+    /**
+     * A copy with room for one more entry and the given number of postings, the writer never
+     * modifies a table past its capacity.
+     */
+    Table grow(int newPostings) {
+      int entryCapacity = size < entries.length() ? entries.length() : 2 * entries.length();
+      int postingCapacity = postingEntries.length;
+      while (postings + newPostings > postingCapacity) {
+        postingCapacity *= 2;
+      }
+      // At most half of the slots are used, so a probe soon finds an empty one
+      int slots = codes.length();
+      while ((usedSlots + newPostings) * 2 > slots) {
+        slots *= 2;
+      }
+
+      Table grown = new Table(slots, entryCapacity, postingCapacity);
+      System.arraycopy(postingEntries, 0, grown.postingEntries, 0, postings);
+      System.arraycopy(postingNext, 0, grown.postingNext, 0, postings);
+      grown.postings = postings;
+      for (int i = 0; i < size; i++) {
+        grown.entries.lazySet(i, entries.get(i));
+      }
+      for (int slot = 0; slot < codes.length(); slot++) {
+        long code = codes.get(slot);
+        if (code != 0) {
+          int target = grown.probe(code);
+          grown.heads.lazySet(target, heads.get(slot));
+          grown.codes.lazySet(target, code);
+        }
+      }
+      grown.usedSlots = usedSlots;
+      grown.size = size;
+      return grown;
+    }
+
+    boolean hasRoomFor(int newPostings) {
+      return size < entries.length()
+        && postings + newPostings <= postingEntries.length
+        && (usedSlots + newPostings) * 2 <= codes.length();
+    }
+
+    /**
+     * Adds an entry under the codes of its key and of every string one deletion away from it.
+     */
+    void add(Entry entry, long[] deletionCodes) {
+      int id = size;
+      entries.set(id, entry);
+      for (long code : deletionCodes) {
+        int slot = probe(code);
+        int posting = postings++;
+        postingEntries[posting] = id;
+        postingNext[posting] = heads.get(slot); // 0 ends the chain, postings are stored + 1
+        heads.setRelease(slot, posting + 1);
+        if (codes.get(slot) == 0) {
+          codes.setRelease(slot, code);
+          usedSlots++;
+        }
+      }
+      size = id + 1;
+    }
+
+    /**
+     * The slot of the code, or of the empty slot that ends its probe sequence.
+     */
+    int probe(long code) {
+      int mask = codes.length() - 1;
+      int slot = mix(code) & mask;
+      while (true) {
+        long existing = codes.getAcquire(slot);
+        if (existing == 0 || existing == code) {
+          return slot;
+        }
+        slot = (slot + 1) & mask;
+      }
+    }
+
+    private static int mix(long code) {
+      long h = code * 0x9E3779B97F4A7C15L;
+      return (int) (h ^ (h >>> 32));
+    }
+  }
+
+  /**
+   * The distinct codes a search looks up. The variants of a query repeat many codes, which are
+   * only looked up once, and all codes are collected before the table is read, so that the
+   * lookups do not wait on one another.
+   */
+  private static class Lookups {
+    private long[] codes = new long[256];
+    private int size;
+
+    void add(long code) {
+      if (2 * (size + 1) > codes.length) {
+        long[] previous = codes;
+        codes = new long[2 * previous.length];
+        size = 0;
+        for (long existing : previous) {
+          if (existing != 0) {
+            add(existing);
+          }
+        }
+      }
+      int mask = codes.length - 1;
+      for (int slot = Table.mix(code) & mask; ; slot = (slot + 1) & mask) {
+        if (codes[slot] == code) {
+          return;
+        }
+        if (codes[slot] == 0) {
+          codes[slot] = code;
+          size++;
+          return;
+        }
+      }
+    }
+
+    /**
+     * The distinct ids of the entries indexed under the codes.
+     */
+    int[] find(Table table) {
+      int[] slots = new int[size];
+      long[] found = new long[size];
+      int count = 0;
+      for (long code : codes) {
+        if (code != 0) {
+          found[count] = code;
+          slots[count++] = table.probe(code);
+        }
+      }
+
+      int[] ids = new int[16];
+      int hits = 0;
+      for (int i = 0; i < count; i++) {
+        if (table.codes.getAcquire(slots[i]) != found[i]) {
+          continue;
+        }
+        for (int posting = table.heads.getAcquire(slots[i]); posting != 0; posting = table.postingNext[posting - 1]) {
+          if (hits == ids.length) {
+            ids = Arrays.copyOf(ids, 2 * hits);
+          }
+          ids[hits++] = table.postingEntries[posting - 1];
+        }
+      }
+
+      Arrays.sort(ids, 0, hits);
+      int distinct = 0;
+      for (int i = 0; i < hits; i++) {
+        if (i == 0 || ids[i] != ids[i - 1]) {
+          ids[distinct++] = ids[i];
+        }
+      }
+      return Arrays.copyOf(ids, distinct);
+    }
+  }
+
+  public void add(String plateNum) {
+    synchronized (writeLock) {
+      addToIndex(plateNum);
+      if (addedDuringRebuild != null) {
+        addedDuringRebuild.add(plateNum);
+      }
+    }
+  }
+
+  /**
+   * Replaces the index with a new one over the given plates, which drops the plates of deleted
+   * detections. The new table is built while the current one keeps serving searches and adds;
+   * plates added meanwhile are carried over before it is swapped in.
+   */
+  public void rebuild(Supplier<? extends Iterable<String>> plateNums) {
+    synchronized (writeLock) {
+      addedDuringRebuild = new ArrayList<>();
+    }
+
+    PlateSearchIndex rebuilt = new PlateSearchIndex();
+    try {
+      plateNums.get().forEach(rebuilt::addToIndex);
+    } catch (RuntimeException ex) {
+      synchronized (writeLock) {
+        addedDuringRebuild = null;
+      }
+      throw ex;
+    }
+
+    synchronized (writeLock) {
+      addedDuringRebuild.forEach(rebuilt::addToIndex);
+      addedDuringRebuild = null;
+      LOG.debug("Rebuilt the search index, holds {} distinct plates, before {}", rebuilt.table.size, table.size);
+      keys = rebuilt.keys;
+      table = rebuilt.table;
+    }
+  }
+
+  /**
+   * Find all plate numbers within maxDistance of the given plate, closest first.
+   */
+  public List<Match> search(String plateNum, int maxDistance) {
+    String key = PlateNormalizer.normalize(plateNum);
+    List<Match> matches = new ArrayList<>();
+    Table current = table;
+    if (current.size == 0 || key.isEmpty()) {
+      return matches;
+    }
+
+    Lookups lookups = new Lookups();
+    if (maxDistance <= 0) {
+      lookups.add(code(key.toCharArray(), -1));
+    } else {
+      expand(key.toCharArray(), maxDistance - 1, lookups);
+    }
+
+    for (int id : lookups.find(current)) {
+      Entry entry = current.entries.get(id);
+      int distance = distance(key, entry.key);
+      if (distance <= maxDistance) {
+        for (String match : entry.plateNums) {
+          matches.add(new Match(match, distance));
+        }
+      }
+    }
+
+    matches.sort(Comparator.comparingInt(Match::getDistance).thenComparing(Match::getPlateNum));
+    return matches;
+  }
+
+  /**
+   * Number of distinct normalized plates in the index.
+   */
+  public int size() {
+    return table.size;
+  }
+
+  private void addToIndex(String plateNum) {
+    if (plateNum == null) {
+      return;
+    }
+    String key = PlateNormalizer.normalize(plateNum);
+    if (key.isEmpty()) {
+      return;
+    }
+
+    Entry existing = keys.get(key);
+    if (existing != null) {
+      existing.addPlateNum(plateNum);
+      return;
+    }
+
+    Entry entry = new Entry(key, plateNum);
+    long[] deletionCodes = deletionCodes(key.toCharArray());
+    Table current = table;
+    if (!current.hasRoomFor(deletionCodes.length)) {
+      current = current.grow(deletionCodes.length);
+      table = current;
+    }
+    current.add(entry, deletionCodes);
+    keys.put(key, entry);
+  }
+
+  /**
+   * Adds the lookups for the plates within edit distance edits + 1 of the chars: every string
+   * within edits of them, each looked up as a string within distance 1 of the indexed plates.
+   */
+  private static void expand(char[] chars, int edits, Lookups lookups) {
+    lookups.add(code(chars, -1));
+    for (int i = 0; i < chars.length; i++) {
+      lookups.add(code(chars, i));
+    }
+    if (edits == 0) {
+      return;
+    }
+
+    for (int i = 0; i < chars.length; i++) {
+      // Deletion
+      char[] deleted = new char[chars.length - 1];
+      System.arraycopy(chars, 0, deleted, 0, i);
+      System.arraycopy(chars, i + 1, deleted, i, chars.length - i - 1);
+      expand(deleted, edits - 1, lookups);
+
+      // Substitution
+      char original = chars[i];
+      for (char c : ALPHABET) {
+        if (c != original) {
+          chars[i] = c;
+          expand(chars, edits - 1, lookups);
+        }
+      }
+      chars[i] = original;
+    }
+
+    // Insertion
+    char[] inserted = new char[chars.length + 1];
+    for (int i = 0; i <= chars.length; i++) {
+      System.arraycopy(chars, 0, inserted, 0, i);
+      System.arraycopy(chars, i, inserted, i + 1, chars.length - i);
+      for (char c : ALPHABET) {
+        inserted[i] = c;
+        expand(inserted, edits - 1, lookups);
+      }
+    }
+  }
+
+  /**
+   * The distinct codes of the chars and of the strings one deletion away, deleting either of two
+   * equal neighbours gives the same string.
+   */
+  private static long[] deletionCodes(char[] chars) {
+    long[] codes = new long[chars.length + 1];
+    int count = 0;
+    codes[count++] = code(chars, -1);
+    for (int i = 0; i < chars.length; i++) {
+      if (i == 0 || chars[i] != chars[i - 1]) {
+        codes[count++] = code(chars, i);
+      }
+    }
+    return count == codes.length ? codes : Arrays.copyOf(codes, count);
+  }
+
+  /**
+   * The code of the chars without the one at skip, -1 for all of them. Never 0, which marks an
+   * empty slot.
+   */
+  private static long code(char[] chars, int skip) {
+    int length = skip < 0 ? chars.length : chars.length - 1;
+    long code = 1;
+    if (length <= MAX_EXACT_LENGTH) {
+      for (int i = 0; i < chars.length; i++) {
+        if (i != skip) {
+          code = code * 37 + (chars[i] <= '9' ? chars[i] - '0' + 1 : chars[i] - 'A' + 11);
+        }
+      }
+      return code;
+    }
+    for (int i = 0; i < chars.length; i++) {
+      if (i != skip) {
+        code = (code ^ chars[i]) * 0x100000001B3L;
+      }
+    }
+    return code | Long.MIN_VALUE;
+  }
+
+  static int distance(String a, String b) {
+    int[] previous = new int[b.length() + 1];
+    int[] current = new int[b.length() + 1];
+    for (int j = 0; j <= b.length(); j++) {
+      previous[j] = j;
+    }
+    for (int i = 1; i <= a.length(); i++) {
+      current[0] = i;
+      for (int j = 1; j <= b.length(); j++) {
+        int substitution = previous[j - 1] + (a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1);
+        current[j] = Math.min(substitution, Math.min(previous[j], current[j - 1]) + 1);
+      }
+      int[] swap = previous;
+      previous = current;
+      current = swap;
+    }
+    return previous[b.length()];
+  }
+
+  /**
+   * Group the plate numbers of the matches by their distance, closest first.
+   */
+  static NavigableMap<Integer, List<String>> plateNumsByDistance(List<Match> matches) {
+    NavigableMap<Integer, List<String>> tiers = new TreeMap<>();
+    matches.forEach(m -> tiers.computeIfAbsent(m.getDistance(), d -> new ArrayList<>()).add(m.getPlateNum()));
+    return tiers;
+  }
+}
@@ -0,0 +1,100 @@
+package se.magnus.microservices.core.lpr;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import se.magnus.microservices.core.lpr.persistence.LicencePlateEntity;
+import se.magnus.microservices.core.lpr.persistence.LicencePlateEntity.BoundingBoxEmbeddable;
+import se.magnus.microservices.core.lpr.services.DetectionCache;
+
+class DetectionCacheTests {
+
+  private static final long START = 1699614600000L;
+  private static final String SOURCE_ID = "camera-001";
+
+  private AtomicLong now = new AtomicLong(START);
+  private SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  private DetectionCache cache;
+
+  @BeforeEach
+  void setUp() {
+    cache = new DetectionCache(true, 4, Duration.ofMinutes(10), registry, now::get);
+  }
+
+  @Test
+  void servesCoveredWindow() {
+    cache.add(entity(2, START + 2000, "uuid-002"));
+    cache.add(entity(1, START + 1000, "uuid-001"));
+    cache.add(entity(3, START + 2000, "uuid-003"));
+
+    List<LicencePlateEntity> page = cache.findPageBySourceId(SOURCE_ID, START, Long.MIN_VALUE, Long.MAX_VALUE, 10);
+
+    // Ordered by (unixTime, id), not by insertion
+    assertEquals(List.of(1L, 2L, 3L), page.stream().map(LicencePlateEntity::getId).toList());
+    assertEquals("uuid-001", page.get(0).getObjectUuid());
+    assertEquals(120, page.get(0).getPlateBbox().getX());
+    assertNull(page.get(0).getVehicleBbox());
+
+    // Keyset continuation and limit
+    page = cache.findPageBySourceId(SOURCE_ID, START + 2000, 2, Long.MAX_VALUE, 10);
+    assertEquals(List.of(3L), page.stream().map(LicencePlateEntity::getId).toList());
+    page = cache.findPageBySourceId(SOURCE_ID, START, Long.MIN_VALUE, START + 1000, 10);
+    assertEquals(List.of(1L), page.stream().map(LicencePlateEntity::getId).toList());
+
+    assertEquals(3.0, registry.counter("lpr.cache.requests", "result", "hit").count());
+  }
+
+  @Test
+  void missesBeforeStart() {
+    cache.add(entity(1, START + 1000, "uuid-001"));
+
+    assertNull(cache.findPageBySourceId(SOURCE_ID, START - 1, Long.MIN_VALUE, Long.MAX_VALUE, 10));
+    assertNull(cache.findPageBySourceId("camera-002", START - 1, Long.MIN_VALUE, Long.MAX_VALUE, 10));
+    assertTrue(cache.findPageBySourceId("camera-002", START, Long.MIN_VALUE, Long.MAX_VALUE, 10).isEmpty());
+
+    assertEquals(2.0, registry.counter("lpr.cache.requests", "result", "miss").count());
+    assertEquals(1.0, registry.counter("lpr.cache.requests", "result", "hit").count());
+  }
+
+  @Test
+  void sizeEvictionMovesCoverage() {
+    for (int i = 1; i <= 6; i++) {
+      cache.add(entity(i, START + i * 1000L, "uuid-00" + i));
+    }
+
+    // Detections 1 and 2 were evicted, so the window must start after detection 2
+    assertNull(cache.findPageBySourceId(SOURCE_ID, START + 2000, Long.MIN_VALUE, Long.MAX_VALUE, 10));
+    List<LicencePlateEntity> page = cache.findPageBySourceId(SOURCE_ID, START + 2001, Long.MIN_VALUE, Long.MAX_VALUE, 10);
+    assertEquals(List.of(3L, 4L, 5L, 6L), page.stream().map(LicencePlateEntity::getId).toList());
+    assertEquals(4.0, registry.get("lpr.cache.entries").gauge().value());
+  }
+
+  @Test
+  void timeEvictionMovesCoverage() {
+    cache.add(entity(1, START + 1000, "uuid-001"));
+    now.set(START + Duration.ofMinutes(15).toMillis());
+
+    assertNull(cache.findPageBySourceId(SOURCE_ID, START, Long.MIN_VALUE, Long.MAX_VALUE, 10));
+    long cutoff = now.get() - Duration.ofMinutes(10).toMillis();
+    assertTrue(cache.findPageBySourceId(SOURCE_ID, cutoff, Long.MIN_VALUE, Long.MAX_VALUE, 10).isEmpty());
+    assertEquals(0.0, registry.get("lpr.cache.entries").gauge().value());
+  }
+
+  @Test
+  void disabled() {
+    cache = new DetectionCache(false, 4, Duration.ofMinutes(10), new SimpleMeterRegistry(), now::get);
+    cache.add(entity(1, START + 1000, "uuid-001"));
+
+    assertNull(cache.findPageBySourceId(SOURCE_ID, START, Long.MIN_VALUE, Long.MAX_VALUE, 10));
+  }
+
+  private LicencePlateEntity entity(long id, long unixTime, String objectUuid) {
+    return new LicencePlateEntity(id, SOURCE_ID, objectUuid, null, new BoundingBoxEmbeddable(120, 130, 80, 30),
+      "ABC123", null, unixTime, 0);
+  }
+}
@@ -0,0 +1,79 @@
+package se.magnus.microservices.core.lpr;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.Disposable;
+import reactor.test.StepVerifier;
+import se.magnus.api.core.lpr.LicencePlate;
+import se.magnus.microservices.core.lpr.services.LiveDetections;
+
+class LiveDetectionsTests {
+
+  private SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  private LiveDetections live;
+
+  @BeforeEach
+  void setUp() {
+    live = new LiveDetections(2, registry);
+  }
+
+  @Test
+  void deliversToSubscribersOfTheSource() {
+    StepVerifier.create(live.subscribe("camera-001").take(2))
+      .then(() -> {
+        live.publish(plate("camera-001", "uuid-001"));
+        live.publish(plate("camera-002", "uuid-002"));
+        live.publish(plate("camera-001", "uuid-003"));
+      })
+      .expectNextMatches(p -> p.getObjectUuid().equals("uuid-001"))
+      .expectNextMatches(p -> p.getObjectUuid().equals("uuid-003"))
+      .expectComplete()
+      .verify(Duration.ofSeconds(5));
+
+    assertEquals(0.0, subscribers());
+  }
+
+  @Test
+  void dropsOldestForSlowSubscriber() {
+    StepVerifier.create(live.subscribe("camera-001"), 0)
+      .then(() -> {
+        live.publish(plate("camera-001", "uuid-001"));
+        live.publish(plate("camera-001", "uuid-002"));
+        live.publish(plate("camera-001", "uuid-003"));
+      })
+      .thenRequest(2)
+      .expectNextMatches(p -> p.getObjectUuid().equals("uuid-002"))
+      .expectNextMatches(p -> p.getObjectUuid().equals("uuid-003"))
+      .thenCancel()
+      .verify(Duration.ofSeconds(5));
+
+    assertEquals(1.0, registry.counter("lpr.live.dropped").count());
+  }
+
+  @Test
+  void releasesChannelsWithoutSubscribers() {
+    Disposable first = live.subscribe("camera-001").subscribe();
+    Disposable second = live.subscribe("camera-001").subscribe();
+    assertEquals(2.0, subscribers());
+
+    first.dispose();
+    assertEquals(1.0, subscribers());
+    second.dispose();
+    assertEquals(0.0, subscribers());
+
+    // Publishing without subscribers is a no-op
+    live.publish(plate("camera-001", "uuid-001"));
+  }
+
+  private double subscribers() {
+    return registry.get("lpr.live.subscribers").gauge().value();
+  }
+
+  private LicencePlate plate(String sourceId, String objectUuid) {
+    return new LicencePlate(sourceId, objectUuid, null, null, "ABC123", null, 1699614600000L, null);
+  }
+}
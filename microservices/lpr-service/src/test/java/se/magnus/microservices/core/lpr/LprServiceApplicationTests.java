@@ -0,0 +1,351 @@
+package se.magnus.microservices.core.lpr;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
+import static org.springframework.http.HttpStatus.*;
+import static org.springframework.http.MediaType.APPLICATION_JSON;
+import static org.springframework.http.MediaType.TEXT_EVENT_STREAM;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.cloud.stream.binder.test.TestChannelBinderConfiguration;
+import org.springframework.context.annotation.Import;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+import se.magnus.api.core.lpr.BoundingBox;
+import se.magnus.api.core.lpr.Detections;
+import se.magnus.api.core.lpr.LicencePlate;
+import se.magnus.microservices.core.lpr.persistence.LicencePlateRepository;
+
+@SpringBootTest(webEnvironment = RANDOM_PORT)
+@Import(TestChannelBinderConfiguration.class)
+class LprServiceApplicationTests {
+
+  private static final String SOURCE_ID = "camera-001";
+
+  @Autowired
+  private WebTestClient client;
+
+  @Autowired
+  private LicencePlateRepository repository;
+
+  @Autowired
+  private MeterRegistry meterRegistry;
+
+  @LocalServerPort
+  private int port;
+
+  @BeforeEach
+  void setupDb() {
+    repository.deleteAll();
+  }
+
+  @Test
+  void getLprsBySourceId() {
+    postAndVerifyLpr(SOURCE_ID, "uuid-001", "ABC123", OK);
+    postAndVerifyLpr(SOURCE_ID, "uuid-002", "XYZ789", OK);
+
+    assertEquals(2, repository.findBySourceId(SOURCE_ID).size());
+
+    getAndVerifyLprsBySourceId(SOURCE_ID, OK)
+      .jsonPath("$.length()").isEqualTo(2)
+      .jsonPath("$[1].objectUuid").isEqualTo("uuid-002")
+      .jsonPath("$[1].plateNum").isEqualTo("XYZ789");
+  }
+
+  @Test
+  void getLprsPaged() {
+    List<LicencePlate> plates = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      plates.add(plate(SOURCE_ID, "uuid-00" + i, "PLT" + i, 1699614600000L + i));
+    }
+    postAndVerifyLprs(new Detections(SOURCE_ID, plates, 1699614600000L, null), OK);
+
+    String token = client.get()
+      .uri("/lpr/detections/" + SOURCE_ID + "?limit=2")
+      .accept(APPLICATION_JSON)
+      .exchange()
+      .expectStatus().isEqualTo(OK)
+      .expectBody()
+      .jsonPath("$.length()").isEqualTo(2)
+      .jsonPath("$[0].objectUuid").isEqualTo("uuid-000")
+      .jsonPath("$[1].objectUuid").isEqualTo("uuid-001")
+      .returnResult().getResponseHeaders().getFirst("X-Continuation-Token");
+    assertNotNull(token);
+
+    token = client.get()
+      .uri("/lpr/detections/" + SOURCE_ID + "?limit=2&after=" + token)
+      .accept(APPLICATION_JSON)
+      .exchange()
+      .expectStatus().isEqualTo(OK)
+      .expectBody()
+      .jsonPath("$.length()").isEqualTo(2)
+      .jsonPath("$[0].objectUuid").isEqualTo("uuid-002")
+      .jsonPath("$[1].objectUuid").isEqualTo("uuid-003")
+      .returnResult().getResponseHeaders().getFirst("X-Continuation-Token");
+    assertNotNull(token);
+
+    client.get()
+      .uri("/lpr/detections/" + SOURCE_ID + "?limit=2&after=" + token)
+      .accept(APPLICATION_JSON)
+      .exchange()
+      .expectStatus().isEqualTo(OK)
+      .expectHeader().doesNotExist("X-Continuation-Token")
+      .expectBody()
+      .jsonPath("$.length()").isEqualTo(1)
+      .jsonPath("$[0].objectUuid").isEqualTo("uuid-004");
+  }
+
+  @Test
+  void getLprsTimeWindow() {
+    List<LicencePlate> plates = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      plates.add(plate(SOURCE_ID, "uuid-00" + i, "PLT" + i, 1699614600000L + i));
+    }
+    postAndVerifyLprs(new Detections(SOURCE_ID, plates, 1699614600000L, null), OK);
+
+    client.get()
+      .uri("/lpr/detections/" + SOURCE_ID + "?from=1699614600001&to=1699614600003")
+      .accept(APPLICATION_JSON)
+      .exchange()
+      .expectStatus().isEqualTo(OK)
+      .expectHeader().doesNotExist("X-Continuation-Token")
+      .expectBody()
+      .jsonPath("$.length()").isEqualTo(3)
+      .jsonPath("$[0].objectUuid").isEqualTo("uuid-001")
+      .jsonPath("$[2].objectUuid").isEqualTo("uuid-003");
+  }
+
+  @Test
+  void getLprsInvalidParameters() {
+    client.get()
+      .uri("/lpr/detections/" + SOURCE_ID + "?limit=0")
+      .accept(APPLICATION_JSON)
+      .exchange()
+      .expectStatus().isEqualTo(UNPROCESSABLE_ENTITY)
+      .expectBody()
+      .jsonPath("$.message").isEqualTo("Invalid limit: 0");
+
+    client.get()
+      .uri("/lpr/detections/" + SOURCE_ID + "?after=not-a-token")
+      .accept(APPLICATION_JSON)
+      .exchange()
+      .expectStatus().isEqualTo(UNPROCESSABLE_ENTITY)
+      .expectBody()
+      .jsonPath("$.message").isEqualTo("Invalid continuation token: not-a-token");
+  }
+
+  @Test
+  void getLprsFromCache() {
+    String sourceId = "camera-hot";
+    long now = System.currentTimeMillis();
+    postAndVerifyLprs(new Detections(sourceId, List.of(
+      plate(sourceId, "uuid-hot-001", "ABC123", now),
+      plate(sourceId, "uuid-hot-002", "XYZ789", now + 1)
+    ), now, null), OK);
+
+    // Recent windows are served from the cache, without touching the database
+    repository.deleteAll();
+
+    client.get()
+      .uri("/lpr/detections/" + sourceId + "?from=" + (now - 1000))
+      .accept(APPLICATION_JSON)
+      .exchange()
+      .expectStatus().isEqualTo(OK)
+      .expectBody()
+      .jsonPath("$.length()").isEqualTo(2)
+      .jsonPath("$[0].objectUuid").isEqualTo("uuid-hot-001")
+      .jsonPath("$[1].objectUuid").isEqualTo("uuid-hot-002");
+
+    // Windows reaching back before the start of the service are not
+    getAndVerifyLprsBySourceId(sourceId, OK)
+      .jsonPath("$.length()").isEqualTo(0);
+  }
+
+  @Test
+  void getLiveLprs() {
+    Flux<LicencePlate> live = WebClient.create("http://localhost:" + port)
+      .get().uri("/lpr/detections/camera-live/live")
+      .accept(TEXT_EVENT_STREAM)
+      .retrieve().bodyToFlux(LicencePlate.class);
+
+    StepVerifier.create(live.take(3))
+      .then(() -> {
+        awaitLiveSubscribers(1);
+        postAndVerifyLpr("camera-live", "uuid-live-001", "ABC123", OK);
+        postAndVerifyLpr(SOURCE_ID, "uuid-other", "ABC123", OK);
+        postAndVerifyLprs(new Detections("camera-live", List.of(
+          plate(null, "uuid-live-002", "XYZ789", 0),
+          plate(null, "uuid-live-003", "DEF456", 0)
+        ), 1699614600000L, null), OK);
+      })
+      .expectNextMatches(p -> p.getObjectUuid().equals("uuid-live-001"))
+      .expectNextMatches(p -> p.getObjectUuid().equals("uuid-live-002") && p.getSourceId().equals("camera-live"))
+      .expectNextMatches(p -> p.getObjectUuid().equals("uuid-live-003"))
+      .expectComplete()
+      .verify(Duration.ofSeconds(10));
+  }
+
+  @Test
+  void searchLprs() {
+    postAndVerifyLpr(SOURCE_ID, "uuid-001", "AB0123", OK);
+    postAndVerifyLpr(SOURCE_ID, "uuid-002", "ABO123", OK);
+    postAndVerifyLpr(SOURCE_ID, "uuid-003", "AB123", OK);
+    postAndVerifyLpr(SOURCE_ID, "uuid-004", "XYZ789", OK);
+
+    client.get()
+      .uri("/lpr/search?plate=A8O123&maxDistance=0")
+      .accept(APPLICATION_JSON)
+      .exchange()
+      .expectStatus().isEqualTo(OK)
+      .expectBody()
+      .jsonPath("$.length()").isEqualTo(2);
+
+    client.get()
+      .uri("/lpr/search?plate=AB0123&maxDistance=1")
+      .accept(APPLICATION_JSON)
+      .exchange()
+      .expectStatus().isEqualTo(OK)
+      .expectBody()
+      .jsonPath("$.length()").isEqualTo(3)
+      .jsonPath("$[2].plateNum").isEqualTo("AB123");
+
+    // A newer detection of a farther plate does not take the page from the closer ones
+    client.post().uri("/lpr/detection").bodyValue(plate(SOURCE_ID, "uuid-005", "AB123", 1699614700000L))
+      .exchange().expectStatus().isEqualTo(OK);
+    client.get()
+      .uri("/lpr/search?plate=AB0123&maxDistance=1&limit=2")
+      .accept(APPLICATION_JSON)
+      .exchange()
+      .expectStatus().isEqualTo(OK)
+      .expectBody()
+      .jsonPath("$.length()").isEqualTo(2)
+      .jsonPath("$[?(@.plateNum == 'AB123')]").doesNotExist();
+
+    client.get()
+      .uri("/lpr/search?plate=AB0123&maxDistance=9")
+      .accept(APPLICATION_JSON)
+      .exchange()
+      .expectStatus().isEqualTo(UNPROCESSABLE_ENTITY)
+      .expectBody()
+      .jsonPath("$.message").isEqualTo("Invalid maxDistance: 9");
+  }
+
+  @Test
+  void duplicateError() {
+    postAndVerifyLpr(SOURCE_ID, "uuid-001", "ABC123", OK);
+
+    postAndVerifyLpr(SOURCE_ID, "uuid-001", "ABC123", UNPROCESSABLE_ENTITY)
+      .jsonPath("$.path").isEqualTo("/lpr/detection")
+      .jsonPath("$.message").isEqualTo("Duplicate key, Source Id: " + SOURCE_ID + ", Object UUID:uuid-001");
+
+    assertEquals(1, repository.count());
+  }
+
+  @Test
+  void createLprsFrame() {
+    Detections frame = new Detections(SOURCE_ID, List.of(
+      plate(null, "uuid-001", "ABC123", 0),
+      plate(null, "uuid-002", "XYZ789", 0),
+      plate(null, "uuid-003", "DEF456", 0)
+    ), 1699614600000L, "2025-11-11T10:30:00Z");
+
+    postAndVerifyLprs(frame, OK)
+      .jsonPath("$.sourceId").isEqualTo(SOURCE_ID)
+      .jsonPath("$.created").isEqualTo(3)
+      .jsonPath("$.duplicates.length()").isEqualTo(0);
+
+    // Plates without own sourceId and time inherit them from the frame
+    assertEquals(3, repository.findBySourceIdAndUnixTimeBetween(SOURCE_ID, 1699614600000L, 1699614600000L).size());
+  }
+
+  @Test
+  void createLprsFrameReportsDuplicates() {
+    postAndVerifyLpr(SOURCE_ID, "uuid-001", "ABC123", OK);
+
+    Detections frame = new Detections(SOURCE_ID, List.of(
+      plate(SOURCE_ID, "uuid-001", "ABC123", 1699614600000L),
+      plate(SOURCE_ID, "uuid-002", "XYZ789", 1699614600000L),
+      plate(SOURCE_ID, "uuid-002", "XYZ789", 1699614600000L)
+    ), 1699614600000L, "2025-11-11T10:30:00Z");
+
+    postAndVerifyLprs(frame, OK)
+      .jsonPath("$.created").isEqualTo(1)
+      .jsonPath("$.duplicates.length()").isEqualTo(2)
+      .jsonPath("$.duplicates[0]").isEqualTo("uuid-001")
+      .jsonPath("$.duplicates[1]").isEqualTo("uuid-002");
+
+    assertEquals(2, repository.count());
+  }
+
+  @Test
+  void createLprsInvalidSourceId() {
+    Detections frame = new Detections("", List.of(plate(null, "uuid-001", "ABC123", 0)), 1699614600000L, null);
+
+    postAndVerifyLprs(frame, UNPROCESSABLE_ENTITY)
+      .jsonPath("$.path").isEqualTo("/lpr/detections")
+      .jsonPath("$.message").isEqualTo("Invalid sourceId: ");
+
+    assertEquals(0, repository.count());
+  }
+
+  private void awaitLiveSubscribers(int expected) {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (meterRegistry.get("lpr.live.subscribers").gauge().value() < expected) {
+      if (System.currentTimeMillis() > deadline) {
+        throw new AssertionError("No live subscriber after 5 s");
+      }
+      LockSupport.parkNanos(10_000_000);
+    }
+  }
+
+  private LicencePlate plate(String sourceId, String objectUuid, String plateNum, long unixTime) {
+    return new LicencePlate(sourceId, objectUuid,
+      new BoundingBox(100, 100, 200, 150), new BoundingBox(120, 130, 80, 30),
+      plateNum, null, unixTime, null);
+  }
+
+  private WebTestClient.BodyContentSpec getAndVerifyLprsBySourceId(String sourceId, HttpStatus expectedStatus) {
+    return client.get()
+      .uri("/lpr/detections/" + sourceId)
+      .accept(APPLICATION_JSON)
+      .exchange()
+      .expectStatus().isEqualTo(expectedStatus)
+      .expectHeader().contentType(APPLICATION_JSON)
+      .expectBody();
+  }
+
+  private WebTestClient.BodyContentSpec postAndVerifyLpr(String sourceId, String objectUuid, String plateNum, HttpStatus expectedStatus) {
+    return client.post()
+      .uri("/lpr/detection")
+      .bodyValue(plate(sourceId, objectUuid, plateNum, 1699614600000L))
+      .accept(APPLICATION_JSON)
+      .exchange()
+      .expectStatus().isEqualTo(expectedStatus)
+      .expectHeader().contentType(APPLICATION_JSON)
+      .expectBody();
+  }
+
+  private WebTestClient.BodyContentSpec postAndVerifyLprs(Detections frame, HttpStatus expectedStatus) {
+    return client.post()
+      .uri("/lpr/detections")
+      .bodyValue(frame)
+      .accept(APPLICATION_JSON)
+      .exchange()
+      .expectStatus().isEqualTo(expectedStatus)
+      .expectHeader().contentType(APPLICATION_JSON)
+      .expectBody();
+  }
+}
@@ -0,0 +1,134 @@
+package se.magnus.microservices.core.lpr;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static se.magnus.api.event.Event.Type.CREATE;
+import static se.magnus.api.event.Event.Type.DELETE;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.cloud.stream.binder.test.InputDestination;
+import org.springframework.cloud.stream.binder.test.TestChannelBinderConfiguration;
+import org.springframework.context.annotation.Import;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.MessageConverter;
+import org.springframework.messaging.support.MessageBuilder;
+import se.magnus.api.core.lpr.BoundingBox;
+import se.magnus.api.core.lpr.LicencePlate;
+import se.magnus.api.event.Event;
+import se.magnus.microservices.core.lpr.persistence.LicencePlateRepository;
+import se.magnus.util.messaging.EventCodecConfiguration;
+
+@SpringBootTest(properties = "app.messaging.batchSize=3")
+@Import(TestChannelBinderConfiguration.class)
+class MessagingTests {
+
+  private static final String SOURCE_ID = "camera-001";
+
+  @Autowired
+  private InputDestination input;
+
+  @Autowired
+  private LicencePlateRepository repository;
+
+  @Autowired
+  @Qualifier("cborMessageConverter")
+  private MessageConverter cborConverter;
+
+  @Autowired
+  @Qualifier("smileMessageConverter")
+  private MessageConverter smileConverter;
+
+  @BeforeEach
+  void setupDb() {
+    repository.deleteAll();
+  }
+
+  @Test
+  void createLprsInBatches() {
+    for (int i = 0; i < 7; i++) {
+      sendCreateEvent("uuid-00" + i, "PLT" + i);
+    }
+
+    await(() -> repository.count() == 7);
+    assertEquals("PLT3", repository.findByObjectUuid("uuid-003").get().getPlateNum());
+  }
+
+  @Test
+  void skipsRedeliveredEvents() {
+    sendCreateEvent("uuid-001", "ABC123");
+    sendCreateEvent("uuid-001", "ABC123");
+    sendCreateEvent("uuid-002", "XYZ789");
+    await(() -> repository.count() == 2);
+
+    sendCreateEvent("uuid-001", "ABC123");
+    sendCreateEvent("uuid-003", "DEF456");
+    await(() -> repository.count() == 3);
+  }
+
+  @Test
+  void deleteLprsInOrder() {
+    sendCreateEvent("uuid-001", "ABC123");
+    sendCreateEvent("uuid-002", "XYZ789");
+    sendDeleteEvent("uuid-001");
+    sendCreateEvent("uuid-003", "DEF456");
+    sendDeleteEvent("uuid-003");
+
+    await(() -> repository.count() == 1 && repository.findByObjectUuid("uuid-002").isPresent());
+    assertTrue(repository.findByObjectUuid("uuid-003").isEmpty());
+  }
+
+  @Test
+  void readsJsonCborAndSmileEvents() {
+    sendCreateEvent("uuid-001", "ABC123");
+    sendEncoded(cborConverter, EventCodecConfiguration.APPLICATION_CBOR.toString(), createEvent("uuid-002", "XYZ789"));
+    sendEncoded(smileConverter, EventCodecConfiguration.APPLICATION_SMILE.toString(), createEvent("uuid-003", "DEF456"));
+
+    await(() -> repository.count() == 3);
+    assertEquals("XYZ789", repository.findByObjectUuid("uuid-002").get().getPlateNum());
+    assertEquals("DEF456", repository.findByObjectUuid("uuid-003").get().getPlateNum());
+  }
+
+  private void sendCreateEvent(String objectUuid, String plateNum) {
+    send(createEvent(objectUuid, plateNum));
+  }
+
+  private Event createEvent(String objectUuid, String plateNum) {
+    LicencePlate plate = new LicencePlate(SOURCE_ID, objectUuid,
+      new BoundingBox(100, 100, 200, 150), new BoundingBox(120, 130, 80, 30),
+      plateNum, null, 1699614600000L, null);
+    return new Event(CREATE, objectUuid, plate);
+  }
+
+  // Sent as a batch of encoded payloads, as the Kafka binder passes a poll to a batch-mode consumer
+  private void sendEncoded(MessageConverter converter, String contentType, Event event) {
+    Message<?> encoded = converter.toMessage(event, new MessageHeaders(Map.of(MessageHeaders.CONTENT_TYPE, contentType)));
+    input.send(MessageBuilder.withPayload(List.of(encoded.getPayload())).copyHeaders(encoded.getHeaders()).build(), "lpr");
+  }
+
+  private void sendDeleteEvent(String objectUuid) {
+    send(new Event(DELETE, objectUuid, null));
+  }
+
+  private void send(Event event) {
+    input.send(MessageBuilder.withPayload(event).build(), "lpr");
+  }
+
+  private void await(BooleanSupplier condition) {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!condition.getAsBoolean()) {
+      if (System.currentTimeMillis() > deadline) {
+        throw new AssertionError("Events not processed within 5 s");
+      }
+      LockSupport.parkNanos(20_000_000);
+    }
+  }
+}
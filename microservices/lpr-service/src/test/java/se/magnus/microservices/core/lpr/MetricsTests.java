@@ -0,0 +1,87 @@
+package se.magnus.microservices.core.lpr;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
+import static org.springframework.http.MediaType.APPLICATION_JSON;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.actuate.observability.AutoConfigureObservability;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.cloud.stream.binder.test.TestChannelBinderConfiguration;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import se.magnus.api.core.lpr.BoundingBox;
+import se.magnus.api.core.lpr.Detections;
+import se.magnus.api.core.lpr.LicencePlate;
+
+// Metrics are not exported in tests unless asked for
+@SpringBootTest(webEnvironment = RANDOM_PORT)
+@AutoConfigureObservability
+@Import(TestChannelBinderConfiguration.class)
+class MetricsTests {
+
+  @Autowired
+  private WebTestClient client;
+
+  @Test
+  void prometheusScrapeHasHistogramsAndSchedulerSaturation() {
+    LicencePlate plate = new LicencePlate("camera-metrics", "uuid-metrics", new BoundingBox(1, 2, 3, 4),
+      new BoundingBox(5, 6, 7, 8), "ABC123", "2023-11-10T11:10:00Z", 1699614600000L, null);
+    client.post().uri("/lpr/detection").contentType(APPLICATION_JSON).bodyValue(plate)
+      .exchange().expectStatus().isOk();
+    // A single detection's stats are part of its save, a frame records them on their own
+    LicencePlate framePlate = new LicencePlate("camera-metrics", "uuid-metrics-frame", new BoundingBox(1, 2, 3, 4),
+      new BoundingBox(5, 6, 7, 8), "XYZ789", "2023-11-10T11:10:01Z", 1699614601000L, null);
+    client.post().uri("/lpr/detections").contentType(APPLICATION_JSON)
+      .bodyValue(new Detections("camera-metrics", List.of(framePlate), 1699614601000L, null))
+      .exchange().expectStatus().isOk();
+    client.get().uri("/lpr/detections/camera-metrics").accept(APPLICATION_JSON)
+      .exchange().expectStatus().isOk();
+
+    // Every histogram bucket is a line of its own
+    String scrape = client.mutate().codecs(codecs -> codecs.defaultCodecs().maxInMemorySize(4 * 1024 * 1024)).build()
+      .get().uri("/actuator/prometheus")
+      .exchange()
+      .expectStatus().isOk()
+      .expectBody(String.class).returnResult().getResponseBody();
+
+    assertTrue(scrape.contains("application=\"lpr-service\""));
+    assertHasSeries(scrape, "lpr_service_calls_seconds_bucket{", "method=\"createLpr\"", "outcome=\"SUCCESS\"");
+    assertHasSeries(scrape, "lpr_service_calls_seconds_bucket{", "method=\"getLprs\"");
+    assertHasSeries(scrape, "lpr_repository_calls_seconds_bucket{", "operation=\"save\"");
+    assertHasSeries(scrape, "lpr_repository_calls_seconds_bucket{", "operation=\"recordStats\"");
+    assertHasSeries(scrape, "http_server_requests_seconds_bucket{", "uri=\"/lpr/detection\"");
+    assertHasSeries(scrape, "lpr_jdbc_scheduler_tasks_pending_seconds_active_count{", "name=\"jdbc-pool\"");
+    assertHasSeries(scrape, "lpr_jdbc_scheduler_tasks_active_seconds_active_count{", "name=\"jdbc-pool\"");
+    assertHasSeries(scrape, "lpr_jdbc_scheduler_threads_max{", "name=\"jdbc-pool\"");
+    assertHasSeries(scrape, "lpr_jdbc_scheduler_tasks_queued_max{", "name=\"jdbc-pool\"");
+  }
+
+  @Test
+  void reportsStageTimingsOfTheRequest() {
+    String serverTiming = client.get().uri("/lpr/detections/camera-timing").accept(APPLICATION_JSON)
+      .header("X-Request-ID", "request-timing")
+      .exchange()
+      .expectStatus().isOk()
+      .expectHeader().valueEquals("X-Request-ID", "request-timing")
+      .returnResult(String.class).getResponseHeaders().getFirst("Server-Timing");
+
+    assertTrue(serverTiming.matches("(.*, )?lpr\\.getLprs;dur=[0-9.]+, (.*, )?lpr;dur=[0-9.]+"), serverTiming);
+  }
+
+  static void assertHasSeries(String scrape, String series, String... labels) {
+    boolean found = scrape.lines()
+      .filter(line -> line.startsWith(series))
+      .anyMatch(line -> {
+        for (String label : labels) {
+          if (!line.contains(label)) {
+            return false;
+          }
+        }
+        return true;
+      });
+    assertTrue(found, "No " + series + " with " + String.join(", ", labels));
+  }
+}
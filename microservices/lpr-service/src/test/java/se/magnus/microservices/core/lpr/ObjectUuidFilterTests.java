@@ -0,0 +1,70 @@
+package se.magnus.microservices.core.lpr;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.UUID;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import se.magnus.microservices.core.lpr.services.ObjectUuidFilter;
+
+class ObjectUuidFilterTests {
+
+  private static final int INSERTIONS = 100_000;
+
+  private SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  private ObjectUuidFilter filter;
+
+  @BeforeEach
+  void setUp() {
+    filter = new ObjectUuidFilter(true, INSERTIONS, 0.01, registry);
+  }
+
+  @Test
+  void reportsEverythingAsPossiblyStoredUntilLoaded() {
+    assertTrue(filter.mightContain("uuid-001"));
+
+    filter.setLoaded();
+    assertFalse(filter.mightContain("uuid-001"));
+  }
+
+  @Test
+  void neverMissesAnAddedObjectUuid() {
+    filter.setLoaded();
+    for (int i = 0; i < INSERTIONS; i++) {
+      filter.add("uuid-" + i);
+    }
+    for (int i = 0; i < INSERTIONS; i++) {
+      assertTrue(filter.mightContain("uuid-" + i));
+    }
+  }
+
+  @Test
+  void keepsTheConfiguredFalsePositiveRate() {
+    filter.setLoaded();
+    for (int i = 0; i < INSERTIONS; i++) {
+      filter.add(UUID.randomUUID().toString());
+    }
+
+    int falsePositives = 0;
+    for (int i = 0; i < INSERTIONS; i++) {
+      if (filter.mightContain(UUID.randomUUID().toString())) {
+        falsePositives++;
+        filter.recordFalsePositive();
+      }
+    }
+
+    double rate = (double) falsePositives / INSERTIONS;
+    assertTrue(rate < 0.015, "false positive rate: " + rate);
+    assertEquals(rate, registry.get("lpr.dedup.false.positive.ratio").gauge().value(), 0.0001);
+    assertEquals(0.01, registry.get("lpr.dedup.expected.false.positive.ratio").gauge().value(), 0.003);
+  }
+
+  @Test
+  void reportsMemory() {
+    // About 9.6 bits per insertion for a 1% false positive rate
+    double memory = registry.get("lpr.dedup.memory").gauge().value();
+    assertEquals(filter.getMemoryBytes(), memory);
+    assertTrue(memory > INSERTIONS * 9.5 / 8 && memory < INSERTIONS * 9.7 / 8, "memory: " + memory);
+  }
+}
@@ -0,0 +1,253 @@
+package se.magnus.microservices.core.lpr;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
+import static org.springframework.http.HttpStatus.OK;
+import static org.springframework.http.HttpStatus.UNPROCESSABLE_ENTITY;
+import static org.springframework.http.MediaType.APPLICATION_JSON;
+import static org.springframework.test.annotation.DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.cloud.stream.binder.test.TestChannelBinderConfiguration;
+import org.springframework.context.annotation.Import;
+import org.springframework.http.HttpStatus;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.transaction.PlatformTransactionManager;
+import reactor.core.scheduler.Scheduler;
+import se.magnus.api.core.lpr.BoundingBox;
+import se.magnus.api.core.lpr.Detections;
+import se.magnus.api.core.lpr.LicencePlate;
+import se.magnus.api.exceptions.InvalidInputException;
+import se.magnus.microservices.core.lpr.persistence.LicencePlateEntity;
+import se.magnus.microservices.core.lpr.persistence.PartitionedLicencePlateStore;
+import se.magnus.microservices.core.lpr.persistence.TrafficStatsStore;
+import se.magnus.microservices.core.lpr.services.LprServiceImpl;
+
+// A new context, and with it a new in-memory database, for every test. The retention keeps the
+// test days, a store with a clock of its own tests the retention.
+@SpringBootTest(webEnvironment = RANDOM_PORT, properties = {
+  "spring.datasource.url=jdbc:h2:mem:lpr-partitioned-db",
+  "app.partitioning.retention=36500d"})
+@Import(TestChannelBinderConfiguration.class)
+@ActiveProfiles("partitioned")
+@DirtiesContext(classMode = AFTER_EACH_TEST_METHOD)
+class PartitionedStoreTests {
+
+  private static final String SOURCE_ID = "camera-001";
+  private static final long DAY = 86_400_000L;
+  private static final long MARCH_1 = 1709251200000L; // 2024-03-01T00:00:00Z
+
+  @Autowired
+  private WebTestClient client;
+
+  @Autowired
+  private PartitionedLicencePlateStore store;
+
+  @Autowired
+  private LprServiceImpl service;
+
+  @Autowired
+  private JdbcTemplate jdbc;
+
+  @Autowired
+  private TrafficStatsStore statsStore;
+
+  @Autowired
+  private PlatformTransactionManager transactionManager;
+
+  @Autowired
+  @Qualifier("jdbcScheduler")
+  private Scheduler jdbcScheduler;
+
+  @Test
+  void routesByDayAndPagesAcrossPartitions() {
+    postLprs(plate("uuid-001", "ABC123", MARCH_1 + 1000), plate("uuid-002", "XYZ789", MARCH_1 + DAY + 1000),
+      plate("uuid-003", "DEF456", MARCH_1 + 2 * DAY + 1000), plate("uuid-004", "GHI012", MARCH_1 + 2 * DAY + 2000));
+
+    assertEquals(List.of("licence_plates_20240301", "licence_plates_20240302", "licence_plates_20240303"), store.getPartitions());
+
+    String token = client.get()
+      .uri("/lpr/detections/" + SOURCE_ID + "?limit=3")
+      .accept(APPLICATION_JSON)
+      .exchange()
+      .expectStatus().isEqualTo(OK)
+      .expectBody()
+      .jsonPath("$.length()").isEqualTo(3)
+      .jsonPath("$[0].objectUuid").isEqualTo("uuid-001")
+      .jsonPath("$[1].objectUuid").isEqualTo("uuid-002")
+      .jsonPath("$[2].objectUuid").isEqualTo("uuid-003")
+      .returnResult().getResponseHeaders().getFirst("X-Continuation-Token");
+
+    client.get()
+      .uri("/lpr/detections/" + SOURCE_ID + "?limit=3&after=" + token)
+      .accept(APPLICATION_JSON)
+      .exchange()
+      .expectStatus().isEqualTo(OK)
+      .expectHeader().doesNotExist("X-Continuation-Token")
+      .expectBody()
+      .jsonPath("$.length()").isEqualTo(1)
+      .jsonPath("$[0].objectUuid").isEqualTo("uuid-004");
+  }
+
+  @Test
+  void readsOnlyThePartitionsOfTheTimeRange() {
+    postLprs(plate("uuid-001", "ABC123", MARCH_1 + 1000), plate("uuid-002", "XYZ789", MARCH_1 + DAY + 1000));
+
+    // A query touching the dropped table would fail
+    jdbc.execute("DROP TABLE licence_plates_20240301");
+
+    client.get()
+      .uri("/lpr/detections/" + SOURCE_ID + "?from=" + (MARCH_1 + DAY))
+      .accept(APPLICATION_JSON)
+      .exchange()
+      .expectStatus().isEqualTo(OK)
+      .expectBody()
+      .jsonPath("$.length()").isEqualTo(1)
+      .jsonPath("$[0].objectUuid").isEqualTo("uuid-002");
+  }
+
+  @Test
+  void rejectsRetriedDetections() {
+    postLpr(plate("uuid-001", "ABC123", MARCH_1 + 1000), OK);
+    postLpr(plate("uuid-001", "ABC123", MARCH_1 + 1000), UNPROCESSABLE_ENTITY);
+
+    // Each table only has a unique constraint for its own day, the other tables are checked first
+    postLpr(plate("uuid-001", "ABC123", MARCH_1 + DAY + 1000), UNPROCESSABLE_ENTITY);
+    assertEquals(List.of("licence_plates_20240301"), store.getPartitions());
+
+    client.post()
+      .uri("/lpr/detections")
+      .bodyValue(new Detections(SOURCE_ID, List.of(plate("uuid-001", "ABC123", MARCH_1 + 1000), plate("uuid-002", "XYZ789", MARCH_1 + 2000)), MARCH_1, null))
+      .exchange()
+      .expectStatus().isEqualTo(OK)
+      .expectBody()
+      .jsonPath("$.created").isEqualTo(1)
+      .jsonPath("$.duplicates[0]").isEqualTo("uuid-001");
+  }
+
+  @Test
+  void searchesAndDeletesAcrossPartitions() {
+    postLprs(plate("uuid-001", "ABC123", MARCH_1 + 1000), plate("uuid-002", "ABC123", MARCH_1 + DAY + 1000),
+      plate("uuid-003", "XYZ789", MARCH_1 + DAY + 2000));
+
+    client.get()
+      .uri("/lpr/search?plate=ABC123&maxDistance=0")
+      .accept(APPLICATION_JSON)
+      .exchange()
+      .expectStatus().isEqualTo(OK)
+      .expectBody()
+      .jsonPath("$.length()").isEqualTo(2)
+      .jsonPath("$[0].objectUuid").isEqualTo("uuid-002")
+      .jsonPath("$[1].objectUuid").isEqualTo("uuid-001");
+
+    assertEquals(2, service.deleteLprs(List.of("uuid-001", "uuid-003")).block());
+    assertEquals(List.of("uuid-002"), storedObjectUuids(store));
+  }
+
+  @Test
+  void readsLongPlateListsInChunks() {
+    List<LicencePlateEntity> entities = new ArrayList<>();
+    for (int i = 0; i < 1200; i++) {
+      LicencePlateEntity entity = new LicencePlateEntity();
+      entity.setSourceId(SOURCE_ID);
+      entity.setObjectUuid("uuid-" + i);
+      entity.setPlateNum(String.format("P%04d", i));
+      // Shuffled over two days, so the newest detections are spread over the chunks
+      entity.setUnixTime(MARCH_1 + (i * 7919L % 1200) * 100_000);
+      entities.add(entity);
+    }
+    store.saveAll(entities);
+
+    List<String> newest = entities.stream()
+      .sorted(Comparator.comparingLong(LicencePlateEntity::getUnixTime).reversed())
+      .limit(5)
+      .map(LicencePlateEntity::getObjectUuid)
+      .toList();
+    List<String> plateNums = entities.stream().map(LicencePlateEntity::getPlateNum).toList();
+    assertEquals(newest, store.findByPlateNumIn(plateNums, 5).stream().map(LicencePlateEntity::getObjectUuid).toList());
+  }
+
+  @Test
+  void dropsExpiredPartitions() {
+    postLprs(plate("uuid-001", "ABC123", MARCH_1 + 1000), plate("uuid-002", "XYZ789", MARCH_1 + 40 * DAY));
+    assertEquals(2, store.getPartitions().size());
+
+    PartitionedLicencePlateStore expiringStore = storeAt(MARCH_1 + 40 * DAY);
+    try {
+      assertEquals(1, expiringStore.dropExpiredPartitions());
+
+      assertEquals(1, expiringStore.getPartitions().size());
+      assertEquals(List.of("uuid-002"), storedObjectUuids(expiringStore));
+      assertEquals(0, expiringStore.dropExpiredPartitions());
+    } finally {
+      expiringStore.destroy();
+    }
+  }
+
+  @Test
+  void rejectsDetectionsOlderThanTheRetention() {
+    PartitionedLicencePlateStore expiringStore = storeAt(MARCH_1 + 40 * DAY);
+    try {
+      LicencePlateEntity expired = new LicencePlateEntity();
+      expired.setSourceId(SOURCE_ID);
+      expired.setObjectUuid("uuid-001");
+      expired.setUnixTime(MARCH_1 + 1000);
+
+      // Its table would be dropped by the next retention run, or under the insert
+      assertThrows(InvalidInputException.class, () -> expiringStore.saveAll(List.of(expired)));
+      assertEquals(List.of(), expiringStore.getPartitions());
+    } finally {
+      expiringStore.destroy();
+    }
+  }
+
+  // A second store on the same database, with a retention of 30 days at the given time
+  private PartitionedLicencePlateStore storeAt(long now) {
+    return new PartitionedLicencePlateStore(jdbc, statsStore, transactionManager, jdbcScheduler, Duration.ofDays(30), Duration.ofDays(1),
+      new SimpleMeterRegistry(), () -> now);
+  }
+
+  private List<String> storedObjectUuids(PartitionedLicencePlateStore partitionedStore) {
+    List<String> objectUuids = new ArrayList<>();
+    for (String table : partitionedStore.getPartitions()) {
+      objectUuids.addAll(jdbc.queryForList("SELECT object_uuid FROM " + table + " ORDER BY unix_time", String.class));
+    }
+    return objectUuids;
+  }
+
+  private void postLprs(LicencePlate... plates) {
+    client.post()
+      .uri("/lpr/detections")
+      .bodyValue(new Detections(SOURCE_ID, List.of(plates), plates[0].getUnixTime(), null))
+      .exchange()
+      .expectStatus().isEqualTo(OK)
+      .expectBody()
+      .jsonPath("$.created").isEqualTo(plates.length);
+  }
+
+  private void postLpr(LicencePlate plate, HttpStatus expectedStatus) {
+    client.post()
+      .uri("/lpr/detection")
+      .bodyValue(plate)
+      .exchange()
+      .expectStatus().isEqualTo(expectedStatus);
+  }
+
+  private LicencePlate plate(String objectUuid, String plateNum, long unixTime) {
+    return new LicencePlate(SOURCE_ID, objectUuid,
+      new BoundingBox(100, 100, 200, 150), new BoundingBox(120, 130, 80, 30),
+      plateNum, null, unixTime, null);
+  }
+}
@@ -0,0 +1,150 @@
+package se.magnus.microservices.core.lpr;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.cloud.stream.binder.test.TestChannelBinderConfiguration;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+import reactor.netty.resources.LoopResources;
+import se.magnus.api.core.lpr.BoundingBox;
+import se.magnus.api.core.lpr.LicencePlate;
+
+/**
+ * Compares throughput and latency of createLpr and getLprs between the default JPA mode,
+ * running on the bounded jdbcScheduler, and the r2dbc mode.
+ *
+ * Excluded from the regular test task, run with "./gradlew :microservices:lpr-service:benchmark".
+ * The load can be tuned with the system properties benchmark.requests and benchmark.concurrency.
+ * Concurrency above threadPoolSize + taskQueueSize (110 by default) makes the JPA mode reject tasks.
+ */
+@Tag("benchmark")
+class PersistenceModeBenchmark {
+
+  private static final int REQUESTS = Integer.getInteger("benchmark.requests", 20_000);
+  private static final int CONCURRENCY = Integer.getInteger("benchmark.concurrency", 128);
+  private static final int SOURCES = 20;
+
+  @Test
+  void compareJpaAndR2dbc() {
+    Result[] jpa = runMode("jpa");
+    Result[] r2dbc = runMode("r2dbc");
+
+    System.out.printf("%nPersistence mode benchmark, %d requests, concurrency %d%n", REQUESTS, CONCURRENCY);
+    System.out.printf("%-6s %-10s %12s %10s %10s %10s %8s%n", "mode", "operation", "req/s", "p50 ms", "p99 ms", "max ms", "errors");
+    for (Result result : jpa) {
+      System.out.println(result);
+    }
+    for (Result result : r2dbc) {
+      System.out.println(result);
+    }
+  }
+
+  private Result[] runMode(String mode) {
+    SpringApplicationBuilder builder = new SpringApplicationBuilder(LprServiceApplication.class, TestChannelBinderConfiguration.class);
+    if (mode.equals("r2dbc")) {
+      builder.profiles("r2dbc");
+    }
+
+    // The client gets a connection per concurrent call and an event loop of its own. In the r2dbc
+    // mode the H2 statements run on the server's event loops, which the client shares by default.
+    ConnectionProvider connections = ConnectionProvider.builder("benchmark").maxConnections(CONCURRENCY).build();
+    LoopResources loops = LoopResources.create("benchmark-client", 1, true);
+
+    // Passed as arguments rather than default properties, which application.yml would override
+    try (ConfigurableApplicationContext context = builder.run(
+      "--server.port=0",
+      "--spring.datasource.url=jdbc:h2:mem:lpr-bench-" + mode,
+      "--app.r2dbc.url=r2dbc:h2:mem:///lpr-bench-" + mode,
+      "--spring.jpa.show-sql=false",
+      "--logging.level.se.magnus=INFO",
+      "--logging.level.org.hibernate.SQL=WARN")) {
+      String port = context.getEnvironment().getProperty("local.server.port");
+      WebClient client = WebClient.builder()
+        .baseUrl("http://localhost:" + port)
+        .clientConnector(new ReactorClientHttpConnector(HttpClient.create(connections).runOn(loops)))
+        .build();
+
+      IntFunction<Mono<?>> create = i -> client.post().uri("/lpr/detection")
+        .bodyValue(plate(mode, i))
+        .retrieve().bodyToMono(LicencePlate.class);
+      IntFunction<Mono<?>> read = i -> client.get().uri("/lpr/detections/camera-{id}?limit=50", i % SOURCES)
+        .retrieve().bodyToFlux(LicencePlate.class).then();
+
+      // Warm up both paths before measuring
+      measure(mode, "warmup", REQUESTS / 10, i -> create.apply(REQUESTS + i));
+      measure(mode, "warmup", REQUESTS / 10, read);
+
+      return new Result[] {
+        measure(mode, "createLpr", REQUESTS, create),
+        measure(mode, "getLprs", REQUESTS, read)
+      };
+    } finally {
+      connections.dispose();
+      loops.dispose();
+    }
+  }
+
+  private Result measure(String mode, String operation, int requests, IntFunction<Mono<?>> call) {
+    long[] latencies = new long[requests];
+    AtomicInteger errors = new AtomicInteger();
+
+    long start = System.nanoTime();
+    Flux.range(0, requests)
+      .flatMap(i -> Mono.defer(() -> {
+        long callStart = System.nanoTime();
+        return call.apply(i)
+          .doOnTerminate(() -> latencies[i] = System.nanoTime() - callStart)
+          .onErrorResume(ex -> {
+            errors.incrementAndGet();
+            return Mono.empty();
+          });
+      }), CONCURRENCY)
+      .blockLast(Duration.ofMinutes(10));
+    long elapsed = System.nanoTime() - start;
+
+    Arrays.sort(latencies);
+    return new Result(mode, operation, requests * 1e9 / elapsed,
+      latencies[requests / 2] / 1e6, latencies[(int) (requests * 0.99)] / 1e6, latencies[requests - 1] / 1e6, errors.get());
+  }
+
+  private LicencePlate plate(String mode, int i) {
+    return new LicencePlate("camera-" + (i % SOURCES), mode + "-uuid-" + i,
+      new BoundingBox(100, 100, 200, 150), new BoundingBox(120, 130, 80, 30),
+      "PLT" + (i % 10_000), null, 1699614600000L + i, null);
+  }
+
+  private static class Result {
+    private final String mode;
+    private final String operation;
+    private final double throughput;
+    private final double p50;
+    private final double p99;
+    private final double max;
+    private final int errors;
+
+    Result(String mode, String operation, double throughput, double p50, double p99, double max, int errors) {
+      this.mode = mode;
+      this.operation = operation;
+      this.throughput = throughput;
+      this.p50 = p50;
+      this.p99 = p99;
+      this.max = max;
+      this.errors = errors;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%-6s %-10s %12.0f %10.2f %10.2f %10.2f %8d", mode, operation, throughput, p50, p99, max, errors);
+    }
+  }
+}
@@ -5,20 +5,26 @@ import static org.hamcrest.Matchers.hasSize;
 import static org.junit.jupiter.api.Assertions.*;
 import static org.springframework.transaction.annotation.Propagation.NOT_SUPPORTED;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.ArrayList;
 import java.util.List;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
 import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
 import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.transaction.annotation.Transactional;
 import se.magnus.microservices.core.lpr.persistence.LicencePlateEntity;
 import se.magnus.microservices.core.lpr.persistence.LicencePlateEntity.BoundingBoxEmbeddable;
 import se.magnus.microservices.core.lpr.persistence.LicencePlateRepository;
 
+// The application's component scan also picks up the services in this slice, give them a MeterRegistry
 @DataJpaTest
+@Import(SimpleMeterRegistry.class)
 @Transactional(propagation = NOT_SUPPORTED)
 class PersistenceTests {
 
@@ -205,12 +211,69 @@ class PersistenceTests {
     assertEquals(3, entities.size());
   }
 
+  @Test
+  void findPageBySourceId() {
+    BoundingBoxEmbeddable vehicleBbox = new BoundingBoxEmbeddable(100, 100, 200, 150);
+    BoundingBoxEmbeddable plateBbox = new BoundingBoxEmbeddable(120, 130, 80, 30);
+
+    // Two detections sharing a timestamp, to verify the id tie-breaker
+    LicencePlateEntity entity2 = repository.save(new LicencePlateEntity(
+      null, "camera-001", "uuid-002", vehicleBbox, plateBbox,
+      "DEF456", "2025-11-11T12:00:00Z", 1699621800000L, 0
+    ));
+    LicencePlateEntity entity3 = repository.save(new LicencePlateEntity(
+      null, "camera-001", "uuid-003", vehicleBbox, plateBbox,
+      "GHI789", "2025-11-11T12:00:00Z", 1699621800000L, 0
+    ));
+
+    List<LicencePlateEntity> page1 = repository.findPageBySourceId(
+      "camera-001", Long.MIN_VALUE, Long.MIN_VALUE, Long.MAX_VALUE, PageRequest.of(0, 2));
+    assertThat(page1, hasSize(2));
+    assertEquals(savedEntity.getId(), page1.get(0).getId());
+    assertEquals(entity2.getId(), page1.get(1).getId());
+
+    List<LicencePlateEntity> page2 = repository.findPageBySourceId(
+      "camera-001", entity2.getUnixTime(), entity2.getId(), Long.MAX_VALUE, PageRequest.of(0, 2));
+    assertThat(page2, hasSize(1));
+    assertEquals(entity3.getId(), page2.get(0).getId());
+
+    List<LicencePlateEntity> window = repository.findPageBySourceId(
+      "camera-001", Long.MIN_VALUE, Long.MIN_VALUE, 1699614600000L, PageRequest.of(0, 10));
+    assertThat(window, hasSize(1));
+  }
+
   @Test
   void existsByObjectUuid() {
     assertTrue(repository.existsByObjectUuid("uuid-001"));
     assertFalse(repository.existsByObjectUuid("uuid-999"));
   }
 
+  @Test
+  void findExistingObjectUuids() {
+    List<String> existing = repository.findExistingObjectUuids(List.of("uuid-001", "uuid-999"));
+
+    assertThat(existing, hasSize(1));
+    assertEquals("uuid-001", existing.get(0));
+  }
+
+  @Test
+  void saveAllBatch() {
+    BoundingBoxEmbeddable vehicleBbox = new BoundingBoxEmbeddable(100, 100, 200, 150);
+    BoundingBoxEmbeddable plateBbox = new BoundingBoxEmbeddable(120, 130, 80, 30);
+
+    List<LicencePlateEntity> frame = new ArrayList<>();
+    for (int i = 0; i < 120; i++) {
+      frame.add(new LicencePlateEntity(
+        null, "camera-002", "uuid-batch-" + i, vehicleBbox, plateBbox,
+        "PLT" + i, "2025-11-11T12:00:00Z", 1699621800000L, 0
+      ));
+    }
+    repository.saveAll(frame);
+
+    assertEquals(121, repository.count());
+    assertEquals(120, repository.findBySourceId("camera-002").size());
+  }
+
   private void assertEqualsLicencePlate(LicencePlateEntity expectedEntity, LicencePlateEntity actualEntity) {
     assertEquals(expectedEntity.getId(), actualEntity.getId());
     assertEquals(expectedEntity.getVersion(), actualEntity.getVersion());
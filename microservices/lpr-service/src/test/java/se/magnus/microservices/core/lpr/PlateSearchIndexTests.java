@@ -0,0 +1,160 @@
+package se.magnus.microservices.core.lpr;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+import se.magnus.microservices.core.lpr.services.PlateSearchIndex;
+
+class PlateSearchIndexTests {
+
+  private PlateSearchIndex index = new PlateSearchIndex();
+
+  @Test
+  void ocrConfusionsAreFree() {
+    index.add("AB0123");
+    index.add("XYZ789");
+
+    List<PlateSearchIndex.Match> matches = index.search("A8O1Z3", 0);
+
+    assertEquals(1, matches.size());
+    assertEquals("AB0123", matches.get(0).getPlateNum());
+    assertEquals(0, matches.get(0).getDistance());
+  }
+
+  @Test
+  void droppedCharacters() {
+    index.add("ABC123");
+    index.add("ABC12");
+    index.add("XBC1234");
+    index.add("XYZ789");
+
+    List<String> matches = index.search("ABC123", 1).stream()
+      .map(PlateSearchIndex.Match::getPlateNum)
+      .collect(Collectors.toList());
+
+    assertEquals(List.of("ABC123", "ABC12"), matches);
+    assertEquals(3, index.search("ABC123", 2).size());
+  }
+
+  @Test
+  void variantsShareOneEntry() {
+    index.add("AB0123");
+    index.add("ABO123");
+    index.add("ab0-123");
+    index.add("AB0123");
+
+    assertEquals(1, index.size());
+    assertEquals(3, index.search("AB0123", 0).size());
+  }
+
+  @Test
+  void rebuildDropsDeletedPlates() {
+    index.add("ABC123");
+    index.add("XYZ789");
+
+    index.rebuild(() -> {
+      index.add("DEF456"); // Created while the index is rebuilt
+      return List.of("XYZ789");
+    });
+
+    assertEquals(2, index.size());
+    assertTrue(index.search("ABC123", 0).isEmpty());
+    assertEquals(1, index.search("XYZ789", 0).size());
+    assertEquals(1, index.search("DEF456", 0).size());
+  }
+
+  @Test
+  void emptyIndex() {
+    assertTrue(index.search("ABC123", 2).isEmpty());
+  }
+
+  @Test
+  void manyPlates() {
+    for (int i = 0; i < 100_000; i++) {
+      index.add(String.format("P%06d", i));
+    }
+
+    List<PlateSearchIndex.Match> matches = index.search("P012345", 1);
+
+    // P012345 itself, plus the nine plates differing in one digit at each of the last five positions
+    assertEquals(1 + 5 * 9, matches.size());
+    assertEquals("P012345", matches.get(0).getPlateNum());
+  }
+
+  @Test
+  void searchWhileAdding() {
+    index.add("P000000");
+    CompletableFuture<Void> adding = CompletableFuture.runAsync(() -> {
+      for (int i = 1; i < 100_000; i++) {
+        index.add(String.format("P%06d", i));
+      }
+    });
+
+    // Every search sees the first plate, however far the table has grown under it
+    while (!adding.isDone()) {
+      assertEquals("P000000", index.search("P000000", 1).get(0).getPlateNum());
+    }
+    adding.join();
+    assertEquals(100_000, index.size());
+  }
+
+  @Test
+  void addSearchAndRebuildAtOnce() {
+    int plates = 20_000;
+    // The plates of deleted detections, indexed but no longer stored
+    for (int i = 0; i < 1000; i++) {
+      index.add(String.format("X%06d", i));
+    }
+
+    // Like an insert, a plate is stored before it is added to the index
+    Set<String> stored = ConcurrentHashMap.newKeySet();
+    AtomicInteger added = new AtomicInteger();
+    CompletableFuture<Void> adding = CompletableFuture.runAsync(() -> {
+      for (int i = 0; i < plates; i++) {
+        String plateNum = String.format("P%06d", i);
+        stored.add(plateNum);
+        index.add(plateNum);
+        added.set(i + 1);
+      }
+    });
+    AtomicInteger rebuilds = new AtomicInteger();
+    CompletableFuture<Void> rebuilding = CompletableFuture.runAsync(() -> {
+      do {
+        index.rebuild(() -> new ArrayList<>(stored));
+        rebuilds.incrementAndGet();
+      } while (!adding.isDone());
+    });
+
+    // Every plate added so far is found, and only that plate
+    Random random = new Random(42);
+    while (!adding.isDone() || !rebuilding.isDone()) {
+      int count = added.get();
+      if (count > 0) {
+        String plateNum = String.format("P%06d", random.nextInt(count));
+        assertEquals(List.of(plateNum), plateNums(index.search(plateNum, 0)), "Lost or phantom match");
+      }
+    }
+    adding.join();
+    rebuilding.join();
+
+    assertTrue(rebuilds.get() > 0);
+    assertEquals(plates, index.size());
+    for (int i = 0; i < plates; i++) {
+      String plateNum = String.format("P%06d", i);
+      assertEquals(List.of(plateNum), plateNums(index.search(plateNum, 0)));
+    }
+    assertTrue(index.search("X000001", 0).isEmpty());
+  }
+
+  private static List<String> plateNums(List<PlateSearchIndex.Match> matches) {
+    return matches.stream().map(PlateSearchIndex.Match::getPlateNum).collect(Collectors.toList());
+  }
+}
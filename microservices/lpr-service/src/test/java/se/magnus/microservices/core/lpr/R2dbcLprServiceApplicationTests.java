@@ -0,0 +1,17 @@
+package se.magnus.microservices.core.lpr;
+
+import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
+
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+
+/**
+ * Runs all tests of LprServiceApplicationTests with createLpr and getLprs served by R2DBC.
+ */
+@SpringBootTest(webEnvironment = RANDOM_PORT, properties = {
+  "spring.datasource.url=jdbc:h2:mem:lpr-r2dbc-db",
+  "app.r2dbc.url=r2dbc:h2:mem:///lpr-r2dbc-db"
+})
+@ActiveProfiles("r2dbc")
+class R2dbcLprServiceApplicationTests extends LprServiceApplicationTests {
+}
@@ -0,0 +1,20 @@
+package se.magnus.microservices.core.lpr;
+
+import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
+
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.cloud.stream.binder.test.TestChannelBinderConfiguration;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.context.ActiveProfiles;
+
+/**
+ * Runs all tests of TrafficStatsTests with createLpr writing the stats through R2DBC.
+ */
+@SpringBootTest(webEnvironment = RANDOM_PORT, properties = {
+  "spring.datasource.url=jdbc:h2:mem:lpr-r2dbc-stats-db",
+  "app.r2dbc.url=r2dbc:h2:mem:///lpr-r2dbc-stats-db"
+})
+@Import(TestChannelBinderConfiguration.class)
+@ActiveProfiles("r2dbc")
+class R2dbcTrafficStatsTests extends TrafficStatsTests {
+}
@@ -0,0 +1,204 @@
+package se.magnus.microservices.core.lpr;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
+import static org.springframework.http.HttpStatus.OK;
+import static org.springframework.http.HttpStatus.UNPROCESSABLE_ENTITY;
+import static org.springframework.http.MediaType.APPLICATION_JSON;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.cloud.stream.binder.test.TestChannelBinderConfiguration;
+import org.springframework.context.annotation.Import;
+import org.springframework.http.HttpStatus;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.test.web.reactive.server.WebTestClient.BodyContentSpec;
+import reactor.core.publisher.Flux;
+import se.magnus.api.core.lpr.BoundingBox;
+import se.magnus.api.core.lpr.Detections;
+import se.magnus.api.core.lpr.LicencePlate;
+import se.magnus.microservices.core.lpr.persistence.TrafficStatsStore;
+import se.magnus.microservices.core.lpr.services.LprServiceImpl;
+
+// A database of its own keeps the ids clear of the other test classes, the tests share it so
+// every test uses its own source
+@SpringBootTest(webEnvironment = RANDOM_PORT, properties = "spring.datasource.url=jdbc:h2:mem:lpr-stats-db")
+@Import(TestChannelBinderConfiguration.class)
+class TrafficStatsTests {
+
+  private static final long HOUR_START = 1699614000000L; // 2023-11-10T11:00:00Z
+  private static final long MINUTE = 60_000L;
+
+  @Autowired
+  private WebTestClient client;
+
+  @Autowired
+  private LprServiceImpl service;
+
+  @Autowired
+  private TrafficStatsStore statsStore;
+
+  @Autowired
+  private JdbcTemplate jdbc;
+
+  @Test
+  void rollsUpPerMinuteHourAndDay() {
+    String sourceId = "stats-camera-001";
+    postLprs(sourceId, plate(sourceId, "uuid-001", "ABC123", HOUR_START + 1000),
+      plate(sourceId, "uuid-002", "ABC123", HOUR_START + 2000),
+      plate(sourceId, "uuid-003", "XYZ789", HOUR_START + 3000));
+    postLprs(sourceId, plate(sourceId, "uuid-004", "ABC123", HOUR_START + MINUTE + 500),
+      plate(sourceId, "uuid-005", "DEF456", HOUR_START + 2 * MINUTE));
+    postLpr(plate(sourceId, "uuid-006", "XYZ789", HOUR_START + 2 * MINUTE + 100), OK);
+
+    getStats(sourceId, "?from=" + HOUR_START + "&to=" + (HOUR_START + 10 * MINUTE), OK)
+      .jsonPath("$.length()").isEqualTo(3)
+      .jsonPath("$[0].bucketStart").isEqualTo(HOUR_START)
+      .jsonPath("$[0].count").isEqualTo(3)
+      .jsonPath("$[0].distinctPlates").isEqualTo(2)
+      .jsonPath("$[0].firstSeen").isEqualTo(HOUR_START + 1000)
+      .jsonPath("$[0].lastSeen").isEqualTo(HOUR_START + 3000)
+      .jsonPath("$[1].count").isEqualTo(1)
+      .jsonPath("$[2].bucketStart").isEqualTo(HOUR_START + 2 * MINUTE)
+      .jsonPath("$[2].count").isEqualTo(2)
+      .jsonPath("$[2].distinctPlates").isEqualTo(2);
+
+    getStats(sourceId, "?from=" + HOUR_START + "&to=" + (HOUR_START + 10 * MINUTE) + "&granularity=hour", OK)
+      .jsonPath("$.length()").isEqualTo(1)
+      .jsonPath("$[0].count").isEqualTo(6)
+      .jsonPath("$[0].distinctPlates").isEqualTo(3)
+      .jsonPath("$[0].firstSeen").isEqualTo(HOUR_START + 1000)
+      .jsonPath("$[0].lastSeen").isEqualTo(HOUR_START + 2 * MINUTE + 100);
+
+    // A from within the day still returns the bucket the day starts
+    getStats(sourceId, "?from=" + HOUR_START + "&to=" + (HOUR_START + 10 * MINUTE) + "&granularity=DAY", OK)
+      .jsonPath("$.length()").isEqualTo(1)
+      .jsonPath("$[0].bucketStart").isEqualTo(1699574400000L)
+      .jsonPath("$[0].count").isEqualTo(6)
+      .jsonPath("$[0].distinctPlates").isEqualTo(3);
+  }
+
+  @Test
+  void skipsDuplicates() {
+    String sourceId = "stats-camera-002";
+    postLprs(sourceId, plate(sourceId, "uuid-101", "ABC123", HOUR_START + 1000));
+    postLprs(sourceId, plate(sourceId, "uuid-101", "ABC123", HOUR_START + 1000), plate(sourceId, "uuid-102", "ABC123", HOUR_START + 4000));
+    postLpr(plate(sourceId, "uuid-102", "ABC123", HOUR_START + 4000), UNPROCESSABLE_ENTITY);
+
+    getStats(sourceId, "?from=" + HOUR_START + "&to=" + (HOUR_START + MINUTE), OK)
+      .jsonPath("$.length()").isEqualTo(1)
+      .jsonPath("$[0].count").isEqualTo(2)
+      .jsonPath("$[0].distinctPlates").isEqualTo(1)
+      .jsonPath("$[0].lastSeen").isEqualTo(HOUR_START + 4000);
+  }
+
+  @Test
+  void countsConcurrentFrames() {
+    String sourceId = "stats-camera-003";
+    Flux.range(0, 40)
+      .flatMap(frame -> {
+        List<LicencePlate> plates = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+          plates.add(plate(sourceId, "uuid-3" + frame + "-" + i, "PLT" + (frame % 10) + i, HOUR_START + frame * 100L + i));
+        }
+        return service.createLprs(new Detections(sourceId, plates, HOUR_START, null));
+      }, 8)
+      .blockLast();
+
+    getStats(sourceId, "?from=" + HOUR_START + "&to=" + (HOUR_START + MINUTE) + "&granularity=hour", OK)
+      .jsonPath("$[0].count").isEqualTo(200)
+      .jsonPath("$[0].distinctPlates").isEqualTo(50)
+      .jsonPath("$[0].firstSeen").isEqualTo(HOUR_START)
+      .jsonPath("$[0].lastSeen").isEqualTo(HOUR_START + 3904);
+  }
+
+  @Test
+  void countsConcurrentDetections() {
+    String sourceId = "stats-camera-006";
+    Flux.range(0, 100)
+      .flatMap(i -> service.createLpr(plate(sourceId, "uuid-6" + i, "PLT" + (i % 20), HOUR_START + i * 1000L)), 16)
+      .blockLast();
+
+    getStats(sourceId, "?from=" + HOUR_START + "&to=" + (HOUR_START + 2 * MINUTE), OK)
+      .jsonPath("$.length()").isEqualTo(2)
+      .jsonPath("$[0].count").isEqualTo(60)
+      .jsonPath("$[0].distinctPlates").isEqualTo(20)
+      .jsonPath("$[1].count").isEqualTo(40)
+      .jsonPath("$[1].distinctPlates").isEqualTo(20);
+
+    getStats(sourceId, "?from=" + HOUR_START + "&to=" + (HOUR_START + 2 * MINUTE) + "&granularity=hour", OK)
+      .jsonPath("$[0].count").isEqualTo(100)
+      .jsonPath("$[0].distinctPlates").isEqualTo(20)
+      .jsonPath("$[0].firstSeen").isEqualTo(HOUR_START)
+      .jsonPath("$[0].lastSeen").isEqualTo(HOUR_START + 99_000L);
+  }
+
+  @Test
+  void prunesPlatesOfClosedBuckets() {
+    String sourceId = "stats-camera-005";
+    postLprs(sourceId, plate(sourceId, "uuid-501", "ABC123", HOUR_START + 1000),
+      plate(sourceId, "uuid-502", "XYZ789", HOUR_START + MINUTE + 1000));
+
+    // Closes the first minute only
+    statsStore.prunePlates(HOUR_START + MINUTE);
+    assertEquals(5, countPlates(sourceId));
+
+    // The hour still counts each plate once
+    postLprs(sourceId, plate(sourceId, "uuid-503", "ABC123", HOUR_START + 5 * MINUTE));
+    getStats(sourceId, "?from=" + HOUR_START + "&to=" + HOUR_START + "&granularity=hour", OK)
+      .jsonPath("$[0].count").isEqualTo(3)
+      .jsonPath("$[0].distinctPlates").isEqualTo(2);
+
+    statsStore.prunePlates(HOUR_START + 24 * 60 * MINUTE);
+    assertEquals(0, countPlates(sourceId));
+  }
+
+  @Test
+  void rejectsInvalidQueries() {
+    getStats("stats-camera-004", "?granularity=week", UNPROCESSABLE_ENTITY)
+      .jsonPath("$.message").isEqualTo("Invalid granularity: week");
+    getStats("stats-camera-004", "?from=2000&to=1000", UNPROCESSABLE_ENTITY);
+    getStats("stats-camera-004", "?from=0&to=" + HOUR_START, UNPROCESSABLE_ENTITY);
+    getStats("stats-camera-004", "", OK)
+      .jsonPath("$.length()").isEqualTo(0);
+  }
+
+  private int countPlates(String sourceId) {
+    return jdbc.queryForObject("SELECT COUNT(*) FROM lpr_stats_plates WHERE source_id = ?", Integer.class, sourceId);
+  }
+
+  private BodyContentSpec getStats(String sourceId, String query, HttpStatus expectedStatus) {
+    return client.get()
+      .uri("/lpr/stats/" + sourceId + query)
+      .accept(APPLICATION_JSON)
+      .exchange()
+      .expectStatus().isEqualTo(expectedStatus)
+      .expectBody();
+  }
+
+  private void postLprs(String sourceId, LicencePlate... plates) {
+    client.post()
+      .uri("/lpr/detections")
+      .bodyValue(new Detections(sourceId, List.of(plates), plates[0].getUnixTime(), null))
+      .exchange()
+      .expectStatus().isEqualTo(OK);
+  }
+
+  private void postLpr(LicencePlate plate, HttpStatus expectedStatus) {
+    client.post()
+      .uri("/lpr/detection")
+      .bodyValue(plate)
+      .exchange()
+      .expectStatus().isEqualTo(expectedStatus);
+  }
+
+  private LicencePlate plate(String sourceId, String objectUuid, String plateNum, long unixTime) {
+    return new LicencePlate(sourceId, objectUuid,
+      new BoundingBox(100, 100, 200, 150), new BoundingBox(120, 130, 80, 30),
+      plateNum, null, unixTime, null);
+  }
+}
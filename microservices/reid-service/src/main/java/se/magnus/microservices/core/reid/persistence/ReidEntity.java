@@ -3,12 +3,17 @@ package se.magnus.microservices.core.reid.persistence;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.annotation.Version;
 import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
 import org.springframework.data.mongodb.core.mapping.Document;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
 @Document(collection = "reid")
-@CompoundIndex(name = "reid_sourceId", unique = true, def = "{'reid': 1, 'sourceId': 1}")
+@CompoundIndexes({
+  @CompoundIndex(name = "reid_sourceId", unique = true, def = "{'reid': 1, 'sourceId': 1}"),
+  // Serves the time window queries of a source in timestamp order, without a sort in memory
+  @CompoundIndex(name = "sourceId_timestamp", def = "{'sourceId': 1, 'timestamp': 1}")
+})
 @Data
 @NoArgsConstructor
 public class ReidEntity {
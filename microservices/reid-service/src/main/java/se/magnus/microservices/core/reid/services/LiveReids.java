@@ -0,0 +1,99 @@
+package se.magnus.microservices.core.reid.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.BufferOverflowStrategy;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+import se.magnus.api.core.reid.Reid;
+
+/**
+ * In-process fan-out of inserted reids to live subscribers, fed by the change stream.
+ *
+ * Each source with subscribers has its own multicast sink, so publishing only touches the
+ * subscribers of that source and sources without subscribers cost nothing. Every subscriber
+ * reads through its own bounded buffer. When a subscriber falls behind, its oldest buffered
+ * reids are dropped, without slowing down the change stream or the other subscribers.
+ */
+@Component
+public class LiveReids {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LiveReids.class);
+
+  private final int bufferSize;
+  private final Map<String, Channel> channels = new ConcurrentHashMap<>();
+  private final Counter dropped;
+
+  @Autowired
+  public LiveReids(
+    @Value("${app.live.bufferSize:256}") int bufferSize,
+    MeterRegistry registry
+  ) {
+    LOG.info("Creates live reids with buffer size = {} per subscriber", bufferSize);
+
+    this.bufferSize = bufferSize;
+    this.dropped = Counter.builder("reid.live.dropped")
+      .description("Reids dropped for live subscribers that did not keep up").register(registry);
+    Gauge.builder("reid.live.subscribers", channels, c -> c.values().stream().mapToInt(Channel::receivers).sum())
+      .description("Live reid subscribers").register(registry);
+  }
+
+  public Flux<ServerSentEvent<Reid>> subscribe(String sourceId) {
+    return Flux.defer(() -> {
+      // Registering in compute keeps a concurrent release from removing the channel in between
+      Channel channel = channels.compute(sourceId, (id, c) -> (c != null ? c : new Channel()).acquire());
+      return bounded(channel.sink.asFlux())
+        .doFinally(signal -> channels.computeIfPresent(sourceId, (id, c) -> c.release() == 0 ? null : c));
+    });
+  }
+
+  public void publish(String sourceId, ServerSentEvent<Reid> event) {
+    Channel channel = channels.get(sourceId);
+    if (channel != null) {
+      channel.emit(event);
+    }
+  }
+
+  /**
+   * Puts the bounded buffer of a subscriber in front of a stream of its own.
+   */
+  public Flux<ServerSentEvent<Reid>> bounded(Flux<ServerSentEvent<Reid>> events) {
+    return events.onBackpressureBuffer(bufferSize, event -> dropped.increment(), BufferOverflowStrategy.DROP_OLDEST);
+  }
+
+  private static class Channel {
+
+    // Direct best effort, the per subscriber buffers decide what to drop
+    private final Sinks.Many<ServerSentEvent<Reid>> sink = Sinks.many().multicast().directBestEffort();
+    private volatile int subscribers;
+
+    // Only called from within compute on the channel map
+    Channel acquire() {
+      subscribers++;
+      return this;
+    }
+
+    int release() {
+      return --subscribers;
+    }
+
+    // Counts a subscriber only once it is subscribed to the sink and can be sent reids
+    int receivers() {
+      return sink.currentSubscriberCount();
+    }
+
+    // Only the change stream publishes, but a sink must be signalled serially regardless
+    synchronized void emit(ServerSentEvent<Reid> event) {
+      sink.tryEmitNext(event);
+    }
+  }
+}
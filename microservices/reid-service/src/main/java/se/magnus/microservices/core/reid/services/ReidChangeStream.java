@@ -0,0 +1,214 @@
+package se.magnus.microservices.core.reid.services;
+
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.match;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.newAggregation;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.model.ReplaceOptions;
+import java.time.Duration;
+import java.util.Date;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.ChangeStreamEvent;
+import org.springframework.data.mongodb.core.ChangeStreamOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+import se.magnus.api.core.reid.Reid;
+import se.magnus.microservices.core.reid.persistence.ReidEntity;
+import se.magnus.util.http.ServiceUtil;
+
+/**
+ * Follows the inserts into the reid collection with a single Mongo change stream, and hands
+ * them to the live subscribers of their source.
+ *
+ * The resume token of the last insert seen is stored in the resumeTokens collection, at most
+ * once per tokenSaveInterval, so after a restart the stream continues after the last stored
+ * insert instead of at the current time, and the inserts of the last interval before a restart
+ * may be sent twice. If the oplog no longer holds the stored insert, the stream starts over at
+ * the current time. Change streams need a replica set; against a standalone server the stream
+ * is not started and live subscribers get nothing.
+ *
+ * The id of every event is its resume token. A client reconnecting with the id of the last
+ * event it got is served by a change stream of its own, resumed after that token and filtered
+ * on its source in the database.
+ */
+@Component
+public class ReidChangeStream {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ReidChangeStream.class);
+
+  private static final String COLLECTION = "reid";
+  private static final String TOKEN_COLLECTION = "resumeTokens";
+  private static final String TOKEN_ID = "reid-change-stream";
+
+  private static final int CHANGE_STREAM_FATAL_ERROR = 280;
+  private static final int CHANGE_STREAM_HISTORY_LOST = 286;
+  private static final int NO_REPLICATION_ENABLED = 76;
+  private static final int NOT_A_REPLICA_SET = 40573;
+
+  private final ReactiveMongoTemplate mongoTemplate;
+  private final ReidMapper mapper;
+  private final LiveReids liveReids;
+  private final ServiceUtil serviceUtil;
+  private final boolean enabled;
+  private final Duration tokenSaveInterval;
+
+  private volatile BsonValue lastToken;
+  private Disposable subscription;
+
+  @Autowired
+  public ReidChangeStream(
+    ReactiveMongoTemplate mongoTemplate,
+    ReidMapper mapper,
+    LiveReids liveReids,
+    ServiceUtil serviceUtil,
+    @Value("${app.live.changeStream.enabled:true}") boolean enabled,
+    @Value("${app.live.changeStream.tokenSaveInterval:1s}") Duration tokenSaveInterval
+  ) {
+    this.mongoTemplate = mongoTemplate;
+    this.mapper = mapper;
+    this.liveReids = liveReids;
+    this.serviceUtil = serviceUtil;
+    this.enabled = enabled;
+    this.tokenSaveInterval = tokenSaveInterval;
+  }
+
+  @EventListener(ApplicationReadyEvent.class)
+  public synchronized void start() {
+    if (!enabled || subscription != null) {
+      return;
+    }
+    LOG.info("Starts following the reid inserts");
+
+    // The stored token is only read once, a retry resumes after the last insert seen
+    subscription = loadToken()
+      .retryWhen(retry())
+      .doOnNext(token -> {
+        LOG.info("Resumes the reid change stream after the stored token");
+        lastToken = token;
+      })
+      .thenMany(Flux.defer(() -> watch(lastToken, null)).retryWhen(retry()))
+      .doOnNext(event -> {
+        lastToken = event.getResumeToken();
+        ReidEntity entity = event.getBody();
+        if (entity != null) {
+          liveReids.publish(entity.getSourceId(), toEvent(event));
+        }
+      })
+      .sample(tokenSaveInterval)
+      // Skips to the newest token while a save is still running, instead of failing the stream
+      .onBackpressureLatest()
+      .concatMap(event -> saveToken(event.getResumeToken()), 1)
+      .subscribe(
+        token -> { },
+        ex -> LOG.warn("Live reids are disabled, no change stream: {}", ex.toString()));
+  }
+
+  private Retry retry() {
+    return Retry.backoff(Long.MAX_VALUE, Duration.ofSeconds(1))
+      .maxBackoff(Duration.ofMinutes(1))
+      .filter(ex -> errorCode(ex) != NOT_A_REPLICA_SET && errorCode(ex) != NO_REPLICATION_ENABLED)
+      .doBeforeRetry(signal -> {
+        int code = errorCode(signal.failure());
+        if (code == CHANGE_STREAM_HISTORY_LOST || code == CHANGE_STREAM_FATAL_ERROR) {
+          LOG.warn("Can not resume the reid change stream, starts over at the current time: {}", signal.failure().toString());
+          lastToken = null;
+        } else {
+          LOG.warn("The reid change stream failed, retries: {}", signal.failure().toString());
+        }
+      });
+  }
+
+  public synchronized void stop() {
+    if (subscription != null) {
+      subscription.dispose();
+      subscription = null;
+    }
+  }
+
+  /**
+   * The inserts of a source after the insert the given event id was sent for, followed by the
+   * new ones. Falls back to the new inserts only, if the oplog no longer holds that insert.
+   */
+  public Flux<ServerSentEvent<Reid>> resume(String sourceId, String lastEventId) {
+    return liveReids.bounded(watch(idToToken(lastEventId), sourceId).map(this::toEvent))
+      .onErrorResume(ex -> isResumeFailure(ex), ex -> {
+        LOG.info("Can not resume live reids of {} after {}, sends the new ones only: {}", sourceId, lastEventId, ex.toString());
+        return liveReids.subscribe(sourceId);
+      });
+  }
+
+  private Flux<ChangeStreamEvent<ReidEntity>> watch(BsonValue resumeToken, String sourceId) {
+    Criteria criteria = where("operationType").is("insert");
+    if (sourceId != null) {
+      criteria = criteria.and("fullDocument.sourceId").is(sourceId);
+    }
+    ChangeStreamOptions.ChangeStreamOptionsBuilder options = ChangeStreamOptions.builder()
+      .filter(newAggregation(match(criteria)));
+    if (resumeToken != null) {
+      options.resumeAfter(resumeToken);
+    }
+    return mongoTemplate.changeStream(COLLECTION, options.build(), ReidEntity.class);
+  }
+
+  private ServerSentEvent<Reid> toEvent(ChangeStreamEvent<ReidEntity> event) {
+    Reid reid = mapper.entityToApi(event.getBody());
+    reid.setServiceAddress(serviceUtil.getServiceAddress());
+    return ServerSentEvent.builder(reid).id(tokenToId(event.getResumeToken())).build();
+  }
+
+  private Mono<BsonValue> loadToken() {
+    return mongoTemplate.getCollection(TOKEN_COLLECTION)
+      .flatMap(collection -> Mono.from(collection.find(new Document("_id", TOKEN_ID)).first()))
+      .mapNotNull(document -> document.getString("token"))
+      .map(ReidChangeStream::idToToken);
+  }
+
+  private Mono<BsonValue> saveToken(BsonValue token) {
+    Document document = new Document("_id", TOKEN_ID).append("token", tokenToId(token)).append("savedAt", new Date());
+    return mongoTemplate.getCollection(TOKEN_COLLECTION)
+      .flatMap(collection -> Mono.from(collection.replaceOne(new Document("_id", TOKEN_ID), document, new ReplaceOptions().upsert(true))))
+      .thenReturn(token)
+      .onErrorResume(ex -> {
+        LOG.warn("Failed to store the reid change stream resume token: {}", ex.toString());
+        return Mono.empty();
+      });
+  }
+
+  private static String tokenToId(BsonValue token) {
+    return token.asDocument().getString("_data").getValue();
+  }
+
+  private static BsonValue idToToken(String id) {
+    return new BsonDocument("_data", new BsonString(id));
+  }
+
+  private static boolean isResumeFailure(Throwable ex) {
+    int code = errorCode(ex);
+    return code == CHANGE_STREAM_HISTORY_LOST || code == CHANGE_STREAM_FATAL_ERROR;
+  }
+
+  private static int errorCode(Throwable ex) {
+    for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+      if (cause instanceof MongoException mongoException) {
+        return mongoException.getCode();
+      }
+    }
+    return 0;
+  }
+}
@@ -1,6 +1,23 @@
 package se.magnus.microservices.core.reid.services;
 
 import static java.util.logging.Level.FINE;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.WriteConcern;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.bson.Document;
 
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
@@ -8,14 +25,22 @@ import reactor.core.publisher.Mono;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.web.bind.annotation.RestController;
 import se.magnus.api.core.reid.Reid;
+import se.magnus.api.core.reid.ReidBatchResult;
 import se.magnus.api.core.reid.ReidService;
 import se.magnus.api.exceptions.InvalidInputException;
 import se.magnus.microservices.core.reid.persistence.ReidEntity;
 import se.magnus.microservices.core.reid.persistence.ReidRepository;
 import se.magnus.util.http.ServiceUtil;
+import se.magnus.util.metrics.CallTimer;
 
 import se.magnus.api.exceptions.NotFoundException;
 
@@ -24,30 +49,110 @@ public class ReidServiceImpl implements ReidService {
 
   private static final Logger LOG = LoggerFactory.getLogger(ReidServiceImpl.class);
 
+  private static final String COLLECTION = "reid";
+  private static final int DUPLICATE_KEY_ERROR = 11000;
+
   private final ServiceUtil serviceUtil;
   private final ReidRepository repository;
   private final ReidMapper mapper;
+  private final ReactiveMongoTemplate mongoTemplate;
+  private final LiveReids liveReids;
+  private final ReidChangeStream changeStream;
+  private final CallTimer serviceCalls;
+  private final CallTimer repositoryCalls;
+  private final int cursorBatchSize;
+  private final int batchChunkSize;
+  private final WriteConcern batchWriteConcern;
 
   @Autowired
-  public ReidServiceImpl(ServiceUtil serviceUtil, ReidRepository repository, ReidMapper mapper) {
+  public ReidServiceImpl(
+    ServiceUtil serviceUtil,
+    ReidRepository repository,
+    ReidMapper mapper,
+    ReactiveMongoTemplate mongoTemplate,
+    LiveReids liveReids,
+    ReidChangeStream changeStream,
+    MeterRegistry registry,
+    @Value("${app.query.cursorBatchSize:500}") int cursorBatchSize,
+    @Value("${app.batch.chunkSize:1000}") int batchChunkSize,
+    @Value("${app.batch.writeConcern:ACKNOWLEDGED}") String batchWriteConcern) {
+
     this.serviceUtil = serviceUtil;
     this.repository = repository;
     this.mapper = mapper;
+    this.mongoTemplate = mongoTemplate;
+    this.liveReids = liveReids;
+    this.changeStream = changeStream;
+    this.serviceCalls = new CallTimer(registry, "reid.service.calls", "Calls of the reid service methods", "method")
+      .reportStages("reid");
+    this.repositoryCalls = new CallTimer(registry, "reid.repository.calls", "Calls of the reid repository and collection", "operation")
+      .reportStages("reid.db");
+    this.cursorBatchSize = cursorBatchSize;
+    this.batchChunkSize = batchChunkSize;
+    this.batchWriteConcern = WriteConcern.valueOf(batchWriteConcern);
+
+    // The counts of the response need acknowledged writes
+    if (this.batchWriteConcern == null || !this.batchWriteConcern.isAcknowledged()) {
+      throw new IllegalArgumentException("Invalid write concern for batches: " + batchWriteConcern);
+    }
   }
 
+  /**
+   * Finds the reids of a source on the (sourceId, timestamp) index, reading only the fields a
+   * Reid needs. The cursor is read in batches of cursorBatchSize documents as the response is
+   * written, so a large result is never held in memory.
+   */
   @Override
-  public Flux<Reid> getReids(String sourceId) {
-    LOG.debug("/reid return the detections data for sourceId={}", sourceId);
+  public Flux<Reid> getReids(String sourceId, Long from, Long to, Integer limit) {
+    LOG.debug("/reid return the detections data for sourceId={}, from={}, to={}, limit={}", sourceId, from, to, limit);
 
     if (sourceId == null || sourceId.isEmpty()) {
       throw new InvalidInputException("Invalid sourceId: " + sourceId);
     }
+    if (limit != null && limit < 1) {
+      throw new InvalidInputException("Invalid limit: " + limit);
+    }
+    if (from != null && to != null && from > to) {
+      throw new InvalidInputException("Invalid time window, from: " + from + ", to: " + to);
+    }
+
+    Criteria criteria = where("sourceId").is(sourceId);
+    if (from != null || to != null) {
+      Criteria timestamp = criteria.and("timestamp");
+      if (from != null) {
+        timestamp.gte(from);
+      }
+      if (to != null) {
+        timestamp.lte(to);
+      }
+    }
+    Query query = query(criteria)
+      .with(Sort.by("timestamp"))
+      .cursorBatchSize(limit == null ? cursorBatchSize : Math.min(limit, cursorBatchSize));
+    if (limit != null) {
+      query.limit(limit);
+    }
+    query.fields().include("reid", "sourceId", "plateNumber", "timestamp", "location", "status").exclude("_id");
 
-    return repository.findBySourceId(sourceId)
+    return serviceCalls.time("getReids", repositoryCalls.time("find", mongoTemplate.find(query, ReidEntity.class))
       .switchIfEmpty(Mono.error(new NotFoundException("No reid found for sourceId: " + sourceId)))
       .log(LOG.getName(), FINE)
       .map(e -> mapper.entityToApi(e))
-      .map(e -> setServiceAddress(e));
+      .map(e -> setServiceAddress(e)));
+  }
+
+  @Override
+  public Flux<ServerSentEvent<Reid>> getLiveReids(String sourceId, String lastEventId) {
+    if (sourceId == null || sourceId.isEmpty()) {
+      throw new InvalidInputException("Invalid sourceId: " + sourceId);
+    }
+    // Resume tokens are hex strings
+    if (lastEventId != null && !lastEventId.matches("[0-9A-Fa-f]+")) {
+      throw new InvalidInputException("Invalid Last-Event-ID: " + lastEventId);
+    }
+
+    LOG.debug("getLiveReids: new live subscriber for sourceId: {}, lastEventId: {}", sourceId, lastEventId);
+    return lastEventId == null ? liveReids.subscribe(sourceId) : changeStream.resume(sourceId, lastEventId);
   }
 
   @Override
@@ -59,14 +164,128 @@ public class ReidServiceImpl implements ReidService {
 
     ReidEntity entity = mapper.apiToEntity(body);
 
-    Mono<Reid> newEntity = repository.save(entity)
+    Mono<Reid> newEntity = repositoryCalls.time("save", repository.save(entity))
       .log(LOG.getName(), FINE)
       .onErrorMap(
         DuplicateKeyException.class,
         ex -> new InvalidInputException("Duplicate key, Source Id: " + body.getSourceId() + ", Reid Id: " + body.getReid()))
       .map(e -> mapper.entityToApi(e));
 
-    return newEntity;
+    return serviceCalls.time("createReid", newEntity);
+  }
+
+  /**
+   * Upserts the reids chunk by chunk as the body is read, each chunk with one unordered
+   * bulkWrite of updateOne upserts on the unique (reid, sourceId) index, using the configured
+   * write concern. A reid sent again only counts as updated if its content changed. The
+   * version of an updated reid is left as is.
+   */
+  @Override
+  public Mono<ReidBatchResult> createReidBatch(Flux<Reid> body) {
+    return serviceCalls.time("createReidBatch", body
+      .buffer(batchChunkSize)
+      .concatMap(this::upsertChunk)
+      .reduceWith(() -> new ReidBatchResult(0, 0, 0, 0, null), (total, chunk) -> {
+        total.setInserted(total.getInserted() + chunk.getInserted());
+        total.setUpdated(total.getUpdated() + chunk.getUpdated());
+        total.setUnchanged(total.getUnchanged() + chunk.getUnchanged());
+        total.setFailed(total.getFailed() + chunk.getFailed());
+        return total;
+      })
+      .map(total -> {
+        LOG.debug("createReidBatch: inserted {}, updated {}, unchanged {}, failed {}",
+          total.getInserted(), total.getUpdated(), total.getUnchanged(), total.getFailed());
+        total.setServiceAddress(serviceUtil.getServiceAddress());
+        return total;
+      }));
+  }
+
+  private Mono<ReidBatchResult> upsertChunk(List<Reid> chunk) {
+    List<WriteModel<Document>> writes = new ArrayList<>(chunk.size());
+    long invalid = 0;
+    for (Reid reid : chunk) {
+      if (reid.getReid() == null || reid.getReid().isEmpty() || reid.getSourceId() == null || reid.getSourceId().isEmpty()) {
+        invalid++;
+        continue;
+      }
+      Document fields = new Document();
+      mongoTemplate.getConverter().write(mapper.apiToEntity(reid), fields);
+      fields.remove("_id");
+      fields.remove("version");
+      fields.remove("reid");
+      fields.remove("sourceId");
+      writes.add(new UpdateOneModel<>(
+        new Document("reid", reid.getReid()).append("sourceId", reid.getSourceId()),
+        new Document("$set", fields).append("$setOnInsert", new Document("version", 0)),
+        new UpdateOptions().upsert(true)));
+    }
+    if (writes.isEmpty()) {
+      return Mono.just(new ReidBatchResult(0, 0, 0, invalid, null));
+    }
+
+    long rejected = invalid;
+    return repositoryCalls.time("bulkWrite", mongoTemplate.getCollection(COLLECTION)
+      .flatMap(collection -> Mono.from(collection.withWriteConcern(batchWriteConcern)
+        .bulkWrite(writes, new BulkWriteOptions().ordered(false)))))
+      .map(result -> counts(result, rejected))
+      .onErrorResume(MongoBulkWriteException.class, ex -> {
+        // Unordered, so everything but the failed writes was applied
+        LOG.warn("upsertChunk: {} of {} reids failed, first error: {}",
+          ex.getWriteErrors().size(), writes.size(), ex.getWriteErrors().get(0).getMessage());
+        return Mono.just(counts(ex.getWriteResult(), rejected + ex.getWriteErrors().size()));
+      });
+  }
+
+  private static ReidBatchResult counts(BulkWriteResult result, long failed) {
+    long inserted = result.getUpserts().size();
+    long updated = result.getModifiedCount();
+    return new ReidBatchResult(inserted, updated, result.getMatchedCount() - updated, failed, null);
+  }
+
+  /**
+   * Stores the reids of a batch of create events with a single unordered insertMany. Reids that
+   * already exist are skipped, so a redelivered event is harmless.
+   *
+   * @return the number of created reids
+   */
+  public Mono<Integer> createReids(List<Reid> reids) {
+    if (reids.isEmpty()) {
+      return Mono.just(0);
+    }
+
+    List<Document> documents = reids.stream()
+      .map(reid -> {
+        ReidEntity entity = mapper.apiToEntity(reid);
+        entity.setVersion(0);
+        Document document = new Document();
+        mongoTemplate.getConverter().write(entity, document);
+        return document;
+      })
+      .collect(Collectors.toList());
+
+    return serviceCalls.time("createReidsFromEvents", repositoryCalls.time("insertMany", mongoTemplate.getCollection(COLLECTION)
+      .flatMap(collection -> Mono.from(collection.insertMany(documents, new InsertManyOptions().ordered(false)))))
+      .map(result -> result.getInsertedIds().size())
+      .onErrorResume(MongoBulkWriteException.class, ex -> {
+        // Unordered, so everything but the duplicates was inserted
+        if (ex.getWriteErrors().stream().allMatch(error -> error.getCode() == DUPLICATE_KEY_ERROR)) {
+          LOG.debug("createReids: skipped {} duplicates", ex.getWriteErrors().size());
+          return Mono.just(documents.size() - ex.getWriteErrors().size());
+        }
+        return Mono.error(ex);
+      })
+      .doOnNext(count -> LOG.debug("createReids: created {} reid entities", count)));
+  }
+
+  /**
+   * Deletes all reids with any of the given reid ids with a single deleteMany.
+   *
+   * @return the number of deleted reids
+   */
+  public Mono<Long> deleteReids(Collection<String> reidIds) {
+    return serviceCalls.time("deleteReids", repositoryCalls.time("remove", mongoTemplate.remove(query(where("reid").in(reidIds)), ReidEntity.class))
+      .map(result -> result.getDeletedCount())
+      .doOnNext(count -> LOG.debug("deleteReids: deleted {} reid entities", count)));
   }
 
   private Reid setServiceAddress(Reid entity) {
@@ -0,0 +1,194 @@
+package se.magnus.microservices.core.reid;
+
+import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
+import static org.springframework.http.MediaType.TEXT_EVENT_STREAM;
+
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.cloud.stream.binder.test.TestChannelBinderConfiguration;
+import org.springframework.context.annotation.Import;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+import se.magnus.api.core.reid.Reid;
+import se.magnus.microservices.core.reid.persistence.ReidEntity;
+import se.magnus.microservices.core.reid.persistence.ReidRepository;
+import se.magnus.microservices.core.reid.services.ReidChangeStream;
+
+/**
+ * Runs against an in-memory Mongo server with an oplog, standing in for a replica set, as
+ * change streams are not available on a standalone server.
+ */
+@SpringBootTest(webEnvironment = RANDOM_PORT, properties = {"app.live.changeStream.tokenSaveInterval=10ms"})
+@Import(TestChannelBinderConfiguration.class)
+class LiveReidsTests {
+
+  private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+  private static MongoServer server;
+  private static InetSocketAddress address;
+
+  static {
+    MemoryBackend backend = new MemoryBackend();
+    backend.enableOplog();
+    server = new MongoServer(backend);
+    address = server.bind();
+  }
+
+  @DynamicPropertySource
+  static void setProperties(DynamicPropertyRegistry registry) {
+    registry.add("spring.data.mongodb.host", () -> "localhost");
+    registry.add("spring.data.mongodb.port", () -> address.getPort());
+    registry.add("spring.data.mongodb.database", () -> "live");
+  }
+
+  @AfterAll
+  static void stopServer() {
+    server.shutdownNow();
+  }
+
+  @LocalServerPort
+  private int port;
+
+  @Autowired
+  private WebTestClient client;
+
+  @Autowired
+  private MeterRegistry meterRegistry;
+
+  @Autowired
+  private ReidRepository repository;
+
+  @Autowired
+  private ReactiveMongoTemplate mongoTemplate;
+
+  @Autowired
+  private ReidChangeStream changeStream;
+
+  @BeforeEach
+  void awaitChangeStream() {
+    // The change stream is opened asynchronously, it is following once a resume token is stored
+    await("Change stream not started", () -> {
+      repository.save(entity("reid-warmup-" + System.nanoTime(), "camera-warmup")).block();
+      return mongoTemplate.getCollection("resumeTokens").flatMap(c -> Mono.from(c.countDocuments())).block() > 0;
+    });
+    // The subscribers of the previous test are removed asynchronously too, they must not be counted as the new ones
+    await("Live subscribers left over", () -> meterRegistry.get("reid.live.subscribers").gauge().value() == 0);
+  }
+
+  @Test
+  void pushesInsertsOfTheSource() {
+    StepVerifier.create(live("camera-001", null).map(ServerSentEvent::data).map(Reid::getReid).take(2))
+      .then(() -> {
+        awaitLiveSubscribers(1);
+        repository.save(entity("reid-001", "camera-001")).block();
+        repository.save(entity("reid-002", "camera-002")).block();
+        repository.save(entity("reid-003", "camera-001")).block();
+      })
+      .expectNext("reid-001", "reid-003")
+      .expectComplete()
+      .verify(TIMEOUT);
+  }
+
+  @Test
+  void resumesAfterLastEventId() {
+    String[] firstId = new String[1];
+    StepVerifier.create(live("camera-010", null).take(1))
+      .then(() -> {
+        awaitLiveSubscribers(1);
+        repository.save(entity("reid-010", "camera-010")).block();
+      })
+      .assertNext(event -> firstId[0] = event.id())
+      .expectComplete()
+      .verify(TIMEOUT);
+
+    // Missed while disconnected
+    repository.save(entity("reid-011", "camera-010")).block();
+    repository.save(entity("reid-012", "camera-011")).block();
+    repository.save(entity("reid-013", "camera-010")).block();
+
+    StepVerifier.create(live("camera-010", firstId[0]).map(ServerSentEvent::data).map(Reid::getReid).take(2))
+      .expectNext("reid-011", "reid-013")
+      .expectComplete()
+      .verify(TIMEOUT);
+  }
+
+  @Test
+  void resumesAfterStoredTokenOnRestart() {
+    changeStream.stop();
+    repository.save(entity("reid-020", "camera-020")).block();
+
+    StepVerifier.create(live("camera-020", null).map(ServerSentEvent::data).map(Reid::getReid).take(1))
+      .then(() -> {
+        awaitLiveSubscribers(1);
+        changeStream.start();
+      })
+      .expectNext("reid-020")
+      .expectComplete()
+      .verify(TIMEOUT);
+  }
+
+  @Test
+  void rejectsInvalidLastEventId() {
+    client.get()
+      .uri("/reid/camera-001/live")
+      .accept(TEXT_EVENT_STREAM)
+      .header("Last-Event-ID", "not-a-token")
+      .exchange()
+      .expectStatus().isEqualTo(422);
+  }
+
+  private Flux<ServerSentEvent<Reid>> live(String sourceId, String lastEventId) {
+    return WebClient.create("http://localhost:" + port)
+      .get().uri("/reid/" + sourceId + "/live")
+      .accept(TEXT_EVENT_STREAM)
+      .headers(headers -> {
+        if (lastEventId != null) {
+          headers.set("Last-Event-ID", lastEventId);
+        }
+      })
+      .retrieve().bodyToFlux(new ParameterizedTypeReference<ServerSentEvent<Reid>>() { });
+  }
+
+  private ReidEntity entity(String reid, String sourceId) {
+    return new ReidEntity(reid, sourceId, "ABC123", 1699614600000L, "Location-1", "active");
+  }
+
+  private void awaitLiveSubscribers(int expected) {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (meterRegistry.get("reid.live.subscribers").gauge().value() < expected) {
+      if (System.currentTimeMillis() > deadline) {
+        throw new AssertionError("No live subscriber after 5 s");
+      }
+      LockSupport.parkNanos(10_000_000);
+    }
+  }
+
+  private void await(String failure, BooleanSupplier condition) {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!condition.getAsBoolean()) {
+      if (System.currentTimeMillis() > deadline) {
+        throw new AssertionError(failure + " after 5 s");
+      }
+      LockSupport.parkNanos(20_000_000);
+    }
+  }
+}
@@ -0,0 +1,98 @@
+package se.magnus.microservices.core.reid;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static se.magnus.api.event.Event.Type.CREATE;
+import static se.magnus.api.event.Event.Type.DELETE;
+
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.cloud.stream.binder.test.InputDestination;
+import org.springframework.cloud.stream.binder.test.TestChannelBinderConfiguration;
+import org.springframework.context.annotation.Import;
+import org.springframework.messaging.support.MessageBuilder;
+import se.magnus.api.core.reid.Reid;
+import se.magnus.api.event.Event;
+import se.magnus.microservices.core.reid.persistence.ReidEntity;
+import se.magnus.microservices.core.reid.persistence.ReidRepository;
+
+@SpringBootTest(properties = "app.messaging.batchSize=3")
+@Import(TestChannelBinderConfiguration.class)
+class MessagingTests extends MongoDbTestBase {
+
+  private static final String SOURCE_ID = "camera-001";
+
+  @Autowired
+  private InputDestination input;
+
+  @Autowired
+  private ReidRepository repository;
+
+  @BeforeEach
+  void setupDb() {
+    repository.deleteAll().block();
+  }
+
+  @Test
+  void createReidsInBatches() {
+    for (int i = 0; i < 7; i++) {
+      sendCreateEvent("reid-00" + i, "PLT" + i);
+    }
+
+    await(() -> repository.count().block() == 7);
+    assertEquals(0, repository.findBySourceId(SOURCE_ID).blockFirst().getVersion());
+  }
+
+  @Test
+  void skipsRedeliveredEvents() {
+    sendCreateEvent("reid-001", "ABC123");
+    sendCreateEvent("reid-001", "ABC123");
+    sendCreateEvent("reid-002", "XYZ789");
+    await(() -> repository.count().block() == 2);
+
+    sendCreateEvent("reid-001", "ABC123");
+    sendCreateEvent("reid-003", "DEF456");
+    await(() -> repository.count().block() == 3);
+  }
+
+  @Test
+  void deleteReidsInOrder() {
+    sendCreateEvent("reid-001", "ABC123");
+    sendCreateEvent("reid-002", "XYZ789");
+    sendDeleteEvent("reid-001");
+    sendCreateEvent("reid-003", "DEF456");
+    sendDeleteEvent("reid-003");
+
+    await(() -> repository.count().block() == 1);
+    List<String> reids = repository.findBySourceId(SOURCE_ID).map(ReidEntity::getReid).collect(Collectors.toList()).block();
+    assertEquals(List.of("reid-002"), reids);
+  }
+
+  private void sendCreateEvent(String reidId, String plateNumber) {
+    Reid reid = new Reid(reidId, SOURCE_ID, plateNumber, 1699614600000L, "Location-1", "active", null);
+    send(new Event(CREATE, reidId, reid));
+  }
+
+  private void sendDeleteEvent(String reidId) {
+    send(new Event(DELETE, reidId, null));
+  }
+
+  private void send(Event event) {
+    input.send(MessageBuilder.withPayload(event).build(), "reid");
+  }
+
+  private void await(BooleanSupplier condition) {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!condition.getAsBoolean()) {
+      if (System.currentTimeMillis() > deadline) {
+        throw new AssertionError("Events not processed within 5 s");
+      }
+      LockSupport.parkNanos(20_000_000);
+    }
+  }
+}
@@ -2,19 +2,23 @@ package se.magnus.microservices.core.reid;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import java.util.List;
 import java.util.stream.Collectors;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.context.annotation.Import;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.OptimisticLockingFailureException;
 import reactor.test.StepVerifier;
 import se.magnus.microservices.core.reid.persistence.ReidEntity;
 import se.magnus.microservices.core.reid.persistence.ReidRepository;
 
+// The application's component scan also picks up the services in this slice, give them a MeterRegistry
 @DataMongoTest
+@Import(SimpleMeterRegistry.class)
 class PersistenceTests extends MongoDbTestBase {
 
   @Autowired
@@ -1,20 +1,31 @@
 package se.magnus.microservices.core.reid;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
 import static org.springframework.http.HttpStatus.*;
 import static org.springframework.http.MediaType.APPLICATION_JSON;
+import static org.springframework.http.MediaType.APPLICATION_NDJSON;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.cloud.stream.binder.test.TestChannelBinderConfiguration;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
 import org.springframework.http.HttpStatus;
 import org.springframework.test.web.reactive.server.WebTestClient;
 import se.magnus.api.core.reid.Reid;
+import se.magnus.api.core.reid.ReidBatchResult;
+import se.magnus.microservices.core.reid.persistence.ReidEntity;
 import se.magnus.microservices.core.reid.persistence.ReidRepository;
 
 @SpringBootTest(webEnvironment = RANDOM_PORT)
+@Import(TestChannelBinderConfiguration.class)
 class ReidServiceApplicationTests extends MongoDbTestBase {
 
   @Autowired
@@ -23,6 +34,9 @@ class ReidServiceApplicationTests extends MongoDbTestBase {
   @Autowired
   private ReidRepository repository;
 
+  @Autowired
+  private ReactiveMongoTemplate mongoTemplate;
+
   @BeforeEach
   void setupDb() {
     repository.deleteAll().block();
@@ -78,6 +92,100 @@ class ReidServiceApplicationTests extends MongoDbTestBase {
       .expectStatus().isEqualTo(NOT_FOUND);
   }
 
+  @Test
+  void getReidsInTimeWindow() {
+    String sourceId = "camera-001";
+    long t0 = 1699614600000L;
+
+    // Stored out of order, returned by timestamp
+    repository.saveAll(IntStream.of(4, 0, 3, 1, 2, 5)
+      .mapToObj(i -> new ReidEntity("reid-00" + i, sourceId, "PLT" + i, t0 + i * 1000, "Location-1", "active"))
+      .toList()).blockLast();
+    repository.save(new ReidEntity("reid-009", "camera-002", "PLT9", t0 + 2000, "Location-2", "active")).block();
+
+    getAndVerifyReidBySourceId(sourceId + "?from=" + (t0 + 1000) + "&to=" + (t0 + 4000), OK)
+      .jsonPath("$.length()").isEqualTo(4)
+      .jsonPath("$[0].reid").isEqualTo("reid-001")
+      .jsonPath("$[3].reid").isEqualTo("reid-004")
+      .jsonPath("$[0].plateNumber").isEqualTo("PLT1")
+      .jsonPath("$[0].location").isEqualTo("Location-1");
+
+    getAndVerifyReidBySourceId(sourceId + "?from=" + (t0 + 2000) + "&limit=2", OK)
+      .jsonPath("$.length()").isEqualTo(2)
+      .jsonPath("$[0].reid").isEqualTo("reid-002")
+      .jsonPath("$[1].reid").isEqualTo("reid-003");
+
+    List<Reid> streamed = client.get()
+      .uri("/reid/" + sourceId)
+      .accept(APPLICATION_NDJSON)
+      .exchange()
+      .expectStatus().isEqualTo(OK)
+      .expectHeader().contentTypeCompatibleWith(APPLICATION_NDJSON)
+      .returnResult(Reid.class).getResponseBody().collectList().block();
+    assertEquals(List.of("reid-000", "reid-001", "reid-002", "reid-003", "reid-004", "reid-005"),
+      streamed.stream().map(Reid::getReid).toList());
+
+    getAndVerifyReidBySourceId(sourceId + "?from=" + (t0 + 4000) + "&to=" + t0, UNPROCESSABLE_ENTITY)
+      .jsonPath("$.message").isEqualTo("Invalid time window, from: " + (t0 + 4000) + ", to: " + t0);
+    getAndVerifyReidBySourceId(sourceId + "?limit=0", UNPROCESSABLE_ENTITY)
+      .jsonPath("$.message").isEqualTo("Invalid limit: 0");
+  }
+
+  @Test
+  void upsertReidBatch() {
+    String sourceId = "camera-001";
+    List<Reid> reids = IntStream.range(0, 5)
+      .mapToObj(i -> new Reid("reid-00" + i, sourceId, "PLT" + i, 1699614600000L + i, "Location-1", "active", null))
+      .toList();
+
+    ReidBatchResult result = postReidBatch(reids);
+    assertEquals(5, result.getInserted());
+    assertEquals(0, result.getUpdated());
+    assertEquals(0, result.getFailed());
+    assertEquals(5, repository.count().block());
+
+    // Sent again with one changed reid and one without sourceId
+    reids.get(2).setStatus("lost");
+    List<Reid> resent = new ArrayList<>(reids);
+    resent.add(new Reid("reid-009", null, "PLT9", 1699614600009L, "Location-1", "active", null));
+    result = postReidBatch(resent);
+    assertEquals(0, result.getInserted());
+    assertEquals(1, result.getUpdated());
+    assertEquals(4, result.getUnchanged());
+    assertEquals(1, result.getFailed());
+    assertEquals(5, repository.count().block());
+    assertEquals("lost", repository.findBySourceId(sourceId)
+      .filter(e -> e.getReid().equals("reid-002")).blockFirst().getStatus());
+  }
+
+  @Test
+  void upsertReidBatchFromNdjson() {
+    String body = "{\"reid\":\"reid-001\",\"sourceId\":\"camera-001\",\"plateNumber\":\"ABC123\",\"timestamp\":1699614600000}\n"
+      + "{\"reid\":\"reid-002\",\"sourceId\":\"camera-001\",\"plateNumber\":\"XYZ789\",\"timestamp\":1699614600001}\n";
+
+    client.post()
+      .uri("/reid/batch")
+      .contentType(APPLICATION_NDJSON)
+      .bodyValue(body)
+      .accept(APPLICATION_JSON)
+      .exchange()
+      .expectStatus().isEqualTo(OK)
+      .expectBody()
+      .jsonPath("$.inserted").isEqualTo(2)
+      .jsonPath("$.failed").isEqualTo(0)
+      .jsonPath("$.serviceAddress").exists();
+
+    // Readable with the optimistic locking of the repository
+    ReidEntity entity = repository.findBySourceId("camera-001").blockFirst();
+    assertEquals(0, entity.getVersion());
+  }
+
+  @Test
+  void createsTimestampIndex() {
+    assertTrue(mongoTemplate.indexOps(ReidEntity.class).getIndexInfo()
+      .any(index -> index.getName().equals("sourceId_timestamp")).block());
+  }
+
   @Test
   void contextLoads() {
   }
@@ -105,6 +213,18 @@ class ReidServiceApplicationTests extends MongoDbTestBase {
       .expectBody();
   }
 
+  private ReidBatchResult postReidBatch(List<Reid> reids) {
+    return client.post()
+      .uri("/reid/batch")
+      .contentType(APPLICATION_JSON)
+      .bodyValue(reids)
+      .accept(APPLICATION_JSON)
+      .exchange()
+      .expectStatus().isEqualTo(OK)
+      .expectBody(ReidBatchResult.class)
+      .returnResult().getResponseBody();
+  }
+
   private WebTestClient.BodyContentSpec deleteAndVerifyReidBySourceId(String sourceId, HttpStatus expectedStatus) {
     return client.delete()
       .uri("/reid/" + sourceId)
@@ -0,0 +1,104 @@
+package se.magnus.util.http;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import reactor.util.context.ContextView;
+
+/**
+ * The stage timings of one request, reported in its Server-Timing response header, e.g.
+ * "lpr;dur=12.5, lpr.db.findPageBySourceId;dur=9.8".
+ *
+ * Stages are added by the CallTimers of the service, and by the downstream services whose
+ * Server-Timing headers are merged in. Calls of the same stage add up, the number of calls is
+ * given in the description when there is more than one. The request travels with its timings
+ * in the Reactor context, see ServerTimingFilter.
+ */
+public class ServerTiming {
+
+  public static final String HEADER = "Server-Timing";
+  public static final String REQUEST_ID_HEADER = "X-Request-ID";
+
+  // Bounds the header when e.g. a stream pages through a lot of distinct stages
+  static final int MAX_STAGES = 32;
+
+  private final String requestId;
+  private final Map<String, Stage> stages = new LinkedHashMap<>();
+
+  public ServerTiming(String requestId) {
+    this.requestId = requestId;
+  }
+
+  /**
+   * The timings of the current request, or null outside of a request.
+   */
+  public static ServerTiming from(ContextView context) {
+    return context.getOrDefault(ServerTiming.class, null);
+  }
+
+  public String getRequestId() {
+    return requestId;
+  }
+
+  public synchronized void add(String stage, long nanos) {
+    Stage existing = stages.get(stage);
+    if (existing == null) {
+      if (stages.size() < MAX_STAGES) {
+        stages.put(stage, new Stage(nanos));
+      }
+    } else {
+      existing.nanos += nanos;
+      existing.calls++;
+    }
+  }
+
+  /**
+   * Adds the stages of a downstream Server-Timing header, their names are kept as they are.
+   * Entries without a duration are skipped.
+   */
+  public void merge(List<String> headers) {
+    for (String header : headers) {
+      for (String entry : header.split(",")) {
+        String[] params = entry.split(";");
+        String name = params[0].trim();
+        for (int i = 1; i < params.length; i++) {
+          String param = params[i].trim();
+          if (!name.isEmpty() && param.startsWith("dur=")) {
+            try {
+              add(name, (long) (Double.parseDouble(param.substring(4)) * 1_000_000));
+            } catch (NumberFormatException e) {
+              // Not ours to fix, the rest of the header is still of use
+            }
+          }
+        }
+      }
+    }
+  }
+
+  @Override
+  public synchronized String toString() {
+    StringBuilder header = new StringBuilder();
+    for (Iterator<Map.Entry<String, Stage>> it = stages.entrySet().iterator(); it.hasNext(); ) {
+      Map.Entry<String, Stage> entry = it.next();
+      Stage stage = entry.getValue();
+      header.append(entry.getKey()).append(";dur=").append(stage.nanos / 1000 / 1000.0);
+      if (stage.calls > 1) {
+        header.append(";desc=\"").append(stage.calls).append(" calls\"");
+      }
+      if (it.hasNext()) {
+        header.append(", ");
+      }
+    }
+    return header.toString();
+  }
+
+  private static class Stage {
+    private long nanos;
+    private int calls = 1;
+
+    Stage(long nanos) {
+      this.nanos = nanos;
+    }
+  }
+}
@@ -0,0 +1,81 @@
+package se.magnus.util.http;
+
+import java.util.concurrent.ThreadLocalRandom;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Mono;
+import reactor.util.context.Context;
+
+/**
+ * Gives every request an id and reports its stage timings.
+ *
+ * The id is taken from the X-Request-ID header, or made up if there is none, and returned in
+ * the response. The ServerTiming of the request is put in the Reactor context, where the
+ * CallTimers and the WebClient, see ServerTimingWebClientCustomizer, find it. When the response
+ * is committed the time so far is added as a stage named after the service, and the stages are
+ * written to the Server-Timing header.
+ *
+ * Headers go out before the body, so a streamed response only reports the stages that ended
+ * before its first record was written.
+ */
+@Component
+public class ServerTimingFilter implements WebFilter, Ordered {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ServerTimingFilter.class);
+
+  private final boolean enabled;
+  private final String name;
+
+  @Autowired
+  public ServerTimingFilter(
+    @Value("${app.server-timing.enabled:true}") boolean enabled,
+    @Value("${app.server-timing.name:app}") String name
+  ) {
+    LOG.info("Reports server timings as {}, enabled = {}", name, enabled);
+
+    this.enabled = enabled;
+    this.name = name;
+  }
+
+  // First, so that the total includes the other filters
+  @Override
+  public int getOrder() {
+    return Ordered.HIGHEST_PRECEDENCE;
+  }
+
+  @Override
+  public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+    if (!enabled) {
+      return chain.filter(exchange);
+    }
+
+    long start = System.nanoTime();
+    String requestId = exchange.getRequest().getHeaders().getFirst(ServerTiming.REQUEST_ID_HEADER);
+    ServerTiming timing = new ServerTiming(requestId != null ? requestId : newRequestId());
+
+    exchange.getResponse().beforeCommit(() -> {
+      timing.add(name, System.nanoTime() - start);
+      HttpHeaders headers = exchange.getResponse().getHeaders();
+      headers.set(ServerTiming.REQUEST_ID_HEADER, timing.getRequestId());
+      headers.set(ServerTiming.HEADER, timing.toString());
+      LOG.debug("Request {} {}: {}", timing.getRequestId(), exchange.getRequest().getPath(), timing);
+      return Mono.empty();
+    });
+
+    return chain.filter(exchange).contextWrite(Context.of(ServerTiming.class, timing));
+  }
+
+  // Only correlates requests, so it does not need the secure random of a UUID
+  private static String newRequestId() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    return Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong());
+  }
+}
@@ -0,0 +1,29 @@
+package se.magnus.util.http;
+
+import org.springframework.boot.web.reactive.function.client.WebClientCustomizer;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+
+/**
+ * Passes the request id on to the services called with a WebClient, and merges the stages of
+ * their Server-Timing headers into the ServerTiming of the request. Applies to the WebClients
+ * built from the WebClient.Builder of Spring Boot, calls made outside of a request are left
+ * as they are.
+ */
+@Component
+public class ServerTimingWebClientCustomizer implements WebClientCustomizer {
+
+  @Override
+  public void customize(WebClient.Builder webClientBuilder) {
+    webClientBuilder.filter((request, next) -> Mono.deferContextual(context -> {
+      ServerTiming timing = ServerTiming.from(context);
+      if (timing == null) {
+        return next.exchange(request);
+      }
+      return next.exchange(ClientRequest.from(request).header(ServerTiming.REQUEST_ID_HEADER, timing.getRequestId()).build())
+        .doOnNext(response -> timing.merge(response.headers().header(ServerTiming.HEADER)));
+    }));
+  }
+}
@@ -0,0 +1,42 @@
+package se.magnus.util.messaging;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.converter.MessageConversionException;
+import org.springframework.util.MimeType;
+
+/**
+ * Converts message payloads with an ObjectMapper for a binary Jackson format, such as CBOR or
+ * Smile.
+ *
+ * Only messages with a matching content type header are converted, so messages without one
+ * are still read as JSON.
+ */
+public class BinaryJacksonMessageConverter extends MappingJackson2MessageConverter {
+
+  public BinaryJacksonMessageConverter(MimeType mimeType, ObjectMapper objectMapper) {
+    super(mimeType);
+    setObjectMapper(objectMapper);
+    setStrictContentTypeMatch(true);
+  }
+
+  /**
+   * Spring Cloud Function passes the generic input type of a function as conversion hint,
+   * e.g. Event&lt;String, LicencePlate&gt;, which the base class only handles as MethodParameter.
+   */
+  @Override
+  protected Object convertFromInternal(Message<?> message, Class<?> targetClass, Object conversionHint) {
+    if (conversionHint instanceof Type type && message.getPayload() instanceof byte[] payload) {
+      try {
+        ObjectMapper mapper = getObjectMapper();
+        return mapper.readValue(payload, mapper.constructType(type));
+      } catch (IOException ex) {
+        throw new MessageConversionException(message, "Could not read " + getSupportedMimeTypes() + " message: " + ex.getMessage(), ex);
+      }
+    }
+    return super.convertFromInternal(message, targetClass, conversionHint);
+  }
+}
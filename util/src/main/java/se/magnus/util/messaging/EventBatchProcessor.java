@@ -0,0 +1,208 @@
+package se.magnus.util.messaging;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.kafka.listener.CommonErrorHandler;
+import org.springframework.kafka.listener.DefaultErrorHandler;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.transaction.CannotCreateTransactionException;
+import org.springframework.util.backoff.ExponentialBackOff;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+import reactor.util.retry.RetryBackoffSpec;
+import se.magnus.api.event.Event;
+import se.magnus.api.exceptions.EventProcessingException;
+
+/**
+ * Processes the batches of events of a batch-mode consumer.
+ *
+ * The binder passes the records of one poll, at most max.poll.records, as one list. Each batch
+ * is split into runs of consecutive events of the same type, keeping their order, and every run
+ * is passed to the handler of its type with a single call, e.g. one bulk write. process returns
+ * when the whole batch is stored, and only then does the binder commit its offsets, so a crash
+ * redelivers the batch instead of losing it. The handlers must accept events already stored.
+ *
+ * A run that fails on a transient error, e.g. a lost connection or a timeout, is retried with
+ * exponential backoff, up to maxAttempts calls. If it still fails, process throws, and the
+ * errorHandler of the listener container redelivers the batch with backoff until it is stored,
+ * so the events are not dead-lettered while the database is down. A run that fails on any
+ * other error is retried one event at a time, so that one bad event does not take the others
+ * down with it. Events that fail on their own, or have no handler for their type, are sent to
+ * the DEAD_LETTER_BINDING with the error in the x-exception-* headers, and counted in
+ * messaging.events.deadLettered.
+ */
+public class EventBatchProcessor<K, T> {
+
+  private static final Logger LOG = LoggerFactory.getLogger(EventBatchProcessor.class);
+
+  public static final String DEAD_LETTER_BINDING = "deadLetters-out-0";
+
+  // The longest pause of the listener container between redeliveries of a failing batch
+  private static final long MAX_REDELIVERY_INTERVAL = 30_000L;
+
+  private final Duration minBackoff;
+  private final RetryBackoffSpec transientRetry;
+  private final BiPredicate<String, Message<?>> deadLetterSender;
+  private final Counter deadLettered;
+  private final Map<Event.Type, Function<List<Event<K, T>>, Mono<?>>> handlers = new EnumMap<>(Event.Type.class);
+
+  public EventBatchProcessor(int maxAttempts, Duration minBackoff, BiPredicate<String, Message<?>> deadLetterSender,
+    MeterRegistry registry) {
+
+    this.minBackoff = minBackoff;
+    this.transientRetry = Retry.backoff(maxAttempts - 1, minBackoff)
+      .filter(EventBatchProcessor::isTransient)
+      .doBeforeRetry(signal -> LOG.warn("Retries a run of events after a transient error: {}", signal.failure().toString()))
+      .onRetryExhaustedThrow((spec, signal) -> signal.failure());
+    this.deadLetterSender = deadLetterSender;
+    this.deadLettered = Counter.builder("messaging.events.deadLettered")
+      .description("Events that could not be processed and were sent to the dead letter binding")
+      .tag("binding", DEAD_LETTER_BINDING)
+      .register(registry);
+  }
+
+  /**
+   * Handles the runs of events of the given type.
+   */
+  public EventBatchProcessor<K, T> on(Event.Type type, Function<List<Event<K, T>>, Mono<?>> handler) {
+    handlers.put(type, handler);
+    return this;
+  }
+
+  /**
+   * Stores a batch of events, blocking the consumer thread until it is done. Pass it as a method
+   * reference, e.g. "return processor::process;" in a Consumer bean of a batch-mode binding, so
+   * that Spring Cloud Stream takes the event type from the bean method.
+   *
+   * @throws EventProcessingException if a run still fails on a transient error
+   */
+  public void process(List<Event<K, T>> batch) {
+    LOG.debug("Process batch of {} events", batch.size());
+    try {
+      Flux.fromIterable(runsOfSameType(batch))
+        .concatMap(this::processRun)
+        .then()
+        .block();
+    } catch (RuntimeException ex) {
+      throw new EventProcessingException("Failed to process a batch of " + batch.size() + " events, it is redelivered", ex);
+    }
+  }
+
+  /**
+   * The error handler for the listener container of the binding. It redelivers a batch that
+   * process failed to store, with exponential backoff and without limit, pausing the consumer
+   * meanwhile. A batch that fails before it reaches process, e.g. since it could not be converted
+   * to events, is not retried; its records are sent to the DEAD_LETTER_BINDING as they are.
+   */
+  public CommonErrorHandler errorHandler() {
+    ExponentialBackOff backOff = new ExponentialBackOff(minBackoff.toMillis(), 2.0);
+    backOff.setMaxInterval(MAX_REDELIVERY_INTERVAL);
+    DefaultErrorHandler errorHandler = new DefaultErrorHandler(this::deadLetter, backOff);
+    errorHandler.defaultFalse();
+    errorHandler.addRetryableExceptions(EventProcessingException.class);
+    return errorHandler;
+  }
+
+  private Mono<Void> processRun(List<Event<K, T>> run) {
+    Event.Type type = run.get(0).getEventType();
+    Function<List<Event<K, T>>, Mono<?>> handler = type != null ? handlers.get(type) : null;
+    if (handler == null) {
+      String errorMessage = "Incorrect event type: " + type + ", expected one of " + handlers.keySet();
+      return Flux.fromIterable(run)
+        .concatMap(event -> deadLetter(event, new EventProcessingException(errorMessage)))
+        .then();
+    }
+
+    return handle(handler, run)
+      .onErrorResume(ex -> !isTransient(ex), ex -> {
+        if (run.size() == 1) {
+          return deadLetter(run.get(0), ex);
+        }
+        LOG.warn("Failed to process {} {} events, retries them one at a time: {}", run.size(), type, ex.toString());
+        return Flux.fromIterable(run)
+          .concatMap(event -> handle(handler, List.of(event))
+            .onErrorResume(eventEx -> !isTransient(eventEx), eventEx -> deadLetter(event, eventEx)))
+          .then();
+      });
+  }
+
+  private Mono<Void> handle(Function<List<Event<K, T>>, Mono<?>> handler, List<Event<K, T>> run) {
+    return Mono.defer(() -> handler.apply(run)).then().retryWhen(transientRetry);
+  }
+
+  /**
+   * Errors that may pass if the call is repeated later, such as a database that is down or a timeout.
+   */
+  static boolean isTransient(Throwable ex) {
+    for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+      if (cause instanceof TransientDataAccessException || cause instanceof RecoverableDataAccessException
+        || cause instanceof DataAccessResourceFailureException || cause instanceof CannotCreateTransactionException
+        || cause instanceof TimeoutException) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private Mono<Void> deadLetter(Event<K, T> event, Throwable ex) {
+    LOG.warn("Failed to process {} event {}, sends it to {}: {}", event.getEventType(), event.getKey(), DEAD_LETTER_BINDING,
+      ex.toString());
+    deadLettered.increment();
+
+    send(MessageBuilder.withPayload(event)
+      .setHeader("x-exception-message", String.valueOf(ex.getMessage()))
+      .setHeader("x-exception-fqcn", ex.getClass().getName())
+      .build(), event.getEventType() + " event " + event.getKey());
+    return Mono.empty();
+  }
+
+  private void deadLetter(ConsumerRecord<?, ?> record, Exception ex) {
+    // The records are sent in place of events, with the payload the binder received
+    LOG.warn("Failed to read the record at offset {} of {}-{}, sends it to {}: {}", record.offset(), record.topic(),
+      record.partition(), DEAD_LETTER_BINDING, ex.toString());
+    deadLettered.increment();
+    send(MessageBuilder.withPayload(record.value() != null ? record.value() : new byte[0])
+      .setHeader("x-exception-message", String.valueOf(ex.getMessage()))
+      .setHeader("x-exception-fqcn", ex.getClass().getName())
+      .build(), "record at offset " + record.offset() + " of " + record.topic() + "-" + record.partition());
+  }
+
+  private void send(Message<?> message, String description) {
+    try {
+      if (!deadLetterSender.test(DEAD_LETTER_BINDING, message)) {
+        LOG.error("Lost {}, it was not accepted by {}", description, DEAD_LETTER_BINDING);
+      }
+    } catch (RuntimeException sendEx) {
+      LOG.error("Lost {}, it could not be sent to {}: {}", description, DEAD_LETTER_BINDING, sendEx.toString());
+    }
+  }
+
+  static <K, T> List<List<Event<K, T>>> runsOfSameType(List<Event<K, T>> batch) {
+    List<List<Event<K, T>>> runs = new ArrayList<>();
+    List<Event<K, T>> run = null;
+    for (Event<K, T> event : batch) {
+      if (run == null || run.get(0).getEventType() != event.getEventType()) {
+        run = new ArrayList<>();
+        runs.add(run);
+      }
+      run.add(event);
+    }
+    return runs;
+  }
+}
@@ -0,0 +1,168 @@
+package se.magnus.util.metrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import se.magnus.util.http.ServerTiming;
+
+/**
+ * Times calls of one kind, e.g. the repository calls of a service, as one timer with a tag
+ * naming the call and an outcome tag: SUCCESS, ERROR, or CANCELLED when the subscriber gave up
+ * first, e.g. on a timeout. The timers publish percentile histograms, so the percentiles can be
+ * aggregated across instances, e.g. with histogram_quantile in Prometheus.
+ *
+ * A reactive call is timed from its subscription until it terminates, so the time spent waiting
+ * for a scheduler is included. A Mono is done once it has given its value, it is a SUCCESS even
+ * when it is cancelled right after, as a response writer does. A timer is registered the first
+ * time its call ends with its outcome, as every one of them adds a series per histogram bucket
+ * to a scrape.
+ *
+ * With a stage prefix, the reactive calls are also added to the ServerTiming of the request
+ * they run for, as the stage prefix.call. Blocking calls are not, they run outside of the
+ * Reactor context, their time is part of the stage of the reactive call around them.
+ */
+public class CallTimer {
+
+  public static final String OUTCOME_TAG = "outcome";
+
+  private static final int SUCCESS = 0;
+  private static final int ERROR = 1;
+  private static final int CANCELLED = 2;
+  private static final String[] OUTCOMES = {"SUCCESS", "ERROR", "CANCELLED"};
+
+  private final MeterRegistry registry;
+  private final String name;
+  private final String description;
+  private final String callTag;
+  private final Tags tags;
+  private final Map<String, Call> calls = new ConcurrentHashMap<>();
+  private String stagePrefix;
+
+  /**
+   * @param callTag the tag naming the call, e.g. "method" or "operation"
+   * @param tags further tags common to all the calls, as key value pairs
+   */
+  public CallTimer(MeterRegistry registry, String name, String description, String callTag, String... tags) {
+    this.registry = registry;
+    this.name = name;
+    this.description = description;
+    this.callTag = callTag;
+    this.tags = Tags.of(tags);
+  }
+
+  /**
+   * Reports the reactive calls as server timing stages, e.g. "lpr.db" for lpr.db.save.
+   */
+  public CallTimer reportStages(String stagePrefix) {
+    this.stagePrefix = stagePrefix;
+    return this;
+  }
+
+  public <T> Mono<T> time(String call, Mono<T> mono) {
+    Call timed = call(call);
+    return Mono.deferContextual(context -> {
+      Measurement measurement = new Measurement(timed, timed.stage == null ? null : ServerTiming.from(context));
+      return mono
+        .doOnSuccess(value -> measurement.stop(SUCCESS))
+        .doOnError(ex -> measurement.stop(ERROR))
+        .doOnCancel(() -> measurement.stop(CANCELLED));
+    });
+  }
+
+  public <T> Flux<T> time(String call, Flux<T> flux) {
+    Call timed = call(call);
+    return Flux.deferContextual(context -> {
+      Measurement measurement = new Measurement(timed, timed.stage == null ? null : ServerTiming.from(context));
+      return flux
+        .doOnComplete(() -> measurement.stop(SUCCESS))
+        .doOnError(ex -> measurement.stop(ERROR))
+        .doOnCancel(() -> measurement.stop(CANCELLED));
+    });
+  }
+
+  /**
+   * Times a blocking call, an exception is recorded as an ERROR and rethrown.
+   */
+  public <T> T record(String call, Supplier<T> supplier) {
+    Call timed = call(call);
+    Timer.Sample sample = Timer.start(registry);
+    boolean succeeded = false;
+    try {
+      T result = supplier.get();
+      succeeded = true;
+      return result;
+    } finally {
+      sample.stop(timer(timed, succeeded ? SUCCESS : ERROR));
+    }
+  }
+
+  public void record(String call, Runnable runnable) {
+    record(call, () -> {
+      runnable.run();
+      return null;
+    });
+  }
+
+  private Call call(String call) {
+    return calls.computeIfAbsent(call, c -> new Call(c, stagePrefix == null ? null : stagePrefix + "." + c));
+  }
+
+  // A race registers the timer twice, the registry returns the same one both times
+  private Timer timer(Call call, int outcome) {
+    Timer timer = call.outcomes[outcome];
+    if (timer == null) {
+      timer = Timer.builder(name)
+        .description(description)
+        .tags(tags)
+        .tag(callTag, call.name)
+        .tag(OUTCOME_TAG, OUTCOMES[outcome])
+        .publishPercentileHistogram()
+        .register(registry);
+      call.outcomes[outcome] = timer;
+    }
+    return timer;
+  }
+
+  /**
+   * One call, stopped by the first of its outcomes. The outcomes are recorded before they are
+   * passed on, so a call is timed by the time its caller sees the result, and its stage is
+   * added before a response that only waited for it is committed.
+   */
+  private class Measurement {
+    private final Call call;
+    private final ServerTiming timing;
+    private final Timer.Sample sample = Timer.start(registry);
+    private final AtomicBoolean stopped = new AtomicBoolean();
+
+    Measurement(Call call, ServerTiming timing) {
+      this.call = call;
+      this.timing = timing;
+    }
+
+    void stop(int outcome) {
+      if (stopped.compareAndSet(false, true)) {
+        long nanos = sample.stop(timer(call, outcome));
+        if (timing != null) {
+          timing.add(call.stage, nanos);
+        }
+      }
+    }
+  }
+
+  private static class Call {
+    private final String name;
+    private final String stage;
+    private final Timer[] outcomes = new Timer[OUTCOMES.length];
+
+    Call(String name, String stage) {
+      this.name = name;
+      this.stage = stage;
+    }
+  }
+}
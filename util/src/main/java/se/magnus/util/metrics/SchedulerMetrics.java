@@ -0,0 +1,48 @@
+package se.magnus.util.metrics;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import reactor.core.observability.micrometer.Micrometer;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Bounded elastic schedulers that report how saturated they are.
+ *
+ * The scheduler is wrapped with Reactor's timed scheduler, which registers, under the given
+ * prefix:
+ * <ul>
+ *   <li>prefix.scheduler.tasks.pending, the tasks waiting in the queue and for how long, as a long task timer</li>
+ *   <li>prefix.scheduler.tasks.active, the tasks running, i.e. the busy threads, as a long task timer</li>
+ *   <li>prefix.scheduler.tasks.completed, the run time of the completed tasks, as a timer</li>
+ *   <li>prefix.scheduler.tasks.submitted, the submitted tasks, as a counter</li>
+ * </ul>
+ * Two gauges give the capacity to compare them to, prefix.scheduler.threads.max and
+ * prefix.scheduler.tasks.queued.max. Once all the threads are busy tasks queue up, and once
+ * the queue is full as well a task is rejected.
+ */
+public final class SchedulerMetrics {
+
+  private SchedulerMetrics() {
+  }
+
+  /**
+   * @param queuedTaskCap the number of tasks that may queue per thread, as for Schedulers.newBoundedElastic
+   */
+  public static Scheduler newTimedBoundedElastic(MeterRegistry registry, String prefix,
+    int threadCap, int queuedTaskCap, String name) {
+
+    Scheduler scheduler = Schedulers.newBoundedElastic(threadCap, queuedTaskCap, name);
+    Tags tags = Tags.of("name", name);
+
+    Gauge.builder(prefix + ".scheduler.threads.max", () -> threadCap)
+      .description("Threads the scheduler may start")
+      .tags(tags).register(registry);
+    Gauge.builder(prefix + ".scheduler.tasks.queued.max", () -> (long) threadCap * queuedTaskCap)
+      .description("Tasks that may wait in the queue of the scheduler")
+      .tags(tags).register(registry);
+
+    return Micrometer.timedScheduler(scheduler, registry, prefix, tags);
+  }
+}
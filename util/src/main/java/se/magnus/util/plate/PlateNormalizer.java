@@ -0,0 +1,32 @@
+package se.magnus.util.plate;
+
+/**
+ * Normalizes plate numbers to a reduced alphabet where characters that OCR commonly confuses
+ * (0/O/Q/D, 1/I/L, 8/B, 5/S, 2/Z) collapse into one, dropping anything but letters and digits.
+ * Two reads of the same plate that only differ by such confusions get the same key.
+ */
+public final class PlateNormalizer {
+
+  private PlateNormalizer() {
+  }
+
+  public static String normalize(String plateNum) {
+    StringBuilder normalized = new StringBuilder(plateNum.length());
+    for (int i = 0; i < plateNum.length(); i++) {
+      char c = Character.toUpperCase(plateNum.charAt(i));
+      switch (c) {
+        case 'O', 'Q', 'D' -> normalized.append('0');
+        case 'I', 'L' -> normalized.append('1');
+        case 'B' -> normalized.append('8');
+        case 'S' -> normalized.append('5');
+        case 'Z' -> normalized.append('2');
+        default -> {
+          if ((c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')) {
+            normalized.append(c);
+          }
+        }
+      }
+    }
+    return normalized.toString();
+  }
+}
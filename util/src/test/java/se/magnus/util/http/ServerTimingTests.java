@@ -0,0 +1,91 @@
+package se.magnus.util.http;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import reactor.core.publisher.Mono;
+import reactor.util.context.Context;
+import se.magnus.util.metrics.CallTimer;
+
+class ServerTimingTests {
+
+  @Test
+  void addsUpCallsOfTheSameStage() {
+    ServerTiming timing = new ServerTiming("request-1");
+    timing.add("lpr", 12_500_000);
+    timing.add("lpr.db.save", 1_000_000);
+    timing.add("lpr.db.save", 2_000_000);
+
+    assertEquals("lpr;dur=12.5, lpr.db.save;dur=3.0;desc=\"2 calls\"", timing.toString());
+  }
+
+  @Test
+  void mergesDownstreamStages() {
+    ServerTiming timing = new ServerTiming("request-1");
+    timing.add("composite.lpr.getLprs", 20_000_000);
+    timing.merge(List.of("lpr;dur=15.25, lpr.db.findPageBySourceId;dur=9.5;desc=\"2 calls\"", "cache;desc=hit, broken;dur=x"));
+
+    assertEquals("composite.lpr.getLprs;dur=20.0, lpr;dur=15.25, lpr.db.findPageBySourceId;dur=9.5", timing.toString());
+  }
+
+  @Test
+  void boundsTheNumberOfStages() {
+    ServerTiming timing = new ServerTiming("request-1");
+    for (int i = 0; i < ServerTiming.MAX_STAGES + 10; i++) {
+      timing.add("stage-" + i, 1_000_000);
+    }
+    timing.add("stage-0", 1_000_000);
+
+    assertEquals(ServerTiming.MAX_STAGES, timing.toString().split(", ").length);
+    assertTrue(timing.toString().startsWith("stage-0;dur=2.0;desc=\"2 calls\""));
+  }
+
+  @Test
+  void callTimerReportsStagesOfTheRequest() {
+    CallTimer calls = new CallTimer(new SimpleMeterRegistry(), "test.calls", "Test calls", "operation").reportStages("test.db");
+    ServerTiming timing = new ServerTiming("request-1");
+
+    calls.time("find", Mono.just("ok")).contextWrite(Context.of(ServerTiming.class, timing)).block();
+    calls.time("find", Mono.just("ok")).block();
+
+    assertTrue(timing.toString().startsWith("test.db.find;dur="), timing.toString());
+    assertFalse(timing.toString().contains("calls"), "Only the call within the request");
+  }
+
+  @Test
+  void filterPassesTheRequestIdAndReportsTheStages() {
+    ServerTimingFilter filter = new ServerTimingFilter(true, "test");
+    MockServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/test")
+      .header(ServerTiming.REQUEST_ID_HEADER, "request-1"));
+
+    filter.filter(exchange, ex -> Mono.deferContextual(context -> {
+      assertEquals("request-1", ServerTiming.from(context).getRequestId());
+      ServerTiming.from(context).add("test.db.find", 1_000_000);
+      return ex.getResponse().setComplete();
+    })).block();
+
+    HttpHeaders headers = exchange.getResponse().getHeaders();
+    assertEquals("request-1", headers.getFirst(ServerTiming.REQUEST_ID_HEADER));
+    assertTrue(headers.getFirst(ServerTiming.HEADER).matches("test.db.find;dur=1.0, test;dur=[0-9.]+"),
+      headers.getFirst(ServerTiming.HEADER));
+  }
+
+  @Test
+  void filterMakesUpMissingRequestIds() {
+    ServerTimingFilter filter = new ServerTimingFilter(true, "test");
+    MockServerWebExchange first = MockServerWebExchange.from(MockServerHttpRequest.get("/test"));
+    MockServerWebExchange second = MockServerWebExchange.from(MockServerHttpRequest.get("/test"));
+
+    filter.filter(first, ex -> ex.getResponse().setComplete()).block();
+    filter.filter(second, ex -> ex.getResponse().setComplete()).block();
+
+    String id = first.getResponse().getHeaders().getFirst(ServerTiming.REQUEST_ID_HEADER);
+    assertNotNull(id);
+    assertNotEquals(id, second.getResponse().getHeaders().getFirst(ServerTiming.REQUEST_ID_HEADER));
+  }
+}
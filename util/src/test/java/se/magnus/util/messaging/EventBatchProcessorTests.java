@@ -0,0 +1,99 @@
+package se.magnus.util.messaging;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static se.magnus.api.event.Event.Type.CREATE;
+import static se.magnus.api.event.Event.Type.DELETE;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.messaging.Message;
+import reactor.core.publisher.Mono;
+import se.magnus.api.event.Event;
+import se.magnus.api.exceptions.EventProcessingException;
+
+class EventBatchProcessorTests {
+
+  private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  private final List<List<Integer>> stored = new ArrayList<>();
+  private final List<Message<?>> deadLetters = new ArrayList<>();
+  private final AtomicInteger outages = new AtomicInteger();
+
+  private final EventBatchProcessor<Integer, String> processor = new EventBatchProcessor<Integer, String>(3,
+    Duration.ofMillis(1), (binding, message) -> deadLetters.add(message), registry)
+    .on(CREATE, run -> {
+      List<Integer> keys = run.stream().map(Event::getKey).collect(Collectors.toList());
+      if (outages.getAndUpdate(remaining -> Math.max(0, remaining - 1)) > 0) {
+        return Mono.error(new DataAccessResourceFailureException("Database down"));
+      }
+      if (keys.contains(13)) {
+        return Mono.error(new IllegalStateException("Bad event"));
+      }
+      stored.add(keys);
+      return Mono.empty();
+    });
+
+  @Test
+  void storesRunsOfSameTypeInOneCall() {
+    assertEquals(List.of(List.of(1, 2), List.of(3), List.of(4, 5)), EventBatchProcessor.runsOfSameType(List.of(
+      event(CREATE, 1), event(CREATE, 2), event(DELETE, 3), event(CREATE, 4), event(CREATE, 5)))
+      .stream().map(run -> run.stream().map(Event::getKey).collect(Collectors.toList())).collect(Collectors.toList()));
+
+    processor.process(List.of(event(CREATE, 1), event(CREATE, 2), event(CREATE, 3)));
+
+    assertEquals(List.of(List.of(1, 2, 3)), stored);
+    assertTrue(deadLetters.isEmpty());
+  }
+
+  @Test
+  void retriesAFailingRunOneEventAtATime() {
+    processor.process(List.of(event(CREATE, 12), event(CREATE, 13), event(CREATE, 14)));
+
+    assertEquals(List.of(List.of(12), List.of(14)), stored);
+    assertEquals(1, deadLetters.size());
+    assertEquals(13, ((Event<?, ?>) deadLetters.get(0).getPayload()).getKey());
+    assertEquals("Bad event", deadLetters.get(0).getHeaders().get("x-exception-message"));
+    assertEquals(1, registry.get("messaging.events.deadLettered").counter().count());
+  }
+
+  @Test
+  void deadLettersEventsWithoutHandler() {
+    processor.process(List.of(event(CREATE, 1), event(DELETE, 2), event(CREATE, 3)));
+
+    assertEquals(List.of(List.of(1), List.of(3)), stored);
+    assertEquals(1, deadLetters.size());
+    assertEquals(2, ((Event<?, ?>) deadLetters.get(0).getPayload()).getKey());
+  }
+
+  @Test
+  void retriesTransientErrorsWithBackoff() {
+    outages.set(2);
+
+    processor.process(List.of(event(CREATE, 1), event(CREATE, 2)));
+
+    assertEquals(List.of(List.of(1, 2)), stored);
+    assertTrue(deadLetters.isEmpty());
+  }
+
+  @Test
+  void failsTheBatchWhenTransientErrorsPersist() {
+    outages.set(3);
+
+    // The binder redelivers the batch, so none of it is dead-lettered
+    assertThrows(EventProcessingException.class, () -> processor.process(List.of(event(CREATE, 1), event(CREATE, 2))));
+    assertTrue(stored.isEmpty());
+    assertTrue(deadLetters.isEmpty());
+
+    processor.process(List.of(event(CREATE, 1), event(CREATE, 2)));
+    assertEquals(List.of(List.of(1, 2)), stored);
+  }
+
+  private static Event<Integer, String> event(Event.Type type, int key) {
+    return new Event<>(type, key, "data-" + key);
+  }
+}
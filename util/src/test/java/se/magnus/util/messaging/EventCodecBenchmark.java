@@ -0,0 +1,85 @@
+package se.magnus.util.messaging;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import se.magnus.api.core.lpr.LicencePlate;
+import se.magnus.api.event.Event;
+
+/**
+ * Compares the size and the encode and decode time of a LicencePlate create event in JSON,
+ * CBOR and Smile.
+ *
+ * Excluded from the regular test task, run with "./gradlew :util:benchmark".
+ * The number of events per round can be set with the system property benchmark.events.
+ */
+@Tag("benchmark")
+class EventCodecBenchmark {
+
+  private static final int EVENTS = Integer.getInteger("benchmark.events", 200_000);
+  private static final int ROUNDS = 5;
+
+  @Test
+  void compareEncodings() throws Exception {
+    Event<String, LicencePlate> event = EventCodecTests.event();
+
+    ObjectMapper json = new Jackson2ObjectMapperBuilder().build();
+    ObjectMapper cbor = EventCodecConfiguration.binaryMapper(new Jackson2ObjectMapperBuilder(), new CBORFactory());
+    ObjectMapper smile = EventCodecConfiguration.binaryMapper(new Jackson2ObjectMapperBuilder(), new SmileFactory());
+
+    Result[] results = {measure("json", json, event), measure("cbor", cbor, event), measure("smile", smile, event)};
+
+    System.out.printf("%nEvent codec benchmark, %d events per round, best of %d rounds%n", EVENTS, ROUNDS);
+    System.out.printf("%-6s %12s %14s %14s%n", "codec", "bytes/event", "encode ns/ev", "decode ns/ev");
+    for (Result result : results) {
+      System.out.println(result);
+    }
+  }
+
+  private Result measure(String name, ObjectMapper mapper, Event<String, LicencePlate> event) throws Exception {
+    JavaType type = mapper.constructType(new TypeReference<Event<String, LicencePlate>>() {});
+    byte[] encoded = mapper.writeValueAsBytes(event);
+
+    long bestEncode = Long.MAX_VALUE;
+    long bestDecode = Long.MAX_VALUE;
+    long sink = 0;
+
+    // The first round warms up the mapper and is not counted
+    for (int round = 0; round <= ROUNDS; round++) {
+      long start = System.nanoTime();
+      for (int i = 0; i < EVENTS; i++) {
+        sink += mapper.writeValueAsBytes(event).length;
+      }
+      long encode = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (int i = 0; i < EVENTS; i++) {
+        Event<String, LicencePlate> decoded = mapper.readValue(encoded, type);
+        sink += decoded.getData().getUnixTime();
+      }
+      long decode = System.nanoTime() - start;
+
+      if (round > 0) {
+        bestEncode = Math.min(bestEncode, encode);
+        bestDecode = Math.min(bestDecode, decode);
+      }
+    }
+
+    if (sink == 42) {
+      System.out.println();
+    }
+    return new Result(name, encoded.length, (double) bestEncode / EVENTS, (double) bestDecode / EVENTS);
+  }
+
+  private record Result(String codec, int bytes, double encodeNanos, double decodeNanos) {
+    @Override
+    public String toString() {
+      return String.format("%-6s %12d %14.0f %14.0f", codec, bytes, encodeNanos, decodeNanos);
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package se.magnus.util.messaging;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static se.magnus.api.event.Event.Type.CREATE;
+import static se.magnus.util.messaging.EventCodecConfiguration.APPLICATION_CBOR;
+import static se.magnus.util.messaging.EventCodecConfiguration.APPLICATION_SMILE;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.lang.reflect.Type;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.MessageConverter;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.util.MimeType;
+import se.magnus.api.core.lpr.BoundingBox;
+import se.magnus.api.core.lpr.LicencePlate;
+import se.magnus.api.event.Event;
+
+class EventCodecTests {
+
+  private static final Type EVENT_TYPE = new TypeReference<Event<String, LicencePlate>>() {}.getType();
+
+  private final EventCodecConfiguration config = new EventCodecConfiguration();
+  private final StaticListableBeanFactory beanFactory = new StaticListableBeanFactory();
+
+  @Test
+  void cborRoundTrip() {
+    assertRoundTrip(cborConverter(), APPLICATION_CBOR);
+  }
+
+  @Test
+  void smileRoundTrip() {
+    assertRoundTrip(smileConverter(), APPLICATION_SMILE);
+  }
+
+  @Test
+  void binaryIsSmallerThanJson() throws Exception {
+    Event<String, LicencePlate> event = event();
+    ObjectMapper json = new Jackson2ObjectMapperBuilder().build();
+    byte[] cbor = (byte[]) cborConverter()
+      .toMessage(event, headers(APPLICATION_CBOR)).getPayload();
+
+    assertTrue(cbor.length < json.writeValueAsBytes(event).length);
+  }
+
+  @Test
+  void leavesJsonMessagesAlone() {
+    MessageConverter converter = cborConverter();
+    Message<byte[]> json = MessageBuilder.withPayload("{\"eventType\":\"CREATE\"}".getBytes()).build();
+    Message<byte[]> jsonWithHeader = MessageBuilder.fromMessage(json)
+      .setHeader(MessageHeaders.CONTENT_TYPE, "application/json").build();
+
+    assertNull(converter.fromMessage(json, Event.class));
+    assertNull(converter.fromMessage(jsonWithHeader, Event.class));
+  }
+
+  private MessageConverter cborConverter() {
+    return config.cborMessageConverter(beanFactory.getBeanProvider(Jackson2ObjectMapperBuilder.class));
+  }
+
+  private MessageConverter smileConverter() {
+    return config.smileMessageConverter(beanFactory.getBeanProvider(Jackson2ObjectMapperBuilder.class));
+  }
+
+  private void assertRoundTrip(MessageConverter converter, MimeType mimeType) {
+    Event<String, LicencePlate> event = event();
+
+    Message<?> message = converter.toMessage(event, headers(mimeType));
+    assertTrue(message.getPayload() instanceof byte[]);
+
+    @SuppressWarnings("unchecked")
+    Event<String, LicencePlate> decoded = (Event<String, LicencePlate>)
+      ((BinaryJacksonMessageConverter) converter).fromMessage(message, Event.class, EVENT_TYPE);
+
+    assertEquals(event.getEventType(), decoded.getEventType());
+    assertEquals(event.getKey(), decoded.getKey());
+    assertEquals(event.getData(), decoded.getData());
+    assertEquals(event.getEventCreatedAt().toInstant().toEpochMilli(), decoded.getEventCreatedAt().toInstant().toEpochMilli());
+  }
+
+  private static MessageHeaders headers(MimeType mimeType) {
+    return new MessageHeaders(Map.of(MessageHeaders.CONTENT_TYPE, mimeType));
+  }
+
+  static Event<String, LicencePlate> event() {
+    LicencePlate plate = new LicencePlate("camera-001", "7f8c2d4e-1b3a-4c5d-9e6f-0a1b2c3d4e5f",
+      new BoundingBox(412, 288, 640, 360), new BoundingBox(655, 540, 128, 42),
+      "ABC123", "2024-03-01T12:34:56.789Z", 1709296496789L, null);
+    return new Event<>(CREATE, plate.getObjectUuid(), plate);
+  }
+}
@@ -0,0 +1,105 @@
+package se.magnus.util.metrics;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import io.micrometer.core.instrument.LongTaskTimer;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+
+class MetricsTests {
+
+  private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  private final CallTimer calls = new CallTimer(registry, "test.calls", "Test calls", "operation", "service", "test");
+
+  @Test
+  void timesMonoOutcomes() {
+    assertEquals("ok", calls.time("find", Mono.just("ok")).block());
+    assertThrows(IllegalStateException.class, () -> calls.time("find", Mono.error(new IllegalStateException())).block());
+    calls.time("find", Mono.never()).timeout(Duration.ofMillis(10), Mono.just("fallback")).block();
+
+    assertEquals(1, timer("find", "SUCCESS").count());
+    assertEquals(1, timer("find", "ERROR").count());
+    assertEquals(1, timer("find", "CANCELLED").count());
+    assertEquals("test", timer("find", "SUCCESS").getId().getTag("service"));
+  }
+
+  @Test
+  void monoIsDoneWithItsValue() {
+    // Cancels the Mono between its value and its completion
+    assertEquals("ok", Flux.from(calls.time("first", Mono.just("ok"))).take(1).blockLast());
+
+    assertEquals(1, timer("first", "SUCCESS").count());
+    assertNull(registry.find("test.calls").tag("operation", "first").tag(CallTimer.OUTCOME_TAG, "CANCELLED").timer());
+  }
+
+  @Test
+  void timesFluxOnceAtTheEnd() {
+    Flux<Integer> flux = calls.time("list", Flux.range(1, 5));
+    assertNull(registry.find("test.calls").tag("operation", "list").timer(), "Not timed before it is subscribed");
+
+    assertEquals(5, flux.count().block());
+    assertEquals(5, flux.count().block());
+    assertEquals(2, timer("list", "SUCCESS").count());
+  }
+
+  @Test
+  void timesBlockingCalls() {
+    assertEquals(42, calls.record("load", () -> 42));
+    assertThrows(IllegalArgumentException.class, () -> calls.record("load", () -> {
+      throw new IllegalArgumentException();
+    }));
+
+    assertEquals(1, timer("load", "SUCCESS").count());
+    assertEquals(1, timer("load", "ERROR").count());
+    assertNotNull(timer("load", "SUCCESS").takeSnapshot().histogramCounts(), "Publishes a histogram");
+  }
+
+  @Test
+  void schedulerReportsSaturation() throws InterruptedException {
+    Scheduler scheduler = SchedulerMetrics.newTimedBoundedElastic(registry, "test.pool", 1, 10, "test-pool");
+    try {
+      CountDownLatch running = new CountDownLatch(1);
+      CountDownLatch release = new CountDownLatch(1);
+      scheduler.schedule(() -> {
+        running.countDown();
+        awaitQuietly(release);
+      });
+      scheduler.schedule(() -> { });
+      assertTrue(running.await(5, TimeUnit.SECONDS));
+
+      assertEquals(1, longTaskTimer("test.pool.scheduler.tasks.active").activeTasks(), "One busy thread");
+      assertEquals(1, longTaskTimer("test.pool.scheduler.tasks.pending").activeTasks(), "One queued task");
+      assertEquals(1, registry.get("test.pool.scheduler.threads.max").gauge().value());
+      assertEquals(10, registry.get("test.pool.scheduler.tasks.queued.max").gauge().value());
+
+      release.countDown();
+      Mono.delay(Duration.ofMillis(10), scheduler).block();
+      assertEquals(0, longTaskTimer("test.pool.scheduler.tasks.pending").activeTasks());
+    } finally {
+      scheduler.dispose();
+    }
+  }
+
+  private Timer timer(String operation, String outcome) {
+    return registry.get("test.calls").tag("operation", operation).tag(CallTimer.OUTCOME_TAG, outcome).timer();
+  }
+
+  private LongTaskTimer longTaskTimer(String name) {
+    return registry.get(name).tag("name", "test-pool").longTaskTimer();
+  }
+
+  private static void awaitQuietly(CountDownLatch latch) {
+    try {
+      latch.await(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}